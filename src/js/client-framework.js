@@ -24,6 +24,12 @@ var marauroa = window.marauroa = window.marauroa || {};
 marauroa.clientFramework = {
 	clientid: "-1",
 
+	/**
+	 * websocket subprotocols to offer. With "marauroa-binary" the server sends
+	 * perceptions in binary form, otherwise everything is json.
+	 */
+	protocols: ["marauroa-binary"],
+
 	/**
 	 * connect to the server
 	 *
@@ -48,7 +54,8 @@ marauroa.clientFramework = {
 			path = "ws/"
 		}
 		var url = protocol + "://" + host + port + "/" + path;
-		var socket = new WebSocket(url);
+		var socket = new WebSocket(url, marauroa.clientFramework.protocols);
+		socket.binaryType = "arraybuffer";
 		socket.onmessage = marauroa.clientFramework.onMessage;
 		socket.onopen = function() {
 			setInterval(function() {
@@ -102,6 +109,12 @@ marauroa.clientFramework = {
 	},
 
 	onMessage: function(e) {
+		if (e.data instanceof ArrayBuffer) {
+			var decoded = marauroa.Deserializer.decodeMessage(e.data);
+			marauroa.messageFactory.addDispatchMethod(decoded);
+			decoded.dispatch();
+			return;
+		}
 		var msg = JSON.parse(e.data);
 		if (msg["t"] === "9" || msg["t"] === "15") {
 			marauroa.clientFramework.clientid = msg["c"];
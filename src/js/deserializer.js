@@ -14,9 +14,10 @@
 
 var marauroa = window.marauroa = window.marauroa || {};
 
-marauroa.Deserializer = function(buffer) {
+marauroa.Deserializer = function(buffer, protocolVersion) {
 	var offset = 0;
 	var view = new DataView(buffer);
+	var version = protocolVersion || 0;
 
 	/**
 	 * This method reads a byte from the Serializer
@@ -25,7 +26,17 @@ marauroa.Deserializer = function(buffer) {
 	 */
 	this.readByte = function() {
 		offset++;
-		return view.getUInt8(offset - 1);
+		return view.getUint8(offset - 1);
+	}
+
+	/**
+	 * This method reads a signed byte from the Serializer
+	 *
+	 * @return the byte serialized
+	 */
+	this.readSignedByte = function() {
+		offset++;
+		return view.getInt8(offset - 1);
 	}
 
 	/**
@@ -77,7 +88,23 @@ marauroa.Deserializer = function(buffer) {
 	 */
 	this.read65536LongByteArray = function() {
 		var size = view.getUint16(offset, true);
-		offset += size + 1;
+		offset += size + 2;
+		return new DataView(buffer, offset - size, size);
+	}
+
+	/**
+	 * This method reads a long from the Serializer
+	 *
+	 * @return the long serialized, as string because it may not fit into a number
+	 */
+	this.readLong = function() {
+		offset += 8;
+		if (typeof(view.getBigInt64) === "function") {
+			return view.getBigInt64(offset - 8, true).toString();
+		}
+		var low = view.getUint32(offset - 8, true);
+		var high = view.getInt32(offset - 4, true);
+		return String(high * 4294967296 + low);
 	}
 
 
@@ -134,35 +161,307 @@ marauroa.Deserializer = function(buffer) {
 		return res;
 	}
 
+	/**
+	 * reads the value of an attribute
+	 *
+	 * @param type type of the attribute definition
+	 * @return value as string, like in json messages
+	 */
+	this.readValue = function(type) {
+		switch (type) {
+			case "LONG_STRING":
+				return this.read65536LongString();
+			case "STRING":
+				return this.read255LongString();
+			case "FLOAT":
+				return marauroa.Deserializer.formatFloat(this.readFloat());
+			case "LONG":
+				return this.readLong();
+			case "INT":
+				return String(this.readInt());
+			case "SHORT":
+				return String(this.readShort());
+			case "BYTE":
+				return String(this.readSignedByte());
+			case "FLAG":
+				return "";
+			default:
+				return this.readString();
+		}
+	}
+
 	/**
 	 * reads an Attributes-object from the stream
 	 *
-	 * @param obj object to read into
+	 * @param obj object to read into, it gets the keys "c" and "a" like in json messages
 	 * @return obj
 	 */
 	this.readAttributes = function(obj) {
-		this.readString();
+		var clazz = this.readString();
+		var attributes = {};
 		var size = this.readInt();
 		for (var i = 0; i < size; i++) {
 			var code = this.readShort();
-			if (code !== -1) {
-				console.error("RPClass not supported, yet.");
-				return obj;
+			var def;
+			if (code === -1) {
+				var name = this.readString();
+				def = marauroa.Deserializer.findDefinition(clazz, "ATTRIBUTE", name);
+				if (typeof(def) === "undefined") {
+					def = {"name": name, "type": "VERY_LONG_STRING"};
+				}
+			} else {
+				def = marauroa.Deserializer.findDefinition(clazz, "ATTRIBUTE", code);
+				if (typeof(def) === "undefined") {
+					throw new Error("Unknown attribute " + code + " of RPClass " + clazz);
+				}
 			}
-			var key = this.readString();
-			var value = this.readString();
-			obj[key] = value;
+			attributes[def["name"]] = this.readValue(def["type"]);
 		}
+		obj["c"] = clazz;
+		obj["a"] = attributes;
 		return obj;
 	}
 
+	/**
+	 * reads the name of a slot, link or event
+	 *
+	 * @param clazz name of the RPClass of the owner
+	 * @param kind RPSLOT, RPLINK or RPEVENT
+	 * @return name
+	 */
+	this.readDefinitionName = function(clazz, kind) {
+		var code = this.readShort();
+		if (code === -1) {
+			if (kind === "RPEVENT") {
+				return this.read255LongString();
+			}
+			return this.readString();
+		}
+		var def = marauroa.Deserializer.findDefinition(clazz, kind, code);
+		if (typeof(def) === "undefined") {
+			throw new Error("Unknown " + kind + " " + code + " of RPClass " + clazz);
+		}
+		return def["name"];
+	}
+
+	/**
+	 * reads the slots of an object, empty slots are skipped like in json messages
+	 *
+	 * @param obj object to read into
+	 */
+	this.readSlots = function(obj) {
+		var size = this.readInt();
+		for (var i = 0; i < size; i++) {
+			var name = this.readDefinitionName(obj["c"], "RPSLOT");
+			var count = this.readInt();
+			var content = [];
+			for (var j = 0; j < count; j++) {
+				content.push(this.readRPObject({}));
+			}
+			if (content.length > 0) {
+				obj["s"] = obj["s"] || {};
+				obj["s"][name] = content;
+			}
+		}
+	}
+
+	/**
+	 * reads an RPObject from the stream
+	 *
+	 * @param obj object to read into, it gets the same structure as in json messages
+	 * @return obj
+	 */
 	this.readRPObject = function(obj) {
 		this.readAttributes(obj);
+		var clazz = obj["c"];
+
+		// hidden and storable flags are only included in full detail
+		if (this.readByte() === 1) {
+			offset += 2;
+		}
+
+		this.readSlots(obj);
+
+		var size = this.readInt();
+		for (var i = 0; i < size; i++) {
+			var name = this.readDefinitionName(clazz, "RPLINK");
+			obj["l"] = obj["l"] || {};
+			obj["l"][name] = this.readRPObject({});
+		}
 
+		if (version >= 33) {
+			size = this.readInt();
+			var names = [];
+			for (var i = 0; i < size; i++) {
+				names.push(this.readString());
+			}
+			for (var i = 0; i < size; i++) {
+				// maps are serialized as objects, but only their attributes are used
+				var map = this.readRPObject({});
+				obj["m"] = obj["m"] || {};
+				obj["m"][names[i]] = {"c": map["c"], "a": map["a"]};
+			}
+		}
+
+		size = this.readInt();
+		for (var i = 0; i < size; i++) {
+			this.readDefinitionName(clazz, "RPEVENT");
+			var event = this.readAttributes({});
+			if (marauroa.Deserializer.hasDefinitions(event["c"], "RPSLOT")) {
+				this.readSlots(event);
+			}
+			obj["e"] = obj["e"] || [];
+			obj["e"].push(event);
+		}
 		return obj;
 	}
 };
 
+/**
+ * the definitions of the RPClasses announced by the server
+ */
+marauroa.Deserializer.rpclasses = {};
+
+/**
+ * sets the RPClasses announced in the server info message
+ *
+ * @param rpclasses {"name": {"p": "parent", "d": [["ATTRIBUTE", code, "name", "TYPE"], ...]}}
+ */
+marauroa.Deserializer.setRPClasses = function(rpclasses) {
+	var res = {};
+	for (var clazz in rpclasses) {
+		if (!rpclasses.hasOwnProperty(clazz)) {
+			continue;
+		}
+		var entry = {"parent": rpclasses[clazz]["p"], "byCode": {}, "byName": {}, "kinds": {}};
+		var defs = rpclasses[clazz]["d"];
+		for (var i = 0; i < defs.length; i++) {
+			var def = {"name": defs[i][2], "type": defs[i][3]};
+			entry["byCode"][defs[i][0] + ":" + defs[i][1]] = def;
+			entry["byName"][defs[i][0] + ":" + defs[i][2]] = def;
+			entry["kinds"][defs[i][0]] = true;
+		}
+		res[clazz] = entry;
+	}
+	marauroa.Deserializer.rpclasses = res;
+};
+
+/**
+ * finds a definition of an RPClass or its parents
+ *
+ * @param clazz name of the RPClass
+ * @param kind ATTRIBUTE, RPSLOT, RPLINK or RPEVENT
+ * @param key code or name of the definition
+ * @return definition with name and type or undefined
+ */
+marauroa.Deserializer.findDefinition = function(clazz, kind, key) {
+	var index = (typeof(key) === "number") ? "byCode" : "byName";
+	var entry = marauroa.Deserializer.rpclasses[clazz];
+	while (typeof(entry) !== "undefined") {
+		var def = entry[index][kind + ":" + key];
+		if (typeof(def) !== "undefined") {
+			return def;
+		}
+		entry = marauroa.Deserializer.rpclasses[entry["parent"]];
+	}
+	return undefined;
+};
+
+/**
+ * checks whether an RPClass or its parents have definitions of a kind
+ *
+ * @param clazz name of the RPClass
+ * @param kind ATTRIBUTE, RPSLOT, RPLINK or RPEVENT
+ * @return true, if there is at least one definition
+ */
+marauroa.Deserializer.hasDefinitions = function(clazz, kind) {
+	var entry = marauroa.Deserializer.rpclasses[clazz];
+	while (typeof(entry) !== "undefined") {
+		if (entry["kinds"][kind]) {
+			return true;
+		}
+		entry = marauroa.Deserializer.rpclasses[entry["parent"]];
+	}
+	return false;
+};
+
+/**
+ * formats a 32 bit float like Java's Float.toString
+ *
+ * @param value float
+ * @return string
+ */
+marauroa.Deserializer.formatFloat = function(value) {
+	if (!isFinite(value)) {
+		return String(value);
+	}
+	var res = String(value);
+	for (var precision = 1; precision <= 9; precision++) {
+		var candidate = value.toPrecision(precision);
+		if (Math.fround(parseFloat(candidate)) === value) {
+			res = String(parseFloat(candidate));
+			break;
+		}
+	}
+	if (res.indexOf(".") < 0 && res.indexOf("e") < 0) {
+		res = res + ".0";
+	}
+	return res;
+};
+
+/**
+ * decodes a binary message as sent on the binary websocket subprotocol. Only
+ * perceptions are sent in binary form.
+ *
+ * @param buffer ArrayBuffer with the message as framed by the server Encoder
+ * @return message object with the same structure as the json message
+ */
+marauroa.Deserializer.decodeMessage = function(buffer) {
+	var header = new marauroa.Deserializer(buffer);
+	header.readInt();
+	var version = header.readByte();
+	var type = header.readByte();
+	var msg = {
+		"t": String(type),
+		"c": String(header.readInt()),
+		"s": String(header.readInt())
+	};
+	if (type !== 19) {
+		throw new Error("Unsupported binary message type " + type);
+	}
+
+	// shared part
+	var compressed = header.readByteArray();
+	var deserializer = new marauroa.Deserializer(marauroa.Deserializer.inflate(
+		new Uint8Array(compressed.buffer, compressed.byteOffset, compressed.byteLength)), version);
+	var sync = (deserializer.readByte() === 1);
+	msg["zoneid"] = deserializer.readString();
+	msg["sync"] = sync;
+	var keys = ["aO", "aA", "dA", "dO"];
+	for (var i = 0; i < keys.length; i++) {
+		var size = deserializer.readInt();
+		if (size > 0) {
+			msg[keys[i]] = [];
+			for (var j = 0; j < size; j++) {
+				msg[keys[i]].push(deserializer.readRPObject({}));
+			}
+		}
+	}
+
+	// private part
+	var dynamic = header.readByteArray();
+	deserializer = new marauroa.Deserializer(dynamic.buffer.slice(dynamic.byteOffset,
+		dynamic.byteOffset + dynamic.byteLength), version);
+	deserializer.readInt();
+	if (deserializer.readByte() === 1) {
+		msg["aM"] = deserializer.readRPObject({});
+	}
+	if (deserializer.readByte() === 1) {
+		msg["dM"] = deserializer.readRPObject({});
+	}
+	return msg;
+};
+
 marauroa.Deserializer.binaryStringToUint = function(binary) {
     var len = binary.length;
     var bytes = new Uint8Array( len );
@@ -180,10 +479,61 @@ marauroa.Deserializer.binaryStringToUint = function(binary) {
  */
 marauroa.Deserializer.fromDeflatedBase64 = function(base64) {
     var d = window.atob(base64);
-    var buffer = marauroa.Deserializer.binaryStringToUint(d.substring(2, d.length - 4));
-    var inflate = new window["Zlib"]["RawInflate"](buffer);
-    var data = inflate["decompress"]();
-    return new marauroa.Deserializer(data.buffer);
+    var bytes = new Uint8Array(marauroa.Deserializer.binaryStringToUint(d));
+    return new marauroa.Deserializer(marauroa.Deserializer.inflate(bytes));
+};
+
+/**
+ * the preset dictionary announced by the server, used by perceptions
+ */
+marauroa.Deserializer.dictionary = null;
+
+/**
+ * sets the preset dictionary announced in the server info message
+ *
+ * @param base64 base64 encoded dictionary
+ */
+marauroa.Deserializer.setDictionary = function(base64) {
+    marauroa.Deserializer.dictionary = new Uint8Array(
+        marauroa.Deserializer.binaryStringToUint(window.atob(base64)));
+};
+
+/**
+ * inflates zlib data, which may have been compressed against the preset dictionary
+ *
+ * @param bytes Uint8Array with zlib header and checksum
+ * @return ArrayBuffer with the inflated data
+ */
+marauroa.Deserializer.inflate = function(bytes) {
+    var start = 2;
+    var dictionary = null;
+    // FDICT flag: the header is followed by the id of the dictionary
+    if ((bytes[1] & 0x20) !== 0) {
+        dictionary = marauroa.Deserializer.dictionary;
+        if (dictionary === null) {
+            throw new Error("Preset dictionary required but none was announced");
+        }
+        start = 6;
+    }
+    var raw = bytes.subarray(start, bytes.length - 4);
+    if (dictionary === null) {
+        var inflate = new window["Zlib"]["RawInflate"](raw);
+        return inflate["decompress"]().slice().buffer;
+    }
+
+    // A stored block holding the dictionary puts it into the window, so
+    // that the back references of the compressed data can find it.
+    var len = dictionary.length;
+    var input = new Uint8Array(5 + len + raw.length);
+    input[0] = 0;
+    input[1] = len & 0xff;
+    input[2] = (len >> 8) & 0xff;
+    input[3] = ~len & 0xff;
+    input[4] = (~len >> 8) & 0xff;
+    input.set(dictionary, 5);
+    input.set(raw, 5 + len);
+    var inflate = new window["Zlib"]["RawInflate"](input);
+    return inflate["decompress"]().slice(len).buffer;
 };
 
 /**
@@ -55,6 +55,12 @@ marauroa.messageFactory = new function() {
 
 	// Message S2C Server Info
 	this["t20"] = function() {
+		if (typeof(this["rpclasses"]) != "undefined") {
+			marauroa.Deserializer.setRPClasses(this["rpclasses"]);
+		}
+		if (typeof(this["dictionary"]) != "undefined") {
+			marauroa.Deserializer.setDictionary(this["dictionary"]);
+		}
 		marauroa.clientFramework.onServerInfo(this["contents"]);
 	}
 
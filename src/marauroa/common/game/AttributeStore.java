@@ -0,0 +1,860 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.game;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import marauroa.common.game.Definition.Type;
+import marauroa.common.net.InputSerializer;
+import marauroa.common.net.OutputSerializer;
+
+/**
+ * Stores the values of an Attributes object.
+ * <p>
+ * Each entry is kept with the code of its definition in the RPClass, or -1
+ * if the attribute is not defined there. Entries of defined attributes are
+ * found through an array indexed by their code, the others and those whose
+ * code is already taken by another entry through a small map by name, so
+ * access does not depend on the number of attributes.
+ * Values of attributes defined as INT,
+ * SHORT, BYTE, LONG, FLOAT or FLAG are kept as primitives, so that they are
+ * neither parsed nor formatted when they are used or serialized. All other
+ * values, and numbers that would not read back as the very same string, are
+ * kept as strings.
+ * <p>
+ * The Delta^2 information is a bitset of added and a bitset of deleted
+ * entries. Removed entries keep their place until the delta information is
+ * reset, so that their deletion can be reported.
+ * <p>
+ * This class is not thread safe, Attributes synchronizes on it.
+ */
+final class AttributeStore {
+
+	/** the entry holds a string */
+	static final byte STRING = 0;
+
+	/** the entry holds an integer of up to 64 bits */
+	static final byte INTEGER = 1;
+
+	/** the entry holds the bits of a float */
+	static final byte FLOAT = 2;
+
+	/** the entry holds a flag */
+	static final byte FLAG = 3;
+
+	/** the entry has been removed */
+	static final byte REMOVED = 4;
+
+	/** capacity of the arrays once the first entry is stored */
+	private static final int INITIAL_CAPACITY = 8;
+
+	/** names of the entries */
+	private String[] names;
+
+	/** definition codes of the entries */
+	private short[] codes;
+
+	/** kind of value of the entries */
+	private byte[] kinds;
+
+	/** values of STRING entries */
+	private String[] strings;
+
+	/** values of the other entries, null until the first one is stored */
+	private long[] numbers;
+
+	/** bitset of the entries added or modified, null if there are none */
+	private long[] added;
+
+	/** bitset of the entries deleted, null if there are none */
+	private long[] deleted;
+
+	/** number of entries, including removed ones */
+	private int size;
+
+	/** number of entries that are not removed */
+	private int count;
+
+	/** index + 1 of the entry of each definition code, 0 for none */
+	private int[] byCode;
+
+	/** index of the entries without definition code, null if there are none */
+	private HashMap<String, Integer> byName;
+
+	/**
+	 * creates an empty AttributeStore
+	 */
+	AttributeStore() {
+		// the arrays are created when the first entry is stored
+	}
+
+	/**
+	 * creates a copy of an AttributeStore
+	 *
+	 * @param other store to copy
+	 */
+	AttributeStore(AttributeStore other) {
+		copyFrom(other);
+	}
+
+	/**
+	 * replaces the content of this store with a copy of another store
+	 *
+	 * @param other store to copy
+	 */
+	void copyFrom(AttributeStore other) {
+		size = other.size;
+		count = other.count;
+		if (other.names == null) {
+			names = null;
+			codes = null;
+			kinds = null;
+			strings = null;
+		} else {
+			names = other.names.clone();
+			codes = other.codes.clone();
+			kinds = other.kinds.clone();
+			strings = other.strings.clone();
+		}
+		numbers = (other.numbers == null) ? null : other.numbers.clone();
+		added = (other.added == null) ? null : other.added.clone();
+		deleted = (other.deleted == null) ? null : other.deleted.clone();
+		byCode = (other.byCode == null) ? null : other.byCode.clone();
+		byName = (other.byName == null) ? null : new HashMap<String, Integer>(other.byName);
+	}
+
+	/**
+	 * returns the number of stored attributes
+	 *
+	 * @return number of attributes
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * returns the number of entries, including removed ones. Entries are
+	 * accessed by an index lower than this number.
+	 *
+	 * @return number of entries
+	 */
+	int entries() {
+		return size;
+	}
+
+	/**
+	 * Returns the index of an entry, removed or not.
+	 *
+	 * @param name name of the attribute
+	 * @param code code of its definition or -1
+	 * @return index or -1 if there is no such entry
+	 */
+	int indexOf(String name, short code) {
+		if (name == null) {
+			return -1;
+		}
+
+		if ((code >= 0) && (byCode != null) && (code < byCode.length)) {
+			int index = byCode[code] - 1;
+			// the name differs if the code belongs to another RPClass
+			if ((index >= 0) && ((names[index] == name) || names[index].equals(name))) {
+				return index;
+			}
+		}
+
+		// the attribute may have been stored before it was defined
+		if (byName != null) {
+			Integer index = byName.get(name);
+			if (index != null) {
+				return index.intValue();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of an entry by its name only, for stores of another
+	 * RPClass. This has to look at all entries.
+	 *
+	 * @param name name of the attribute
+	 * @return index or -1 if there is no such entry
+	 */
+	private int indexOfName(String name) {
+		for (int i = 0; i < size; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * returns the name of an entry
+	 *
+	 * @param index index of the entry
+	 * @return name
+	 */
+	String getName(int index) {
+		return names[index];
+	}
+
+	/**
+	 * returns the definition code of an entry
+	 *
+	 * @param index index of the entry
+	 * @return code or -1
+	 */
+	short getCode(int index) {
+		return codes[index];
+	}
+
+	/**
+	 * returns the kind of value of an entry
+	 *
+	 * @param index index of the entry
+	 * @return STRING, INTEGER, FLOAT, FLAG or REMOVED
+	 */
+	byte getKind(int index) {
+		return kinds[index];
+	}
+
+	/**
+	 * returns true if the entry holds a value
+	 *
+	 * @param index index of the entry
+	 * @return false if it has been removed
+	 */
+	boolean isPresent(int index) {
+		return kinds[index] != REMOVED;
+	}
+
+	/**
+	 * returns the value of an INTEGER entry or the bits of a FLOAT entry
+	 *
+	 * @param index index of the entry
+	 * @return value
+	 */
+	long getNumber(int index) {
+		return numbers[index];
+	}
+
+	/**
+	 * returns the value of an entry as string
+	 *
+	 * @param index index of the entry
+	 * @return value or null if the entry has been removed
+	 */
+	String getString(int index) {
+		switch (kinds[index]) {
+			case INTEGER:
+				return Long.toString(numbers[index]);
+			case FLOAT:
+				return Float.toString(Float.intBitsToFloat((int) numbers[index]));
+			case FLAG:
+				return "";
+			case REMOVED:
+				return null;
+			default:
+				return strings[index];
+		}
+	}
+
+	/**
+	 * returns the value of an attribute as string
+	 *
+	 * @param name name of the attribute
+	 * @param code code of its definition or -1
+	 * @return value or null if there is no such attribute
+	 */
+	String get(String name, short code) {
+		int index = indexOf(name, code);
+		if (index < 0) {
+			return null;
+		}
+		return getString(index);
+	}
+
+	/**
+	 * returns true if the attribute is stored
+	 *
+	 * @param name name of the attribute
+	 * @param code code of its definition or -1
+	 * @return true if it is stored
+	 */
+	boolean contains(String name, short code) {
+		int index = indexOf(name, code);
+		return (index >= 0) && (kinds[index] != REMOVED);
+	}
+
+	/**
+	 * returns true if the attribute has been added or modified since the last reset
+	 *
+	 * @param index index of the entry
+	 * @return true if it has been added or modified
+	 */
+	boolean isAdded(int index) {
+		return isSet(added, index);
+	}
+
+	/**
+	 * returns true if the attribute has been deleted since the last reset
+	 *
+	 * @param index index of the entry
+	 * @return true if it has been deleted
+	 */
+	boolean isDeleted(int index) {
+		return isSet(deleted, index);
+	}
+
+	/**
+	 * Stores a value given as string. Numbers and flags are stored as
+	 * primitives if they read back as the same string.
+	 *
+	 * @param name name of the attribute
+	 * @param code code of its definition or -1
+	 * @param type type of its definition or null
+	 * @param value value
+	 * @param record true to record the change for Delta^2
+	 */
+	void put(String name, short code, Type type, String value, boolean record) {
+		if (type != null) {
+			try {
+				switch (type) {
+					case INT:
+					case SHORT:
+					case BYTE:
+					case LONG:
+						if (isCanonicalInteger(value)) {
+							long number = Long.parseLong(value);
+							if (fits(type, number)) {
+								put(name, code, INTEGER, number, null, record);
+								return;
+							}
+						}
+						break;
+					case FLOAT:
+						float number = Float.parseFloat(value);
+						if (Float.toString(number).equals(value)) {
+							put(name, code, FLOAT, Float.floatToIntBits(number), null, record);
+							return;
+						}
+						break;
+					case FLAG:
+						if (value.length() == 0) {
+							put(name, code, FLAG, 0, null, record);
+							return;
+						}
+						break;
+					default:
+						break;
+				}
+			} catch (NumberFormatException e) {
+				// not a valid number, keep the string as it is
+			}
+		}
+		put(name, code, STRING, 0, value, record);
+	}
+
+	/**
+	 * stores an integer of an attribute defined as INT, SHORT, BYTE or LONG
+	 *
+	 * @param name name of the attribute
+	 * @param code code of its definition
+	 * @param value value
+	 * @param record true to record the change for Delta^2
+	 */
+	void putInteger(String name, short code, long value, boolean record) {
+		put(name, code, INTEGER, value, null, record);
+	}
+
+	/**
+	 * Reads a serialized value and stores it.
+	 *
+	 * @param name name of the attribute
+	 * @param def its definition
+	 * @param in the input serializer
+	 * @throws IOException in case of an input/output error
+	 */
+	void read(String name, Definition def, InputSerializer in) throws IOException {
+		short code = def.getCode();
+		switch (def.getType()) {
+			case INT:
+				put(name, code, INTEGER, in.readInt(), null, false);
+				break;
+			case SHORT:
+				put(name, code, INTEGER, in.readShort(), null, false);
+				break;
+			case BYTE:
+				put(name, code, INTEGER, in.readByte(), null, false);
+				break;
+			case LONG:
+				put(name, code, INTEGER, in.readLong(), null, false);
+				break;
+			case FLOAT:
+				put(name, code, FLOAT, Float.floatToIntBits(in.readFloat()), null, false);
+				break;
+			case FLAG:
+				put(name, code, FLAG, 0, null, false);
+				break;
+			default:
+				String value = def.deserialize(in);
+				if (value != null) {
+					put(name, code, STRING, 0, value, false);
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Serializes the value of an entry.
+	 *
+	 * @param index index of the entry
+	 * @param def definition of the attribute
+	 * @param out the output serializer
+	 * @throws IOException in case of an input/output error
+	 */
+	void write(int index, Definition def, OutputSerializer out) throws IOException {
+		switch (kinds[index]) {
+			case INTEGER:
+				def.serializeInteger(numbers[index], out);
+				break;
+			case FLOAT:
+				def.serializeFloat(Float.intBitsToFloat((int) numbers[index]), out);
+				break;
+			default:
+				def.serialize(getString(index), out);
+				break;
+		}
+	}
+
+	/**
+	 * copies an entry of another store into this one, without recording the change
+	 *
+	 * @param other the other store
+	 * @param index index of the entry in the other store
+	 */
+	void copy(AttributeStore other, int index) {
+		long number = (other.numbers == null) ? 0 : other.numbers[index];
+		put(other.names[index], other.codes[index], other.kinds[index], number, other.strings[index], false);
+	}
+
+	/**
+	 * Removes an attribute.
+	 *
+	 * @param name name of the attribute
+	 * @param code code of its definition or -1
+	 * @param record true to record the change for Delta^2
+	 * @return the previous value or null
+	 */
+	String remove(String name, short code, boolean record) {
+		int index = indexOf(name, code);
+		if (index < 0) {
+			if (!record) {
+				return null;
+			}
+			index = append(name, code);
+			kinds[index] = REMOVED;
+			count--;
+			deleted = set(deleted, index);
+			return null;
+		}
+
+		String previous = getString(index);
+		if (kinds[index] != REMOVED) {
+			kinds[index] = REMOVED;
+			strings[index] = null;
+			count--;
+		}
+
+		clear(added, index);
+		if (record) {
+			deleted = set(deleted, index);
+		} else if (!isSet(deleted, index)) {
+			removeAt(index);
+		}
+		return previous;
+	}
+
+	/**
+	 * Drops an entry without recording anything for Delta^2. Call
+	 * <code>compact</code> once all entries have been discarded.
+	 *
+	 * @param index index of the entry
+	 */
+	void discard(int index) {
+		if (kinds[index] != REMOVED) {
+			kinds[index] = REMOVED;
+			strings[index] = null;
+			count--;
+		}
+		clear(added, index);
+		clear(deleted, index);
+	}
+
+	/**
+	 * forgets the Delta^2 information and drops the removed entries
+	 */
+	void resetDelta() {
+		if (added != null) {
+			Arrays.fill(added, 0);
+		}
+		if (deleted != null) {
+			Arrays.fill(deleted, 0);
+		}
+		compact();
+	}
+
+	/**
+	 * drops the removed entries that are not needed for Delta^2
+	 */
+	void compact() {
+		if (count == size) {
+			return;
+		}
+
+		int target = 0;
+		for (int i = 0; i < size; i++) {
+			if ((kinds[i] == REMOVED) && !isSet(deleted, i)) {
+				continue;
+			}
+			if (target != i) {
+				move(i, target);
+			}
+			target++;
+		}
+		for (int i = target; i < size; i++) {
+			names[i] = null;
+			strings[i] = null;
+			clear(added, i);
+			clear(deleted, i);
+		}
+		size = target;
+		reindex();
+	}
+
+	/**
+	 * removes all entries and the Delta^2 information
+	 */
+	void clear() {
+		if (names != null) {
+			Arrays.fill(names, 0, size, null);
+			Arrays.fill(strings, 0, size, null);
+		}
+		added = null;
+		deleted = null;
+		size = 0;
+		count = 0;
+		if (byCode != null) {
+			Arrays.fill(byCode, 0);
+		}
+		byName = null;
+	}
+
+	/**
+	 * Stores the numbers as strings and updates the codes of all entries,
+	 * because the entries are going to be used with another RPClass.
+	 *
+	 * @param rpClass the new RPClass or null
+	 */
+	void rekey(RPClass rpClass) {
+		for (int i = 0; i < size; i++) {
+			if ((kinds[i] != STRING) && (kinds[i] != REMOVED)) {
+				strings[i] = getString(i);
+				kinds[i] = STRING;
+			}
+
+			Definition def = null;
+			if (rpClass != null) {
+				def = rpClass.getDefinition(Definition.DefinitionClass.ATTRIBUTE, names[i]);
+			}
+			codes[i] = (def == null) ? -1 : def.getCode();
+		}
+		reindex();
+	}
+
+	/**
+	 * Returns true if both stores hold the same attributes with the same values.
+	 *
+	 * @param other the other store
+	 * @return true if they are equal
+	 */
+	boolean contentEquals(AttributeStore other) {
+		if (count != other.count) {
+			return false;
+		}
+
+		for (int i = 0; i < size; i++) {
+			if (kinds[i] == REMOVED) {
+				continue;
+			}
+
+			int index = other.indexOf(names[i], codes[i]);
+			if (index < 0) {
+				index = other.indexOfName(names[i]);
+			}
+			if ((index < 0) || (other.kinds[index] == REMOVED)) {
+				return false;
+			}
+
+			if ((kinds[i] == other.kinds[index]) && (kinds[i] != STRING)) {
+				if (numbers[i] != other.numbers[index]) {
+					return false;
+				}
+			} else if (!getString(i).equals(other.getString(index))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a hash code of the attributes and their values, computed like
+	 * the hash code of a map from names to values.
+	 *
+	 * @return hash code
+	 */
+	int contentHashCode() {
+		int hash = 0;
+		for (int i = 0; i < size; i++) {
+			if (kinds[i] != REMOVED) {
+				hash += names[i].hashCode() ^ getString(i).hashCode();
+			}
+		}
+		return hash;
+	}
+
+	private void put(String name, short code, byte kind, long number, String string, boolean record) {
+		int index = indexOf(name, code);
+		if (index < 0) {
+			index = append(name, code);
+		} else {
+			if (kinds[index] == REMOVED) {
+				count++;
+			}
+			if (codes[index] != code) {
+				unindex(index);
+				codes[index] = code;
+				index(index);
+			}
+		}
+
+		kinds[index] = kind;
+		strings[index] = string;
+		if (kind != STRING) {
+			if (numbers == null) {
+				numbers = new long[names.length];
+			}
+			numbers[index] = number;
+		}
+
+		if (record) {
+			added = set(added, index);
+		}
+	}
+
+	private int append(String name, short code) {
+		if (names == null) {
+			names = new String[INITIAL_CAPACITY];
+			codes = new short[INITIAL_CAPACITY];
+			kinds = new byte[INITIAL_CAPACITY];
+			strings = new String[INITIAL_CAPACITY];
+		} else if (size == names.length) {
+			int capacity = size * 2;
+			names = Arrays.copyOf(names, capacity);
+			codes = Arrays.copyOf(codes, capacity);
+			kinds = Arrays.copyOf(kinds, capacity);
+			strings = Arrays.copyOf(strings, capacity);
+			if (numbers != null) {
+				numbers = Arrays.copyOf(numbers, capacity);
+			}
+		}
+
+		int index = size;
+		names[index] = name;
+		codes[index] = code;
+		size++;
+		count++;
+		index(index);
+		return index;
+	}
+
+	/**
+	 * adds an entry to the index by code or by name
+	 *
+	 * @param index index of the entry
+	 */
+	private void index(int index) {
+		short code = codes[index];
+		if (code >= 0) {
+			if (byCode == null) {
+				byCode = new int[Math.max(INITIAL_CAPACITY, code + 1)];
+			} else if (code >= byCode.length) {
+				byCode = Arrays.copyOf(byCode, Math.max(byCode.length * 2, code + 1));
+			}
+
+			// two definitions share a code if an attribute was added to a
+			// parent RPClass after the child was created
+			int other = byCode[code] - 1;
+			if ((other < 0) || (other == index) || names[other].equals(names[index])) {
+				byCode[code] = index + 1;
+				return;
+			}
+		}
+
+		if (byName == null) {
+			byName = new HashMap<String, Integer>();
+		}
+		byName.put(names[index], Integer.valueOf(index));
+	}
+
+	/**
+	 * removes an entry from the index by code or by name
+	 *
+	 * @param index index of the entry
+	 */
+	private void unindex(int index) {
+		short code = codes[index];
+		if ((code >= 0) && (byCode != null) && (code < byCode.length) && (byCode[code] == index + 1)) {
+			byCode[code] = 0;
+		} else if ((byName != null) && Integer.valueOf(index).equals(byName.get(names[index]))) {
+			byName.remove(names[index]);
+		}
+	}
+
+	/**
+	 * rebuilds the indexes after entries have been moved
+	 */
+	private void reindex() {
+		if (byCode != null) {
+			Arrays.fill(byCode, 0);
+		}
+		if (byName != null) {
+			byName.clear();
+		}
+		for (int i = 0; i < size; i++) {
+			index(i);
+		}
+	}
+
+	private void removeAt(int index) {
+		unindex(index);
+		for (int i = index + 1; i < size; i++) {
+			move(i, i - 1);
+		}
+		size--;
+		names[size] = null;
+		strings[size] = null;
+		clear(added, size);
+		clear(deleted, size);
+		if (index < size) {
+			reindex();
+		}
+	}
+
+	private void move(int from, int to) {
+		names[to] = names[from];
+		codes[to] = codes[from];
+		kinds[to] = kinds[from];
+		strings[to] = strings[from];
+		if (numbers != null) {
+			numbers[to] = numbers[from];
+		}
+		if (isSet(added, from)) {
+			added = set(added, to);
+		} else {
+			clear(added, to);
+		}
+		if (isSet(deleted, from)) {
+			deleted = set(deleted, to);
+		} else {
+			clear(deleted, to);
+		}
+	}
+
+	private static boolean isSet(long[] bits, int index) {
+		int word = index >>> 6;
+		return (bits != null) && (word < bits.length) && ((bits[word] & (1L << index)) != 0);
+	}
+
+	private static long[] set(long[] bits, int index) {
+		int word = index >>> 6;
+		long[] result = bits;
+		if (result == null) {
+			result = new long[word + 1];
+		} else if (word >= result.length) {
+			result = Arrays.copyOf(result, word + 1);
+		}
+		result[word] |= 1L << index;
+		return result;
+	}
+
+	private static void clear(long[] bits, int index) {
+		int word = index >>> 6;
+		if ((bits != null) && (word < bits.length)) {
+			bits[word] &= ~(1L << index);
+		}
+	}
+
+	/**
+	 * Returns true if the value is written exactly like Long.toString would
+	 * write the number it represents, assuming that it is a number at all.
+	 *
+	 * @param value value
+	 * @return true if it is written in the canonical form
+	 */
+	private static boolean isCanonicalInteger(String value) {
+		int length = value.length();
+		if (length == 0) {
+			return false;
+		}
+
+		int start = 0;
+		char first = value.charAt(0);
+		if (first == '-') {
+			start = 1;
+		} else if (first == '+') {
+			return false;
+		}
+
+		if (start == length) {
+			return false;
+		}
+		if (value.charAt(start) == '0') {
+			return (length == 1);
+		}
+		return true;
+	}
+
+	/**
+	 * returns true if a value can be stored as integer for an attribute of the given type
+	 *
+	 * @param type type of the attribute
+	 * @param value value
+	 * @return true if the value is in the range of the type
+	 */
+	static boolean fits(Type type, long value) {
+		switch (type) {
+			case INT:
+				return (value >= Integer.MIN_VALUE) && (value <= Integer.MAX_VALUE);
+			case SHORT:
+				return (value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE);
+			case BYTE:
+				return (value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE);
+			case LONG:
+				return true;
+			default:
+				return false;
+		}
+	}
+}
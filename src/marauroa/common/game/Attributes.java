@@ -12,14 +12,11 @@
 package marauroa.common.game;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import marauroa.common.Log4J;
 import marauroa.common.Logger;
@@ -44,6 +41,10 @@ import marauroa.common.net.OutputSerializer;
  * previous state. This mainly consists on sending which attributes has been
  * added or modified and what attributes has been deleted.
  *
+ * The values are kept in an AttributeStore by the code of their definition,
+ * numbers as primitives, so the String methods of this class are a facade
+ * over typed storage.
+ *
  * @author miguel
  */
 public class Attributes implements marauroa.common.net.Serializable, Iterable<String>, Cloneable {
@@ -52,17 +53,14 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	/** We are interested in clearing added and deleted only if they have changed. */
 	private boolean modified;
 
-	/** A Map<String,String> that contains the attributes */
-	private Map<String, String> content;
+	/** the values of the attributes and the Delta^2 information about them */
+	private AttributeStore content;
 
 	/** Every attributes has a class */
 	private RPClass rpClass;
 
-	/** This is for Delta algorithm: added attributes */
-	Map<String, String> added;
-
-	/** This is for Delta algorithm: deleted attributes */
-	Map<String, String> deleted;
+	/** This is for Delta algorithm: are added and deleted attributes recorded? */
+	private final boolean deltaRecording;
 
 	/**
 	 * This method fills this object with data from the attributes object passed
@@ -73,23 +71,18 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return the object itself.
 	 */
 	public Object fill(Attributes attr) {
-		setRPClass(attr.rpClass);
-		modified = attr.modified;
-
-		content.clear();
-		synchronized (attr.content) {
-			content.putAll(attr.content);
-		}
-
-		added.clear();
-		synchronized (attr.added) {
-			added.putAll(attr.added);
-		}
+		synchronized (content) {
+			rpClass = attr.rpClass;
+			modified = attr.modified;
+			if (modified) {
+				markDirty();
+			}
 
-		deleted.clear();
-		synchronized (attr.deleted) {
-			deleted.putAll(attr.deleted);
+			synchronized (attr.content) {
+				content.copyFrom(attr.content);
+			}
 		}
+		identityChanged();
 
 		return this;
 	}
@@ -112,12 +105,9 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 */
 	Attributes(RPClass rpclass, boolean deltaRecording) {
 		rpClass = rpclass;
+		this.deltaRecording = deltaRecording;
 
-		content = Collections.synchronizedMap(new HashMap<String, String>());
-		if (deltaRecording) {
-			added = Collections.synchronizedMap(new HashMap<String, String>());
-			deleted = Collections.synchronizedMap(new HashMap<String, String>());
-		}
+		content = new AttributeStore();
 		modified = false;
 	}
 
@@ -125,13 +115,7 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	public Object clone() throws CloneNotSupportedException {
 		Attributes clone = (Attributes) super.clone();
 		synchronized (content) {
-			clone.content = Collections.synchronizedMap(new HashMap<String, String>(content));
-		}
-		synchronized (added) {
-			clone.added = Collections.synchronizedMap(new HashMap<String, String>(added));
-		}
-		synchronized (deleted) {
-			clone.deleted = Collections.synchronizedMap(new HashMap<String, String>(deleted));
+			clone.content = new AttributeStore(content);
 		}
 		return clone;
 	}
@@ -143,7 +127,7 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 *			  the rp class
 	 */
 	public void setRPClass(RPClass rpclass) {
-		rpClass = rpclass;
+		changeRPClass(rpclass);
 	}
 
 	/**
@@ -153,11 +137,53 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 *			  the rp class
 	 */
 	public void setRPClass(String rpclass) {
-		rpClass = RPClass.getRPClass(rpclass);
+		RPClass clazz = RPClass.getRPClass(rpclass);
 
-		if(rpClass==null) {
+		if(clazz==null) {
 			throw new SyntaxException("Missing RPClass: "+rpclass);
 		}
+		changeRPClass(clazz);
+	}
+
+	/**
+	 * sets the RPClass and updates the stored attributes if it is a different class
+	 *
+	 * @param rpclass the rp class
+	 */
+	private void changeRPClass(RPClass rpclass) {
+		synchronized (content) {
+			if ((rpClass != rpclass) && (content.entries() > 0)) {
+				content.rekey(rpclass);
+			}
+			rpClass = rpclass;
+		}
+	}
+
+	/**
+	 * Returns the definition used to store an attribute.
+	 *
+	 * @param attribute name of the attribute
+	 * @return definition or null if the attribute is stored without one
+	 */
+	private Definition getStorageDefinition(String attribute) {
+		if ((rpClass == null) || (attribute == null) || (rpClass instanceof DefaultRPClass)) {
+			return null;
+		}
+		return rpClass.getDefinition(DefinitionClass.ATTRIBUTE, attribute);
+	}
+
+	/**
+	 * Returns the code used to store an attribute.
+	 *
+	 * @param attribute name of the attribute
+	 * @return code or -1 if the attribute is stored without one
+	 */
+	private short getStorageCode(String attribute) {
+		Definition def = getStorageDefinition(attribute);
+		if (def == null) {
+			return -1;
+		}
+		return def.getCode();
 	}
 
 	/**
@@ -187,7 +213,9 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return true if is empty
 	 */
 	public boolean isEmpty() {
-		return content.isEmpty();
+		synchronized (content) {
+			return content.size() == 0;
+		}
 	}
 
 	/**
@@ -196,7 +224,9 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return amount of attributes
 	 */
 	public int size() {
-		return content.size();
+		synchronized (content) {
+			return content.size();
+		}
 	}
 
 	/**
@@ -207,7 +237,13 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return true if it exist or false otherwise
 	 */
 	public boolean has(String attribute) {
-		if (!content.containsKey(attribute)) {
+		boolean stored;
+		short code = getStorageCode(attribute);
+		synchronized (content) {
+			stored = content.contains(attribute, code);
+		}
+
+		if (!stored) {
 			if (rpClass == null || attribute==null) {
 				return false;
 			}
@@ -228,33 +264,73 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 *			  the value we want to set.
 	 */
 	public void put(String attribute, String value) {
-		validateValue(attribute, value);
-
-		/* This is for Delta-delta feature */
-		added.put(attribute, value);
-
-		modified=true;
+		Definition def = getStorageDefinition(attribute);
+		if (def != null) {
+			def.validate(value);
+		}
 
 		if(value==null) {
 			throw new IllegalArgumentException(attribute + " is null");
 		}
 
-		content.put(attribute, value);
+		synchronized (content) {
+			/* This is for Delta-delta feature */
+			if (def == null) {
+				content.put(attribute, (short) -1, null, value, deltaRecording);
+			} else {
+				content.put(attribute, def.getCode(), def.getType(), value, deltaRecording);
+			}
+		}
+
+		setModified();
+		if (isIdentity(attribute)) {
+			identityChanged();
+		}
 	}
 
 	/**
-	 * validates the data type of the value
+	 * sets the value of an attribute without recording it for Delta^2
 	 *
-	 * @param attribute name of attribute
-	 * @param value value to validate
+	 * @param attribute the attribute to be set.
+	 * @param value the value we want to set.
 	 */
-	private void validateValue(String attribute, String value) {
-		if (rpClass != null) {
-			Definition def = rpClass.getDefinition(DefinitionClass.ATTRIBUTE, attribute);
-			if (def != null) {
-				def.validate(value);
+	private void putUnrecorded(String attribute, String value) {
+		Definition def = getStorageDefinition(attribute);
+		synchronized (content) {
+			if (def == null) {
+				content.put(attribute, (short) -1, null, value, false);
+			} else {
+				content.put(attribute, def.getCode(), def.getType(), value, false);
 			}
 		}
+		if (isIdentity(attribute)) {
+			identityChanged();
+		}
+	}
+
+	/**
+	 * sets an integer value, without converting it to a string if the
+	 * attribute is defined as a type that holds it
+	 *
+	 * @param attribute the attribute to be set.
+	 * @param value the value we want to set.
+	 * @return false if the value has to be set as string
+	 */
+	private boolean putInteger(String attribute, long value) {
+		Definition def = getStorageDefinition(attribute);
+		if ((def == null) || !AttributeStore.fits(def.getType(), value)) {
+			return false;
+		}
+
+		synchronized (content) {
+			content.putInteger(attribute, def.getCode(), value, deltaRecording);
+		}
+
+		setModified();
+		if (isIdentity(attribute)) {
+			identityChanged();
+		}
+		return true;
 	}
 
 	/**
@@ -283,7 +359,9 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 *			  the value we want to set.
 	 */
 	public void put(String attribute, int value) {
-		put(attribute, Integer.toString(value));
+		if (!putInteger(attribute, value)) {
+			put(attribute, Integer.toString(value));
+		}
 	}
 
 
@@ -296,7 +374,9 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 *			  the value we want to set.
 	 */
 	public void put(String attribute, long value) {
-		put(attribute, Long.toString(value));
+		if (!putInteger(attribute, value)) {
+			put(attribute, Long.toString(value));
+		}
 	}
 
 	/**
@@ -331,7 +411,11 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return the value of the attribute
 	 */
 	public String get(String attribute) {
-		String value = content.get(attribute);
+		String value;
+		short code = getStorageCode(attribute);
+		synchronized (content) {
+			value = content.get(attribute, code);
+		}
 
 		if ((value == null) && (attribute != null)) {
 			/*
@@ -359,6 +443,17 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return the value of the attribute
 	 */
 	public int getInt(String attribute) {
+		short code = getStorageCode(attribute);
+		synchronized (content) {
+			int index = content.indexOf(attribute, code);
+			if ((index >= 0) && (content.getKind(index) == AttributeStore.INTEGER)) {
+				long number = content.getNumber(index);
+				if ((int) number == number) {
+					return (int) number;
+				}
+			}
+		}
+
 		String val = get(attribute);
 		if (val == null) {
 			throw new IllegalArgumentException("attribute '" + attribute + "' not found");
@@ -376,6 +471,14 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * 		The value of the attribute
 	 */
 	public long getLong(String attribute) {
+		short code = getStorageCode(attribute);
+		synchronized (content) {
+			int index = content.indexOf(attribute, code);
+			if ((index >= 0) && (content.getKind(index) == AttributeStore.INTEGER)) {
+				return content.getNumber(index);
+			}
+		}
+
 		String val = get(attribute);
 		if (val == null) {
 			throw new IllegalArgumentException("attribute '" + attribute + "' not found");
@@ -407,6 +510,14 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return the value of the attribute
 	 */
 	public double getDouble(String attribute) {
+		short code = getStorageCode(attribute);
+		synchronized (content) {
+			int index = content.indexOf(attribute, code);
+			if ((index >= 0) && (content.getKind(index) == AttributeStore.INTEGER)) {
+				return content.getNumber(index);
+			}
+		}
+
 		String val = get(attribute);
 		if (val == null) {
 			throw new IllegalArgumentException("'" + attribute + "' not found");
@@ -439,21 +550,26 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return the value of the attribute
 	 */
 	public String remove(String attribute) {
-		added.remove(attribute);
-		/*
-		 * This is for Delta^2 feature, as if it is empty it fails. It must
-		 * be 0 because if attribute is a number it would fail on the
-		 * serialization.
-		 *
-		 * We can not ignore the change even if it had been added the same turn,
-		 * because then if the attribute had a value before modifying it, the
-		 * client would get no notice about it being removed.
-		 */
-		deleted.put(attribute, "0");
+		String value;
+		short code = getStorageCode(attribute);
+		synchronized (content) {
+			/*
+			 * This is for Delta^2 feature. The deleted attribute is reported
+			 * with a value of 0, see setDeletedAttributes.
+			 *
+			 * We can not ignore the change even if it had been added the same turn,
+			 * because then if the attribute had a value before modifying it, the
+			 * client would get no notice about it being removed.
+			 */
+			value = content.remove(attribute, code, deltaRecording);
+		}
 
-		modified=true;
+		setModified();
+		if (isIdentity(attribute)) {
+			identityChanged();
+		}
 
-		return content.remove(attribute);
+		return value;
 	}
 
 	/**
@@ -468,13 +584,19 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 		if (this == attr) {
 			return true;
 		}
-		return (attr != null) && (attr instanceof Attributes)
-				&& content.equals(((Attributes) attr).content);
+		if (!(attr instanceof Attributes)) {
+			return false;
+		}
+		synchronized (content) {
+			return content.contentEquals(((Attributes) attr).content);
+		}
 	}
 
 	@Override
 	public int hashCode() {
-		return content.hashCode();
+		synchronized (content) {
+			return content.contentHashCode();
+		}
 	}
 
 	/**
@@ -496,11 +618,13 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 		StringBuilder tmp = new StringBuilder();
 
 		synchronized(content) {
-			for (Map.Entry<String, String> entry : content.entrySet()) {
-				tmp.append("[" + entry.getKey());
-				tmp.append('=');
-				escapeAttributeString(tmp, entry.getValue());
-				tmp.append(']');
+			for (int i = 0; i < content.entries(); i++) {
+				if (content.isPresent(i)) {
+					tmp.append("[" + content.getName(i));
+					tmp.append('=');
+					escapeAttributeString(tmp, content.getString(i));
+					tmp.append(']');
+				}
 			}
 		}
 		return tmp.toString();
@@ -562,11 +686,52 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return Iterator
 	 */
 	public Iterator<String> iterator() {
-		Set<String> keySet = null;
+		List<String> keys;
+		synchronized(content) {
+			keys = new ArrayList<String>(content.size());
+			for (int i = 0; i < content.entries(); i++) {
+				if (content.isPresent(i)) {
+					keys.add(content.getName(i));
+				}
+			}
+		}
+		return keys.iterator();
+	}
+
+	/**
+	 * returns the names of the attributes added or modified since the Delta^2
+	 * information was reset
+	 *
+	 * @return list of attribute names
+	 */
+	List<String> getAddedAttributeNames() {
+		List<String> keys = new ArrayList<String>();
 		synchronized(content) {
-			keySet = new HashSet<String>(content.keySet());
+			for (int i = 0; i < content.entries(); i++) {
+				if (content.isAdded(i)) {
+					keys.add(content.getName(i));
+				}
+			}
 		}
-		return keySet.iterator();
+		return keys;
+	}
+
+	/**
+	 * returns the names of the attributes deleted since the Delta^2
+	 * information was reset
+	 *
+	 * @return list of attribute names
+	 */
+	List<String> getDeletedAttributeNames() {
+		List<String> keys = new ArrayList<String>();
+		synchronized(content) {
+			for (int i = 0; i < content.entries(); i++) {
+				if (content.isDeleted(i)) {
+					keys.add(content.getName(i));
+				}
+			}
+		}
+		return keys;
 	}
 
 	/**
@@ -596,9 +761,21 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 		 * Obtains the number of attributes to serialize removing hidden and
 		 * private attributes
 		 */
-		int size = 0;
+		DefinitionTable table = rpClass.getDefinitionTable();
 		synchronized(content) {
-			for (String key : content.keySet()) {
+			int size = 0;
+			for (int i = 0; i < content.entries(); i++) {
+				if (!content.isPresent(i)) {
+					continue;
+				}
+				short code = content.getCode(i);
+				if ((table != null) && (table.get(DefinitionClass.ATTRIBUTE, code) != null)) {
+					if (table.shouldSerialize(code, level)) {
+						size++;
+					}
+					continue;
+				}
+				String key = content.getName(i);
 				try {
 				if (shouldSerialize(DefinitionClass.ATTRIBUTE, key, level)) {
 					size++;
@@ -609,23 +786,35 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 					throw e;
 				}
 			}
-		}
 
-		out.write(rpClass.getName());
-		out.write(size);
+			out.write(rpClass.getName());
+			out.write(size);
 
-		synchronized(content) {
-			for (Map.Entry<String, String> entry : content.entrySet()) {
-				String key = entry.getKey();
+			for (int i = 0; i < content.entries(); i++) {
+				if (!content.isPresent(i)) {
+					continue;
+				}
+				short code = content.getCode(i);
+
+				Definition def = null;
+				if (table != null) {
+					def = table.get(DefinitionClass.ATTRIBUTE, code);
+				}
+				boolean serialize;
+				if (def != null) {
+					serialize = table.shouldSerialize(code, level);
+				} else {
+					def = rpClass.getDefinition(DefinitionClass.ATTRIBUTE, content.getName(i));
+					serialize = shouldSerialize(def, level);
+				}
 
-				Definition def = rpClass.getDefinition(DefinitionClass.ATTRIBUTE, key);
 				if (def.getType() == Type.LONG) {
 					if (out.getProtocolVersion() < NetConst.FIRST_VERSION_WITH_TYPE_LONG) {
 						continue;
 					}
 				}
 
-				if (shouldSerialize(def, level)) {
+				if (serialize) {
 					boolean serializeKeyText = (level == DetailLevel.FULL) || (def.getCode() == -1);
 
 					if (serializeKeyText) {
@@ -635,7 +824,7 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 						out.write(def.getCode());
 					}
 
-					def.serialize(entry.getValue(), out);
+					content.write(i, def, out);
 				}
 			}
 		}
@@ -654,8 +843,11 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 		out.append(",\"a\":{");
 		synchronized(content) {
 			boolean first = true;
-			for (Map.Entry<String, String> entry : content.entrySet()) {
-				String key = entry.getKey();
+			for (int i = 0; i < content.entries(); i++) {
+				if (!content.isPresent(i)) {
+					continue;
+				}
+				String key = content.getName(i);
 				Definition def = rpClass.getDefinition(DefinitionClass.ATTRIBUTE, key);
 				if (shouldSerialize(def, level)) {
 					if (first) {
@@ -663,7 +855,7 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 					} else {
 						out.append(",");
 					}
-					OutputSerializer.writeJson(out, key, entry.getValue());
+					OutputSerializer.writeJson(out, key, content.getString(i));
 				}
 			}
 		}
@@ -701,13 +893,7 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @return true if it should be serialized.
 	 */
 	boolean shouldSerialize(Definition def, DetailLevel level) {
-		if (level == DetailLevel.FULL && !def.isStorable()){
-			return false;
-		}
-
-		return (level == DetailLevel.PRIVATE && !def.isHidden())
-				|| (def.isVisible())
-				|| (level == DetailLevel.FULL);
+		return DefinitionTable.isSerialized(def, level);
 	}
 
 	/**
@@ -717,36 +903,50 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @throws IOException in case of unexpected attributes
 	 */
 	public void readObject(InputSerializer in) throws IOException {
-		modified = true;
-		rpClass = RPClass.getRPClass(in.readString());
+		setModified();
+		RPClass clazz = RPClass.getRPClass(in.readString());
 		int size = in.readInt();
 
 		if (size > TimeoutConf.MAX_ARRAY_ELEMENTS) {
 			throw new IOException("Illegal request of an list of " + String.valueOf(size) + " size");
 		}
 
-		content.clear();
-
-		for (int i = 0; i < size; ++i) {
-			short code = in.readShort();
-
-			/* We obtain now the key name */
-			String key;
-			if (code == -1) {
-				key = in.readString();
-			} else {
-				key = rpClass.getName(DefinitionClass.ATTRIBUTE, code);
-			}
+		DefinitionTable table = clazz.getDefinitionTable();
+		synchronized (content) {
+			rpClass = clazz;
+			content.clear();
+
+			for (int i = 0; i < size; ++i) {
+				short code = in.readShort();
+
+				/* We obtain now the key name */
+				String key;
+				Definition def = null;
+				if (code == -1) {
+					key = in.readString();
+				} else {
+					if (table != null) {
+						def = table.get(DefinitionClass.ATTRIBUTE, code);
+					}
+					if (def != null) {
+						key = def.getName();
+					} else {
+						key = rpClass.getName(DefinitionClass.ATTRIBUTE, code);
+					}
+				}
 
-			Definition def = rpClass.getDefinition(DefinitionClass.ATTRIBUTE, key);
+				if (def == null) {
+					def = rpClass.getDefinition(DefinitionClass.ATTRIBUTE, key);
+				}
 
-			if (def != null) {
-				String value = def.deserialize(in);
-				content.put(key, value);
-			} else {
-				throw new IOException("RPClass("+rpClass+") definition for attribute not found: " + key);
+				if (def != null) {
+					content.read(key, def, in);
+				} else {
+					throw new IOException("RPClass("+rpClass+") definition for attribute not found: " + key);
+				}
 			}
 		}
+		identityChanged();
 	}
 
 	/**
@@ -757,14 +957,15 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 * @throws IOException in case of unexpected attributes
 	 */
 	public void readFromMap(Map<String, Object> in) throws IOException {
-		modified = true;
+		setModified();
 		String rpClassName = (String) in.get("_rpclass");
 		if (rpClassName == null) {
 			rpClassName = "";
 		}
-		rpClass = RPClass.getRPClass(rpClassName);
-
-		content.clear();
+		synchronized (content) {
+			rpClass = RPClass.getRPClass(rpClassName);
+			content.clear();
+		}
 
 		for (Map.Entry<String, Object> entry : in.entrySet()) {
 
@@ -777,7 +978,7 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 
 			if (def != null) {
 				if (entry.getValue() instanceof String) {
-					content.put(key, (String) entry.getValue());
+					putUnrecorded(key, (String) entry.getValue());
 				}
 			} else {
 				throw new IOException("RPClass("+rpClass+") definition for attribute not found: " + key);
@@ -793,36 +994,82 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	public void clearVisible(@SuppressWarnings("unused") boolean sync) {
 		synchronized(content) {
 
-			Iterator<Map.Entry<String, String>> it = content.entrySet().iterator();
-			while (it.hasNext()) {
-				Map.Entry<String, String> entry = it.next();
+			for (int i = 0; i < content.entries(); i++) {
+				if (!content.isPresent(i)) {
+					continue;
+				}
+				String key = content.getName(i);
 
-				Definition def = rpClass.getDefinition(DefinitionClass.ATTRIBUTE, entry.getKey());
+				Definition def = rpClass.getDefinition(DefinitionClass.ATTRIBUTE, key);
 
 				// TODO handle Null Definition for attribute
 				if(def==null) {
-					logger.warn("Null Definition for attribute: "+entry.getKey()+" of RPClass: "+rpClass.getName());
+					logger.warn("Null Definition for attribute: "+key+" of RPClass: "+rpClass.getName());
 					continue;
 				}
 
-				if (def.isVisible() && !entry.getKey().equals("id")) {
-					it.remove();
+				if (def.isVisible() && !key.equals("id")) {
+					content.discard(i);
 
-					modified=true;
-					deleted.remove(entry.getKey());
-					added.remove(entry.getKey());
+					setModified();
 				}
 			}
+			content.compact();
 		}
 	}
 
+	/**
+	 * records that there is Delta^2 information
+	 */
+	private void setModified() {
+		modified = true;
+		markDirty();
+	}
+
+	/**
+	 * Called whenever Delta^2 information is recorded. Objects use it to mark
+	 * themselves and their containers as dirty, so that only changed branches
+	 * are visited to compute the differences.
+	 */
+	void markDirty() {
+		// plain attributes are not part of a tree
+	}
+
+	/**
+	 * is the attribute part of the identity of an object?
+	 *
+	 * @param attribute name of the attribute
+	 * @return true for id and zoneid
+	 */
+	private static boolean isIdentity(String attribute) {
+		return "id".equals(attribute) || "zoneid".equals(attribute);
+	}
+
+	/**
+	 * Called after id or zoneid have been set or removed. Objects use it to
+	 * keep the index of their slot up to date.
+	 */
+	void identityChanged() {
+		// plain attributes are not indexed
+	}
+
+	/**
+	 * is there any Delta^2 information that was not reset yet?
+	 *
+	 * @return true, if attributes may have been added or deleted
+	 */
+	boolean isModified() {
+		return modified;
+	}
+
 	/**
 	 * Reset the Delta^2 information of the attribute.
 	 */
 	public void resetAddedAndDeletedAttributes() {
 		if (modified) {
-			added.clear();
-			deleted.clear();
+			synchronized (content) {
+				content.resetDelta();
+			}
 			modified = false;
 		}
 	}
@@ -834,25 +1081,42 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 *			  the object whose added attributes we are going to copy.
 	 */
 	public void setAddedAttributes(Attributes attr) {
-		rpClass = attr.rpClass;
+		changeRPClass(attr.rpClass);
 
 		boolean addedSomething = false;
 		/* Copy each of the added attributes to this object. */
-		synchronized(attr.added) {
-			for (Map.Entry<String, String> entry : attr.added.entrySet()) {
-				addedSomething = true;
-				content.put(entry.getKey(), entry.getValue());
+		synchronized(attr.content) {
+			AttributeStore added = attr.content;
+			for (int i = 0; i < added.entries(); i++) {
+				if (added.isAdded(i)) {
+					addedSomething = true;
+					synchronized (content) {
+						content.copy(added, i);
+					}
+				}
 			}
 		}
 
 		/* If we have added any attributes, we set the object id */
 		if (addedSomething) {
-			content.put("id", attr.get("id"));
-			/* Object stored at slots don't have now the zoneid attribute. */
-			String zoneid = attr.get("zoneid");
-			if (zoneid != null) {
-				content.put("zoneid", zoneid);
-			}
+			setIdentity(attr);
+		}
+	}
+
+	/**
+	 * copies id and zoneid of the object a delta is computed for
+	 *
+	 * @param attr the object whose changes are copied
+	 */
+	private void setIdentity(Attributes attr) {
+		String id = attr.get("id");
+		if (id != null) {
+			putUnrecorded("id", id);
+		}
+		/* Object stored at slots don't have now the zoneid attribute. */
+		String zoneid = attr.get("zoneid");
+		if (zoneid != null) {
+			putUnrecorded("zoneid", zoneid);
 		}
 	}
 
@@ -863,25 +1127,21 @@ public class Attributes implements marauroa.common.net.Serializable, Iterable<St
 	 *			  the object whose deleted attributes we are going to copy.
 	 */
 	public void setDeletedAttributes(Attributes attr) {
-		rpClass = attr.rpClass;
-
-		boolean deletedSomething = false;
-		synchronized(attr.deleted) {
-			// Copy each of the deleted attributes to this object.
-			for (Map.Entry<String, String> entry : attr.deleted.entrySet()) {
-				deletedSomething = true;
-				content.put(entry.getKey(), entry.getValue());
-			}
+		changeRPClass(attr.rpClass);
+
+		/*
+		 * Deleted attributes are reported with a value of 0, as if it is empty
+		 * it fails. It must be 0 because if attribute is a number it would
+		 * fail on the serialization.
+		 */
+		List<String> deleted = attr.getDeletedAttributeNames();
+		for (String key : deleted) {
+			putUnrecorded(key, "0");
 		}
 
 		// If we have added any attributes, we set the object id
-		if (deletedSomething) {
-			content.put("id", attr.get("id"));
-			// Object stored at slots don't have now the zoneid attribute.
-			String zoneid = attr.get("zoneid");
-			if (zoneid != null) {
-				content.put("zoneid", zoneid);
-			}
+		if (!deleted.isEmpty()) {
+			setIdentity(attr);
 		}
 	}
 
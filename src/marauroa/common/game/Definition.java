@@ -502,6 +502,56 @@ public class Definition implements marauroa.common.net.Serializable {
 		}
 	}
 
+	/**
+	 * Serializes an integer value of an attribute without converting it to a
+	 * string first.
+	 *
+	 * @param value
+	 *            the value of the attribute
+	 * @param out
+	 *            the output serializer
+	 * @throws IOException
+	 *             if there is any problem on the serialization
+	 */
+	void serializeInteger(long value, OutputSerializer out) throws IOException {
+		switch (type) {
+			case LONG:
+				out.write(value);
+				break;
+			case INT:
+				out.write((int) value);
+				break;
+			case SHORT:
+				out.write((short) value);
+				break;
+			case BYTE:
+				out.write((byte) value);
+				break;
+			default:
+				serialize(Long.toString(value), out);
+				break;
+		}
+	}
+
+	/**
+	 * Serializes a float value of an attribute without converting it to a
+	 * string first.
+	 *
+	 * @param value
+	 *            the value of the attribute
+	 * @param out
+	 *            the output serializer
+	 * @throws IOException
+	 *             if there is any problem on the serialization
+	 */
+	void serializeFloat(float value, OutputSerializer out) throws IOException {
+		if (type == Type.FLOAT) {
+			out.write(value);
+		} else {
+			serialize(Float.toString(value), out);
+		}
+	}
+
 	/**
 	 * validates
 	 *
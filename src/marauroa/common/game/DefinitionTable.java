@@ -0,0 +1,127 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.game;
+
+import java.util.Collection;
+
+import marauroa.common.game.Definition.DefinitionClass;
+
+/**
+ * The definitions of a baked RPClass, including the inherited ones, indexed
+ * by their code.
+ * <p>
+ * The codes of an RPClass continue the codes of its parent, so the codes of
+ * a whole inheritance chain are dense and the definitions fit into an array.
+ * For each definition the table holds a mask of the detail levels at which
+ * it is serialized.
+ * <p>
+ * A table is immutable. A code that is used by more than one definition,
+ * because a parent class was extended after <code>isA</code>, is left empty
+ * so that lookups of it fall back to the maps of the RPClass.
+ */
+final class DefinitionTable {
+
+	/** definitions by code */
+	private final Definition[] definitions;
+
+	/** bit (1 &lt;&lt; DetailLevel.ordinal()) is set if the definition is serialized at that level */
+	private final byte[] serializedAt;
+
+	/**
+	 * creates a table of definitions
+	 *
+	 * @param all the definitions of a baked RPClass
+	 */
+	DefinitionTable(Collection<Definition> all) {
+		int size = 0;
+		for (Definition def : all) {
+			size = Math.max(size, def.getCode() + 1);
+		}
+
+		definitions = new Definition[size];
+		serializedAt = new byte[size];
+		boolean[] duplicated = new boolean[size];
+
+		for (Definition def : all) {
+			short code = def.getCode();
+			if (code < 0) {
+				continue;
+			}
+
+			if ((definitions[code] != null) && (definitions[code] != def)) {
+				duplicated[code] = true;
+				continue;
+			}
+
+			definitions[code] = def;
+			for (DetailLevel level : DetailLevel.values()) {
+				if (isSerialized(def, level)) {
+					serializedAt[code] |= 1 << level.ordinal();
+				}
+			}
+		}
+
+		for (int i = 0; i < size; i++) {
+			if (duplicated[i]) {
+				definitions[i] = null;
+				serializedAt[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * returns the definition of a code
+	 *
+	 * @param clazz type of definition
+	 * @param code code of the definition
+	 * @return the definition or null if the table does not know it
+	 */
+	Definition get(DefinitionClass clazz, short code) {
+		if ((code < 0) || (code >= definitions.length)) {
+			return null;
+		}
+
+		Definition def = definitions[code];
+		if ((def == null) || (def.getDefinitionClass() != clazz)) {
+			return null;
+		}
+		return def;
+	}
+
+	/**
+	 * returns true if the definition of a code is serialized at a level of detail
+	 *
+	 * @param code code of a definition known to the table
+	 * @param level level of detail
+	 * @return true if it is serialized
+	 */
+	boolean shouldSerialize(short code, DetailLevel level) {
+		return (serializedAt[code] & (1 << level.ordinal())) != 0;
+	}
+
+	/**
+	 * Returns true if the definition is serialized at the level of detail.
+	 *
+	 * @param def definition
+	 * @param level level of detail
+	 * @return true if it is serialized
+	 */
+	static boolean isSerialized(Definition def, DetailLevel level) {
+		if (level == DetailLevel.FULL && !def.isStorable()){
+			return false;
+		}
+
+		return (level == DetailLevel.PRIVATE && !def.isHidden())
+				|| (def.isVisible())
+				|| (level == DetailLevel.FULL);
+	}
+}
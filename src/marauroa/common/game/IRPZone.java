@@ -230,7 +230,14 @@ public interface IRPZone extends Iterable<RPObject> {
 	public Perception getPerception(RPObject player, byte type);
 
 	/**
-	 * This method is called to take zone to the next turn
+	 * This method is called to take zone to the next turn.
+	 * <p>
+	 * If <code>parallel_zone_threads</code> is set, zones are taken to the
+	 * next turn concurrently, and the actions of their objects are executed
+	 * concurrently, too. A zone may then only modify itself and its objects.
+	 * Objects that are added to the world, removed from it or that change the
+	 * zone by the methods of RPWorld are applied after all zones have
+	 * completed.
 	 */
 	public void nextTurn();
 }
@@ -0,0 +1,532 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.game;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import marauroa.common.Log4J;
+import marauroa.common.Logger;
+
+/**
+ * An insertion ordered list of RPObjects with an index by object id, used by
+ * RPSlot for its objects and their Delta^2 information.
+ * <p>
+ * Objects are found and removed by their id in constant time. The index is a
+ * hash table of ints, so lookups do not create RPObject.IDs or Integers.
+ * Contained objects tell their slot when their id changes, see
+ * <code>reindex</code>.
+ * <p>
+ * Ids should be unique within a list. If they are not, the error is logged
+ * and the object is added anyway; lookups return the first of them.
+ */
+// This class is not part of the Marauroa API but used internally.
+class IndexedRPObjectList extends AbstractCollection<RPObject> {
+	private static final Logger logger = Log4J.getLogger(IndexedRPObjectList.class);
+
+	/** key of objects without id, they are not indexed */
+	private static final int NO_ID = Integer.MIN_VALUE;
+
+	/** initial size of the hash table, a power of two */
+	private static final int INITIAL_CAPACITY = 8;
+
+	/** larger hash tables are dropped instead of cleared */
+	private static final int MAX_KEPT_CAPACITY = 64;
+
+	/** an entry of the list */
+	private static final class Node {
+		final RPObject object;
+		int key;
+		boolean indexed;
+		Node prev;
+		Node next;
+
+		Node(RPObject object, int key) {
+			this.object = object;
+			this.key = key;
+		}
+	}
+
+	private Node head;
+
+	private Node tail;
+
+	private int size;
+
+	/** number of objects that are not indexed because of a duplicated id */
+	private int duplicates;
+
+	private int modCount;
+
+	/** keys of the hash table, open addressing with linear probing */
+	private int[] keys;
+
+	/** entries of the hash table, null for free cells */
+	private Node[] values;
+
+	/** number of used cells of the hash table */
+	private int used;
+
+	/**
+	 * gets the id of an object
+	 *
+	 * @param object RPObject
+	 * @return id or NO_ID
+	 */
+	static int idOf(RPObject object) {
+		return object.getObjectID(NO_ID);
+	}
+
+	/**
+	 * Gets the object from this list by its id.
+	 *
+	 * @param id the object id
+	 * @return the object or null if it is not found.
+	 */
+	public RPObject get(int id) {
+		Node node = lookup(id);
+		if (node == null) {
+			return null;
+		}
+		return node.object;
+	}
+
+	/**
+	 * Gets the object from this list by its ID ignoring the zone.
+	 * The zone is really irrelevant in a contained object.
+	 *
+	 * @param id the object id. Note that only the object_id field is relevant.
+	 * @return the object or null if it is not found.
+	 */
+	public RPObject getByIDIgnoringZone(RPObject.ID id) {
+		return get(id.getObjectID());
+	}
+
+	/**
+	 * This method returns true if the list has the object whose id is id.
+	 *
+	 * @param id the object id
+	 * @return true if it is found or false otherwise.
+	 */
+	public boolean hasID(int id) {
+		return lookup(id) != null;
+	}
+
+	/**
+	 * This method returns true if the slot has the object whose id is id
+	 * ignoring the zone. The zone is really irrelevant in a contained object.
+	 *
+	 * @param id the object id. Note that only object_id field is relevant.
+	 * @return true if it is found or false otherwise.
+	 */
+	public boolean hasByIDIgnoringZone(RPObject.ID id) {
+		return hasID(id.getObjectID());
+	}
+
+	/**
+	 * Removes the object from this list by its id.
+	 *
+	 * @param id the object id
+	 * @return the object or null if it is not found.
+	 */
+	public RPObject removeByID(int id) {
+		Node node = lookup(id);
+		if (node == null) {
+			return null;
+		}
+		unlink(node);
+		return node.object;
+	}
+
+	/**
+	 * Removed the object from this list by its ID ignoring the zone.
+	 * The zone is really irrelevant in a contained object.
+	 *
+	 * @param id the object id. Note that only the object_id field is relevant.
+	 * @return the object or null if it is not found.
+	 */
+	public RPObject removeByIDIgnoringZone(RPObject.ID id) {
+		return removeByID(id.getObjectID());
+	}
+
+	/**
+	 * gets the first object of the list
+	 *
+	 * @return the first object or null if the list is empty
+	 */
+	public RPObject getFirst() {
+		if (head == null) {
+			return null;
+		}
+		return head.object;
+	}
+
+	@Override
+	public boolean add(RPObject object) {
+		Node node = new Node(object, idOf(object));
+		checkObjectNotAllreadyInList(node);
+		link(node);
+		return true;
+	}
+
+	/**
+	 * adds an object without checking if it is already in the list.
+	 * This is useful for cloning the list.
+	 *
+	 * @param object object to add
+	 * @return true
+	 */
+	boolean addTrusted(RPObject object) {
+		link(new Node(object, idOf(object)));
+		return true;
+	}
+
+	// TODO: Read RPSlot.java and decide whether assigning unique ids
+	// is within the responsibilities of Marauroa or the Application.
+	// In the first case fix the bug; in the second case throw a
+	// specialized exception.
+	private void checkObjectNotAllreadyInList(Node node) {
+		Node old = lookup(node.key);
+		if (old != null) {
+			RPObject object = node.object;
+			if (old.object == object) {
+				logger.error("Object cannot be added to list because it is already part of it: " + object, new Throwable());
+			} else {
+				logger.error("Object cannot be added to list because another object with the same ID is part of it. objectToAdd: " + object + " objectAlreadyInList: " + old.object, new Throwable());
+			}
+		}
+	}
+
+	/**
+	 * Removes the first object that is equal to the specified one.
+	 *
+	 * @param o object to remove
+	 * @return true, if an object was removed
+	 */
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof RPObject)) {
+			return false;
+		}
+		RPObject object = (RPObject) o;
+		int key = idOf(object);
+
+		// equal objects have the same id, so unless there are duplicated
+		// ids only the indexed object has to be compared
+		if ((key != NO_ID) && (duplicates == 0)) {
+			Node node = lookup(key);
+			if ((node != null) && ((node.object == object) || node.object.equals(object))) {
+				unlink(node);
+				return true;
+			}
+			return false;
+		}
+
+		for (Node node = head; node != null; node = node.next) {
+			if ((node.object == object) || node.object.equals(object)) {
+				unlink(node);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * updates the index after the id of an object in this list has changed
+	 *
+	 * @param object object with a new id
+	 */
+	void reindex(RPObject object) {
+		int key = idOf(object);
+		Node node = lookup(key);
+		if ((node != null) && (node.object == object)) {
+			return;
+		}
+
+		for (node = head; node != null; node = node.next) {
+			if (node.object == object) {
+				unindex(node);
+				node.key = key;
+				index(node);
+				return;
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void clear() {
+		if (size == 0) {
+			return;
+		}
+		head = null;
+		tail = null;
+		size = 0;
+		duplicates = 0;
+		modCount++;
+
+		used = 0;
+		if (values == null) {
+			return;
+		}
+		if (values.length > MAX_KEPT_CAPACITY) {
+			keys = null;
+			values = null;
+		} else {
+			Arrays.fill(values, null);
+		}
+	}
+
+	@Override
+	public Iterator<RPObject> iterator() {
+		return new Itr();
+	}
+
+	/**
+	 * Two lists are equal if they contain equal objects in the same order.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (!(o instanceof IndexedRPObjectList)) {
+			return false;
+		}
+		IndexedRPObjectList other = (IndexedRPObjectList) o;
+		if (size != other.size) {
+			return false;
+		}
+		Node b = other.head;
+		for (Node a = head; a != null; a = a.next) {
+			if (!a.object.equals(b.object)) {
+				return false;
+			}
+			b = b.next;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hashCode = 1;
+		for (Node node = head; node != null; node = node.next) {
+			hashCode = 31 * hashCode + node.object.hashCode();
+		}
+		return hashCode;
+	}
+
+	private void link(Node node) {
+		node.prev = tail;
+		if (tail == null) {
+			head = node;
+		} else {
+			tail.next = node;
+		}
+		tail = node;
+		size++;
+		modCount++;
+		index(node);
+	}
+
+	private void unlink(Node node) {
+		if (node.prev == null) {
+			head = node.next;
+		} else {
+			node.prev.next = node.next;
+		}
+		if (node.next == null) {
+			tail = node.prev;
+		} else {
+			node.next.prev = node.prev;
+		}
+		node.prev = null;
+		node.next = null;
+		size--;
+		modCount++;
+		unindex(node);
+	}
+
+	private void index(Node node) {
+		if (node.key == NO_ID) {
+			return;
+		}
+		if (lookup(node.key) != null) {
+			duplicates++;
+			return;
+		}
+		insert(node.key, node);
+		node.indexed = true;
+	}
+
+	private void unindex(Node node) {
+		if (!node.indexed) {
+			if (node.key != NO_ID) {
+				duplicates--;
+			}
+			return;
+		}
+
+		delete(node.key);
+		node.indexed = false;
+
+		// the next object with the same id is found from now on
+		if (duplicates > 0) {
+			for (Node other = head; other != null; other = other.next) {
+				if ((other != node) && (other.key == node.key)) {
+					insert(other.key, other);
+					other.indexed = true;
+					duplicates--;
+					return;
+				}
+			}
+		}
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Node lookup(int key) {
+		if ((values == null) || (key == NO_ID)) {
+			return null;
+		}
+		int mask = values.length - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			Node node = values[i];
+			if ((node == null) || (keys[i] == key)) {
+				return node;
+			}
+		}
+	}
+
+	private void insert(int key, Node node) {
+		if (values == null) {
+			keys = new int[INITIAL_CAPACITY];
+			values = new Node[INITIAL_CAPACITY];
+		} else if ((used + 1) * 4 > values.length * 3) {
+			resize(values.length * 2);
+		}
+		store(key, node);
+		used++;
+	}
+
+	private void store(int key, Node node) {
+		int mask = values.length - 1;
+		int i = hash(key) & mask;
+		while (values[i] != null) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = node;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Node[] oldValues = values;
+		keys = new int[capacity];
+		values = new Node[capacity];
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				store(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	private void delete(int key) {
+		int mask = values.length - 1;
+		int i = hash(key) & mask;
+		while ((values[i] != null) && (keys[i] != key)) {
+			i = (i + 1) & mask;
+		}
+		if (values[i] == null) {
+			return;
+		}
+		values[i] = null;
+		used--;
+
+		// move following entries back, unless they are at or after their home cell
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (values[j] == null) {
+				return;
+			}
+			int home = hash(keys[j]) & mask;
+			boolean movable;
+			if (j > i) {
+				movable = (home <= i) || (home > j);
+			} else {
+				movable = (home <= i) && (home > j);
+			}
+			if (movable) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+		}
+	}
+
+	/**
+	 * iterates in insertion order
+	 */
+	private class Itr implements Iterator<RPObject> {
+		private Node next = head;
+		private Node last;
+		private int expectedModCount = modCount;
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public RPObject next() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = next.next;
+			return last.object;
+		}
+
+		@Override
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			unlink(last);
+			last = null;
+			expectedModCount = modCount;
+		}
+	}
+}
@@ -79,6 +79,12 @@ public class Perception {
 	/** The deleted objects */
 	public List<RPObject> deletedList;
 
+	/**
+	 * true if this perception is the same for every player of the zone, so
+	 * its serialized form may be cached and shared.
+	 */
+	private boolean shared = true;
+
 	/**
 	 * Constructor
 	 *
@@ -170,6 +176,25 @@ public class Perception {
 		}
 	}
 
+	/**
+	 * Is this perception the same for every player in the zone?
+	 *
+	 * @return true, if the perception is shared by all players of the zone;
+	 *         false if it was built for a single player.
+	 */
+	public boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Defines if this perception is the same for every player in the zone.
+	 *
+	 * @param shared false, if this perception was built for a single player
+	 */
+	public void setShared(boolean shared) {
+		this.shared = shared;
+	}
+
 	/**
 	 * Returns the number of elements of the perception
 	 *
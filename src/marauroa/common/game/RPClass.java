@@ -101,6 +101,9 @@ public class RPClass implements marauroa.common.net.Serializable {
 	/** Is this class baked (parent definitions copied into this class)? */
 	private boolean baked = false;
 
+	/** definitions of a baked class by code, null until it is needed */
+	private volatile DefinitionTable definitionTable;
+
 	/**
 	 * Constructor Only used in serialization.
 	 */
@@ -275,6 +278,7 @@ public class RPClass implements marauroa.common.net.Serializable {
 		}
 
 		definitions.add(name);
+		definitionTable = null;
 
 		return ++lastCode;
 	}
@@ -554,7 +558,9 @@ public class RPClass implements marauroa.common.net.Serializable {
 
 	/**
 	 * Bakes the RPClass by including copies of all the definitions of the
-	 * parent class to improve performance.
+	 * parent class to improve performance. A baked class also indexes its
+	 * definitions by code, so that attributes are serialized and read
+	 * without looking up their names.
 	 */
 	public void bake() {
 		if (!baked) {
@@ -570,6 +576,25 @@ public class RPClass implements marauroa.common.net.Serializable {
 			}
 		}
 		baked = true;
+		definitionTable = new DefinitionTable(getDefinitions());
+	}
+
+	/**
+	 * Returns the definitions of a baked class indexed by code.
+	 *
+	 * @return the table of definitions or null if the class is not baked
+	 */
+	DefinitionTable getDefinitionTable() {
+		if (!baked) {
+			return null;
+		}
+
+		DefinitionTable table = definitionTable;
+		if (table == null) {
+			table = new DefinitionTable(getDefinitions());
+			definitionTable = table;
+		}
+		return table;
 	}
 
 	/**
@@ -694,6 +719,14 @@ public class RPClass implements marauroa.common.net.Serializable {
 			throw new SyntaxException(code);
 		}
 
+		DefinitionTable table = getDefinitionTable();
+		if (table != null) {
+			Definition def = table.get(clazz, code);
+			if (def != null) {
+				return def.getName();
+			}
+		}
+
 		for (Definition desc : list.values()) {
 			if (desc.getCode() == code) {
 				return desc.getName();
@@ -66,6 +66,9 @@ public class RPLink implements marauroa.common.net.Serializable, Cloneable {
 	 */
 	void setOwner(RPObject object) {
 		owner = object;
+		if (this.object != null) {
+			this.object.setLinkOwner(owner);
+		}
 	}
 
 	/**
@@ -91,6 +94,9 @@ public class RPLink implements marauroa.common.net.Serializable, Cloneable {
 	 */
 	public void setObject(RPObject object) {
 		this.object = object;
+		if (owner != null) {
+			object.setLinkOwner(owner);
+		}
 	}
 
 	/**
@@ -160,6 +166,7 @@ public class RPLink implements marauroa.common.net.Serializable, Cloneable {
 		}
 
 		object = (RPObject) in.readObject(new RPObject());
+		object.setLinkOwner(owner);
 	}
 
 	/**
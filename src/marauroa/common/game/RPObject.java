@@ -72,6 +72,18 @@ public class RPObject extends SlotOwner {
 	/** In which slot are this object contained */
 	private RPSlot containerSlot;
 
+	/** Which object links to this one. */
+	private RPObject linkOwner;
+
+	/** cached identity, reset when id or zoneid change */
+	private ID identity;
+
+	/**
+	 * This object or an object in its slots or links has Delta^2 information.
+	 * Only dirty branches are visited to compute and reset the differences.
+	 */
+	private boolean dirty;
+
 	/** added slots, used at Delta^2 */
 	private List<String> addedSlots;
 
@@ -164,9 +176,12 @@ public class RPObject extends SlotOwner {
 		deletedMaps = null;
 
 		modified = false;
+		dirty = false;
 
 		container = null;
 		containerSlot = null;
+		linkOwner = null;
+		identity = null;
 
 		hidden = false;
 		storable = false;
@@ -196,6 +211,9 @@ public class RPObject extends SlotOwner {
 		hidden = object.hidden;
 		storable = object.storable;
 		modified = object.modified;
+		if (object.dirty) {
+			dirty = true;
+		}
 
 		container = object.container;
 		containerSlot = object.containerSlot;
@@ -309,7 +327,29 @@ public class RPObject extends SlotOwner {
 	 * @return the identifier of the object
 	 */
 	public RPObject.ID getID() {
-		return new ID(this);
+		ID res = identity;
+		if (res == null) {
+			res = new ID(this);
+			identity = res;
+		}
+		return res;
+	}
+
+	/**
+	 * returns the object id without failing for objects that have none
+	 *
+	 * @param noID value to return if the object has no id
+	 * @return the object id or noID
+	 */
+	int getObjectID(int noID) {
+		ID res = identity;
+		if (res == null) {
+			if (!has("id")) {
+				return noID;
+			}
+			res = getID();
+		}
+		return res.getObjectID();
 	}
 
 	/**
@@ -415,6 +455,70 @@ public class RPObject extends SlotOwner {
 	public void setContainer(SlotOwner slotOwner, RPSlot slot) {
 		container = slotOwner;
 		containerSlot = slot;
+		if (dirty && (slot != null)) {
+			slot.markDirty();
+		}
+	}
+
+	/**
+	 * Has this object or any object in its slots and links changed since its
+	 * Delta^2 information was reset?
+	 *
+	 * @return true, if the object has changed
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * sets the object that links to this object
+	 *
+	 * @param owner owner of the link
+	 */
+	void setLinkOwner(RPObject owner) {
+		linkOwner = owner;
+		if (dirty && (owner != null)) {
+			owner.markDirty();
+		}
+	}
+
+	/**
+	 * forgets the cached identity and keeps the index of the slot up to date,
+	 * if the id of a contained object changes
+	 */
+	@Override
+	void identityChanged() {
+		identity = null;
+		if (containerSlot != null) {
+			containerSlot.reindex(this);
+		}
+	}
+
+	/**
+	 * records that there is Delta^2 information about slots, links or maps
+	 */
+	private void setModified() {
+		modified = true;
+		markDirty();
+	}
+
+	/**
+	 * marks this object and the objects and slots containing it as dirty
+	 */
+	@Override
+	void markDirty() {
+		if (dirty) {
+			// the containers are already dirty
+			return;
+		}
+		dirty = true;
+		if (containerSlot != null) {
+			containerSlot.markDirty();
+		} else if (container != null) {
+			container.markDirty();
+		} else if (linkOwner != null) {
+			linkOwner.markDirty();
+		}
 	}
 
 	/**
@@ -518,7 +622,7 @@ public class RPObject extends SlotOwner {
 			addedSlots = new LinkedList<String>();
 		}
 		addedSlots.add(name);
-		modified = true;
+		setModified();
 	}
 
 	/**
@@ -538,7 +642,7 @@ public class RPObject extends SlotOwner {
 			addedSlots = new LinkedList<String>();
 		}
 		addedSlots.add(slot.getName());
-		modified = true;
+		setModified();
 	}
 
 	/**
@@ -561,7 +665,7 @@ public class RPObject extends SlotOwner {
 				}
 				deletedSlots.add(name);
 
-				modified = true;
+				setModified();
 
 				/* Remove and return it */
 				it.remove();
@@ -584,6 +688,7 @@ public class RPObject extends SlotOwner {
 			events = new LinkedList<RPEvent>();
 		}
 		events.add(event);
+		markDirty();
 	}
 
 	/**
@@ -640,7 +745,7 @@ public class RPObject extends SlotOwner {
 			addedLinks = new LinkedList<String>();
 		}
 		addedLinks.add(name);
-		modified = true;
+		setModified();
 	}
 
 	/**
@@ -662,7 +767,7 @@ public class RPObject extends SlotOwner {
 			addedLinks = new LinkedList<String>();
 		}
 		addedLinks.add(link.getName());
-		modified = true;
+		setModified();
 	}
 
 	/**
@@ -723,7 +828,7 @@ public class RPObject extends SlotOwner {
 				}
 				deletedLinks.add(name);
 
-				modified = true;
+				setModified();
 
 				/* Remove and return it */
 				it.remove();
@@ -756,6 +861,7 @@ public class RPObject extends SlotOwner {
 		if (!this.addedMaps.contains(map)) {
 			this.addedMaps.add(map);
 		}
+		markDirty();
 	}
 
 	/**
@@ -902,7 +1008,7 @@ public class RPObject extends SlotOwner {
 				deletedMaps = new LinkedList<String>();
 			}
 			this.deletedMaps.add(map);
-			modified = true;
+			setModified();
 			return attr;
 		}
 		return null;
@@ -933,7 +1039,7 @@ public class RPObject extends SlotOwner {
 			addedMaps = new LinkedList<String>();
 		}
 		addedMaps.add(map);
-		modified = true;
+		setModified();
 	}
 
 	/**
@@ -949,7 +1055,7 @@ public class RPObject extends SlotOwner {
 					"\"id\" and \"zoneid\" are reserved keys that may not be used");
 		}
 		if ((maps != null) && maps.containsKey(map) && maps.get(map).has(key)) {
-			this.modified = true;
+			setModified();
 			if (deletedMaps == null) {
 				deletedMaps = new LinkedList<String>();
 			}
@@ -1251,7 +1357,7 @@ public class RPObject extends SlotOwner {
 	@Override
 	public void readObject(InputSerializer in) throws IOException {
 		super.readObject(in);
-		modified = true;
+		setModified();
 
 		if (in.readByte() == 1) {
 			hidden = in.readByte() == 1;
@@ -1470,7 +1576,7 @@ public class RPObject extends SlotOwner {
 				if (deletedSlots != null) {
 					deletedSlots.remove(slot.getName());
 				}
-				modified = true;
+				setModified();
 			}
 		}
 
@@ -1490,7 +1596,7 @@ public class RPObject extends SlotOwner {
 					if (deletedLinks != null) {
 						deletedLinks.remove(link.getName());
 					}
-					modified = true;
+					setModified();
 				}
 			}
 		}
@@ -1519,7 +1625,9 @@ public class RPObject extends SlotOwner {
 
 		private final int id;
 
-		private String zoneid;
+		private final String zoneid;
+
+		private final int hash;
 
 		/**
 		 * Constructor
@@ -1532,6 +1640,7 @@ public class RPObject extends SlotOwner {
 		public ID(int objectid, String zone) {
 			this.id = objectid;
 			this.zoneid = zone;
+			this.hash = hash(objectid, zone);
 		}
 
 		/**
@@ -1545,6 +1654,7 @@ public class RPObject extends SlotOwner {
 		public ID(int objectid, IRPZone.ID zoneid) {
 			this.id = objectid;
 			this.zoneid = zoneid.getID();
+			this.hash = hash(id, this.zoneid);
 		}
 
 		/**
@@ -1556,6 +1666,7 @@ public class RPObject extends SlotOwner {
 		public ID(RPObject attr) {
 			this.id = attr.getInt("id");
 			this.zoneid = attr.get("zoneid");
+			this.hash = hash(id, zoneid);
 		}
 
 		/**
@@ -1567,6 +1678,23 @@ public class RPObject extends SlotOwner {
 		public ID(RPAction attr) {
 			this.id = attr.getInt("sourceid");
 			this.zoneid = attr.get("zoneid");
+			this.hash = hash(id, zoneid);
+		}
+
+		/**
+		 * mixes zone and object id, so that objects with the same id in
+		 * different zones do not collide
+		 *
+		 * @param id object id
+		 * @param zoneid zone id or null
+		 * @return hash code
+		 */
+		private static int hash(int id, String zoneid) {
+			int h = id * 0x9E3779B9;
+			if (zoneid != null) {
+				h += zoneid.hashCode();
+			}
+			return h ^ (h >>> 16);
 		}
 
 		/**
@@ -1598,7 +1726,7 @@ public class RPObject extends SlotOwner {
 		public boolean equals(Object anotherid) {
 			if (anotherid != null && anotherid instanceof RPObject.ID) {
 				ID otherId = (RPObject.ID) anotherid;
-				if (id == otherId.id) {
+				if ((id == otherId.id) && (hash == otherId.hash)) {
 					if (zoneid == null) {
 						return otherId.zoneid == null;
 					} else {
@@ -1615,7 +1743,7 @@ public class RPObject extends SlotOwner {
 		/** We need it for HashMap */
 		@Override
 		public int hashCode() {
-			return id;
+			return hash;
 		}
 
 		/**
@@ -1636,6 +1764,11 @@ public class RPObject extends SlotOwner {
 	 * It is called by Marauroa, don't use :)
 	 */
 	public void resetAddedAndDeleted() {
+		if (!dirty) {
+			// nothing changed in this object or below since the last reset
+			return;
+		}
+
 		resetAddedAndDeletedAttributes();
 		resetAddedAndDeletedRPSlot();
 		resetAddedAndDeletedRPLink();
@@ -1646,6 +1779,7 @@ public class RPObject extends SlotOwner {
 		if (modified) {
 			modified = false;
 		}
+		dirty = false;
 	}
 
 	/**
@@ -1654,10 +1788,16 @@ public class RPObject extends SlotOwner {
 	public void resetAddedAndDeletedRPSlot() {
 		if (slots != null) {
 			for (RPSlot slot : slots) {
+				if (!slot.isDirty()) {
+					continue;
+				}
 				slot.resetAddedAndDeletedRPObjects();
 				for (RPObject object : slot) {
-					object.resetAddedAndDeleted();
+					if (object.dirty) {
+						object.resetAddedAndDeleted();
+					}
 				}
+				slot.clearDirty();
 			}
 		}
 
@@ -1677,7 +1817,9 @@ public class RPObject extends SlotOwner {
 	public void resetAddedAndDeletedRPLink() {
 		if (links !=null) {
 			for (RPLink link : links) {
-				link.getObject().resetAddedAndDeleted();
+				if (link.getObject().dirty) {
+					link.getObject().resetAddedAndDeleted();
+				}
 			}
 		}
 
@@ -1778,6 +1920,11 @@ public class RPObject extends SlotOwner {
 	 *            an empty object
 	 */
 	public void getDifferences(RPObject addedChanges, RPObject deletedChanges) {
+		if (!dirty) {
+			// nothing changed in this object or below since the last reset
+			return;
+		}
+
 		/*
 		 * First we get the diff from attributes this object contains.
 		 */
@@ -1798,14 +1945,15 @@ public class RPObject extends SlotOwner {
 		}
 
 		/*
-		 * We add the added links.
+		 * We add the added links. The linked object is copied, so that it
+		 * keeps reporting its changes to this object.
 		 */
 		if (addedLinks != null) {
 			if (addedChanges.addedLinks == null) {
 				addedChanges.addedLinks = new LinkedList<String>();
 			}
 			for (String addedLink : addedLinks) {
-				addedChanges.addLink(addedLink, getLinkedObject(addedLink));
+				addedChanges.addLink(addedLink, (RPObject) getLinkedObject(addedLink).clone());
 			}
 		}
 
@@ -1821,22 +1969,35 @@ public class RPObject extends SlotOwner {
 			}
 		}
 
+		// tmpAddedChanges and tmpDeletedChanges are created when they are
+		// needed and reused until they are filled, because creating RPObjects
+		// is relativly expensive
+		RPObject tmpAddedChanges = null;
+		RPObject tmpDeletedChanges = null;
+
 		/*
-		 * We now get the diffs for the links
+		 * We now get the diffs for the links that have changed
 		 */
 		if (links != null) {
 			for (RPLink link : links) {
-				RPObject linkadded = new RPObject();
-				RPObject linkdeleted = new RPObject();
+				if (!link.getObject().dirty) {
+					continue;
+				}
+				if (tmpAddedChanges == null) {
+					tmpAddedChanges = new RPObject();
+					tmpDeletedChanges = new RPObject();
+				}
 
-				link.getObject().getDifferences(linkadded, linkdeleted);
+				link.getObject().getDifferences(tmpAddedChanges, tmpDeletedChanges);
 
-				if (!linkadded.isEmpty()) {
-					addedChanges.addLink(link.getName(), linkadded);
+				if (!tmpAddedChanges.isEmpty()) {
+					addedChanges.addLink(link.getName(), tmpAddedChanges);
+					tmpAddedChanges = new RPObject();
 				}
 
-				if (!linkdeleted.isEmpty()) {
-					deletedChanges.addLink(link.getName(), linkdeleted);
+				if (!tmpDeletedChanges.isEmpty()) {
+					deletedChanges.addLink(link.getName(), tmpDeletedChanges);
+					tmpDeletedChanges = new RPObject();
 				}
 			}
 		}
@@ -1847,16 +2008,14 @@ public class RPObject extends SlotOwner {
 		addedChanges.setAddedRPSlot(this);
 		deletedChanges.setDeletedRPSlot(this);
 
-		// define tmpAddedChanges and tmpDeletedChanges so that they can be reused
-		// because creating RPObjects is relativly expensive
-		RPObject tmpAddedChanges;
-		RPObject tmpDeletedChanges;
-		if (slots != null && !slots.isEmpty()) {
-			tmpAddedChanges = new RPObject();
-			tmpDeletedChanges = new RPObject();
-
+		if (slots != null) {
 			for (RPSlot slot : slots) {
 
+				// ignore slots without changes
+				if (!slot.isDirty()) {
+					continue;
+				}
+
 				// ignore all slots that are server only
 				Definition def = this.getRPClass().getDefinition(DefinitionClass.RPSLOT,
 						slot.getName());
@@ -1865,99 +2024,99 @@ public class RPObject extends SlotOwner {
 				}
 
 				/*
-				 * First we process the added things to slot.
+				 * First we process the added things to slot. There is added
+				 * objects in the slot, so we need to add a copy of them to
+				 * addedChanges.
 				 */
-				RPSlot addedObjectsInSlot = new RPSlot(slot.getName());
-				if (addedObjectsInSlot.setAddedRPObject(slot)) {
-					/*
-					 * There is added objects in the slot, so we need to add them to
-					 * addedChanges.
-					 */
+				IndexedRPObjectList addedObjectsInSlot = slot.getAddedRPObjects();
+				if (!addedObjectsInSlot.isEmpty()) {
 					if (!addedChanges.hasSlot(slot.getName())) {
 						addedChanges.addSlot(slot.getName());
 					}
 
 					RPSlot changes = addedChanges.getSlot(slot.getName());
 					for (RPObject ad : addedObjectsInSlot) {
-						changes.add(ad, false);
+						changes.add((RPObject) ad.clone(), false);
 					}
 				}
 
 				/*
 				 * Later we process the removed things from the slot.
 				 */
-				RPSlot deletedObjectsInSlot = new RPSlot(slot.getName());
-				if (deletedObjectsInSlot.setDeletedRPObject(slot)) {
-					/*
-					 * There is deleted objects in the slot, so we need to add them
-					 * to deletedChanges.
-					 */
+				IndexedRPObjectList deletedObjectsInSlot = slot.getDeletedRPObjects();
+				if (!deletedObjectsInSlot.isEmpty()) {
 					if (!deletedChanges.hasSlot(slot.getName())) {
 						deletedChanges.addSlot(slot.getName());
 					}
 
 					RPSlot changes = deletedChanges.getSlot(slot.getName());
 					for (RPObject ad : deletedObjectsInSlot) {
-						changes.add(ad, false);
+						changes.add((RPObject) ad.clone(), false);
 					}
 				}
 
 				/*
-				 * Finally we process the changes on the objects of the slot.
+				 * Finally we process the changes on the dirty objects of the slot.
 				 */
 				for (RPObject rec : slot) {
 
-					// ignore modified objects that has been added in the same turn
-					if (!addedObjectsInSlot.has(rec.getID())) {
+					// ignore unchanged objects and modified objects that has been
+					// added in the same turn
+					if (!rec.dirty || slot.isAdded(IndexedRPObjectList.idOf(rec))) {
+						continue;
+					}
+					if (tmpAddedChanges == null) {
+						tmpAddedChanges = new RPObject();
+						tmpDeletedChanges = new RPObject();
+					}
 
-						rec.getDifferences(tmpAddedChanges, tmpDeletedChanges);
+					rec.getDifferences(tmpAddedChanges, tmpDeletedChanges);
 
+					/*
+					 * If this object is not empty that means that there has been a
+					 * change at it. So we add this object to the slot.
+					 */
+					if (!tmpAddedChanges.isEmpty()) {
 						/*
-						 * If this object is not empty that means that there has been a
-						 * change at it. So we add this object to the slot.
+						 * If slot was not created, create it now. For example if an
+						 * object is modified ( that means not added nor deleted ),
+						 * it won't have a slot already created on added.
 						 */
-						if (!tmpAddedChanges.isEmpty()) {
-							/*
-							 * If slot was not created, create it now. For example if an
-							 * object is modified ( that means not added nor deleted ),
-							 * it won't have a slot already created on added.
-							 */
-							if (!addedChanges.hasSlot(slot.getName())) {
-								addedChanges.addSlot(slot.getName());
-							}
-
-							RPSlot recAddedSlot = addedChanges.getSlot(slot.getName());
-							/*
-							 * We need to set the id of the object to be equals to the
-							 * object from which the diff was generated.
-							 */
-							tmpAddedChanges.put("id", rec.get("id"));
-							recAddedSlot.add(tmpAddedChanges, false);
-							tmpAddedChanges = new RPObject();
+						if (!addedChanges.hasSlot(slot.getName())) {
+							addedChanges.addSlot(slot.getName());
 						}
 
+						RPSlot recAddedSlot = addedChanges.getSlot(slot.getName());
 						/*
-						 * Same operation with delete changes
+						 * We need to set the id of the object to be equals to the
+						 * object from which the diff was generated.
 						 */
-						if (!tmpDeletedChanges.isEmpty()) {
-							/*
-							 * If slot was not created, create it now. For example if an
-							 * object is modified ( that means not added nor deleted ),
-							 * it won't have a slot already created on added.
-							 */
-							if (!deletedChanges.hasSlot(slot.getName())) {
-								deletedChanges.addSlot(slot.getName());
-							}
+						tmpAddedChanges.put("id", rec.get("id"));
+						recAddedSlot.add(tmpAddedChanges, false);
+						tmpAddedChanges = new RPObject();
+					}
 
-							RPSlot recDeletedSlot = deletedChanges.getSlot(slot.getName());
-							/*
-							 * We need to set the id of the object to be equals to the
-							 * object from which the diff was generated.
-							 */
-							tmpDeletedChanges.put("id", rec.get("id"));
-							recDeletedSlot.add(tmpDeletedChanges, false);
-							tmpDeletedChanges = new RPObject();
+					/*
+					 * Same operation with delete changes
+					 */
+					if (!tmpDeletedChanges.isEmpty()) {
+						/*
+						 * If slot was not created, create it now. For example if an
+						 * object is modified ( that means not added nor deleted ),
+						 * it won't have a slot already created on added.
+						 */
+						if (!deletedChanges.hasSlot(slot.getName())) {
+							deletedChanges.addSlot(slot.getName());
 						}
+
+						RPSlot recDeletedSlot = deletedChanges.getSlot(slot.getName());
+						/*
+						 * We need to set the id of the object to be equals to the
+						 * object from which the diff was generated.
+						 */
+						tmpDeletedChanges.put("id", rec.get("id"));
+						recDeletedSlot.add(tmpDeletedChanges, false);
+						tmpDeletedChanges = new RPObject();
 					}
 				}
 			}
@@ -1974,19 +2133,22 @@ public class RPObject extends SlotOwner {
 		 */
 		if (maps != null) {
 			for (Entry<String, Attributes> entry : maps.entrySet()) {
-				synchronized (entry.getValue().added) {
-					for (Map.Entry<String, String> ent : entry.getValue().added.entrySet()) {
-						if (!ent.getKey().equals("id") && !ent.getKey().equals("zoneid")) {
-							addedChanges.put(entry.getKey(), ent.getKey(), ent.getValue());
+				Attributes map = entry.getValue();
+				if (!map.isModified()) {
+					continue;
+				}
+				for (String key : map.getAddedAttributeNames()) {
+					if (!key.equals("id") && !key.equals("zoneid")) {
+						String value = map.get(key);
+						if (value != null) {
+							addedChanges.put(entry.getKey(), key, value);
 						}
 					}
 				}
 
-				synchronized (entry.getValue().deleted) {
-					for (Map.Entry<String, String> ent : entry.getValue().deleted.entrySet()) {
-						if (!ent.getKey().equals("id") && !ent.getKey().equals("zoneid")) {
-							deletedChanges.put(entry.getKey(), ent.getKey(), ent.getValue());
-						}
+				for (String key : map.getDeletedAttributeNames()) {
+					if (!key.equals("id") && !key.equals("zoneid")) {
+						deletedChanges.put(entry.getKey(), key, "0");
 					}
 				}
 			}
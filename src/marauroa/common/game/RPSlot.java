@@ -35,17 +35,20 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 	/** This slot is linked to an owner. */
 	private SlotOwner owner;
 
-	/** A List<RPObject> of objects */
-	private LinkedRPObjectList objects;
+	/** The objects in insertion order, indexed by their id */
+	private IndexedRPObjectList objects;
 
 	/** The maximum amount of objects that we can store at this slot */
 	private int capacity;
 
 	/** Stores added objects for delta^2 algorithm */
-	private LinkedRPObjectList added;
+	private IndexedRPObjectList added;
 
 	/** Stores deleted objects for delta^2 algorithm */
-	private LinkedRPObjectList deleted;
+	private IndexedRPObjectList deleted;
+
+	/** objects were added or deleted or a contained object is dirty */
+	private boolean dirty;
 
 	/**
 	 * Constructor for deserialization. Please use {@link RPSlot#RPSlot(String)}.
@@ -55,9 +58,9 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 		owner = null;
 		capacity = -1;
 
-		objects = new LinkedRPObjectList();
-		added = new LinkedRPObjectList();
-		deleted = new LinkedRPObjectList();
+		objects = new IndexedRPObjectList();
+		added = new IndexedRPObjectList();
+		deleted = new IndexedRPObjectList();
 	}
 
 	/**
@@ -171,6 +174,7 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 		added.add(object);
 		// If the object is on deleted list, remove from there.
 		deleted.remove(object);
+		markDirty();
 
 		/*
 		 * We set the container on object so that it can later do queries on the
@@ -208,11 +212,7 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 	 * @return the first object of the slot or null if it is empty.
 	 */
 	public RPObject getFirst() {
-		if (objects.isEmpty()) {
-			return null;
-		}
-
-		return objects.get(0);
+		return objects.getFirst();
 	}
 
 	/**
@@ -227,22 +227,13 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 		if (id == null) {
 			return null;
 		}
-		int oid = id.getObjectID();
-
-		Iterator<RPObject> it = objects.iterator();
-		while (it.hasNext()) {
-			RPObject object = it.next();
 
-			// We compare only the id, as the zone is really irrelevant
-			if (object.getID().getObjectID() == oid) {
-				prepareRemove(object);
-				it.remove();
-				return object;
-			}
+		// We compare only the id, as the zone is really irrelevant
+		RPObject object = objects.removeByID(id.getObjectID());
+		if (object != null) {
+			prepareRemove(object);
 		}
-
-		return null;
-
+		return object;
 	}
 
 	/**
@@ -258,7 +249,7 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 		 * the same turn an object is added and deleted, causing the
 		 * client to confuse.
 		 */
-		RPObject fromAddedList = added.removeByIDIgnoringZone(object.getID());
+		RPObject fromAddedList = added.removeByID(IndexedRPObjectList.idOf(object));
 
 		/*
 		 * If it was added and it is now deleted on the same turn.
@@ -275,6 +266,7 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 
 			deleted.add(del);
 		}
+		markDirty();
 		object.setContainer(null, null);
 	}
 
@@ -406,7 +398,7 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 	 * @return an unmodifiable iterator object the objects.
 	 */
 	public Iterator<RPObject> iterator() {
-		return Collections.unmodifiableList(objects).iterator();
+		return Collections.unmodifiableCollection(objects).iterator();
 	}
 
 	/**
@@ -580,21 +572,21 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 		slot.owner = owner;
 		slot.capacity = capacity;
 
-		slot.objects = new LinkedRPObjectList();
+		slot.objects = new IndexedRPObjectList();
 		for (RPObject object : objects) {
 			RPObject copied = (RPObject) object.clone();
 			copied.setContainer(owner, slot);
 			slot.objects.addTrusted(copied);
 		}
 
-		slot.added = new LinkedRPObjectList();
+		slot.added = new IndexedRPObjectList();
 		for (RPObject object : added) {
 			RPObject copied = (RPObject) object.clone();
 			copied.setContainer(owner, slot);
 			slot.added.addTrusted(copied);
 		}
 
-		slot.deleted = new LinkedRPObjectList();
+		slot.deleted = new IndexedRPObjectList();
 		for (RPObject object : deleted) {
 			RPObject copied = (RPObject) object.clone();
 			copied.setContainer(owner, slot);
@@ -613,6 +605,72 @@ public class RPSlot implements marauroa.common.net.Serializable, Iterable<RPObje
 		deleted.clear();
 	}
 
+	/**
+	 * marks this slot and its owner as having Delta^2 information
+	 */
+	void markDirty() {
+		dirty = true;
+		if (owner != null) {
+			owner.markDirty();
+		}
+	}
+
+	/**
+	 * has this slot or any object in it Delta^2 information?
+	 *
+	 * @return true, if the slot has to be visited to compute the differences
+	 */
+	boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * forgets that the slot is dirty, once the Delta^2 information of the
+	 * slot and of its objects is reset
+	 */
+	void clearDirty() {
+		dirty = false;
+	}
+
+	/**
+	 * returns the objects added since the last reset of the Delta^2 information
+	 *
+	 * @return added objects
+	 */
+	IndexedRPObjectList getAddedRPObjects() {
+		return added;
+	}
+
+	/**
+	 * returns the objects deleted since the last reset of the Delta^2
+	 * information, they only have an id
+	 *
+	 * @return deleted objects
+	 */
+	IndexedRPObjectList getDeletedRPObjects() {
+		return deleted;
+	}
+
+	/**
+	 * was an object added since the last reset of the Delta^2 information?
+	 *
+	 * @param id the object id
+	 * @return true, if the object was added
+	 */
+	boolean isAdded(int id) {
+		return added.hasID(id);
+	}
+
+	/**
+	 * updates the indexes after the id of a contained object has changed
+	 *
+	 * @param object contained object
+	 */
+	void reindex(RPObject object) {
+		objects.reindex(object);
+		added.reindex(object);
+	}
+
 	/**
 	 * Copy to given slot the objects added. It does a depth copy of the
 	 * objects.
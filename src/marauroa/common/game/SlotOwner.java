@@ -70,6 +70,9 @@ public abstract class SlotOwner extends Attributes {
 				for (RPSlot slot : slotOwner.slots) {
 					RPSlot added = (RPSlot) slot.clone();
 					added.setOwner(this);
+					for (RPObject object : added) {
+						object.setContainer(this, added);
+					}
 					slots.add(added);
 				}
 			}
@@ -0,0 +1,199 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import marauroa.common.TimeoutConf;
+
+/**
+ * An InputSerializer that reads from data in memory instead of a stream.
+ * <p>
+ * Primitives are read straight from a little-endian ByteBuffer and strings
+ * are decoded from the data without copying it into temporary arrays.
+ */
+public class BufferInputSerializer extends InputSerializer {
+
+	/** the data, in read mode */
+	private final ByteBuffer buffer;
+
+	/**
+	 * creates a new BufferInputSerializer
+	 *
+	 * @param data the data to read
+	 */
+	public BufferInputSerializer(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	/**
+	 * creates a new BufferInputSerializer
+	 *
+	 * @param data array holding the data to read
+	 * @param offset position of the first byte
+	 * @param length number of bytes
+	 */
+	public BufferInputSerializer(byte[] data, int offset, int length) {
+		super(null);
+		buffer = ByteBuffer.wrap(data, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * creates a BufferInputSerializer for all the data of a stream
+	 *
+	 * @param in the stream, it is read to its end but not closed
+	 * @return BufferInputSerializer
+	 * @throws IOException in case of an input/output error
+	 */
+	public static BufferInputSerializer readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] chunk = new byte[4096];
+		int count = in.read(chunk);
+		while (count >= 0) {
+			out.write(chunk, 0, count);
+			count = in.read(chunk);
+		}
+		return new BufferInputSerializer(out.toByteArray());
+	}
+
+	/**
+	 * returns the number of bytes that have not been read yet
+	 *
+	 * @return number of bytes
+	 */
+	public int remaining() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		if (!buffer.hasRemaining()) {
+			throw new IOException();
+		}
+		return buffer.get();
+	}
+
+	@Override
+	public byte[] readByteArray() throws IOException {
+		int size = readInt();
+
+		if ((size < 0) || (size > TimeoutConf.MAX_BYTE_ARRAY_ELEMENTS)) {
+			throw new IOException("Illegal request of an array of " + size + " size");
+		}
+
+		return readBytes(size);
+	}
+
+	@Override
+	public byte[] read255LongByteArray() throws IOException {
+		return readBytes(readByte() & 0xff);
+	}
+
+	@Override
+	public byte[] read65536LongByteArray() throws IOException {
+		int size = readShort();
+
+		if (size < 0) {
+			throw new IOException("Illegal request of an array of " + size + " size");
+		}
+
+		return readBytes(size);
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		require(2);
+		return buffer.getShort();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		require(4);
+		return buffer.getInt();
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		require(8);
+		return buffer.getLong();
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		require(4);
+		return buffer.getFloat();
+	}
+
+	@Override
+	public String readString() throws IOException {
+		int size = readInt();
+
+		if ((size < 0) || (size > TimeoutConf.MAX_BYTE_ARRAY_ELEMENTS)) {
+			throw new IOException("Illegal request of an array of " + size + " size");
+		}
+
+		return readString(size);
+	}
+
+	@Override
+	public String read255LongString() throws IOException {
+		return readString(readByte() & 0xff);
+	}
+
+	@Override
+	public String read65536LongString() throws IOException {
+		int size = readShort();
+
+		if (size < 0) {
+			throw new IOException("Illegal request of an array of " + size + " size");
+		}
+
+		return readString(size);
+	}
+
+	@Override
+	public void close() {
+		// there is no stream to close
+	}
+
+	private byte[] readBytes(int size) throws IOException {
+		require(size);
+		byte[] res = new byte[size];
+		buffer.get(res);
+		return res;
+	}
+
+	private String readString(int size) throws IOException {
+		require(size);
+		int position = buffer.position();
+		String res = new String(buffer.array(), buffer.arrayOffset() + position, size, StandardCharsets.UTF_8);
+		buffer.position(position + size);
+		return res;
+	}
+
+	private void require(int size) throws IOException {
+		if (buffer.remaining() < size) {
+			throw new IOException("Declared array size=" + size
+			        + " is not equal to actually read bytes count(" + buffer.remaining() + ")!");
+		}
+	}
+}
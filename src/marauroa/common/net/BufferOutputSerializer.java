@@ -0,0 +1,316 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * An OutputSerializer that writes into a growable buffer in memory instead
+ * of a stream.
+ * <p>
+ * Primitives are put straight into a little-endian ByteBuffer and strings are
+ * encoded into it without creating temporary byte arrays, so the bytes are
+ * the same as the ones written by OutputSerializer.
+ * <p>
+ * Serializers are pooled per thread: get one with <code>acquire</code> and
+ * give it back with <code>release</code> once its data has been used.
+ */
+public class BufferOutputSerializer extends OutputSerializer {
+
+	/** initial capacity of the buffer */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** larger buffers are not kept in the pool */
+	private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+
+	/** number of serializers kept in the pool of each thread */
+	private static final int POOL_SIZE = 4;
+
+	/** released serializers of each thread */
+	private static final ThreadLocal<ArrayDeque<BufferOutputSerializer>> pool = new ThreadLocal<ArrayDeque<BufferOutputSerializer>>() {
+		@Override
+		protected ArrayDeque<BufferOutputSerializer> initialValue() {
+			return new ArrayDeque<BufferOutputSerializer>(POOL_SIZE);
+		}
+	};
+
+	/** UTF-8 encoder of each thread, for strings that are not plain ASCII */
+	private static final ThreadLocal<CharsetEncoder> utf8 = new ThreadLocal<CharsetEncoder>() {
+		@Override
+		protected CharsetEncoder initialValue() {
+			// same replacement as String.getBytes
+			return StandardCharsets.UTF_8.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	/** the buffer, in write mode */
+	private ByteBuffer buffer;
+
+	/**
+	 * creates a new BufferOutputSerializer
+	 */
+	public BufferOutputSerializer() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * creates a new BufferOutputSerializer
+	 *
+	 * @param capacity initial capacity of the buffer
+	 */
+	public BufferOutputSerializer(int capacity) {
+		super(null);
+		buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * gets an empty serializer from the pool of the current thread
+	 *
+	 * @return BufferOutputSerializer
+	 */
+	public static BufferOutputSerializer acquire() {
+		BufferOutputSerializer serializer = pool.get().poll();
+		if (serializer == null) {
+			serializer = new BufferOutputSerializer();
+		}
+		return serializer;
+	}
+
+	/**
+	 * gives this serializer back to the pool of the current thread. It must
+	 * not be used afterwards.
+	 */
+	public void release() {
+		ArrayDeque<BufferOutputSerializer> threadPool = pool.get();
+		if ((buffer.capacity() <= MAX_POOLED_CAPACITY) && (threadPool.size() < POOL_SIZE)) {
+			reset();
+			threadPool.push(this);
+		}
+	}
+
+	/**
+	 * drops the written data
+	 */
+	public void reset() {
+		buffer.clear();
+		setProtocolVersion(NetConst.NETWORK_PROTOCOL_VERSION);
+	}
+
+	/**
+	 * returns the number of bytes written
+	 *
+	 * @return number of bytes
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * returns the array holding the written data, from index 0 to <code>size()</code>
+	 *
+	 * @return the internal array, do not keep it
+	 */
+	public byte[] array() {
+		return buffer.array();
+	}
+
+	/**
+	 * returns a copy of the written data
+	 *
+	 * @return written data
+	 */
+	public byte[] toByteArray() {
+		byte[] res = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, res, 0, res.length);
+		return res;
+	}
+
+	/**
+	 * writes the data to a stream
+	 *
+	 * @param out stream
+	 * @throws IOException in case of an input/output error
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer.array(), 0, buffer.position());
+	}
+
+	/**
+	 * overwrites an int that has been written before
+	 *
+	 * @param position position of the int
+	 * @param value new value
+	 */
+	public void putInt(int position, int value) {
+		buffer.putInt(position, value);
+	}
+
+	@Override
+	public void write(byte a) {
+		ensureCapacity(1);
+		buffer.put(a);
+	}
+
+	@Override
+	public void write(byte[] a) {
+		ensureCapacity(4 + a.length);
+		buffer.putInt(a.length);
+		buffer.put(a);
+	}
+
+	@Override
+	public void write255LongArray(byte[] a) throws IOException {
+		if (a.length > 255) {
+			throw new IOException("Array too large for write255LongArray.");
+		}
+
+		ensureCapacity(1 + a.length);
+		buffer.put((byte) a.length);
+		buffer.put(a);
+	}
+
+	@Override
+	public void write65536LongArray(byte[] a) throws IOException {
+		if (a.length > Short.MAX_VALUE) {
+			throw new IOException();
+		}
+
+		ensureCapacity(2 + a.length);
+		buffer.putShort((short) a.length);
+		buffer.put(a);
+	}
+
+	@Override
+	public void write(short a) {
+		ensureCapacity(2);
+		buffer.putShort(a);
+	}
+
+	@Override
+	public void write(int a) {
+		ensureCapacity(4);
+		buffer.putInt(a);
+	}
+
+	@Override
+	public void write(long a) {
+		ensureCapacity(8);
+		buffer.putLong(a);
+	}
+
+	@Override
+	public void write(float a) {
+		ensureCapacity(4);
+		buffer.putFloat(a);
+	}
+
+	@Override
+	public void write(String a) {
+		int start = buffer.position();
+		ensureCapacity(4);
+		buffer.position(start + 4);
+		int length = encode(a);
+		buffer.putInt(start, length);
+	}
+
+	@Override
+	public void write255LongString(String a) throws IOException {
+		int start = buffer.position();
+		ensureCapacity(1);
+		buffer.position(start + 1);
+		int length = encode(a);
+		if (length > 255) {
+			buffer.position(start);
+			throw new IOException("Array too large for write255LongArray.");
+		}
+		buffer.put(start, (byte) length);
+	}
+
+	@Override
+	public void write65536LongString(String a) throws IOException {
+		int start = buffer.position();
+		ensureCapacity(2);
+		buffer.position(start + 2);
+		int length = encode(a);
+		if (length > Short.MAX_VALUE) {
+			buffer.position(start);
+			throw new IOException();
+		}
+		buffer.putShort(start, (short) length);
+	}
+
+	/**
+	 * encodes a string as UTF-8 at the current position
+	 *
+	 * @param a string
+	 * @return number of bytes written
+	 */
+	private int encode(String a) {
+		int start = buffer.position();
+		int length = a.length();
+		ensureCapacity(length);
+
+		// most strings are plain ASCII
+		byte[] array = buffer.array();
+		int position = start;
+		int i = 0;
+		while (i < length) {
+			char chr = a.charAt(i);
+			if (chr >= 0x80) {
+				break;
+			}
+			array[position++] = (byte) chr;
+			i++;
+		}
+		buffer.position(position);
+
+		if (i < length) {
+			encodeUTF8(a, i);
+		}
+		return buffer.position() - start;
+	}
+
+	private void encodeUTF8(String a, int from) {
+		CharsetEncoder encoder = utf8.get();
+		encoder.reset();
+		CharBuffer chars = CharBuffer.wrap(a, from, a.length());
+
+		// a char takes 3 bytes at most, surrogate pairs take 4 bytes for 2 chars
+		ensureCapacity(3 * chars.remaining());
+		CoderResult result = encoder.encode(chars, buffer, true);
+		if (result.isOverflow() || encoder.flush(buffer).isOverflow()) {
+			throw new BufferOverflowException();
+		}
+	}
+
+	private void ensureCapacity(int additional) {
+		if (buffer.remaining() < additional) {
+			int capacity = Math.max(buffer.capacity() * 2, buffer.position() + additional);
+			ByteBuffer bigger = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+}
@@ -11,7 +11,6 @@
  ***************************************************************************/
 package marauroa.common.net;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import marauroa.common.net.message.Message;
@@ -58,25 +57,20 @@ public class Encoder {
 	 *             if there is any error encoding the message.
 	 */
 	public byte[] encode(Message msg) throws IOException {
-		int size = 0;
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		OutputSerializer s = new OutputSerializer(out);
-		s.setProtocolVersion(msg.getProtocolVersion());
+		BufferOutputSerializer s = BufferOutputSerializer.acquire();
+		try {
+			s.setProtocolVersion(msg.getProtocolVersion());
 
-		/*
-		 * HACK: We make room for 4 bytes that we will set later to specify how big the packet is.
-		 */
-		s.write(size);
-		s.write(msg);
+			/*
+			 * We make room for 4 bytes that we will set later to specify how big the packet is.
+			 */
+			s.write(0);
+			s.write(msg);
+			s.putInt(0, s.size());
 
-		byte[] data = out.toByteArray();
-
-		size = data.length;
-		data[0] = (byte) ((size >> 0) & 255);
-		data[1] = (byte) ((size >> 8) & 255);
-		data[2] = (byte) ((size >> 16) & 255);
-		data[3] = (byte) ((size >> 24) & 255);
-
-		return data;
+			return s.toByteArray();
+		} finally {
+			s.release();
+		}
 	}
 }
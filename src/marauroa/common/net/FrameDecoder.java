@@ -0,0 +1,155 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedList;
+import java.util.List;
+
+import marauroa.common.net.message.Message;
+
+/**
+ * Splits the stream of bytes received from a single connection into length
+ * prefixed frames and builds a message from each of them.
+ * <p>
+ * Messages are parsed straight out of the received data. Only the bytes of a
+ * frame that is not complete at the end of the received data are copied into
+ * a buffer that is kept and reused for the whole life of the connection.
+ * <p>
+ * An instance is bound to one connection and must not be used by several
+ * threads at the same time.
+ */
+public class FrameDecoder {
+
+	/** size of the length prefix of each frame */
+	private static final int SIZE_OF_LENGTH = 4;
+
+	/** initial capacity of the buffer for incomplete frames */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** MessageFactory */
+	private final MessageFactory msgFactory;
+
+	/** incomplete frame, in write mode; null until it is needed */
+	private ByteBuffer pending;
+
+	/**
+	 * creates a new FrameDecoder
+	 */
+	public FrameDecoder() {
+		msgFactory = MessageFactory.getFactory();
+	}
+
+	/**
+	 * Decodes the messages that are completed by the received data.
+	 *
+	 * @param data
+	 *            array holding the received data
+	 * @param offset
+	 *            position of the first received byte in the array
+	 * @param length
+	 *            number of received bytes
+	 * @return list of completed messages or null if no message was completed
+	 * @throws IOException
+	 *             if there is a problem building a message
+	 * @throws InvalidVersionException
+	 *             if the message version mismatch the expected version
+	 */
+	public List<Message> decode(byte[] data, int offset, int length) throws IOException,
+	        InvalidVersionException {
+		ByteBuffer input;
+		if ((pending == null) || (pending.position() == 0)) {
+			input = ByteBuffer.wrap(data, offset, length);
+		} else {
+			ensureCapacity(length);
+			pending.put(data, offset, length);
+			pending.flip();
+			input = pending;
+		}
+		input.order(ByteOrder.LITTLE_ENDIAN);
+
+		try {
+			return readFrames(input);
+		} finally {
+			// keep the incomplete frame for the next call
+			if (input == pending) {
+				pending.compact();
+			} else if (input.hasRemaining()) {
+				ensureCapacity(input.remaining());
+				pending.put(input);
+			}
+		}
+	}
+
+	/**
+	 * drops the data of an incomplete frame
+	 */
+	public void clear() {
+		if (pending != null) {
+			pending.clear();
+		}
+	}
+
+	/**
+	 * returns true if there is data of an incomplete frame
+	 *
+	 * @return true if there is data of an incomplete frame
+	 */
+	public boolean hasPendingData() {
+		return (pending != null) && (pending.position() > 0);
+	}
+
+	private List<Message> readFrames(ByteBuffer input) throws IOException, InvalidVersionException {
+		List<Message> list = null;
+
+		while (input.remaining() >= SIZE_OF_LENGTH) {
+			int start = input.position();
+			int size = input.getInt(start);
+			if (size < SIZE_OF_LENGTH) {
+				// the stream is corrupted, there is no way to find the next frame
+				input.position(input.limit());
+				throw new IOException("Message size is invalid (" + size + "). Message ignored.");
+			}
+
+			if (input.remaining() < size) {
+				/*
+				 * Still missing parts, let's wait
+				 */
+				break;
+			}
+
+			// skip the frame first, so that a broken message is not read again
+			input.position(start + size);
+			Message msg = msgFactory.getMessage(input.array(), input.arrayOffset() + start + SIZE_OF_LENGTH, size - SIZE_OF_LENGTH);
+
+			if (list == null) {
+				list = new LinkedList<Message>();
+			}
+			list.add(msg);
+		}
+
+		return list;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (pending == null) {
+			pending = ByteBuffer.allocate(Math.max(INITIAL_CAPACITY, additional));
+		} else if (pending.remaining() < additional) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + additional));
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+	}
+}
@@ -242,15 +242,15 @@ public class InputSerializer {
 					+ bytes_read_total + ")!");
 		}
 
-		long result = data[0] & 0xFF;
-
-		result += (data[1] & 0xFF) << 8;
-		result += (data[2] & 0xFF) << 16;
-		result += (data[3] & 0xFF) << 24;
-		result += (data[4] & 0xFF) << 32;
-		result += (data[5] & 0xFF) << 40;
-		result += (data[6] & 0xFF) << 48;
-		result += (data[7] & 0xFF) << 56;
+		long result = data[0] & 0xFFL;
+
+		result += (data[1] & 0xFFL) << 8;
+		result += (data[2] & 0xFFL) << 16;
+		result += (data[3] & 0xFFL) << 24;
+		result += (data[4] & 0xFFL) << 32;
+		result += (data[5] & 0xFFL) << 40;
+		result += (data[6] & 0xFFL) << 48;
+		result += (data[7] & 0xFFL) << 56;
 		return result;
 	}
 
@@ -11,7 +11,6 @@
  ***************************************************************************/
 package marauroa.common.net;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -189,6 +188,31 @@ public class MessageFactory {
 	 */
 	public Message getMessage(byte[] data, int offset) throws IOException,
 	        InvalidVersionException {
+		return getMessage(data, offset, data.length - offset);
+	}
+
+	/**
+	 * Returns a object of the right class from a part of an array of
+	 * serialized data. The data is read in place without copying it.
+	 *
+	 * @param data
+	 *            the serialized data
+	 * @param offset
+	 *            where to start reading in the data-array.
+	 * @param length
+	 *            number of bytes belonging to the message
+	 * @return a message of the right class
+	 * @throws IOException
+	 *             in case of problems with the message
+	 * @throws InvalidVersionException
+	 *             if the message version doesn't match
+	 */
+	public Message getMessage(byte[] data, int offset, int length) throws IOException,
+	        InvalidVersionException {
+		if (length < 2) {
+			throw new IOException("Message is too short. Missing mandatory fields.");
+		}
+
 		/*
 		 * Check the version of the network protocol.
 		 */
@@ -211,11 +235,7 @@ public class MessageFactory {
 				Class<?> messageType = factoryArray.get(messageTypeIndex);
 				tmp = (Message) messageType.newInstance();
 				tmp.setProtocolVersion(networkProtocolVersion);
-				ByteArrayInputStream in = new ByteArrayInputStream(data);
-				if (offset > 0) {
-					in.skip(offset);
-				}
-				InputSerializer s = new InputSerializer(in);
+				InputSerializer s = new BufferInputSerializer(data, offset, length);
 				s.setProtocolVersion(networkProtocolVersion);
 
 				tmp.readObject(s);
@@ -0,0 +1,372 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.net;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import marauroa.common.Configuration;
+import marauroa.common.Log4J;
+import marauroa.common.Logger;
+
+/**
+ * Compresses and decompresses data in the zlib format, which is the format
+ * of DeflaterOutputStream and InflaterInputStream.
+ * <p>
+ * Each thread keeps its own Deflater and Inflater and resets them for every
+ * call, so that the native zlib memory is allocated once per thread instead
+ * of once per call. Those of finished threads are ended when the next thread
+ * starts using a codec. There is one codec for network messages and one for
+ * the database, each with its own compression level and strategy.
+ * <p>
+ * Data may be compressed against a preset dictionary. The zlib header names
+ * the dictionary by its Adler-32 checksum, so the receiving side only has to
+ * know the dictionary: register it with <code>registerDictionary</code>.
+ */
+public final class ZlibCodec {
+	private static Logger logger = Log4J.getLogger(ZlibCodec.class);
+
+	/** codec for perceptions and other network messages */
+	public static final ZlibCodec NETWORK = new ZlibCodec();
+
+	/** codec for objects and zones stored in the database */
+	public static final ZlibCodec DATABASE = new ZlibCodec();
+
+	/** initial size of the scratch buffer */
+	private static final int CHUNK_SIZE = 4096;
+
+	/** larger scratch buffers are not kept */
+	private static final int MAX_KEPT_SIZE = 1024 * 1024;
+
+	/** inflaters do not depend on the level, so all codecs share them */
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			Inflater inflater = new Inflater();
+			track(inflater);
+			return inflater;
+		}
+	};
+
+	/** the deflaters and inflaters of all threads, to end those of finished threads */
+	private static final ConcurrentLinkedQueue<Stream> streams = new ConcurrentLinkedQueue<Stream>();
+
+	/** known preset dictionaries by their Adler-32 checksum */
+	private static final ConcurrentHashMap<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+
+	/** scratch buffer of each thread */
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[CHUNK_SIZE];
+		}
+	};
+
+	/** deflaters of this codec */
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			Deflater deflater = new Deflater(level);
+			track(deflater);
+			return deflater;
+		}
+	};
+
+	private volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+	private volatile int strategy = Deflater.DEFAULT_STRATEGY;
+
+	private ZlibCodec() {
+		// use NETWORK or DATABASE
+	}
+
+	/**
+	 * reads the compression settings of both codecs:
+	 * <ul>
+	 * <li>network_compression_level and database_compression_level: 0 to 9, -1 for the zlib default</li>
+	 * <li>network_compression_strategy and database_compression_strategy: default, filtered or huffman_only</li>
+	 * </ul>
+	 *
+	 * @param conf configuration
+	 */
+	public static void configure(Configuration conf) {
+		NETWORK.setLevel(readLevel(conf, "network_compression_level"));
+		NETWORK.setStrategy(parseStrategy(conf.get("network_compression_strategy", "default")));
+		DATABASE.setLevel(readLevel(conf, "database_compression_level"));
+		DATABASE.setStrategy(parseStrategy(conf.get("database_compression_strategy", "default")));
+	}
+
+	private static int readLevel(Configuration conf, String property) {
+		int level = conf.getInt(property, Deflater.DEFAULT_COMPRESSION);
+		if (!isValidLevel(level)) {
+			logger.error("Invalid compression level " + level + " in " + property + ", using default");
+			return Deflater.DEFAULT_COMPRESSION;
+		}
+		return level;
+	}
+
+	private static boolean isValidLevel(int level) {
+		return ((level >= 0) && (level <= 9)) || (level == Deflater.DEFAULT_COMPRESSION);
+	}
+
+	private static int parseStrategy(String name) {
+		if ("filtered".equalsIgnoreCase(name)) {
+			return Deflater.FILTERED;
+		} else if ("huffman_only".equalsIgnoreCase(name)) {
+			return Deflater.HUFFMAN_ONLY;
+		} else if (!"default".equalsIgnoreCase(name)) {
+			logger.warn("Unknown compression strategy " + name + ", using default");
+		}
+		return Deflater.DEFAULT_STRATEGY;
+	}
+
+	/**
+	 * makes a preset dictionary known to the decompressing side
+	 *
+	 * @param dictionary dictionary
+	 * @return the id of the dictionary as used in the zlib header
+	 */
+	public static int registerDictionary(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary, 0, dictionary.length);
+		int id = (int) adler.getValue();
+		dictionaries.put(Integer.valueOf(id), dictionary);
+		return id;
+	}
+
+	/**
+	 * remembers a new deflater or inflater of the current thread and ends the
+	 * ones of threads that have finished, so that their native memory is
+	 * released without waiting for the garbage collector
+	 *
+	 * @param stream Deflater or Inflater
+	 */
+	private static void track(Object stream) {
+		for (Stream existing : streams) {
+			if (!existing.isAlive() && streams.remove(existing)) {
+				existing.end();
+			}
+		}
+		streams.add(new Stream(stream));
+	}
+
+	/**
+	 * gets the number of deflaters and inflaters that have not been ended
+	 *
+	 * @return number of deflaters and inflaters
+	 */
+	static int getStreamCount() {
+		return streams.size();
+	}
+
+	/**
+	 * sets the compression level
+	 *
+	 * @param level 0 to 9, or -1 for the zlib default
+	 */
+	public void setLevel(int level) {
+		if (!isValidLevel(level)) {
+			throw new IllegalArgumentException("invalid compression level " + level);
+		}
+		this.level = level;
+	}
+
+	/**
+	 * gets the compression level
+	 *
+	 * @return compression level
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * sets the compression strategy
+	 *
+	 * @param strategy Deflater.DEFAULT_STRATEGY, Deflater.FILTERED or Deflater.HUFFMAN_ONLY
+	 */
+	public void setStrategy(int strategy) {
+		if ((strategy != Deflater.DEFAULT_STRATEGY) && (strategy != Deflater.FILTERED)
+				&& (strategy != Deflater.HUFFMAN_ONLY)) {
+			throw new IllegalArgumentException("invalid compression strategy " + strategy);
+		}
+		this.strategy = strategy;
+	}
+
+	/**
+	 * gets the compression strategy
+	 *
+	 * @return compression strategy
+	 */
+	public int getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * compresses data
+	 *
+	 * @param data array holding the data
+	 * @param offset position of the first byte
+	 * @param length number of bytes
+	 * @return compressed data
+	 */
+	public byte[] compress(byte[] data, int offset, int length) {
+		return compress(data, offset, length, null);
+	}
+
+	/**
+	 * compresses data against a preset dictionary
+	 *
+	 * @param data array holding the data
+	 * @param offset position of the first byte
+	 * @param length number of bytes
+	 * @param dictionary preset dictionary, may be null
+	 * @return compressed data
+	 */
+	public byte[] compress(byte[] data, int offset, int length, byte[] dictionary) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setStrategy(strategy);
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+
+		byte[] buffer = buffers.get();
+		int size = 0;
+		while (!deflater.finished()) {
+			if (size == buffer.length) {
+				buffer = grow(buffer);
+			}
+			size += deflater.deflate(buffer, size, buffer.length - size);
+		}
+		return Arrays.copyOf(buffer, size);
+	}
+
+	/**
+	 * compresses the data written to a serializer
+	 *
+	 * @param serializer serializer
+	 * @return compressed data
+	 */
+	public byte[] compress(BufferOutputSerializer serializer) {
+		return compress(serializer.array(), 0, serializer.size(), null);
+	}
+
+	/**
+	 * compresses the data written to a serializer against a preset dictionary
+	 *
+	 * @param serializer serializer
+	 * @param dictionary preset dictionary, may be null
+	 * @return compressed data
+	 */
+	public byte[] compress(BufferOutputSerializer serializer, byte[] dictionary) {
+		return compress(serializer.array(), 0, serializer.size(), dictionary);
+	}
+
+	/**
+	 * decompresses data
+	 *
+	 * @param data array holding the compressed data
+	 * @param offset position of the first byte
+	 * @param length number of bytes
+	 * @return decompressed data
+	 * @throws IOException if the data is not valid zlib data or uses an unknown dictionary
+	 */
+	public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(data, offset, length);
+
+		byte[] buffer = buffers.get();
+		int size = 0;
+		try {
+			while (!inflater.finished()) {
+				if (size == buffer.length) {
+					buffer = grow(buffer);
+				}
+				int count = inflater.inflate(buffer, size, buffer.length - size);
+				if ((count == 0) && inflater.needsDictionary()) {
+					byte[] dictionary = dictionaries.get(Integer.valueOf(inflater.getAdler()));
+					if (dictionary == null) {
+						throw new IOException("Unknown preset dictionary " + inflater.getAdler());
+					}
+					inflater.setDictionary(dictionary);
+					continue;
+				}
+				if ((count == 0) && inflater.needsInput()) {
+					throw new IOException("Unexpected end of compressed data");
+				}
+				size += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		return Arrays.copyOf(buffer, size);
+	}
+
+	/**
+	 * decompresses data
+	 *
+	 * @param data compressed data
+	 * @return decompressed data
+	 * @throws IOException if the data is not valid zlib data
+	 */
+	public byte[] decompress(byte[] data) throws IOException {
+		return decompress(data, 0, data.length);
+	}
+
+	/**
+	 * doubles the scratch buffer of the current thread
+	 */
+	private static byte[] grow(byte[] buffer) {
+		byte[] bigger = Arrays.copyOf(buffer, buffer.length * 2);
+		if (bigger.length <= MAX_KEPT_SIZE) {
+			buffers.set(bigger);
+		}
+		return bigger;
+	}
+
+	/**
+	 * a deflater or inflater and the thread it belongs to
+	 */
+	private static class Stream {
+		private final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+		private final Object stream;
+
+		Stream(Object stream) {
+			this.stream = stream;
+		}
+
+		boolean isAlive() {
+			Thread owner = thread.get();
+			return (owner != null) && owner.isAlive();
+		}
+
+		void end() {
+			if (stream instanceof Deflater) {
+				((Deflater) stream).end();
+			} else {
+				((Inflater) stream).end();
+			}
+		}
+	}
+}
@@ -12,14 +12,15 @@
 package marauroa.common.net.message;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.zip.DeflaterOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.NDC;
 
@@ -30,9 +31,12 @@ import marauroa.common.game.DetailLevel;
 import marauroa.common.game.IRPZone;
 import marauroa.common.game.Perception;
 import marauroa.common.game.RPObject;
+import marauroa.common.net.BufferInputSerializer;
+import marauroa.common.net.BufferOutputSerializer;
 import marauroa.common.net.Channel;
 import marauroa.common.net.InputSerializer;
 import marauroa.common.net.OutputSerializer;
+import marauroa.common.net.ZlibCodec;
 
 /**
  * This message indicate the client the objects that the server has determined
@@ -64,8 +68,13 @@ public class MessageS2CPerception extends Message {
 
 	private RPObject myRPObjectModifiedDeleted;
 
+	/** may the static part be shared with other players of the zone? */
+	private boolean sharedPerception = true;
+
 	private static CachedCompressedPerception cache = CachedCompressedPerception.get();
 
+	private static CachedJsonPerception jsonCache = CachedJsonPerception.get();
+
 	/** Constructor for allowing creation of an empty message */
 	public MessageS2CPerception() {
 		super(MessageType.S2C_PERCEPTION, null);
@@ -89,6 +98,7 @@ public class MessageS2CPerception extends Message {
 		modifiedAddedAttribsRPObjects = perception.modifiedAddedList;
 		modifiedDeletedAttribsRPObjects = perception.modifiedDeletedList;
 		deletedRPObjects = perception.deletedList;
+		sharedPerception = perception.isShared();
 	}
 
 	/**
@@ -260,13 +270,12 @@ public class MessageS2CPerception extends Message {
 		super.readObject(in);
 
 		byte[] byteArray = in.readByteArray();
-		ByteArrayInputStream array = new ByteArrayInputStream(byteArray);
-		java.util.zip.InflaterInputStream szlib = new java.util.zip.InflaterInputStream(array,
-		        new java.util.zip.Inflater());
-		InputSerializer ser = new InputSerializer(szlib);
-		ser.setProtocolVersion(protocolVersion);
+		InputSerializer ser;
 
 		try {
+			ser = new BufferInputSerializer(ZlibCodec.NETWORK.decompress(byteArray));
+			ser.setProtocolVersion(protocolVersion);
+
 			typePerception = ser.readByte();
 			zoneid = (IRPZone.ID) ser.readObject(new IRPZone.ID(""));
 			addedRPObjects = new LinkedList<RPObject>();
@@ -337,8 +346,7 @@ public class MessageS2CPerception extends Message {
 		}
 
 		/** Dynamic part */
-		array = new ByteArrayInputStream(in.readByteArray());
-		ser = new InputSerializer(array);
+		ser = new BufferInputSerializer(in.readByteArray());
 		ser.setProtocolVersion(protocolVersion);
 
 		timestampPerception = ser.readInt();
@@ -361,7 +369,15 @@ public class MessageS2CPerception extends Message {
 		}
 	}
 
-	static class CachedCompressedPerception {
+	/**
+	 * Caches the shared part of the perceptions of a turn, so that it is
+	 * computed only once for each zone, perception type and protocol
+	 * version. The cache can be read by any number of threads: the first
+	 * thread asking for an entry computes it and the other threads asking for
+	 * the same entry wait for the result, while entries for other keys are not
+	 * blocked.
+	 */
+	abstract static class PerceptionCache<T> {
 
 		static class CacheKey {
 
@@ -391,14 +407,114 @@ public class MessageS2CPerception extends Message {
 
 			@Override
 			public int hashCode() {
-				return (type + 1) * zoneid.hashCode() * protocolVersion;
+				int result = zoneid.hashCode();
+				result = 31 * result + type;
+				result = 31 * result + protocolVersion;
+				return result;
+			}
+		}
+
+		/** the entries of the current turn, replaced on each clear() */
+		private volatile ConcurrentHashMap<CacheKey, FutureTask<T>> cachedContent;
+
+		private final AtomicLong hits = new AtomicLong();
+
+		private final AtomicLong misses = new AtomicLong();
+
+		PerceptionCache() {
+			cachedContent = new ConcurrentHashMap<CacheKey, FutureTask<T>>();
+		}
+
+		/**
+		 * computes the shared part of the perception
+		 *
+		 * @param perception perception
+		 * @return shared part
+		 * @throws IOException in case of an input/output error
+		 */
+		abstract T compute(MessageS2CPerception perception) throws IOException;
+
+		/**
+		 * starts a new turn, the entries of the previous turn are dropped
+		 */
+		public void clear() {
+			cachedContent = new ConcurrentHashMap<CacheKey, FutureTask<T>>();
+		}
+
+		/**
+		 * returns the shared part of the perception, computing it if it is
+		 * not in the cache yet
+		 *
+		 * @param perception perception
+		 * @return shared part
+		 * @throws IOException in case of an input/output error
+		 */
+		public T get(final MessageS2CPerception perception) throws IOException {
+			ConcurrentHashMap<CacheKey, FutureTask<T>> content = cachedContent;
+			CacheKey key = new CacheKey(perception.typePerception, perception.zoneid, perception.protocolVersion);
+
+			FutureTask<T> task = content.get(key);
+			if (task == null) {
+				FutureTask<T> newTask = new FutureTask<T>(new Callable<T>() {
+					public T call() throws IOException {
+						return compute(perception);
+					}
+				});
+				task = content.putIfAbsent(key, newTask);
+				if (task == null) {
+					logger.debug("Perception not found in cache");
+					misses.incrementAndGet();
+					task = newTask;
+					task.run();
+				} else {
+					hits.incrementAndGet();
+				}
+			} else {
+				logger.debug("Perception FOUND in cache");
+				hits.incrementAndGet();
+			}
+
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for cached perception", e);
+			} catch (ExecutionException e) {
+				// let the next caller try again
+				content.remove(key, task);
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
 			}
 		}
 
-		private final Map<CacheKey, byte[]> cachedContent;
+		/**
+		 * gets the number of times a perception was found in the cache
+		 *
+		 * @return number of hits since server start
+		 */
+		public long getHits() {
+			return hits.get();
+		}
+
+		/**
+		 * gets the number of times a perception had to be computed
+		 *
+		 * @return number of misses since server start
+		 */
+		public long getMisses() {
+			return misses.get();
+		}
+	}
+
+	/**
+	 * caches the compressed static part of perceptions for binary clients
+	 */
+	static class CachedCompressedPerception extends PerceptionCache<byte[]> {
 
 		private CachedCompressedPerception() {
-			cachedContent = new HashMap<CacheKey, byte[]>();
+			super();
 		}
 
 		static CachedCompressedPerception instance;
@@ -411,30 +527,36 @@ public class MessageS2CPerception extends Message {
 			return instance;
 		}
 
-		synchronized public void clear() {
-			cachedContent.clear();
+		@Override
+		byte[] compute(MessageS2CPerception perception) throws IOException {
+			return perception.compressStaticPartPerception();
 		}
+	}
 
-		synchronized public byte[] get(MessageS2CPerception perception) throws IOException {
-			CacheKey key = new CacheKey(perception.typePerception, perception.zoneid, perception.protocolVersion);
+	/**
+	 * caches the JSON of the object lists of perceptions for web clients
+	 */
+	static class CachedJsonPerception extends PerceptionCache<String> {
 
-			if (!cachedContent.containsKey(key)) {
-				logger.debug("Perception not found in cache");
-				ByteArrayOutputStream array = new ByteArrayOutputStream();
-				DeflaterOutputStream out_stream = new DeflaterOutputStream(array);
-				OutputSerializer serializer = new OutputSerializer(out_stream);
-				serializer.setProtocolVersion(perception.getProtocolVersion());
+		private CachedJsonPerception() {
+			super();
+		}
 
-				perception.computeStaticPartPerception(serializer);
-				out_stream.close();
-				byte[] content = array.toByteArray();
+		static CachedJsonPerception instance;
 
-				cachedContent.put(key, content);
-			} else {
-				logger.debug("Perception FOUND in cache");
+		synchronized static public CachedJsonPerception get() {
+			if (instance == null) {
+				instance = new CachedJsonPerception();
 			}
 
-			return cachedContent.get(key);
+			return instance;
+		}
+
+		@Override
+		String compute(MessageS2CPerception perception) {
+			StringBuilder out = new StringBuilder();
+			perception.writeSharedPartToJson(out);
+			return out.toString();
 		}
 	}
 
@@ -443,17 +565,66 @@ public class MessageS2CPerception extends Message {
 	 */
 	public static void clearPrecomputedPerception() {
 		cache.clear();
+		jsonCache.clear();
+	}
+
+	/**
+	 * gets the number of times the static part of a perception was taken from
+	 * the cache
+	 *
+	 * @return number of cache hits since server start
+	 */
+	public static long getPrecomputedPerceptionHits() {
+		return cache.getHits() + jsonCache.getHits();
+	}
+
+	/**
+	 * gets the number of times the static part of a perception had to be
+	 * computed
+	 *
+	 * @return number of cache misses since server start
+	 */
+	public static long getPrecomputedPerceptionMisses() {
+		return cache.getMisses() + jsonCache.getMisses();
 	}
 
 	private byte[] getPrecomputedStaticPartPerception() throws IOException {
+		if (!sharedPerception) {
+			// perceptions built for a single player must not end up in the cache
+			return compressStaticPartPerception();
+		}
 		return cache.get(this);
 	}
 
+	/**
+	 * serializes and compresses the static part of this perception
+	 *
+	 * @return compressed static part
+	 * @throws IOException in case of an input/output error
+	 */
+	byte[] compressStaticPartPerception() throws IOException {
+		BufferOutputSerializer serializer = BufferOutputSerializer.acquire();
+		try {
+			serializer.setProtocolVersion(getProtocolVersion());
+			computeStaticPartPerception(serializer);
+			return ZlibCodec.NETWORK.compress(serializer, PerceptionDictionary.get(getProtocolVersion()));
+		} finally {
+			serializer.release();
+		}
+	}
+
 	private byte[] getDynamicPartPerception(int protocolVersion) throws IOException {
-		ByteArrayOutputStream array = new ByteArrayOutputStream();
-		OutputSerializer serializer = new OutputSerializer(array);
-		serializer.setProtocolVersion(protocolVersion);
+		BufferOutputSerializer serializer = BufferOutputSerializer.acquire();
+		try {
+			serializer.setProtocolVersion(protocolVersion);
+			writeDynamicPartPerception(serializer);
+			return serializer.toByteArray();
+		} finally {
+			serializer.release();
+		}
+	}
 
+	private void writeDynamicPartPerception(OutputSerializer serializer) throws IOException {
 		serializer.write(timestampPerception);
 		if (myRPObjectModifiedAdded == null) {
 			serializer.write((byte) 0);
@@ -468,8 +639,6 @@ public class MessageS2CPerception extends Message {
 			serializer.write((byte) 1);
 			myRPObjectModifiedDeleted.writeObject(serializer, DetailLevel.PRIVATE);
 		}
-
-		return array.toByteArray();
 	}
 
 	void computeStaticPartPerception(OutputSerializer ser) throws IOException {
@@ -500,6 +669,39 @@ public class MessageS2CPerception extends Message {
 	@Override
 	public void writeToJson(StringBuilder out) {
 		super.writeToJson(out);
+
+		// public, the same for all players in the zone
+		if (sharedPerception) {
+			try {
+				out.append(jsonCache.get(this));
+			} catch (IOException e) {
+				logger.error("Error creating json of perception", e);
+				writeSharedPartToJson(out);
+			}
+		} else {
+			writeSharedPartToJson(out);
+		}
+
+		// private
+		if ((myRPObjectModifiedAdded != null)) {
+			out.append(",\"aM\":{");
+			myRPObjectModifiedAdded.writeToJson(out, DetailLevel.PRIVATE);
+			out.append("}");
+		}
+		if ((myRPObjectModifiedDeleted != null)) {
+			out.append(",\"dM\":{");
+			myRPObjectModifiedDeleted.writeToJson(out, DetailLevel.PRIVATE);
+			out.append("}");
+		}
+	}
+
+	/**
+	 * writes the zone and the object lists, which are the same for all
+	 * players in the zone
+	 *
+	 * @param out output buffer
+	 */
+	void writeSharedPartToJson(StringBuilder out) {
 		out.append(",");
 		OutputSerializer.writeJson(out, "zoneid", zoneid.getID());
 		out.append(",");
@@ -511,7 +713,6 @@ public class MessageS2CPerception extends Message {
 			out.append("false");
 		}
 
-		// public
 		if ((addedRPObjects != null) && !addedRPObjects.isEmpty()) {
 			OutputSerializer.writeObjectCollectionToJson(out, "aO", addedRPObjects, DetailLevel.NORMAL);
 		}
@@ -524,18 +725,6 @@ public class MessageS2CPerception extends Message {
 		if ((deletedRPObjects != null) && !deletedRPObjects.isEmpty()) {
 			OutputSerializer.writeObjectCollectionToJson(out, "dO", deletedRPObjects, DetailLevel.NORMAL);
 		}
-
-		// private
-		if ((myRPObjectModifiedAdded != null)) {
-			out.append(",\"aM\":{");
-			myRPObjectModifiedAdded.writeToJson(out, DetailLevel.PRIVATE);
-			out.append("}");
-		}
-		if ((myRPObjectModifiedDeleted != null)) {
-			out.append(",\"dM\":{");
-			myRPObjectModifiedDeleted.writeToJson(out, DetailLevel.PRIVATE);
-			out.append("}");
-		}
 	}
 
 	@Override
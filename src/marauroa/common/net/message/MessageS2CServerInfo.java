@@ -11,17 +11,22 @@
  ***************************************************************************/
 package marauroa.common.net.message;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Base64;
 import java.util.Iterator;
-import java.util.zip.DeflaterOutputStream;
 
+import marauroa.common.Log4J;
 import marauroa.common.Utility;
+import marauroa.common.game.Definition;
+import marauroa.common.game.Definition.DefinitionClass;
 import marauroa.common.game.RPClass;
+import marauroa.common.net.BufferInputSerializer;
+import marauroa.common.net.BufferOutputSerializer;
 import marauroa.common.net.Channel;
 import marauroa.common.net.InputSerializer;
+import marauroa.common.net.NetConst;
 import marauroa.common.net.OutputSerializer;
+import marauroa.common.net.ZlibCodec;
 
 /**
  * The ServerInfo message is sent from server to client to inform client about
@@ -34,11 +39,17 @@ import marauroa.common.net.OutputSerializer;
  */
 public class MessageS2CServerInfo extends Message {
 
+	/** the logger instance. */
+	private static final marauroa.common.Logger logger = Log4J.getLogger(MessageS2CServerInfo.class);
+
 	/**
 	 * An array of the server string that want to be sent to client.
 	 */
 	private String[] contents;
 
+	/** true if the json form is for a client that gets binary perceptions */
+	private boolean binaryPerceptions;
+
 	/** Constructor for allowing creation of an empty message */
 	public MessageS2CServerInfo() {
 		super(MessageType.S2C_SERVERINFO, null);
@@ -68,6 +79,16 @@ public class MessageS2CServerInfo extends Message {
 
 	}
 
+	/**
+	 * sets whether the client gets binary perceptions. Only these clients
+	 * need the RPClasses and the perception dictionary in the json form.
+	 *
+	 * @param binaryPerceptions true, if the client gets binary perceptions
+	 */
+	public void setBinaryPerceptions(boolean binaryPerceptions) {
+		this.binaryPerceptions = binaryPerceptions;
+	}
+
 	/**
 	 * This method returns a String that represent the object
 	 *
@@ -88,46 +109,51 @@ public class MessageS2CServerInfo extends Message {
 	public void writeObject(OutputSerializer out) throws IOException {
 		super.writeObject(out);
 
-		ByteArrayOutputStream array = new ByteArrayOutputStream();
-		DeflaterOutputStream out_stream = new DeflaterOutputStream(array);
-		OutputSerializer serializer = new OutputSerializer(out_stream);
-		serializer.setProtocolVersion(out.getProtocolVersion());
+		BufferOutputSerializer serializer = BufferOutputSerializer.acquire();
+		try {
+			serializer.setProtocolVersion(out.getProtocolVersion());
 
-		serializer.write(contents);
-		int size = RPClass.size();
+			serializer.write(contents);
+			int size = RPClass.size();
 
-		// sort out the default rp class if it is there
-		for (Iterator<RPClass> it = RPClass.iterator(); it.hasNext();) {
-			RPClass rp_class = it.next();
-			if ("".equals(rp_class.getName())) {
-				size--;
-				break;
+			// sort out the default rp class if it is there
+			for (Iterator<RPClass> it = RPClass.iterator(); it.hasNext();) {
+				RPClass rp_class = it.next();
+				if ("".equals(rp_class.getName())) {
+					size--;
+					break;
+				}
 			}
-		}
 
-		serializer.write(size);
-		for (Iterator<RPClass> it = RPClass.iterator(); it.hasNext();) {
-			RPClass rp_class = it.next();
-			if (!"".equals(rp_class.getName())) // sort out default class if it
-			// is there
-			{
-				serializer.write(rp_class);
+			serializer.write(size);
+			for (Iterator<RPClass> it = RPClass.iterator(); it.hasNext();) {
+				RPClass rp_class = it.next();
+				if (!"".equals(rp_class.getName())) // sort out default class if it
+				// is there
+				{
+					serializer.write(rp_class);
+				}
 			}
-		}
 
-		out_stream.close();
+			if (protocolVersion >= NetConst.FIRST_VERSION_WITH_PERCEPTION_DICTIONARY) {
+				byte[] dictionary = PerceptionDictionary.get(protocolVersion);
+				if (dictionary == null) {
+					dictionary = new byte[0];
+				}
+				serializer.write(dictionary);
+			}
 
-		out.write(array.toByteArray());
+			out.write(ZlibCodec.NETWORK.compress(serializer));
+		} finally {
+			serializer.release();
+		}
 	}
 
 	@Override
 	public void readObject(InputSerializer in) throws IOException {
 		super.readObject(in);
 
-		ByteArrayInputStream array = new ByteArrayInputStream(in.readByteArray());
-		java.util.zip.InflaterInputStream szlib = new java.util.zip.InflaterInputStream(array,
-		        new java.util.zip.Inflater());
-		InputSerializer serializer = new InputSerializer(szlib);
+		InputSerializer serializer = new BufferInputSerializer(ZlibCodec.NETWORK.decompress(in.readByteArray()));
 		serializer.setProtocolVersion(protocolVersion);
 
 		contents = serializer.readStringArray();
@@ -137,6 +163,13 @@ public class MessageS2CServerInfo extends Message {
 			serializer.readObject(new RPClass());
 		}
 
+		if (protocolVersion >= NetConst.FIRST_VERSION_WITH_PERCEPTION_DICTIONARY) {
+			byte[] dictionary = serializer.readByteArray();
+			if (dictionary.length > 0) {
+				ZlibCodec.registerDictionary(dictionary);
+			}
+		}
+
 		if (type != MessageType.S2C_SERVERINFO) {
 			throw new IOException();
 		}
@@ -156,6 +189,75 @@ public class MessageS2CServerInfo extends Message {
 			OutputSerializer.writeJson(out, line);
 		}
 		out.append("]");
+
+		if (!binaryPerceptions) {
+			return;
+		}
+
+		writeRPClassesToJson(out);
+
+		if (protocolVersion >= NetConst.FIRST_VERSION_WITH_PERCEPTION_DICTIONARY) {
+			try {
+				byte[] dictionary = PerceptionDictionary.get(protocolVersion);
+				if (dictionary != null) {
+					out.append(",");
+					OutputSerializer.writeJson(out, "dictionary", Base64.getEncoder().encodeToString(dictionary));
+				}
+			} catch (IOException e) {
+				logger.error("Error creating perception dictionary", e);
+			}
+		}
 	}
 
+	/**
+	 * writes the definitions of the RPClasses, so that web clients can
+	 * decode binary perceptions:
+	 * "rpclasses":{"name":{"p":"parent","d":[["ATTRIBUTE",code,"name","TYPE"],...]}}
+	 *
+	 * @param out output buffer
+	 */
+	private void writeRPClassesToJson(StringBuilder out) {
+		out.append(",\"rpclasses\":{");
+		boolean first = true;
+		for (Iterator<RPClass> it = RPClass.iterator(); it.hasNext();) {
+			RPClass rpClass = it.next();
+			if ("".equals(rpClass.getName())) {
+				continue;
+			}
+			if (first) {
+				first = false;
+			} else {
+				out.append(",");
+			}
+			OutputSerializer.writeJson(out, rpClass.getName());
+			out.append(":{");
+			if (rpClass.getParent() != null) {
+				OutputSerializer.writeJson(out, "p", rpClass.getParent().getName());
+				out.append(",");
+			}
+			out.append("\"d\":[");
+			boolean firstDefinition = true;
+			for (Definition def : rpClass.getDefinitions()) {
+				if (def.getDefinitionClass() == DefinitionClass.STATIC) {
+					continue;
+				}
+				if (firstDefinition) {
+					firstDefinition = false;
+				} else {
+					out.append(",");
+				}
+				out.append("[");
+				OutputSerializer.writeJson(out, def.getDefinitionClass().name());
+				out.append(",");
+				out.append(def.getCode());
+				out.append(",");
+				OutputSerializer.writeJson(out, def.getName());
+				out.append(",");
+				OutputSerializer.writeJson(out, String.valueOf(def.getType()));
+				out.append("]");
+			}
+			out.append("]}");
+		}
+		out.append("}");
+	}
 }
@@ -11,16 +11,16 @@
  ***************************************************************************/
 package marauroa.common.net.message;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.DeflaterOutputStream;
 
+import marauroa.common.net.BufferInputSerializer;
+import marauroa.common.net.BufferOutputSerializer;
 import marauroa.common.net.Channel;
 import marauroa.common.net.InputSerializer;
 import marauroa.common.net.OutputSerializer;
+import marauroa.common.net.ZlibCodec;
 
 /**
  * This message is used to transfer the client a list of contents that has already being
@@ -120,21 +120,21 @@ public class MessageS2CTransfer extends Message {
 	public void writeObject(OutputSerializer out) throws IOException {
 		super.writeObject(out);
 
-		ByteArrayOutputStream array = new ByteArrayOutputStream();
-		DeflaterOutputStream out_stream = new DeflaterOutputStream(array);
-		OutputSerializer serializer = new OutputSerializer(out_stream);
-		serializer.setProtocolVersion(out.getProtocolVersion());
+		BufferOutputSerializer serializer = BufferOutputSerializer.acquire();
+		try {
+			serializer.setProtocolVersion(out.getProtocolVersion());
 
-		int size = contents.size();
-		serializer.write(size);
+			int size = contents.size();
+			serializer.write(size);
 
-		for (TransferContent content : contents) {
-			content.writeFULL(serializer);
-		}
-
-		out_stream.close();
+			for (TransferContent content : contents) {
+				content.writeFULL(serializer);
+			}
 
-		out.write(array.toByteArray());
+			out.write(ZlibCodec.NETWORK.compress(serializer));
+		} finally {
+			serializer.release();
+		}
 	}
 
 	@Override
@@ -157,10 +157,7 @@ public class MessageS2CTransfer extends Message {
 	public void readObject(InputSerializer in) throws IOException {
 		super.readObject(in);
 
-		ByteArrayInputStream array = new ByteArrayInputStream(in.readByteArray());
-		java.util.zip.InflaterInputStream szlib = new java.util.zip.InflaterInputStream(array,
-		        new java.util.zip.Inflater());
-		InputSerializer serializer = new InputSerializer(szlib);
+		InputSerializer serializer = new BufferInputSerializer(ZlibCodec.NETWORK.decompress(in.readByteArray()));
 		serializer.setProtocolVersion(protocolVersion);
 
 		int size = serializer.readInt();
@@ -0,0 +1,215 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.net.message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import marauroa.common.Log4J;
+import marauroa.common.game.Definition;
+import marauroa.common.game.Definition.DefinitionClass;
+import marauroa.common.game.Definition.Type;
+import marauroa.common.game.RPClass;
+import marauroa.common.net.BufferOutputSerializer;
+import marauroa.common.net.NetConst;
+import marauroa.common.net.ZlibCodec;
+
+/**
+ * The preset zlib dictionary that perceptions are compressed against.
+ * <p>
+ * Small delta perceptions are mostly made of the same class names,
+ * attribute codes and values that appear every turn, but each of them is
+ * compressed on its own. The dictionary holds these byte sequences as they
+ * are serialized, so that even the first occurrence in a perception is a back
+ * reference.
+ * <p>
+ * The dictionary is built from the registered RPClasses the first time it is
+ * needed and then kept, because clients only learn it once, in the server
+ * info message. Games have to define their RPClasses before clients connect.
+ */
+public class PerceptionDictionary {
+	private static final marauroa.common.Logger logger = Log4J.getLogger(PerceptionDictionary.class);
+
+	/** size of the zlib window, older bytes of a dictionary are never used */
+	private static final int MAX_SIZE = 32 * 1024;
+
+	private static volatile boolean enabled = true;
+
+	private static volatile byte[] dictionary;
+
+	private PerceptionDictionary() {
+		// static methods only
+	}
+
+	/**
+	 * enables or disables the dictionary for new perceptions
+	 *
+	 * @param enabled true to compress perceptions against the dictionary
+	 */
+	public static void setEnabled(boolean enabled) {
+		PerceptionDictionary.enabled = enabled;
+	}
+
+	/**
+	 * returns the dictionary to use for a client
+	 *
+	 * @param protocolVersion protocol version of the client
+	 * @return dictionary or null, if perceptions are compressed without one
+	 * @throws IOException in case of an input/output error
+	 */
+	static byte[] get(int protocolVersion) throws IOException {
+		if (!enabled || (protocolVersion < NetConst.FIRST_VERSION_WITH_PERCEPTION_DICTIONARY)) {
+			return null;
+		}
+
+		byte[] res = dictionary;
+		if (res == null) {
+			synchronized (PerceptionDictionary.class) {
+				res = dictionary;
+				if (res == null) {
+					res = build();
+					ZlibCodec.registerDictionary(res);
+					logger.info("Built perception dictionary of " + res.length + " bytes");
+					dictionary = res;
+				}
+			}
+		}
+
+		if (res.length == 0) {
+			// no RPClasses
+			return null;
+		}
+		return res;
+	}
+
+	/**
+	 * forgets the dictionary, so that it is built again the next time it is
+	 * needed. Clients which already know the old one will not understand
+	 * perceptions compressed against the new one.
+	 */
+	static synchronized void clear() {
+		dictionary = null;
+	}
+
+	/**
+	 * builds the dictionary from the registered RPClasses
+	 *
+	 * @return dictionary
+	 * @throws IOException in case of an input/output error
+	 */
+	static byte[] build() throws IOException {
+		List<RPClass> classes = new ArrayList<RPClass>();
+		for (Iterator<RPClass> it = RPClass.iterator(); it.hasNext();) {
+			RPClass rpClass = it.next();
+			if (!"".equals(rpClass.getName())) {
+				classes.add(rpClass);
+			}
+		}
+		Collections.sort(classes, new Comparator<RPClass>() {
+			@Override
+			public int compare(RPClass a, RPClass b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+
+		BufferOutputSerializer serializer = BufferOutputSerializer.acquire();
+		try {
+			// zlib prefers the end of the dictionary, so the class names,
+			// which are part of every object, come last
+			for (RPClass rpClass : classes) {
+				writeClass(serializer, rpClass);
+			}
+			for (RPClass rpClass : classes) {
+				serializer.write(rpClass.getName());
+			}
+
+			int size = serializer.size();
+			int start = Math.max(0, size - MAX_SIZE);
+			byte[] res = new byte[size - start];
+			System.arraycopy(serializer.array(), start, res, 0, res.length);
+			return res;
+		} finally {
+			serializer.release();
+		}
+	}
+
+	/**
+	 * writes an object of a class as it is serialized for perceptions:
+	 * attributes, slots and events which are sent to clients are written
+	 * as their code followed by their default value or, for numbers, zero.
+	 * Attributes are usually added in the same order, so the zeros of the
+	 * high bytes and the code of the following attribute match as well.
+	 *
+	 * @param out serializer
+	 * @param rpClass class
+	 * @throws IOException in case of an input/output error
+	 */
+	private static void writeClass(BufferOutputSerializer out, RPClass rpClass) throws IOException {
+		out.write(rpClass.getName());
+		for (Definition def : getDefinitions(rpClass, DefinitionClass.ATTRIBUTE)) {
+			out.write(def.getCode());
+			String value = def.getValue();
+			if ((value == null) && isNumber(def.getType())) {
+				value = "0";
+			}
+			if (value != null) {
+				try {
+					def.serialize(value, out);
+				} catch (NumberFormatException e) {
+					logger.debug("Skipping default value of " + def.getName() + " in " + rpClass.getName());
+				}
+			}
+		}
+		for (Definition def : getDefinitions(rpClass, DefinitionClass.RPSLOT)) {
+			out.write(def.getCode());
+			out.write(0);
+		}
+		for (Definition def : getDefinitions(rpClass, DefinitionClass.RPEVENT)) {
+			// an event is serialized like an object of the class of its name
+			out.write(def.getCode());
+			out.write(def.getName());
+		}
+	}
+
+	/**
+	 * gets the definitions of a class and its parents, which are sent to
+	 * clients by their code
+	 *
+	 * @param rpClass class
+	 * @param clazz kind of definitions
+	 * @return definitions
+	 */
+	private static List<Definition> getDefinitions(RPClass rpClass, DefinitionClass clazz) {
+		List<Definition> res = new ArrayList<Definition>();
+		Set<String> names = new HashSet<String>();
+		for (RPClass current = rpClass; current != null; current = current.getParent()) {
+			for (Definition def : current.getDefinitions()) {
+				if ((def.getDefinitionClass() == clazz) && (def.getCode() != -1)
+						&& !def.isHidden() && names.add(def.getName())) {
+					res.add(def);
+				}
+			}
+		}
+		return res;
+	}
+
+	private static boolean isNumber(Type type) {
+		return (type == Type.BYTE) || (type == Type.SHORT) || (type == Type.INT)
+				|| (type == Type.LONG) || (type == Type.FLOAT);
+	}
+}
@@ -0,0 +1,32 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.db.command;
+
+/**
+ * a database command that supersedes a pending command with the same key.
+ * <p>
+ * If a "fire and forget" command is enqueued while another one with an equal
+ * key is still waiting in the DBCommandQueue, the new command takes the place
+ * of the pending one. For example only the latest of several saves of the
+ * same character is executed.
+ */
+public interface CoalescingDBCommand extends DBCommand {
+
+	/**
+	 * gets the key of this command. Commands with equal keys replace each
+	 * other while they are pending.
+	 *
+	 * @return key, which implements equals and hashCode
+	 */
+	public Object getCoalescingKey();
+
+}
@@ -24,7 +24,7 @@ import java.util.Locale;
 class DBCommandMetaData implements Comparable<DBCommandMetaData> {
 
 	private DBCommandPriority priority;
-	private DBCommand command;
+	private volatile DBCommand command;
 	private ResultHandle handle;
 	private Thread requestingThread;
 	private boolean awaitResult;
@@ -61,6 +61,16 @@ class DBCommandMetaData implements Comparable<DBCommandMetaData> {
 		return command;
 	}
 
+	/**
+	 * replaces the command by a newer one, which keeps the position in the queue
+	 *
+	 * @param newCommand DBCommand
+	 */
+	void replaceCommand(DBCommand newCommand) {
+		newCommand.setEnqueueTime(command.getEnqueueTime());
+		command = newCommand;
+	}
+
 	/**
 	 * gets the locale context of this command
 	 *
@@ -13,9 +13,11 @@ package marauroa.server.db.command;
 
 import java.sql.Timestamp;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -32,6 +34,9 @@ public final class DBCommandQueue {
 	private PriorityBlockingQueue<DBCommandMetaData> pendingCommands = new PriorityBlockingQueue<DBCommandMetaData>();
 	private List<DBCommandMetaData> processedCommands = Collections.synchronizedList(new LinkedList<DBCommandMetaData>());
 
+	/** pending CoalescingDBCommands by their key */
+	private final Map<Object, DBCommandMetaData> coalescingCommands = new HashMap<Object, DBCommandMetaData>();
+
 	private boolean finished;
 
 	/**
@@ -50,8 +55,19 @@ public final class DBCommandQueue {
 	 * createsa a new DBCommandQueue
 	 */
 	private DBCommandQueue() {
-		Thread thread = new Thread(new DBCommandQueueBackgroundThread(), "DBCommandQueue");
-		thread.start();
+		this(true);
+	}
+
+	/**
+	 * creates a new DBCommandQueue
+	 *
+	 * @param startBackgroundThread start the thread which executes the commands
+	 */
+	DBCommandQueue(boolean startBackgroundThread) {
+		if (startBackgroundThread) {
+			Thread thread = new Thread(new DBCommandQueueBackgroundThread(), "DBCommandQueue");
+			thread.start();
+		}
 	}
 
 	/**
@@ -70,9 +86,33 @@ public final class DBCommandQueue {
 	 * @param priority DBCommandPriority
 	 */
 	public void enqueue(DBCommand command, DBCommandPriority priority) {
+		if (command instanceof CoalescingDBCommand) {
+			enqueueCoalescing((CoalescingDBCommand) command, priority);
+			return;
+		}
 		pendingCommands.add(new DBCommandMetaData(command, null, Thread.currentThread(), false, I18N.getLocale(), priority));
 	}
 
+	/**
+	 * enqueues a command or replaces a pending command with the same key.
+	 *
+	 * @param command CoalescingDBCommand to add to the queue
+	 * @param priority DBCommandPriority
+	 */
+	private void enqueueCoalescing(CoalescingDBCommand command, DBCommandPriority priority) {
+		Object key = command.getCoalescingKey();
+		synchronized (coalescingCommands) {
+			DBCommandMetaData pending = coalescingCommands.get(key);
+			if (pending != null) {
+				pending.replaceCommand(command);
+				return;
+			}
+			DBCommandMetaData metaData = new DBCommandMetaData(command, null, Thread.currentThread(), false, I18N.getLocale(), priority);
+			coalescingCommands.put(key, metaData);
+			pendingCommands.add(metaData);
+		}
+	}
+
 	/**
 	 * enqueues a command and remembers the result.
 	 *
@@ -101,7 +141,17 @@ public final class DBCommandQueue {
 	 * @throws InterruptedException in case the waiting was interrupted
 	 */
 	protected DBCommandMetaData getNextCommand() throws InterruptedException {
-		return pendingCommands.poll(1, TimeUnit.SECONDS);
+		DBCommandMetaData metaData = pendingCommands.poll(1, TimeUnit.SECONDS);
+		if ((metaData != null) && (metaData.getCommand() instanceof CoalescingDBCommand)) {
+			// from now on the command cannot be replaced anymore
+			synchronized (coalescingCommands) {
+				Object key = ((CoalescingDBCommand) metaData.getCommand()).getCoalescingKey();
+				if (coalescingCommands.get(key) == metaData) {
+					coalescingCommands.remove(key);
+				}
+			}
+		}
+		return metaData;
 	}
 
 	/**
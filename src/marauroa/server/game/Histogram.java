@@ -0,0 +1,158 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds.
+ * <p>
+ * Like an HDR histogram, values are counted in buckets whose width grows with
+ * the value: below 64 each value has its own bucket, above that every power
+ * of two is split into 32 buckets. So percentiles are precise to about 3%,
+ * from nanoseconds to minutes, in a fixed amount of memory. Recording is
+ * thread safe and does not allocate.
+ */
+public class Histogram {
+
+	/** values below this have their own bucket */
+	private static final int LINEAR = 64;
+
+	/** number of buckets per power of two */
+	private static final int SUB_BUCKETS = 32;
+
+	/** larger values are counted as this, about 18 minutes */
+	private static final long MAX_VALUE = (1L << 40) - 1;
+
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * records a value
+	 *
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long previous = max.get();
+		while ((value > previous) && !max.compareAndSet(previous, value)) {
+			previous = max.get();
+		}
+	}
+
+	/**
+	 * gets the number of recorded values
+	 *
+	 * @return count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * gets the largest recorded value
+	 *
+	 * @return maximum in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * gets the average of the recorded values
+	 *
+	 * @return mean in nanoseconds
+	 */
+	public long getMean() {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		return sum.get() / n;
+	}
+
+	/**
+	 * gets the value below which the given percentage of the recorded values are
+	 *
+	 * @param percentile percentile, 0 to 100
+	 * @return value in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100.0 * n);
+		rank = Math.max(1, Math.min(rank, n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * forgets all recorded values
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * gets the bucket of a value
+	 *
+	 * @param value value, 0 to MAX_VALUE
+	 * @return index of the bucket
+	 */
+	static int index(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		// value >>> shift is between SUB_BUCKETS and 2 * SUB_BUCKETS - 1
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * gets the largest value that is counted in a bucket
+	 *
+	 * @param index index of the bucket
+	 * @return value
+	 */
+	static long highestValue(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
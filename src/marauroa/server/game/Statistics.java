@@ -87,11 +87,13 @@ public class Statistics implements StatisticsMBean {
 		 *            value to add
 		 */
 		public void add(String type, long value) {
-			Long old = content.get(type);
-			if (old == null) {
-				put(type, value);
-			} else {
-				content.put(type, old + value);
+			synchronized (content) {
+				Long old = content.get(type);
+				if (old == null) {
+					put(type, value);
+				} else {
+					content.put(type, old + value);
+				}
 			}
 		}
 
@@ -249,6 +251,34 @@ public class Statistics implements StatisticsMBean {
 		return sinceStart == null ? -1 : sinceStart.get(type);
 	}
 
+	/**
+	 * Returns the histograms of the turn phases and zones as text. This
+	 * method is used by the Bean interface.
+	 *
+	 * @return report
+	 */
+	public String getTurnReport() {
+		return TurnStatistics.get().getReport();
+	}
+
+	/**
+	 * Returns a percentile of the duration of a turn phase. This method is
+	 * used by the Bean interface.
+	 *
+	 * @param phase
+	 *            one of TurnStatistics.PHASES
+	 * @param percentile
+	 *            percentile, 0 to 100
+	 * @return duration in microseconds, -1 for an unknown phase
+	 */
+	public long getTurnPhasePercentile(String phase, double percentile) {
+		Histogram histogram = TurnStatistics.get().getPhaseHistogram(phase);
+		if (histogram == null) {
+			return -1;
+		}
+		return histogram.getValueAtPercentile(percentile) / 1000;
+	}
+
 	/**
 	 * Print to $statistics_filename file the content of the statistics object.
 	 */
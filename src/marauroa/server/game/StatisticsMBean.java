@@ -21,4 +21,21 @@ public interface StatisticsMBean {
 	 * @return value
 	 */
 	public long get(String type);
+
+	/**
+	 * gets the histograms of the turn phases and zones and the recent slow
+	 * turns as text
+	 *
+	 * @return report
+	 */
+	public String getTurnReport();
+
+	/**
+	 * gets a percentile of the duration of a turn phase
+	 *
+	 * @param phase one of TurnStatistics.PHASES
+	 * @param percentile percentile, 0 to 100
+	 * @return duration in microseconds, -1 for an unknown phase
+	 */
+	public long getTurnPhasePercentile(String phase, double percentile);
 }
@@ -0,0 +1,339 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import marauroa.common.Configuration;
+import marauroa.common.Log4J;
+import marauroa.common.Logger;
+import marauroa.common.game.RPAction;
+import marauroa.common.game.RPObject;
+
+/**
+ * Timing of the phases of each turn and of the zones.
+ * <p>
+ * The turn loop reports the duration of its phases. The world reports the
+ * time each zone spent in world.nextTurn, and while slow turns are captured
+ * the scheduler reports the time spent for the actions of each zone in
+ * visit. They are kept in histograms, which are available as text report
+ * through the StatisticsMBean and the web server.
+ * <p>
+ * If slow_turn_threshold is set in server.ini, turns that take longer than
+ * that many milliseconds are logged together with the zones, players and
+ * actions that took most of the time.
+ */
+public class TurnStatistics {
+	private static Logger logger = Log4J.getLogger(TurnStatistics.class);
+
+	/** the phases of a turn, in order, followed by the whole turn */
+	public static final String[] PHASES = { "lock", "nextTurn", "visit", "endTurn",
+		"deliverTransferContent", "buildPerceptions", "savePlayersPeriodicly",
+		"world.nextTurn", "beginTurn", "turn" };
+
+	/** the phases in which the time of each zone is reported */
+	public static final String[] ZONE_PHASES = { "visit", "world.nextTurn" };
+
+	/** number of slow turns that are kept */
+	private static final int MAX_SLOW_TURNS = 20;
+
+	/** number of zones, players and actions listed for a slow turn */
+	private static final int TOP = 5;
+
+	private static TurnStatistics instance;
+
+	private final Histogram[] phases;
+
+	/** histograms by zone phase and zone */
+	private final ConcurrentHashMap<String, Histogram> zones = new ConcurrentHashMap<String, Histogram>();
+
+	/** time spent for each zone in the current turn, by zone phase and zone */
+	private final ConcurrentHashMap<String, AtomicLong> zoneTimes = new ConcurrentHashMap<String, AtomicLong>();
+
+	/** time spent for the actions of each player in the current turn, while capturing */
+	private final ConcurrentHashMap<String, AtomicLong> playerTimes = new ConcurrentHashMap<String, AtomicLong>();
+
+	/** time spent for each type of action in the current turn, while capturing */
+	private final ConcurrentHashMap<String, AtomicLong> actionTimes = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final ArrayDeque<String> slowTurns = new ArrayDeque<String>();
+
+	/** turns longer than this are captured, 0 to not capture turns */
+	private volatile long slowTurnThreshold;
+
+	/**
+	 * creates a new TurnStatistics
+	 */
+	TurnStatistics() {
+		phases = new Histogram[PHASES.length];
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * gets the TurnStatistics of the server
+	 *
+	 * @return TurnStatistics
+	 */
+	public static synchronized TurnStatistics get() {
+		if (instance == null) {
+			instance = new TurnStatistics();
+		}
+		return instance;
+	}
+
+	/**
+	 * reads slow_turn_threshold, in milliseconds
+	 *
+	 * @param conf configuration
+	 */
+	public void configure(Configuration conf) {
+		setSlowTurnThreshold(conf.getInt("slow_turn_threshold", 0));
+	}
+
+	/**
+	 * sets the duration above which turns are captured
+	 *
+	 * @param millis duration in milliseconds, 0 to not capture turns
+	 */
+	public void setSlowTurnThreshold(long millis) {
+		slowTurnThreshold = millis * 1000000L;
+	}
+
+	/**
+	 * should the time of each action be reported by addActionTime?
+	 *
+	 * @return true, if slow turns are captured
+	 */
+	public boolean isCapturing() {
+		return slowTurnThreshold > 0;
+	}
+
+	/**
+	 * adds time spent for a zone in the current turn
+	 *
+	 * @param phase one of ZONE_PHASES
+	 * @param zoneid id of the zone
+	 * @param nanos duration in nanoseconds
+	 */
+	public void addZoneTime(String phase, String zoneid, long nanos) {
+		counter(zoneTimes, phase + " " + zoneid).addAndGet(nanos);
+	}
+
+	/**
+	 * adds the time spent for an action in the current turn, only used while
+	 * capturing slow turns
+	 *
+	 * @param object the object that casted the action
+	 * @param action the action
+	 * @param nanos duration in nanoseconds
+	 */
+	public void addActionTime(RPObject object, RPAction action, long nanos) {
+		String player = object.get("name");
+		if (player == null) {
+			player = String.valueOf(object.get("id"));
+		}
+		counter(playerTimes, player).addAndGet(nanos);
+		String type = action.get("type");
+		if (type == null) {
+			type = "";
+		}
+		counter(actionTimes, type).addAndGet(nanos);
+	}
+
+	private static AtomicLong counter(ConcurrentHashMap<String, AtomicLong> map, String key) {
+		AtomicLong counter = map.get(key);
+		if (counter == null) {
+			counter = new AtomicLong();
+			AtomicLong other = map.putIfAbsent(key, counter);
+			if (other != null) {
+				counter = other;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * records a completed turn
+	 *
+	 * @param turn number of the turn
+	 * @param durations duration of each of the PHASES in nanoseconds, the
+	 *        last one is the whole turn
+	 */
+	public void recordTurn(int turn, long[] durations) {
+		for (int i = 0; i < phases.length; i++) {
+			phases[i].record(durations[i]);
+		}
+
+		long threshold = slowTurnThreshold;
+		boolean slow = (threshold > 0) && (durations[PHASES.length - 1] > threshold);
+		Map<String, AtomicLong> zonesOfTurn = null;
+		if (slow) {
+			zonesOfTurn = new HashMap<String, AtomicLong>();
+		}
+
+		for (Map.Entry<String, AtomicLong> entry : zoneTimes.entrySet()) {
+			long nanos = entry.getValue().getAndSet(0);
+			if (nanos > 0) {
+				getZoneHistogram(entry.getKey()).record(nanos);
+				if (zonesOfTurn != null) {
+					zonesOfTurn.put(entry.getKey(), new AtomicLong(nanos));
+				}
+			}
+		}
+
+		if (slow) {
+			captureSlowTurn(turn, durations, zonesOfTurn);
+		}
+		playerTimes.clear();
+		actionTimes.clear();
+	}
+
+	private void captureSlowTurn(int turn, long[] durations, Map<String, AtomicLong> zonesOfTurn) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("turn ").append(turn).append(" took ").append(millis(durations[PHASES.length - 1])).append(" ms:");
+		for (int i = 0; i < PHASES.length - 1; i++) {
+			sb.append(" ").append(PHASES[i]).append("=").append(millis(durations[i]));
+		}
+		appendTop(sb, "zones", zonesOfTurn);
+		appendTop(sb, "players", playerTimes);
+		appendTop(sb, "actions", actionTimes);
+
+		String report = sb.toString();
+		logger.warn("Slow " + report);
+		synchronized (slowTurns) {
+			if (slowTurns.size() >= MAX_SLOW_TURNS) {
+				slowTurns.removeFirst();
+			}
+			slowTurns.addLast(report);
+		}
+	}
+
+	private static void appendTop(StringBuilder sb, String title, Map<String, AtomicLong> times) {
+		List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(times.entrySet());
+		if (entries.isEmpty()) {
+			return;
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+			@Override
+			public int compare(Map.Entry<String, AtomicLong> a, Map.Entry<String, AtomicLong> b) {
+				return Long.compare(b.getValue().get(), a.getValue().get());
+			}
+		});
+		sb.append("; ").append(title).append(":");
+		for (int i = 0; (i < TOP) && (i < entries.size()); i++) {
+			Map.Entry<String, AtomicLong> entry = entries.get(i);
+			sb.append(" ").append(entry.getKey()).append("=").append(millis(entry.getValue().get()));
+		}
+	}
+
+	/**
+	 * gets the histogram of a phase
+	 *
+	 * @param phase one of PHASES
+	 * @return histogram or null
+	 */
+	public Histogram getPhaseHistogram(String phase) {
+		for (int i = 0; i < PHASES.length; i++) {
+			if (PHASES[i].equals(phase)) {
+				return phases[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * gets the histogram of the time spent for a zone in a phase of each turn
+	 *
+	 * @param phase one of ZONE_PHASES
+	 * @param zoneid id of the zone
+	 * @return histogram
+	 */
+	public Histogram getZoneHistogram(String phase, String zoneid) {
+		return getZoneHistogram(phase + " " + zoneid);
+	}
+
+	private Histogram getZoneHistogram(String key) {
+		Histogram histogram = zones.get(key);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram other = zones.putIfAbsent(key, histogram);
+			if (other != null) {
+				histogram = other;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * gets the recently captured slow turns
+	 *
+	 * @return descriptions of the slow turns, oldest first
+	 */
+	public List<String> getSlowTurns() {
+		synchronized (slowTurns) {
+			return new ArrayList<String>(slowTurns);
+		}
+	}
+
+	/**
+	 * creates a text report of the phase and zone histograms and of the
+	 * captured slow turns, times are in milliseconds
+	 *
+	 * @return report
+	 */
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ENGLISH, "%-32s %10s %10s %10s %10s %10s %10s %10s%n",
+				"phase / zone (ms)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+		for (int i = 0; i < PHASES.length; i++) {
+			appendHistogram(sb, PHASES[i], phases[i]);
+		}
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(zones).entrySet()) {
+			appendHistogram(sb, "zone " + entry.getKey(), entry.getValue());
+		}
+		List<String> slow = getSlowTurns();
+		if (!slow.isEmpty()) {
+			sb.append(String.format("%nslow turns:%n"));
+			for (String turn : slow) {
+				sb.append(turn).append(String.format("%n"));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void appendHistogram(StringBuilder sb, String name, Histogram histogram) {
+		sb.append(String.format(Locale.ENGLISH, "%-32s %10d %10s %10s %10s %10s %10s %10s%n",
+				name, Long.valueOf(histogram.getCount()),
+				millis(histogram.getMean()),
+				millis(histogram.getValueAtPercentile(50)),
+				millis(histogram.getValueAtPercentile(90)),
+				millis(histogram.getValueAtPercentile(99)),
+				millis(histogram.getValueAtPercentile(99.9)),
+				millis(histogram.getMax())));
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ENGLISH, "%.3f", Double.valueOf(nanos / 1000000.0));
+	}
+}
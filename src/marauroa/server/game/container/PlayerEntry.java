@@ -28,7 +28,6 @@ import marauroa.common.net.Channel;
 import marauroa.common.net.NetConst;
 import marauroa.common.net.message.Message;
 import marauroa.common.net.message.TransferContent;
-import marauroa.server.db.command.DBCommand;
 import marauroa.server.db.command.DBCommandPriority;
 import marauroa.server.db.command.DBCommandQueue;
 import marauroa.server.game.dbcommand.StoreCharacterCommand;
@@ -63,13 +62,13 @@ public class PlayerEntry {
 	 */
 	public SecuredLoginInfo loginInformations;
 
-	/** The name of the player */
+	/** The name of the player, call PlayerEntryContainer.reindex after assigning it */
 	public String username;
 
-	/** The name of the chosen character */
+	/** The name of the chosen character, call PlayerEntryContainer.reindex after assigning it */
 	public String character;
 
-	/** The object of the player */
+	/** The object of the player, assign it with setObject */
 	public RPObject object;
 
 	/** client locale */
@@ -119,6 +118,24 @@ public class PlayerEntry {
 	/** should this player entry time out? set to false if another timeout mechanism is in place */
 	private boolean checkTimeout = true;
 
+	/** the container of this entry, which indexes it */
+	PlayerEntryContainer container;
+
+	/** the keys by which the container indexes this entry */
+	Channel indexedChannel;
+	String indexedUsername;
+	String indexedCharacter;
+	RPObject indexedObject;
+
+	/** perception timestamp of the last save of the object */
+	private int lastSavePerception;
+
+	/** number of turns in which the object changed since the last save */
+	private int changedTurns;
+
+	/** size of the object in bytes at the last save */
+	private int lastSaveSize;
+
 
 	/**
 	 * Constructor
@@ -270,20 +287,67 @@ public class PlayerEntry {
 	 */
 	public void storeRPObject(RPObject player) throws SQLException, IOException {
 		// And update the entry
-		object = player;
+		setObject(player);
 
 		// We store the object in the database
-		DBCommand command = new StoreCharacterCommand(username, character, player);
+		StoreCharacterCommand command = new StoreCharacterCommand(username, character, player);
 		DBCommandQueue.get().enqueue(command, DBCommandPriority.CRITICAL);
+
+		lastSavePerception = perceptionCounter;
+		changedTurns = 0;
+		lastSaveSize = command.getSize();
+	}
+
+	/**
+	 * counts the current turn as a turn with changes, if the object changed
+	 * in it. This is called once per turn, before the Delta^2 information is
+	 * reset.
+	 */
+	public void countChanges() {
+		if ((object != null) && object.isDirty()) {
+			changedTurns++;
+		}
 	}
 
 	/**
-	 * sets the RPObject for this entry.
+	 * gets the number of turns in which the object changed since it was saved
+	 *
+	 * @return number of turns
+	 */
+	public int getChangedTurns() {
+		return changedTurns;
+	}
+
+	/**
+	 * gets the number of perceptions since the object was saved
+	 *
+	 * @return number of perceptions
+	 */
+	public int getPerceptionsSinceSave() {
+		return perceptionCounter - lastSavePerception;
+	}
+
+	/**
+	 * gets the size of the object at the last save
+	 *
+	 * @return size in bytes
+	 */
+	public int getLastSaveSize() {
+		return lastSaveSize;
+	}
+
+	/**
+	 * sets the RPObject for this entry. Use this method instead of assigning
+	 * the object field, so that the entry is found by its object.
 	 *
 	 * @param object RPObject
 	 */
 	public void setObject(RPObject object) {
 		this.object = object;
+		PlayerEntryContainer temp = container;
+		if ((temp != null) && (indexedObject != object)) {
+			temp.reindex(this);
+		}
 	}
 
 
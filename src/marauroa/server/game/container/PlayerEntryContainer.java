@@ -12,14 +12,18 @@
 package marauroa.server.game.container;
 
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import marauroa.common.Log4J;
 import marauroa.common.game.RPObject;
@@ -38,6 +42,21 @@ import marauroa.server.game.Statistics;
  * database, so we can hide its complexity to GameManager. By making
  * PlayerDatabase hidden by PlayerContainer we achieve the illusion that
  * managing the runtime behavior we modify automatically the permanent one.
+ * <p>
+ * Besides the clientid, entries are indexed by channel, username, character
+ * and RPObject, each entry remembers the keys it is indexed by, so that they
+ * are removed with it.
+ * <ul>
+ * <li>The channel of an entry is set on creation.</li>
+ * <li>The username and character fields are assigned directly during login,
+ * code that assigns them has to call reindex afterwards. Several entries may
+ * share a username or a character, they are kept in the order they were
+ * indexed.</li>
+ * <li>The RPObject of an entry has to be changed with PlayerEntry.setObject,
+ * which updates the index. The object is indexed by identity, so zone changes
+ * do not matter. An object that was assigned directly to the field is still
+ * found by a search, which logs a warning.</li>
+ * </ul>
  *
  * @author miguel
  *
@@ -55,6 +74,21 @@ public class PlayerEntryContainer implements Iterable<PlayerEntry> {
 	/** This map store player entry for fast access using clientid */
 	Map<Integer, PlayerEntry> clientidMap;
 
+	/** entries by channel */
+	final ConcurrentHashMap<Channel, PlayerEntry> channelIndex = new ConcurrentHashMap<Channel, PlayerEntry>();
+
+	/** entries by lower case username, the arrays are replaced on change */
+	final ConcurrentHashMap<String, PlayerEntry[]> usernameIndex = new ConcurrentHashMap<String, PlayerEntry[]>();
+
+	/** entries by lower case character name, the arrays are replaced on change */
+	final ConcurrentHashMap<String, PlayerEntry[]> characterIndex = new ConcurrentHashMap<String, PlayerEntry[]>();
+
+	/** entries by their RPObject, compared by identity */
+	final Map<RPObject, PlayerEntry> objectIndex = Collections.synchronizedMap(new IdentityHashMap<RPObject, PlayerEntry>());
+
+	/** all entries, replaced whenever an entry is added or removed */
+	private volatile PlayerEntry[] snapshot = new PlayerEntry[0];
+
 	private static PlayerEntryContainer playerEntryContainer;
 
 	/** Statistics about actions runs */
@@ -86,11 +120,15 @@ public class PlayerEntryContainer implements Iterable<PlayerEntry> {
 
 	/**
 	 * This method returns an iterator over tha available player entry objects.
+	 * It iterates over the entries at the time of the call, so entries may be
+	 * added and removed while iterating. Like the copy that was iterated in
+	 * earlier versions, the remove method of the iterator does not remove
+	 * the entry from the container, use remove(clientid) for that.
 	 *
 	 * @return the iterator
 	 */
 	public Iterator<PlayerEntry> iterator() {
-		return new LinkedList<PlayerEntry>(clientidMap.values()).iterator();
+		return new SnapshotIterator(snapshot);
 	}
 
 	/**
@@ -145,36 +183,38 @@ public class PlayerEntryContainer implements Iterable<PlayerEntry> {
 	 * @return the PlayerEntry or null if it is not found.
 	 */
 	public PlayerEntry get(Channel channel) {
-		synchronized (clientidMap) {
-			for (PlayerEntry entry : clientidMap.values()) {
-				if (entry.channel == channel) {
-					return entry;
-				}
-			}
+		if (channel == null) {
+			return null;
+		}
+		PlayerEntry entry = channelIndex.get(channel);
+		if ((entry != null) && (entry.channel == channel)) {
+			return entry;
 		}
-
 		return null;
 	}
 
 	/**
 	 * This method returns the first entry that has been associated to this player or
 	 * null if it does not exists. Note: It is possible to login with the same account
-	 * and different character multiple times.
+	 * and different character multiple times. The first entry is the one that was
+	 * indexed with this username first.
 	 *
 	 * @param username
 	 *            the username to look for
 	 * @return the PlayerEntry or null if it is not found
 	 */
 	public PlayerEntry get(String username) {
-		synchronized (clientidMap) {
-			for (PlayerEntry entry : clientidMap.values()) {
-				/*
-				 * NOTE: Bug fix: We use ignore case to detect already logged
-				 * players better.
-				 */
-				if (username.equalsIgnoreCase(entry.username)) {
-					return entry;
-				}
+		PlayerEntry[] entries = usernameIndex.get(username.toLowerCase(Locale.ENGLISH));
+		if (entries == null) {
+			return null;
+		}
+		for (PlayerEntry entry : entries) {
+			/*
+			 * NOTE: Bug fix: We use ignore case to detect already logged
+			 * players better.
+			 */
+			if (username.equalsIgnoreCase(entry.username)) {
+				return entry;
 			}
 		}
 		return null;
@@ -189,13 +229,14 @@ public class PlayerEntryContainer implements Iterable<PlayerEntry> {
 	 * @return the PlayerEntry or null if there is none
 	 */
 	public PlayerEntry getOldEntry(PlayerEntry oldEntry) {
-		synchronized (clientidMap) {
-			for (PlayerEntry entry : clientidMap.values()) {
-
-				if (oldEntry.character.equalsIgnoreCase(entry.character)
-					&& entry != oldEntry) {
-					return entry;
-				}
+		PlayerEntry[] entries = characterIndex.get(oldEntry.character.toLowerCase(Locale.ENGLISH));
+		if (entries == null) {
+			return null;
+		}
+		for (PlayerEntry entry : entries) {
+			if (oldEntry.character.equalsIgnoreCase(entry.character)
+				&& entry != oldEntry) {
+				return entry;
 			}
 		}
 		return null;
@@ -210,14 +251,20 @@ public class PlayerEntryContainer implements Iterable<PlayerEntry> {
 	 * @return the PlayerEntry or null if it is not found
 	 */
 	public PlayerEntry get(RPObject object) {
-		synchronized (clientidMap) {
-			for (PlayerEntry entry : clientidMap.values()) {
-				/*
-				 * We want really to do a fast comparasion
-				 */
-				if (entry.object == object) {
-					return entry;
-				}
+		if (object == null) {
+			return null;
+		}
+		PlayerEntry entry = objectIndex.get(object);
+		if ((entry != null) && (entry.object == object)) {
+			return entry;
+		}
+
+		// the object may have been assigned to the field instead of using setObject
+		for (PlayerEntry candidate : snapshot) {
+			if (candidate.object == object) {
+				logger.warn("The object of " + candidate + " was not set with PlayerEntry.setObject");
+				reindex(candidate);
+				return candidate;
 			}
 		}
 		return null;
@@ -232,8 +279,15 @@ public class PlayerEntryContainer implements Iterable<PlayerEntry> {
 	 * @return the player entry or null if it has not been found.
 	 */
 	public PlayerEntry remove(int clientid) {
-		return clientidMap.remove(clientid);
-
+		synchronized (clientidMap) {
+			PlayerEntry entry = clientidMap.remove(clientid);
+			if (entry != null) {
+				updateSnapshot();
+				unindex(entry);
+				entry.container = null;
+			}
+			return entry;
+		}
 	}
 
 	/**
@@ -250,11 +304,170 @@ public class PlayerEntryContainer implements Iterable<PlayerEntry> {
 		entry.clientid = generateClientID();
 
 		/* Finally adds it to map */
-		clientidMap.put(entry.clientid, entry);
+		synchronized (clientidMap) {
+			clientidMap.put(entry.clientid, entry);
+			updateSnapshot();
+			entry.container = this;
+			index(entry);
+		}
 
 		return entry;
 	}
 
+	/**
+	 * updates the indexes after the channel, username, character or object
+	 * of an entry have been assigned
+	 *
+	 * @param entry entry
+	 */
+	public void reindex(PlayerEntry entry) {
+		synchronized (clientidMap) {
+			if (contains(entry)) {
+				index(entry);
+			}
+		}
+	}
+
+	/**
+	 * indexes an entry by its current fields and drops the keys it was
+	 * indexed by before, must be called while holding the lock of clientidMap
+	 *
+	 * @param entry entry
+	 */
+	private void index(PlayerEntry entry) {
+		entry.indexedChannel = reindex(channelIndex, entry.indexedChannel, entry.channel, entry);
+		entry.indexedUsername = reindexShared(usernameIndex, entry.indexedUsername, toKey(entry.username), entry);
+		entry.indexedCharacter = reindexShared(characterIndex, entry.indexedCharacter, toKey(entry.character), entry);
+
+		RPObject object = entry.object;
+		if (object != entry.indexedObject) {
+			if (entry.indexedObject != null) {
+				synchronized (objectIndex) {
+					if (objectIndex.get(entry.indexedObject) == entry) {
+						objectIndex.remove(entry.indexedObject);
+					}
+				}
+			}
+			if (object != null) {
+				objectIndex.put(object, entry);
+			}
+			entry.indexedObject = object;
+		}
+	}
+
+	/**
+	 * drops all keys of an entry, must be called while holding the lock of
+	 * clientidMap
+	 *
+	 * @param entry entry
+	 */
+	private void unindex(PlayerEntry entry) {
+		entry.indexedChannel = reindex(channelIndex, entry.indexedChannel, null, entry);
+		entry.indexedUsername = reindexShared(usernameIndex, entry.indexedUsername, null, entry);
+		entry.indexedCharacter = reindexShared(characterIndex, entry.indexedCharacter, null, entry);
+		if (entry.indexedObject != null) {
+			synchronized (objectIndex) {
+				if (objectIndex.get(entry.indexedObject) == entry) {
+					objectIndex.remove(entry.indexedObject);
+				}
+			}
+			entry.indexedObject = null;
+		}
+	}
+
+	/**
+	 * moves an entry from its old key to its new key
+	 *
+	 * @param index the index
+	 * @param oldKey the key the entry is indexed by or null
+	 * @param newKey the new key or null
+	 * @param entry entry
+	 * @return newKey
+	 */
+	private static <K> K reindex(ConcurrentHashMap<K, PlayerEntry> index, K oldKey, K newKey, PlayerEntry entry) {
+		if ((oldKey != null) && !oldKey.equals(newKey)) {
+			// another entry may have taken the key
+			index.remove(oldKey, entry);
+		}
+		if (newKey != null) {
+			index.put(newKey, entry);
+		}
+		return newKey;
+	}
+
+	/**
+	 * moves an entry from its old key to its new key in an index, in which
+	 * several entries may share a key. Must be called while holding the lock
+	 * of clientidMap.
+	 *
+	 * @param index the index
+	 * @param oldKey the key the entry is indexed by or null
+	 * @param newKey the new key or null
+	 * @param entry entry
+	 * @return newKey
+	 */
+	private static String reindexShared(ConcurrentHashMap<String, PlayerEntry[]> index, String oldKey, String newKey, PlayerEntry entry) {
+		if ((oldKey != null) && oldKey.equals(newKey)) {
+			return newKey;
+		}
+
+		if (oldKey != null) {
+			PlayerEntry[] entries = index.get(oldKey);
+			if (entries != null) {
+				int pos = entries.length - 1;
+				while ((pos >= 0) && (entries[pos] != entry)) {
+					pos--;
+				}
+				if ((entries.length == 1) && (pos == 0)) {
+					index.remove(oldKey);
+				} else if (pos >= 0) {
+					PlayerEntry[] remaining = new PlayerEntry[entries.length - 1];
+					System.arraycopy(entries, 0, remaining, 0, pos);
+					System.arraycopy(entries, pos + 1, remaining, pos, remaining.length - pos);
+					index.put(oldKey, remaining);
+				}
+			}
+		}
+
+		if (newKey != null) {
+			PlayerEntry[] entries = index.get(newKey);
+			if (entries == null) {
+				index.put(newKey, new PlayerEntry[] { entry });
+			} else {
+				PlayerEntry[] added = Arrays.copyOf(entries, entries.length + 1);
+				added[entries.length] = entry;
+				index.put(newKey, added);
+			}
+		}
+		return newKey;
+	}
+
+	private static String toKey(String name) {
+		if (name == null) {
+			return null;
+		}
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * is the entry still in this container?
+	 *
+	 * @param entry entry
+	 * @return true, if it is registered with its clientid
+	 */
+	private boolean contains(PlayerEntry entry) {
+		return clientidMap.get(entry.clientid) == entry;
+	}
+
+	/**
+	 * copies the entries for the iterator, must be called while holding the
+	 * lock of clientidMap
+	 */
+	private void updateSnapshot() {
+		PlayerEntry[] entries = clientidMap.values().toArray(new PlayerEntry[clientidMap.size()]);
+		snapshot = entries;
+	}
+
 	private int generateClientID() {
 		int clientid = rand.nextInt();
 
@@ -315,5 +528,43 @@ public class PlayerEntryContainer implements Iterable<PlayerEntry> {
 		return "PlayerEntryContainer [clientidMap=" + clientidMap + "]";
 	}
 
+	/**
+	 * iterator over a copy of the entries
+	 */
+	private static class SnapshotIterator implements Iterator<PlayerEntry> {
+		private final PlayerEntry[] entries;
+		private int index;
+		private boolean removable;
+
+		SnapshotIterator(PlayerEntry[] entries) {
+			this.entries = entries;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < entries.length;
+		}
+
+		@Override
+		public PlayerEntry next() {
+			if (index >= entries.length) {
+				throw new NoSuchElementException();
+			}
+			removable = true;
+			return entries[index++];
+		}
+
+		/**
+		 * skips the entry in this iteration only, like removing it from a copy
+		 */
+		@Override
+		public void remove() {
+			if (!removable) {
+				throw new IllegalStateException();
+			}
+			removable = false;
+		}
+	}
+
 
 }
@@ -12,6 +12,7 @@
 package marauroa.server.game.db;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
@@ -41,6 +42,9 @@ import marauroa.server.db.TransactionPool;
 public class CharacterDAO {
 	private static final marauroa.common.Logger logger = Log4J.getLogger(CharacterDAO.class);
 
+	/** whether a subclass overrides the RPObject variant of storeCharacter, null if not checked yet */
+	private volatile Boolean objectVariantOverridden;
+
 	/**
 	 * Creates a new CharacterDAO
 	 */
@@ -342,18 +346,8 @@ public class CharacterDAO {
 			}
 
 			int objectid = DAORegister.get().get(RPObjectDAO.class).storeRPObject(transaction, player);
-			int id = DAORegister.get().get(AccountDAO.class).getDatabasePlayerId(transaction, username);
-
-			String query = "update characters set object_id=[object_id] where charname='[character]' and player_id=[player_id]";
-			Map<String, Object> params = new HashMap<String, Object>();
-			params.put("object_id", Integer.valueOf(objectid));
-			params.put("player_id", Integer.valueOf(id));
-			params.put("character", character);
-
-			logger.debug("storeCharacter is executing query " + query);
+			updateCharacterObject(transaction, username, character, objectid);
 			logger.debug("Character: " + player);
-
-			transaction.execute(query, params);
 		} catch (SQLException sqle) {
 			logger.warn("Error storing character: " + player, sqle);
 			throw sqle;
@@ -363,6 +357,97 @@ public class CharacterDAO {
 		}
 	}
 
+	/**
+ 	 * This method stores a snapshot of a character's avatar in the database
+ 	 * and updates the link with the Character table. It is used by the
+ 	 * asynchronous StoreCharacterCommand.
+ 	 * <p>
+ 	 * If a subclass overrides the RPObject variant to store additional data,
+ 	 * but not this method, the snapshot is read back into an RPObject, which
+ 	 * is passed to the RPObject variant. Games may override this method as
+ 	 * well to avoid that.
+	 *
+	 * @param transaction
+	 *            the database transaction
+	 * @param username
+	 *            the player's username
+	 * @param character
+	 *            the player's character name
+	 * @param snapshot
+	 *            snapshot of the RPObject
+	 * @param timestamp timestamp
+	 * @throws SQLException
+	 *             if there is any problem at database.
+	 * @throws IOException
+	 */
+	public void storeCharacter(DBTransaction transaction, String username, String character,
+	        RPObjectSnapshot snapshot, Timestamp timestamp) throws SQLException, IOException {
+		try {
+			if (!StringChecker.validString(username) || !StringChecker.validString(character)) {
+				throw new SQLException("Invalid string username=(" + username + ") character=("
+				        + character + ")");
+			}
+
+			RPObjectDAO rpObjectDAO = DAORegister.get().get(RPObjectDAO.class);
+			if (isObjectVariantOverridden()) {
+				RPObject player = rpObjectDAO.readRPObject(snapshot, true);
+				storeCharacter(transaction, username, character, player, timestamp);
+				return;
+			}
+
+			int objectid = rpObjectDAO.storeRPObject(transaction, snapshot);
+			updateCharacterObject(transaction, username, character, objectid);
+		} catch (SQLException sqle) {
+			logger.warn("Error storing character: " + character, sqle);
+			throw sqle;
+		}
+	}
+
+	/**
+	 * checks whether a subclass overrides
+	 * storeCharacter(DBTransaction, String, String, RPObject, Timestamp)
+	 *
+	 * @return true, if the RPObject variant is overridden
+	 */
+	private boolean isObjectVariantOverridden() {
+		Boolean res = objectVariantOverridden;
+		if (res == null) {
+			try {
+				Method method = getClass().getMethod("storeCharacter", DBTransaction.class,
+						String.class, String.class, RPObject.class, Timestamp.class);
+				res = Boolean.valueOf(method.getDeclaringClass() != CharacterDAO.class);
+			} catch (NoSuchMethodException e) {
+				res = Boolean.FALSE;
+			}
+			objectVariantOverridden = res;
+		}
+		return res.booleanValue();
+	}
+
+	/**
+	 * links a stored RPObject with the Character table
+	 *
+	 * @param transaction the database transaction
+	 * @param username the player's username
+	 * @param character the player's character name
+	 * @param objectid database id of the RPObject
+	 * @throws SQLException if there is any problem at database.
+	 */
+	private void updateCharacterObject(DBTransaction transaction, String username, String character,
+	        int objectid) throws SQLException {
+		int id = DAORegister.get().get(AccountDAO.class).getDatabasePlayerId(transaction, username);
+
+		String query = "update characters set object_id=[object_id] where charname='[character]' and player_id=[player_id]";
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("object_id", Integer.valueOf(objectid));
+		params.put("player_id", Integer.valueOf(id));
+		params.put("character", character);
+
+		logger.debug("storeCharacter is executing query " + query);
+
+		transaction.execute(query, params);
+	}
+
 	/**
  	 * This method loads the character's avatar associated with this
  	 * character from the database.
@@ -19,16 +19,13 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 import marauroa.common.Log4J;
-import marauroa.common.game.DetailLevel;
 import marauroa.common.game.RPObject;
+import marauroa.common.net.BufferInputSerializer;
 import marauroa.common.net.InputSerializer;
 import marauroa.common.net.NetConst;
-import marauroa.common.net.OutputSerializer;
+import marauroa.common.net.ZlibCodec;
 import marauroa.server.db.DBTransaction;
 import marauroa.server.db.TransactionPool;
 import marauroa.server.game.rp.RPObjectFactory;
@@ -125,9 +122,7 @@ public class RPObjectDAO {
 	    input.close();
 	    output.close();
 
-	    ByteArrayInputStream inStream = new ByteArrayInputStream(content);
-	    InflaterInputStream szlib = new InflaterInputStream(inStream, new Inflater());
-	    InputSerializer inputSerializer = new InputSerializer(szlib);
+	    InputSerializer inputSerializer = new BufferInputSerializer(ZlibCodec.DATABASE.decompress(content));
 	    inputSerializer.setProtocolVersion(protocolVersion);
 
 	    RPObject object = (RPObject) inputSerializer.readObject(new RPObject());
@@ -140,6 +135,22 @@ public class RPObjectDAO {
 	    return object;
     }
 
+	/**
+	 * reads the RPObject of a snapshot back
+	 *
+	 * @param snapshot snapshot of a single RPObject
+	 * @param transform should it be transformed using the RPObjectFactory
+	 * @return RPObject
+	 * @throws IOException in case of an input/output error
+	 */
+	public RPObject readRPObject(RPObjectSnapshot snapshot, boolean transform) throws IOException {
+		RPObject object = snapshot.toRPObject();
+		if (transform) {
+			object = factory.transform(object);
+		}
+		return object;
+	}
+
 	/**
 	 * deletes an RPObject from the database
 	 *
@@ -188,32 +199,43 @@ public class RPObjectDAO {
 	 * @throws SQLException in case of an database error
 	 */
 	public int storeRPObject(DBTransaction transaction, RPObject object) throws IOException, SQLException {
-		ByteArrayOutputStream array = new ByteArrayOutputStream();
-		DeflaterOutputStream out_stream = new DeflaterOutputStream(array);
-		OutputSerializer serializer = new OutputSerializer(out_stream);
-		int protocolVersion = serializer.getProtocolVersion();
-
+		RPObjectSnapshot snapshot;
 		try {
-			object.writeObject(serializer, DetailLevel.FULL);
-			out_stream.close();
+			snapshot = RPObjectSnapshot.of(object);
 		} catch (IOException e) {
 			logger.warn("Error while serializing rpobject: " + object, e);
 			throw e;
 		}
 
-		// setup stream for blob
-		ByteArrayInputStream inStream = new ByteArrayInputStream(array.toByteArray());
+		int object_id = storeRPObject(transaction, snapshot);
 
-		int object_id = -1;
-
-		if (object.has("#db_id")) {
-			object_id = object.getInt("#db_id");
+		// We alter the original object to add the proper db_id
+		if (snapshot.getDatabaseId() == -1) {
+			object.put("#db_id", object_id);
 		}
+		return object_id;
+	}
+
+	/**
+	 * saves a snapshot of an RPObject to the database. Unlike the RPObject
+	 * variant, it does not add the #db_id of a new object to the object.
+	 *
+	 * @param transaction DBTransaction
+	 * @param snapshot snapshot of the RPObject
+	 * @return the database id of the object
+	 * @throws IOException in case of an input/output error
+	 * @throws SQLException in case of an database error
+	 */
+	public int storeRPObject(DBTransaction transaction, RPObjectSnapshot snapshot) throws IOException, SQLException {
+		// setup stream for blob
+		ByteArrayInputStream inStream = new ByteArrayInputStream(snapshot.compress());
+
+		int object_id = snapshot.getDatabaseId();
 
 		String query;
 		Map<String, Object> params = new HashMap<String, Object>();
 		params.put("object_id", object_id);
-		params.put("protocolVersion", protocolVersion);
+		params.put("protocolVersion", snapshot.getProtocolVersion());
 
 
 		if (object_id != -1 && hasRPObject(transaction, object_id)) {
@@ -229,11 +251,6 @@ public class RPObjectDAO {
 		// If object is new, get the objectid we gave it.
 		if (object_id == -1) {
 			object_id = transaction.getLastInsertId("rpobject", "object_id");
-
-			// We alter the original object to add the proper db_id
-			object.put("#db_id", object_id);
-		} else {
-			object_id = object.getInt("#db_id");
 		}
 
 		return object_id;
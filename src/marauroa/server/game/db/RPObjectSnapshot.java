@@ -0,0 +1,164 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game.db;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import marauroa.common.game.DetailLevel;
+import marauroa.common.game.RPObject;
+import marauroa.common.net.BufferInputSerializer;
+import marauroa.common.net.BufferOutputSerializer;
+import marauroa.common.net.ZlibCodec;
+
+/**
+ * The serialized state of RPObjects at the time they were saved.
+ * <p>
+ * A snapshot is taken on the turn thread by serializing the objects once,
+ * which is much cheaper than cloning them. The database thread then
+ * compresses and stores the bytes, while the game goes on changing the
+ * objects.
+ */
+public final class RPObjectSnapshot {
+
+	/** uncompressed data in the format of the database */
+	private final byte[] data;
+
+	private final int protocolVersion;
+
+	/** number of objects in the snapshot */
+	private final int count;
+
+	/** value of #db_id or -1 */
+	private final int databaseId;
+
+	private RPObjectSnapshot(byte[] data, int protocolVersion, int count, int databaseId) {
+		this.data = data;
+		this.protocolVersion = protocolVersion;
+		this.count = count;
+		this.databaseId = databaseId;
+	}
+
+	/**
+	 * takes a snapshot of an object, as stored by RPObjectDAO.storeRPObject
+	 *
+	 * @param object RPObject
+	 * @return snapshot
+	 * @throws IOException in case of an input/output error
+	 */
+	public static RPObjectSnapshot of(RPObject object) throws IOException {
+		BufferOutputSerializer serializer = BufferOutputSerializer.acquire();
+		try {
+			object.writeObject(serializer, DetailLevel.FULL);
+			int databaseId = -1;
+			if (object.has("#db_id")) {
+				databaseId = object.getInt("#db_id");
+			}
+			return new RPObjectSnapshot(Arrays.copyOf(serializer.array(), serializer.size()),
+					serializer.getProtocolVersion(), 1, databaseId);
+		} finally {
+			serializer.release();
+		}
+	}
+
+	/**
+	 * takes a snapshot of the storable objects of a zone, as stored by
+	 * RPZoneDAO.storeRPZone
+	 *
+	 * @param content the RPObjects of the zone
+	 * @return snapshot
+	 * @throws IOException in case of an input/output error
+	 */
+	public static RPObjectSnapshot ofStorable(Iterable<RPObject> content) throws IOException {
+		BufferOutputSerializer serializer = BufferOutputSerializer.acquire();
+		try {
+			// the amount is written first and updated at the end
+			serializer.write(0);
+			int amount = 0;
+			for (RPObject object : content) {
+				if (object.isStorable()) {
+					object.writeObject(serializer, DetailLevel.FULL);
+					amount++;
+				}
+			}
+
+			byte[] data = Arrays.copyOf(serializer.array(), serializer.size());
+			data[0] = (byte) amount;
+			data[1] = (byte) (amount >> 8);
+			data[2] = (byte) (amount >> 16);
+			data[3] = (byte) (amount >> 24);
+			return new RPObjectSnapshot(data, serializer.getProtocolVersion(), amount, -1);
+		} finally {
+			serializer.release();
+		}
+	}
+
+	/**
+	 * reads the object of a snapshot taken by <code>of</code> back
+	 *
+	 * @return a copy of the RPObject at the time of the snapshot
+	 * @throws IOException in case of an input/output error
+	 */
+	public RPObject toRPObject() throws IOException {
+		if (count != 1) {
+			throw new IOException("snapshot of " + count + " objects is not a single object");
+		}
+		BufferInputSerializer serializer = new BufferInputSerializer(data);
+		serializer.setProtocolVersion(protocolVersion);
+		return (RPObject) serializer.readObject(new RPObject());
+	}
+
+	/**
+	 * compresses the snapshot for the database
+	 *
+	 * @return compressed data
+	 */
+	public byte[] compress() {
+		return ZlibCodec.DATABASE.compress(data, 0, data.length);
+	}
+
+	/**
+	 * gets the protocol version the objects were serialized with
+	 *
+	 * @return protocol version
+	 */
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	/**
+	 * gets the number of objects in the snapshot
+	 *
+	 * @return number of objects
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * gets the database id of the object at the time of the snapshot
+	 *
+	 * @return #db_id or -1
+	 */
+	public int getDatabaseId() {
+		return databaseId;
+	}
+
+	/**
+	 * gets the size of the uncompressed data
+	 *
+	 * @return size in bytes
+	 */
+	public int getSize() {
+		return data.length;
+	}
+}
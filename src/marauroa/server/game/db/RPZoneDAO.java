@@ -19,17 +19,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 import marauroa.common.Log4J;
-import marauroa.common.game.DetailLevel;
 import marauroa.common.game.IRPZone;
 import marauroa.common.game.RPObject;
+import marauroa.common.net.BufferInputSerializer;
 import marauroa.common.net.InputSerializer;
 import marauroa.common.net.NetConst;
-import marauroa.common.net.OutputSerializer;
+import marauroa.common.net.ZlibCodec;
 import marauroa.server.db.DBTransaction;
 import marauroa.server.db.StringChecker;
 import marauroa.server.db.TransactionPool;
@@ -89,9 +86,7 @@ public class RPZoneDAO {
 			input.close();
 			output.close();
 
-			ByteArrayInputStream inStream = new ByteArrayInputStream(content);
-			InflaterInputStream szlib = new InflaterInputStream(inStream, new Inflater());
-			InputSerializer inputSerializer = new InputSerializer(szlib);
+			InputSerializer inputSerializer = new BufferInputSerializer(ZlibCodec.DATABASE.decompress(content));
 
 			int protocolVersion = NetConst.FIRST_VERSION_WITH_MULTI_VERSION_SUPPORT - 1;
 			Object temp = resultSet.getObject("protocol_version");
@@ -142,52 +137,43 @@ public class RPZoneDAO {
 	 * @throws SQLException in case of an database error
 	 */
 	public void storeRPZone(DBTransaction transaction, IRPZone zone, Iterable<RPObject> content) throws IOException, SQLException {
+		storeRPZone(transaction, zone, RPObjectSnapshot.ofStorable(content));
+	}
+
+
+	/**
+	 * saves a snapshot of the storable objects of the specified zone to the database
+	 *
+	 * @param transaction DBTransaction
+	 * @param zone IRPZone
+	 * @param snapshot snapshot of the storable RPObjects of that zone
+	 * @throws IOException in case of an input/output error
+	 * @throws SQLException in case of an database error
+	 */
+	public void storeRPZone(DBTransaction transaction, IRPZone zone, RPObjectSnapshot snapshot) throws IOException, SQLException {
 		String zoneid = zone.getID().getID();
 		if (!StringChecker.validString(zoneid)) {
 			throw new SQLException("Invalid string zoneid=(" + zoneid + ")");
 		}
 
-		ByteArrayOutputStream array = new ByteArrayOutputStream();
-		DeflaterOutputStream out_stream = new DeflaterOutputStream(array);
-		OutputSerializer os = new OutputSerializer(out_stream);
-
-		/* compute how many storable objects exists in zone. */
-		int amount = 0;
-		for (RPObject object : content) {
-			if (object.isStorable()) {
-				amount++;
-			}
-		}
-
-		os.write(amount);
-
-		boolean empty = true;
-		for (RPObject object : content) {
-			if (object.isStorable()) {
-				object.writeObject(os, DetailLevel.FULL);
-				empty = false;
-			}
-		}
-
-		out_stream.close();
-
-		/* Setup the stream for a blob */
-		ByteArrayInputStream inStream = new ByteArrayInputStream(array.toByteArray());
-
 		String query;
 
 		if (hasRPZone(transaction, zone.getID())) {
 			query = "update rpzone set data=?, protocol_version=[protocolVersion] where zone_id='[zoneid]'";
 		} else {
 			// do not add empty zones
-			if (empty) {
+			if (snapshot.getCount() == 0) {
 				return;
 			}
 			query = "insert into rpzone(zone_id, data, protocol_version) values('[zoneid]', ?, [protocolVersion])";
 		}
+
+		/* Setup the stream for a blob */
+		ByteArrayInputStream inStream = new ByteArrayInputStream(snapshot.compress());
+
 		Map<String, Object> params = new HashMap<String, Object>();
 		params.put("zoneid", zoneid);
-		params.put("protocolVersion", os.getProtocolVersion());
+		params.put("protocolVersion", snapshot.getProtocolVersion());
 		logger.debug("storeRPZone is executing query " + query);
 
 		transaction.execute(query, params, inStream);
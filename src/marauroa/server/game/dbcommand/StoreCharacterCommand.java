@@ -13,28 +13,35 @@ package marauroa.server.game.dbcommand;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 
 import marauroa.common.game.RPObject;
 import marauroa.server.db.DBTransaction;
 import marauroa.server.db.command.AbstractDBCommand;
+import marauroa.server.db.command.CoalescingDBCommand;
 import marauroa.server.db.command.DBCommandPriority;
 import marauroa.server.db.command.DBCommandQueue;
 import marauroa.server.game.db.CharacterDAO;
 import marauroa.server.game.db.DAORegister;
+import marauroa.server.game.db.RPObjectSnapshot;
 
 /**
- * Asynchronously stores a character's progress.
+ * Asynchronously stores a character's progress. A newer save of the same
+ * character replaces a pending one in the DBCommandQueue.
  *
  * @author hendrik
  */
-public class StoreCharacterCommand extends AbstractDBCommand {
+public class StoreCharacterCommand extends AbstractDBCommand implements CoalescingDBCommand {
 	private Logger logger = Logger.getLogger(StoreCharacterCommand.class);
 
 	private final String username;
 	private final String character;
-	private final RPObject frozenObject;
+	private final RPObjectSnapshot snapshot;
+
+	/** error while taking the snapshot, reported on execute */
+	private final IOException snapshotError;
 
 	/**
 	 * Asynchronously stores a character's progress
@@ -46,13 +53,24 @@ public class StoreCharacterCommand extends AbstractDBCommand {
 	public StoreCharacterCommand(String username, String character, RPObject object) {
 		this.username = username;
 		this.character = character;
-		this.frozenObject = (RPObject) object.clone();
+		RPObjectSnapshot temp = null;
+		IOException error = null;
+		try {
+			temp = RPObjectSnapshot.of(object);
+		} catch (IOException e) {
+			error = e;
+		}
+		this.snapshot = temp;
+		this.snapshotError = error;
 	}
 
 	@Override
 	public void execute(DBTransaction transaction) throws SQLException, IOException {
 		try {
-			DAORegister.get().get(CharacterDAO.class).storeCharacter(transaction, username, character, frozenObject, getEnqueueTime());
+			if (snapshotError != null) {
+				throw snapshotError;
+			}
+			DAORegister.get().get(CharacterDAO.class).storeCharacter(transaction, username, character, snapshot, getEnqueueTime());
 		} catch (SQLException e) {
 			if (!transaction.isConnectionError(e)) {
 				handleStorageFailure();
@@ -67,6 +85,23 @@ public class StoreCharacterCommand extends AbstractDBCommand {
 		}
 	}
 
+	@Override
+	public Object getCoalescingKey() {
+		return Arrays.asList(StoreCharacterCommand.class, username, character);
+	}
+
+	/**
+	 * gets the size of the serialized character
+	 *
+	 * @return size in bytes
+	 */
+	public int getSize() {
+		if (snapshot == null) {
+			return 0;
+		}
+		return snapshot.getSize();
+	}
+
 	/**
 	 * handles a storage failure by disabling the character
 	 *
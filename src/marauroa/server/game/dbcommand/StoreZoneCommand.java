@@ -20,6 +20,7 @@ import marauroa.common.game.RPObject;
 import marauroa.server.db.DBTransaction;
 import marauroa.server.db.command.AbstractDBCommand;
 import marauroa.server.game.db.DAORegister;
+import marauroa.server.game.db.RPObjectSnapshot;
 import marauroa.server.game.db.RPZoneDAO;
 
 /**
@@ -30,6 +31,7 @@ import marauroa.server.game.db.RPZoneDAO;
 public class StoreZoneCommand extends AbstractDBCommand {
 	private IRPZone zone;
 	private List<RPObject> frozenContent;
+	private RPObjectSnapshot snapshot;
 
 	/**
 	 * Asynchronously stores a zone
@@ -42,9 +44,24 @@ public class StoreZoneCommand extends AbstractDBCommand {
 		this.frozenContent = frozenContent;
 	}
 
+	/**
+	 * Asynchronously stores a zone
+	 *
+	 * @param zone  IRPZone
+	 * @param snapshot snapshot of the storable content of the zone
+	 */
+	public StoreZoneCommand(IRPZone zone, RPObjectSnapshot snapshot) {
+		this.zone = zone;
+		this.snapshot = snapshot;
+	}
+
 	@Override
 	public void execute(DBTransaction transaction) throws SQLException, IOException {
-		DAORegister.get().get(RPZoneDAO.class).storeRPZone(transaction, zone, frozenContent);
+		if (snapshot != null) {
+			DAORegister.get().get(RPZoneDAO.class).storeRPZone(transaction, zone, snapshot);
+		} else {
+			DAORegister.get().get(RPZoneDAO.class).storeRPZone(transaction, zone, frozenContent);
+		}
 	}
 
 	/**
@@ -54,6 +71,9 @@ public class StoreZoneCommand extends AbstractDBCommand {
 	 */
 	@Override
 	public String toString() {
+		if (snapshot != null) {
+			return "StoreZoneCommand [zone=" + zone + ", snapshot.getCount()=" + snapshot.getCount() + "]";
+		}
 		return "StoreZoneCommand [zone=" + zone + ", frozenContent.size()=" + frozenContent.size() + "]";
 	}
 }
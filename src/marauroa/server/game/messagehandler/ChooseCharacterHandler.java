@@ -66,6 +66,7 @@ class ChooseCharacterHandler extends MessageHandler implements DelayedEventHandl
 
 			// We set the character in the entry info
 			entry.character = msg.getCharacter();
+			playerContainer.reindex(entry);
 
 			PlayerEntry oldEntry = playerContainer.getOldEntry(entry);
 			if (oldEntry != null) {
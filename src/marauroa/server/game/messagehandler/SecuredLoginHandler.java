@@ -108,6 +108,7 @@ class SecuredLoginHandler extends MessageHandler implements DelayedEventHandler
 
 		/* Correct: The login is correct */
 		entry.username = info.username;
+		PlayerEntryContainer.getContainer().reindex(entry);
 
 		/* We clean the login information as it is not longer useful. */
 		entry.loginInformations = null;
@@ -112,7 +112,9 @@ public interface IRPRuleProcessor {
 
 	/**
 	 * This method is called *before* adding an action by RPScheduler so you can
-	 * choose not to allow the action to be added by returning false
+	 * choose not to allow the action to be added by returning false. It is
+	 * called by the turn thread, when the turn the action is scheduled for
+	 * begins.
 	 *
 	 * @param object
 	 *            the object that casted the action
@@ -126,6 +128,12 @@ public interface IRPRuleProcessor {
 
 	/**
 	 * Execute an action in the name of a player.
+	 * <p>
+	 * If <code>parallel_zone_threads</code> is set, the actions of objects in
+	 * different zones are executed concurrently. An action may then only
+	 * read and modify the zone of its object and the objects in it.
+	 * RPWorld.add, RPWorld.remove and RPWorld.changeZone are applied after
+	 * all zones have completed, and zones cannot be added or removed.
 	 *
 	 * @param object
 	 *            the object that executes
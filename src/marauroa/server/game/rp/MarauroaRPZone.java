@@ -11,12 +11,13 @@
  ***************************************************************************/
 package marauroa.server.game.rp;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -31,6 +32,7 @@ import marauroa.common.game.RPObjectInvalidException;
 import marauroa.server.db.command.DBCommandPriority;
 import marauroa.server.db.command.DBCommandQueue;
 import marauroa.server.game.db.DAORegister;
+import marauroa.server.game.db.RPObjectSnapshot;
 import marauroa.server.game.db.RPZoneDAO;
 import marauroa.server.game.dbcommand.StoreZoneCommand;
 
@@ -88,6 +90,15 @@ import marauroa.server.game.dbcommand.StoreZoneCommand;
  * </ul>
  * To make perceptions work, it is important to call the modify method in
  * RPZone, so this way objects modified are stored in the modified list.
+ * <p>
+ * On big zones it is possible to enable area of interest perceptions using
+ * {@link #setInterestRadius(int)}. Then objects are indexed by their
+ * <code>x</code> and <code>y</code> attributes and each player only perceives
+ * the objects around it. Objects that get into the range of a player are sent
+ * as added and objects that get out of range are sent as deleted. Objects
+ * without a position are perceived by every player. The position index is
+ * updated from the objects passed to the modify method, so a moving object
+ * has to be tagged as modified.
  *
  * @author miguel
  */
@@ -117,6 +128,21 @@ public class MarauroaRPZone implements IRPZone {
 	/** This is a sync perception cache */
 	private Perception prebuildSyncPerception = null;
 
+	/**
+	 * Size of the area each player perceives around itself. A value of 0
+	 * disables area of interest perceptions.
+	 */
+	private int interestRadius = 0;
+
+	/** Objects of the zone indexed by position, only used with area of interest perceptions. */
+	private SpatialIndex spatialIndex = null;
+
+	/** true once the position changes of this turn have been applied to the spatial index */
+	private boolean spatialIndexUpdated = false;
+
+	/** the ids of the objects each player has been told about, indexed by player object */
+	private Map<RPObject.ID, Set<Integer>> knownObjects = null;
+
 	/** This variable stores the last assigned id, that is unique per zone. */
 	private int lastNonPermanentIdAssigned = 0;
 
@@ -142,6 +168,40 @@ public class MarauroaRPZone implements IRPZone {
 		return zoneid;
 	}
 
+	/**
+	 * Sets the size of the area that each player perceives around itself.
+	 * This should be called before any player enters the zone, because
+	 * players already in the zone will need a sync perception.
+	 *
+	 * @param radius
+	 *            maximal distance on each axis between a player and the
+	 *            objects it perceives, 0 to let players perceive the whole
+	 *            zone.
+	 */
+	public void setInterestRadius(int radius) {
+		interestRadius = Math.max(0, radius);
+
+		if (interestRadius > 0) {
+			spatialIndex = new SpatialIndex(interestRadius);
+			for (RPObject object : objects.values()) {
+				spatialIndex.update(object);
+			}
+			knownObjects = new HashMap<RPObject.ID, Set<Integer>>();
+		} else {
+			spatialIndex = null;
+			knownObjects = null;
+		}
+	}
+
+	/**
+	 * Returns the size of the area that each player perceives around itself.
+	 *
+	 * @return radius or 0 if players perceive the whole zone
+	 */
+	public int getInterestRadius() {
+		return interestRadius;
+	}
+
 	public void onFinish() throws Exception {
 		storeToDatabase();
 	}
@@ -151,11 +211,15 @@ public class MarauroaRPZone implements IRPZone {
 	 * Note: This methods returns before the saving is completed.
 	 */
 	public void storeToDatabase() {
-		List<RPObject> list = new LinkedList<RPObject>();
-		for (RPObject object : objects.values()) {
-			list.add((RPObject) object.clone());
+		// serializing the storable objects is much cheaper than cloning all of them
+		RPObjectSnapshot snapshot;
+		try {
+			snapshot = RPObjectSnapshot.ofStorable(objects.values());
+		} catch (IOException e) {
+			logger.error("Error while storing zone " + zoneid, e);
+			return;
 		}
-		DBCommandQueue.get().enqueue(new StoreZoneCommand(this, list), DBCommandPriority.CRITICAL);
+		DBCommandQueue.get().enqueue(new StoreZoneCommand(this, snapshot), DBCommandPriority.CRITICAL);
 	}
 
 
@@ -177,11 +241,22 @@ public class MarauroaRPZone implements IRPZone {
 	 */
 	public void add(RPObject object) throws RPObjectInvalidException {
 		try {
+			// objects of a zone share the zoneid string of the zone
+			String zone = zoneid.getID();
+			String objectZone = object.get("zoneid");
+			if ((objectZone != zone) && zone.equals(objectZone)) {
+				object.put("zoneid", zone);
+			}
+
 			RPObject.ID id = object.getID();
 
 			object.resetAddedAndDeleted();
 			objects.put(id, object);
 
+			if (spatialIndex != null) {
+				spatialIndex.update(object);
+			}
+
 			if (!object.isHidden()) {
 				perception.added(object);
 			}
@@ -219,13 +294,13 @@ public class MarauroaRPZone implements IRPZone {
 		RPObject object = objects.remove(id);
 
 		if (object != null) {
-			/* We create an empty copy of the object */
-			RPObject deleted = new RPObject();
-			deleted.setID(object.getID());
-			deleted.setRPClass(object.getRPClass());
+			if (spatialIndex != null) {
+				spatialIndex.remove(object);
+				knownObjects.remove(id);
+			}
 
 			modified.remove(object);
-			perception.removed(deleted);
+			perception.removed(createDeletedCopy(object));
 		}
 
 		return object;
@@ -241,12 +316,21 @@ public class MarauroaRPZone implements IRPZone {
 	public void hide(RPObject object) {
 		object.hide();
 
-		/* We create an empty copy of the object */
+		perception.removed(createDeletedCopy(object));
+	}
+
+	/**
+	 * creates an empty copy of the object that is used to tell clients that
+	 * the object is gone.
+	 *
+	 * @param object the deleted object
+	 * @return an object with only the id of the deleted one
+	 */
+	private RPObject createDeletedCopy(RPObject object) {
 		RPObject deleted = new RPObject();
 		deleted.setID(object.getID());
 		deleted.setRPClass(object.getRPClass());
-
-		perception.removed(deleted);
+		return deleted;
 	}
 
 	/**
@@ -323,6 +407,21 @@ public class MarauroaRPZone implements IRPZone {
 	 *            </ul>
 	 */
 	public Perception getPerception(RPObject player, byte type) {
+		if (interestRadius > 0) {
+			return getInterestPerception(player, type);
+		}
+		return getZonePerception(type);
+	}
+
+	/**
+	 * Returns the perception of given type of the whole zone. It is the same
+	 * for every player.
+	 *
+	 * @param type
+	 *            the type of perception: SYNC or DELTA
+	 * @return the perception
+	 */
+	private Perception getZonePerception(byte type) {
 		if (type == Perception.DELTA) {
 			if (prebuildDeltaPerception == null) {
 				prebuildDeltaPerception = perception;
@@ -362,6 +461,132 @@ public class MarauroaRPZone implements IRPZone {
 		}
 	}
 
+	/**
+	 * Returns the perception of given type limited to the objects around the
+	 * player. The perception is built for this player only.
+	 *
+	 * @param player
+	 *            object whose perception we are going to build
+	 * @param type
+	 *            the type of perception: SYNC or DELTA
+	 * @return the perception
+	 */
+	private Perception getInterestPerception(RPObject player, byte type) {
+		updateSpatialIndex();
+
+		List<RPObject> inRange = new ArrayList<RPObject>();
+		if (SpatialIndex.hasPosition(player)) {
+			spatialIndex.query(player.getInt(SpatialIndex.ATTR_X), player.getInt(SpatialIndex.ATTR_Y),
+			        interestRadius, inRange);
+		} else {
+			spatialIndex.all(inRange);
+		}
+
+		Perception result = new Perception(type, getID());
+		result.setShared(false);
+
+		RPObject.ID playerId = player.getID();
+		Set<Integer> known = knownObjects.get(playerId);
+		Set<Integer> visible = new HashSet<Integer>();
+
+		if ((type == Perception.SYNC) || (known == null)) {
+			for (RPObject object : inRange) {
+				if (!object.isHidden()) {
+					visible.add(Integer.valueOf(object.getInt("id")));
+					result.addedList.add(object);
+				}
+			}
+
+			knownObjects.put(playerId, visible);
+			return result;
+		}
+
+		Perception delta = getZonePerception(Perception.DELTA);
+
+		Set<Integer> addedThisTurn = new HashSet<Integer>();
+		for (RPObject object : delta.addedList) {
+			addedThisTurn.add(Integer.valueOf(object.getInt("id")));
+		}
+
+		/* Objects that are new to the zone or that got into range are sent completely. */
+		Set<Integer> added = new HashSet<Integer>();
+		for (RPObject object : inRange) {
+			if (object.isHidden()) {
+				continue;
+			}
+
+			Integer id = Integer.valueOf(object.getInt("id"));
+			visible.add(id);
+			if (!known.contains(id) || addedThisTurn.contains(id)) {
+				added.add(id);
+				result.addedList.add(object);
+			}
+		}
+
+		/* The changes are only interesting for objects the client already knows. */
+		for (RPObject object : delta.modifiedAddedList) {
+			Integer id = Integer.valueOf(object.getInt("id"));
+			if (visible.contains(id) && !added.contains(id)) {
+				result.modifiedAddedList.add(object);
+			}
+		}
+
+		for (RPObject object : delta.modifiedDeletedList) {
+			Integer id = Integer.valueOf(object.getInt("id"));
+			if (visible.contains(id) && !added.contains(id)) {
+				result.modifiedDeletedList.add(object);
+			}
+		}
+
+		/* Objects that are gone from the zone or got out of range are sent as deleted. */
+		Set<Integer> deleted = new HashSet<Integer>();
+		for (RPObject object : delta.deletedList) {
+			Integer id = Integer.valueOf(object.getInt("id"));
+			if (known.contains(id)) {
+				deleted.add(id);
+				result.deletedList.add(object);
+			}
+		}
+
+		for (Integer id : known) {
+			if (!visible.contains(id) && !deleted.contains(id)) {
+				RPObject.ID objectId = new RPObject.ID(id.intValue(), zoneid);
+				RPObject object = objects.get(objectId);
+				if (object != null) {
+					result.deletedList.add(createDeletedCopy(object));
+				} else {
+					RPObject stub = new RPObject();
+					stub.setID(objectId);
+					result.deletedList.add(stub);
+				}
+			}
+		}
+
+		knownObjects.put(playerId, visible);
+		return result;
+	}
+
+	/**
+	 * Moves the objects that have been added or modified in this turn to
+	 * their current cell of the spatial index.
+	 */
+	private void updateSpatialIndex() {
+		if (spatialIndexUpdated) {
+			return;
+		}
+
+		for (RPObject object : perception.addedList) {
+			spatialIndex.update(object);
+		}
+		for (RPObject object : modified) {
+			if (objects.containsKey(object.getID())) {
+				spatialIndex.update(object);
+			}
+		}
+
+		spatialIndexUpdated = true;
+	}
+
 	/**
 	 * This methods resets the delta^2 information of objects.
 	 */
@@ -404,6 +629,7 @@ public class MarauroaRPZone implements IRPZone {
 
 		prebuildSyncPerception = null;
 		prebuildDeltaPerception = null;
+		spatialIndexUpdated = false;
 
 		modified.clear();
 		perception.clear();
@@ -0,0 +1,131 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game.rp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import marauroa.common.Configuration;
+import marauroa.common.Log4J;
+import marauroa.server.game.container.ClientState;
+import marauroa.server.game.container.PlayerEntry;
+
+/**
+ * Saves the objects of the players periodically, a few of them in each turn.
+ * <p>
+ * A player is due for a save after <code>player_save_interval</code> turns
+ * (default 2000). Players who log in at the same time, for example after a
+ * restart, are due at the same time. So only a limited number of them is
+ * saved in each turn: <code>player_save_budget</code> objects, or by default
+ * enough to save all players within half an interval. In addition
+ * <code>player_save_budget_bytes</code> limits the serialized bytes per turn.
+ * Due players whose objects changed in the most turns are saved first.
+ */
+class PlayerSaveScheduler {
+
+	/** the logger instance. */
+	private static final marauroa.common.Logger logger = Log4J.getLogger(PlayerSaveScheduler.class);
+
+	/** players with more changes first, then the ones waiting the longest */
+	private static final Comparator<PlayerEntry> PRIORITY = new Comparator<PlayerEntry>() {
+		@Override
+		public int compare(PlayerEntry a, PlayerEntry b) {
+			int res = Integer.compare(b.getChangedTurns(), a.getChangedTurns());
+			if (res != 0) {
+				return res;
+			}
+			return Integer.compare(b.getPerceptionsSinceSave(), a.getPerceptionsSinceSave());
+		}
+	};
+
+	/** number of turns between saves of a player */
+	private int interval = 2000;
+
+	/** maximum number of saves per turn, 0 for automatic */
+	private int budget;
+
+	/** maximum number of serialized bytes per turn, 0 for unlimited */
+	private int budgetBytes;
+
+	/** due players of the current turn */
+	private final List<PlayerEntry> due = new ArrayList<PlayerEntry>();
+
+	/**
+	 * reads player_save_interval, player_save_budget and player_save_budget_bytes
+	 *
+	 * @param conf configuration
+	 */
+	void configure(Configuration conf) {
+		interval = Math.max(1, conf.getInt("player_save_interval", 2000));
+		budget = conf.getInt("player_save_budget", 0);
+		budgetBytes = conf.getInt("player_save_budget_bytes", 0);
+	}
+
+	/**
+	 * saves the due players within the budget of this turn
+	 *
+	 * @param players the players
+	 */
+	void nextTurn(Iterable<PlayerEntry> players) {
+		int count = 0;
+		for (PlayerEntry entry : players) {
+			if ((entry.state != ClientState.GAME_BEGIN) || (entry.object == null)) {
+				continue;
+			}
+			count++;
+			entry.countChanges();
+			if (entry.getPerceptionsSinceSave() >= interval) {
+				due.add(entry);
+			}
+		}
+		if (due.isEmpty()) {
+			return;
+		}
+
+		int limit = getBudget(count);
+		if (due.size() > limit) {
+			Collections.sort(due, PRIORITY);
+		}
+
+		int saved = 0;
+		long bytes = 0;
+		for (PlayerEntry entry : due) {
+			if ((saved >= limit) || ((budgetBytes > 0) && (bytes >= budgetBytes))) {
+				break;
+			}
+			try {
+				entry.storeRPObject(entry.object);
+				bytes += entry.getLastSaveSize();
+			} catch (Exception e) {
+				logger.error("Error while storing player " + entry.character, e);
+			}
+			saved++;
+		}
+		due.clear();
+	}
+
+	/**
+	 * gets the maximum number of saves in a turn
+	 *
+	 * @param players number of players
+	 * @return number of saves
+	 */
+	int getBudget(int players) {
+		if (budget > 0) {
+			return budget;
+		}
+		// twice the average rate, so a cohort is saved within half an interval
+		return Math.max(1, (2 * players + interval - 1) / interval);
+	}
+}
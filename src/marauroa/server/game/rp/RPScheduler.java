@@ -11,16 +11,21 @@
  ***************************************************************************/
 package marauroa.server.game.rp;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.MDC;
 
 import marauroa.common.Log4J;
 import marauroa.common.game.RPAction;
 import marauroa.common.game.RPObject;
+import marauroa.server.game.TurnStatistics;
 
 /**
  * This class represents a scheduler to deliver action by turns, so every action
@@ -30,6 +35,14 @@ import marauroa.common.game.RPObject;
  * We have two turns: actual and next one.<br>
  * When we execute actions on actual turn, next turn become actual turn and the
  * process repeat.
+ * <p>
+ * Actions for the next turn are collected without locking in a fixed number
+ * of queues, which the threads that add actions pick by their id, so the
+ * network threads are not blocked while the actions of the actual turn are
+ * executed. The actions of a thread stay in the order they were added. The
+ * queues are emptied into the actual turn by <code>nextTurn</code>, which is
+ * also when the rule processor is asked about each action by
+ * <code>onActionAdd</code>.
  *
  */
 public class RPScheduler {
@@ -37,16 +50,23 @@ public class RPScheduler {
 	/** the logger instance. */
 	private static final marauroa.common.Logger logger = Log4J.getLogger(RPScheduler.class);
 
+	/** number of empty action lists that are kept for reuse */
+	private static final int MAX_POOLED_LISTS = 1024;
+
 	/** a HashMap<RPObject,RPActionList> of entries for this turn */
-	private Map<RPObject, List<RPAction>> actualTurn;
+	private final Map<RPObject, List<RPAction>> actualTurn;
+
+	/** the actions for the next turn, the length is a power of two */
+	private final ConcurrentLinkedQueue<ScheduledAction>[] nextTurn;
 
-	/** a HashMap<RPObject,RPActionList> of entries for next turn */
-	private Map<RPObject, List<RPAction>> nextTurn;
+	/** empty action lists for reuse */
+	private final ArrayDeque<List<RPAction>> pool;
 
 	/** Constructor */
 	public RPScheduler() {
 		actualTurn = new HashMap<RPObject, List<RPAction>>();
-		nextTurn = new HashMap<RPObject, List<RPAction>>();
+		nextTurn = createQueues(Runtime.getRuntime().availableProcessors() * 2);
+		pool = new ArrayDeque<List<RPAction>>();
 	}
 
 	/**
@@ -60,26 +80,53 @@ public class RPScheduler {
 	 *            where the actions are going to checked.
 	 * @return true, if the action was added successfully, false otherwise
 	 */
-	public synchronized boolean addRPAction(RPObject object, RPAction action,
+	public boolean addRPAction(RPObject object, RPAction action,
 	        IRPRuleProcessor ruleProcessor) {
-		try {
-			List<RPAction> list = nextTurn.get(object);
-
-			if (list == null) {
-				list = new LinkedList<RPAction>();
-				nextTurn.put(object, list);
-			}
-
-			if (ruleProcessor.onActionAdd(object, action, list)) {
-				list.add(action);
-			}
-
-			return true;
-		} catch (Exception e) {
+		if ((object == null) || (action == null)) {
 			logger.error("cannot add action to RPScheduler, Action(" + action
-			        + ") is missing a required attributes", e);
+			        + ") of object " + object, new Throwable());
 			return false;
 		}
+		getQueue(Thread.currentThread()).add(new ScheduledAction(object, action, ruleProcessor));
+		return true;
+	}
+
+	/**
+	 * creates the queues for the next turn
+	 *
+	 * @param count minimum number of queues
+	 * @return queues
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ConcurrentLinkedQueue<ScheduledAction>[] createQueues(int count) {
+		int size = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+		ConcurrentLinkedQueue<ScheduledAction>[] res = new ConcurrentLinkedQueue[size];
+		for (int i = 0; i < size; i++) {
+			res[i] = new ConcurrentLinkedQueue<ScheduledAction>();
+		}
+		return res;
+	}
+
+	/**
+	 * gets the number of queues for the next turn
+	 *
+	 * @return number of queues, which does not depend on the threads
+	 */
+	int getQueueCount() {
+		return nextTurn.length;
+	}
+
+	/**
+	 * gets the queue for the actions added by a thread
+	 *
+	 * @param thread thread
+	 * @return queue
+	 */
+	private ConcurrentLinkedQueue<ScheduledAction> getQueue(Thread thread) {
+		long id = thread.getId();
+		int hash = (int) (id ^ (id >>> 32));
+		hash ^= hash >>> 16;
+		return nextTurn[hash & (nextTurn.length - 1)];
 	}
 
 	/**
@@ -90,7 +137,14 @@ public class RPScheduler {
 	 *            object to remove actions from.
 	 */
 	public synchronized void clearRPActions(RPObject object) {
-		nextTurn.remove(object);
+		for (ConcurrentLinkedQueue<ScheduledAction> queue : nextTurn) {
+			for (Iterator<ScheduledAction> it = queue.iterator(); it.hasNext();) {
+				if (it.next().object == object) {
+					it.remove();
+				}
+			}
+		}
+		// the list is not reused, because it may be executed right now
 		actualTurn.remove(object);
 	}
 
@@ -102,11 +156,64 @@ public class RPScheduler {
 	 *            the class that really run the action.
 	 */
 	public synchronized void visit(IRPRuleProcessor ruleProcessor) {
+		execute(ruleProcessor, actualTurn.entrySet());
+	}
+
+	/**
+	 * For each action in the actual turn, make it to be run in the
+	 * ruleProcessor. The actions of objects in different zones are executed
+	 * concurrently, the actions of objects in the same zone are executed one
+	 * after the other. Actions of objects that are not in a zone are executed
+	 * after all zones have completed.
+	 *
+	 * @param ruleProcessor
+	 *            the class that really run the action.
+	 * @param executor
+	 *            executor for the per zone tasks
+	 */
+	synchronized void visit(final IRPRuleProcessor ruleProcessor, TurnExecutor executor) {
+		Map<String, List<Map.Entry<RPObject, List<RPAction>>>> zones = new HashMap<String, List<Map.Entry<RPObject, List<RPAction>>>>();
+		List<Map.Entry<RPObject, List<RPAction>>> withoutZone = new LinkedList<Map.Entry<RPObject, List<RPAction>>>();
+
 		for (Map.Entry<RPObject, List<RPAction>> entry : actualTurn.entrySet()) {
-			RPObject object = entry.getKey();
-			List<RPAction> list = entry.getValue();
+			String zoneid = entry.getKey().get("zoneid");
+			if (zoneid == null) {
+				withoutZone.add(entry);
+				continue;
+			}
 
-			for (RPAction action : list) {
+			List<Map.Entry<RPObject, List<RPAction>>> entries = zones.get(zoneid);
+			if (entries == null) {
+				entries = new LinkedList<Map.Entry<RPObject, List<RPAction>>>();
+				zones.put(zoneid, entries);
+			}
+			entries.add(entry);
+		}
+
+		List<Runnable> tasks = new ArrayList<Runnable>(zones.size());
+		for (final List<Map.Entry<RPObject, List<RPAction>>> entries : zones.values()) {
+			tasks.add(new Runnable() {
+				public void run() {
+					execute(ruleProcessor, entries);
+				}
+			});
+		}
+		executor.runAll(tasks);
+
+		execute(ruleProcessor, withoutZone);
+	}
+
+	private void execute(IRPRuleProcessor ruleProcessor, Iterable<Map.Entry<RPObject, List<RPAction>>> entries) {
+		TurnStatistics turnStatistics = TurnStatistics.get();
+		boolean capturing = turnStatistics.isCapturing();
+		for (Map.Entry<RPObject, List<RPAction>> entry : entries) {
+			RPObject object = entry.getKey();
+			long start = 0;
+			if (capturing) {
+				start = System.nanoTime();
+			}
+			long actionStart = start;
+			for (RPAction action : entry.getValue()) {
 				MDC.put("context", object + " " + action);
 				try {
 					if ((DebugInterface.get()).executeAction(object, action)) {
@@ -116,6 +223,17 @@ public class RPScheduler {
 					logger.error("error in visit()", e);
 				}
 				MDC.remove("context");
+				if (capturing) {
+					long actionEnd = System.nanoTime();
+					turnStatistics.addActionTime(object, action, actionEnd - actionStart);
+					actionStart = actionEnd;
+				}
+			}
+			if (capturing) {
+				String zoneid = object.get("zoneid");
+				if (zoneid != null) {
+					turnStatistics.addZoneTime("visit", zoneid, actionStart - start);
+				}
 			}
 		}
 	}
@@ -126,10 +244,74 @@ public class RPScheduler {
 	 */
 	public synchronized void nextTurn() {
 
-		// we cross-exchange the two turns and erase the contents of the next turn
-		Map<RPObject, List<RPAction>> tmp = actualTurn;
-		actualTurn = nextTurn;
-		nextTurn = tmp;
-		nextTurn.clear();
+		// the lists of the actual turn are reused for the next one
+		for (List<RPAction> list : actualTurn.values()) {
+			release(list);
+		}
+		actualTurn.clear();
+
+		// the actions that have been added since the last turn
+		for (ConcurrentLinkedQueue<ScheduledAction> queue : nextTurn) {
+			ScheduledAction scheduled = queue.poll();
+			while (scheduled != null) {
+				schedule(scheduled);
+				scheduled = queue.poll();
+			}
+		}
+	}
+
+	/**
+	 * puts an action into the actual turn, if the rule processor agrees
+	 *
+	 * @param scheduled action with its object and rule processor
+	 */
+	private void schedule(ScheduledAction scheduled) {
+		RPObject object = scheduled.object;
+		RPAction action = scheduled.action;
+		try {
+			List<RPAction> list = actualTurn.get(object);
+
+			if (list == null) {
+				list = pool.poll();
+				if (list == null) {
+					list = new ArrayList<RPAction>(4);
+				}
+				actualTurn.put(object, list);
+			}
+
+			if (scheduled.ruleProcessor.onActionAdd(object, action, list)) {
+				list.add(action);
+			}
+		} catch (Exception e) {
+			logger.error("cannot add action to RPScheduler, Action(" + action
+			        + ") is missing a required attributes", e);
+		}
+	}
+
+	/**
+	 * returns a list to the pool
+	 *
+	 * @param list list that is not used anymore
+	 */
+	private void release(List<RPAction> list) {
+		if (pool.size() < MAX_POOLED_LISTS) {
+			list.clear();
+			pool.push(list);
+		}
+	}
+
+	/**
+	 * an action waiting for the next turn
+	 */
+	private static class ScheduledAction {
+		final RPObject object;
+		final RPAction action;
+		final IRPRuleProcessor ruleProcessor;
+
+		ScheduledAction(RPObject object, RPAction action, IRPRuleProcessor ruleProcessor) {
+			this.object = object;
+			this.action = action;
+			this.ruleProcessor = ruleProcessor;
+		}
 	}
 }
@@ -39,6 +39,7 @@ import marauroa.common.net.message.TransferContent;
 import marauroa.server.db.TransactionPool;
 import marauroa.server.game.ActionInvalidException;
 import marauroa.server.game.Statistics;
+import marauroa.server.game.TurnStatistics;
 import marauroa.server.game.container.ClientState;
 import marauroa.server.game.container.PlayerEntry;
 import marauroa.server.game.container.PlayerEntryContainer;
@@ -108,6 +109,15 @@ public class RPServerManager extends Thread {
 
 	private Map<RPObject, List<TransferContent>> contentsToTransfer;
 
+	/** executes the per zone work concurrently, null if disabled */
+	private TurnExecutor zoneExecutor;
+
+	/** builds and encodes the perceptions of the players concurrently, null if disabled */
+	private TurnExecutor perceptionExecutor;
+
+	/** saves a few players in each turn */
+	private final PlayerSaveScheduler playerSaveScheduler = new PlayerSaveScheduler();
+
 	/**
 	 * Constructor
 	 *
@@ -140,6 +150,16 @@ public class RPServerManager extends Thread {
 			String duration = conf.get("turn_length");
 			turnDuration = Long.parseLong(duration);
 			turn = 0;
+
+			int zoneThreads = conf.getInt("parallel_zone_threads", 0);
+			if (zoneThreads > 0) {
+				logger.info("Processing zones in parallel using " + zoneThreads + " threads");
+				zoneExecutor = new TurnExecutor(zoneThreads);
+			}
+
+			playerSaveScheduler.configure(conf);
+
+			setPerceptionThreads(conf.getInt("parallel_perception_threads", 0));
 		} catch (Exception e) {
 			logger.warn("ABORT: Unable to create RPZone, RPRuleProcessor or RPAIManager instances",
 			        e);
@@ -147,6 +167,22 @@ public class RPServerManager extends Thread {
 		}
 	}
 
+	/**
+	 * sets the number of threads that build and encode the perceptions
+	 *
+	 * @param threads number of threads, 0 to build them on the turn thread
+	 */
+	void setPerceptionThreads(int threads) {
+		if (perceptionExecutor != null) {
+			perceptionExecutor.shutdown();
+			perceptionExecutor = null;
+		}
+		if (threads > 0) {
+			logger.info("Building perceptions in parallel using " + threads + " threads");
+			perceptionExecutor = new TurnExecutor(threads);
+		}
+	}
+
 	/**
 	 * This method loads the extensions: IRPRuleProcessor and IRPWorld that are
 	 * going to be used to implement your game. This method loads these class
@@ -214,6 +250,13 @@ public class RPServerManager extends Thread {
 		} catch (Exception e) {
 			logger.error("error while finishing RPServerManager", e);
 		}
+
+		if (zoneExecutor != null) {
+			zoneExecutor.shutdown();
+		}
+		if (perceptionExecutor != null) {
+			perceptionExecutor.shutdown();
+		}
 	}
 
 	/**
@@ -444,13 +487,20 @@ public class RPServerManager extends Thread {
 		netMan.sendMessage(messages2cPerception);
 	}
 
-	private void buildPerceptions() {
+	void buildPerceptions() {
 		playersToRemove.clear();
 
 		/** We reset the cache at Perceptions */
 		MessageS2CPerception.clearPrecomputedPerception();
+		long cacheHits = MessageS2CPerception.getPrecomputedPerceptionHits();
+		long cacheMisses = MessageS2CPerception.getPrecomputedPerceptionMisses();
 
-		for (PlayerEntry entry : playerContainer) {
+		List<Runnable> tasks = null;
+		if (perceptionExecutor != null) {
+			tasks = new LinkedList<Runnable>();
+		}
+
+		for (final PlayerEntry entry : playerContainer) {
 			try {
 				// Before creating the perception we check the player is still there.
 				if(entry.isTimeout()) {
@@ -460,8 +510,27 @@ public class RPServerManager extends Thread {
 				}
 
 				if (entry.state == ClientState.GAME_BEGIN) {
-					Perception perception = getPlayerPerception(entry);
-					sendPlayerPerception(entry, perception, entry.object);
+					/*
+					 * The zone perception is always created on the turn thread
+					 * because the zone keeps track of what each player knows.
+					 */
+					final Perception perception = getPlayerPerception(entry);
+					if (tasks == null) {
+						sendPlayerPerception(entry, perception, entry.object);
+					} else {
+						tasks.add(new Runnable() {
+							public void run() {
+								try {
+									sendPlayerPerception(entry, perception, entry.object);
+								} catch (Exception e) {
+									logger.error("Removing player(" + entry.clientid + ") because it caused a Exception while contacting it", e);
+									synchronized (playersToRemove) {
+										playersToRemove.add(entry);
+									}
+								}
+							}
+						});
+					}
 				}
 			} catch (Exception e) {
 				logger.error("Removing player(" + entry.clientid + ") because it caused a Exception while contacting it", e);
@@ -470,6 +539,13 @@ public class RPServerManager extends Thread {
 
 		}
 
+		if (tasks != null) {
+			perceptionExecutor.runAll(tasks);
+		}
+
+		stats.add("Perception cache hits", (int) (MessageS2CPerception.getPrecomputedPerceptionHits() - cacheHits));
+		stats.add("Perception cache misses", (int) (MessageS2CPerception.getPrecomputedPerceptionMisses() - cacheMisses));
+
 		for (PlayerEntry entry : playersToRemove) {
 			logger.warn("RP Disconnecting entry: " + entry);
 
@@ -602,8 +678,9 @@ public class RPServerManager extends Thread {
 			long start = System.nanoTime();
 			long stop;
 			long delay;
-			long timeStart = 0;
-			long[] timeEnds = new long[12];
+			long[] timeEnds = new long[TurnStatistics.PHASES.length];
+			long[] durations = new long[TurnStatistics.PHASES.length];
+			TurnStatistics turnStatistics = TurnStatistics.get();
 
 			while (keepRunning) {
 				stop = System.nanoTime();
@@ -612,11 +689,11 @@ public class RPServerManager extends Thread {
 				delay = turnDuration - ((stop - start) / 1000000);
 				if (delay < 0) {
 					StringBuilder sb = new StringBuilder();
-					for (long timeEnd : timeEnds) {
-						sb.append(" " + (timeEnd - timeStart));
+					for (int i = 0; i < durations.length - 1; i++) {
+						sb.append(" " + TurnStatistics.PHASES[i] + "=" + (durations[i] / 1000000));
 					}
 
-					logger.warn("Turn duration overflow by " + (-delay) + " ms: "
+					logger.warn("Turn duration overflow by " + (-delay) + " ms:"
 					        + sb.toString());
 				} else if (delay > turnDuration) {
 					logger.error("Delay bigger than Turn duration. [delay: " + delay
@@ -634,57 +711,74 @@ public class RPServerManager extends Thread {
 				}
 
 				start = System.nanoTime();
-				timeStart = System.currentTimeMillis();
 
 				playerContainer.getLock().requestWriteLock();
 
 				try {
-					timeEnds[0] = System.currentTimeMillis();
+					timeEnds[0] = System.nanoTime();
 
 					/* Get actions that players send */
 					scheduler.nextTurn();
-					timeEnds[1] = System.currentTimeMillis();
+					timeEnds[1] = System.nanoTime();
 
 					/* Execute them all */
-					scheduler.visit(ruleProcessor);
-					timeEnds[2] = System.currentTimeMillis();
+					if (zoneExecutor == null) {
+						scheduler.visit(ruleProcessor);
+					} else {
+						world.beginParallelPhase();
+						try {
+							scheduler.visit(ruleProcessor, zoneExecutor);
+						} finally {
+							world.endParallelPhase();
+						}
+					}
+					timeEnds[2] = System.nanoTime();
 
 					/* Compute game RP rules to move to the next turn */
 					ruleProcessor.endTurn();
-					timeEnds[3] = System.currentTimeMillis();
+					timeEnds[3] = System.nanoTime();
 
 					/* Send content that is waiting to players */
 					deliverTransferContent();
-					timeEnds[4] = System.currentTimeMillis();
+					timeEnds[4] = System.nanoTime();
 
 					/* Tell player what happened */
 					buildPerceptions();
-					timeEnds[5] = System.currentTimeMillis();
+					timeEnds[5] = System.nanoTime();
 
 					/* save players regularly to the db */
 					savePlayersPeriodicly();
-					timeEnds[6] = System.currentTimeMillis();
+					timeEnds[6] = System.nanoTime();
 
 					/* Move zone to the next turn */
-					world.nextTurn();
-					timeEnds[7] = System.currentTimeMillis();
+					if (zoneExecutor == null) {
+						world.nextTurn();
+					} else {
+						world.nextTurn(zoneExecutor);
+					}
+					timeEnds[7] = System.nanoTime();
 
 					turn++;
 
 					ruleProcessor.beginTurn();
-					timeEnds[8] = System.currentTimeMillis();
+					timeEnds[8] = System.nanoTime();
 				} finally {
 					playerContainer.getLock().releaseLock();
-					timeEnds[9] = System.currentTimeMillis();
 				}
 				try {
 					stats.set("Objects now", world.size());
 				} catch ( ConcurrentModificationException e) {
 					//TODO: size is obviously not threadsafe as it asks the underlying zone.objects for its sizes, which are not threadsafe.
 				}
-				timeEnds[10] = System.currentTimeMillis();
 				TransactionPool.get().kickHangingTransactionsOfThisThread();
-				timeEnds[11] = System.currentTimeMillis();
+				timeEnds[9] = System.nanoTime();
+
+				durations[0] = timeEnds[0] - start;
+				for (int i = 1; i < durations.length - 1; i++) {
+					durations[i] = timeEnds[i] - timeEnds[i - 1];
+				}
+				durations[durations.length - 1] = timeEnds[9] - start;
+				turnStatistics.recordTurn(turn, durations);
 			}
 		} catch (Throwable e) {
 			logger.error("Unhandled exception, server will shut down.", e);
@@ -694,21 +788,7 @@ public class RPServerManager extends Thread {
 	}
 
 	private void savePlayersPeriodicly() {
-		for (PlayerEntry entry : playerContainer) {
-			try {
-				// do not use = 0 because we need a little time until the
-				// player object is fully initialized (e. g. has a charname)
-				if (entry.getThisPerceptionTimestamp() % 2000 == 1999) {
-					entry.storeRPObject(entry.object);
-				}
-			} catch(Exception e) {
-				String name = "null";
-				if (entry != null) {
-					name = entry.character;
-				}
-				logger.error("Error while storing player " + name, e);
-			}
-		}
+		playerSaveScheduler.nextTurn(playerContainer);
 	}
 
 	/**
@@ -11,14 +11,19 @@
  ***************************************************************************/
 package marauroa.server.game.rp;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import marauroa.common.Log4J;
 import marauroa.common.game.IRPZone;
 import marauroa.common.game.RPObject;
 import marauroa.common.game.RPObjectInvalidException;
+import marauroa.server.game.TurnStatistics;
 import marauroa.server.game.container.PlayerEntry;
 import marauroa.server.game.container.PlayerEntryContainer;
 
@@ -54,6 +59,12 @@ public class RPWorld implements Iterable<IRPZone> {
 
 	IRPZone defaultZone;
 
+	/** true while zones are processed concurrently */
+	private volatile boolean parallelPhase;
+
+	/** changes of the world requested while zones are processed concurrently */
+	private final Queue<WorldChange> deferredChanges = new ConcurrentLinkedQueue<WorldChange>();
+
 	/**
 	 * creates a new RPWorld. Note this class is designed as a singleton.
 	 */
@@ -120,6 +131,7 @@ public class RPWorld implements Iterable<IRPZone> {
 	 *            a zone to add to world.
 	 */
 	public void addRPZone(IRPZone zone) {
+		checkSequentialPhase("addRPZone");
 		zones.put(zone.getID(), zone);
 	}
 
@@ -145,6 +157,7 @@ public class RPWorld implements Iterable<IRPZone> {
 	 * @param defaultZone default zone
 	 */
 	public void setDefaultZone(IRPZone defaultZone) {
+		checkSequentialPhase("setDefaultZone");
 		this.defaultZone = defaultZone;
 	}
 
@@ -190,6 +203,7 @@ public class RPWorld implements Iterable<IRPZone> {
 	 * @throws Exception caused by onFinish
 	 */
 	public IRPZone removeRPZone(IRPZone.ID zoneid) throws Exception {
+		checkSequentialPhase("removeRPZone");
 		IRPZone zone=zones.remove(zoneid);
 
 		if(zone!=null) {
@@ -208,6 +222,7 @@ public class RPWorld implements Iterable<IRPZone> {
 	 * @throws Exception caused by onFinish
 	 */
 	public IRPZone removeRPZone(RPObject.ID objectid) throws Exception {
+		checkSequentialPhase("removeRPZone");
 		IRPZone.ID zoneid=new IRPZone.ID(objectid.getZoneID());
 		IRPZone zone=zones.remove(zoneid);
 
@@ -221,11 +236,24 @@ public class RPWorld implements Iterable<IRPZone> {
 	/**
 	 * This method adds an object to the zone it points with its zoneid
 	 * attribute. And if it is a player, it request also a sync perception.
+	 * <p>
+	 * While zones are processed concurrently, the object is added, and gets
+	 * its id, when all zones have completed.
 	 *
 	 * @param object
 	 *            the object to add
 	 */
-	public void add(RPObject object) {
+	public void add(final RPObject object) {
+		if (parallelPhase) {
+			deferredChanges.add(new WorldChange(object) {
+				@Override
+				void apply(RPWorld world) {
+					world.add(object);
+				}
+			});
+			return;
+		}
+
 		String zoneid = object.get("zoneid");
 		if (zoneid != null) {
 			IRPZone zone = zones.get(new IRPZone.ID(zoneid));
@@ -281,14 +309,29 @@ public class RPWorld implements Iterable<IRPZone> {
 	/**
 	 * This method returns an object from a zone using it ID<object, zone> and
 	 * remove it
+	 * <p>
+	 * While zones are processed concurrently, the object is removed when all
+	 * zones have completed.
 	 *
 	 * @param id
 	 *            the object's id
 	 * @return the object or null if it not found.
 	 */
-	public RPObject remove(RPObject.ID id) {
+	public RPObject remove(final RPObject.ID id) {
 		IRPZone zone = zones.get(new IRPZone.ID(id.getZoneID()));
 		if (zone != null) {
+			if (parallelPhase) {
+				RPObject object = zone.get(id);
+				if (object != null) {
+					deferredChanges.add(new WorldChange(object) {
+						@Override
+						void apply(RPWorld world) {
+							world.remove(id);
+						}
+					});
+				}
+				return object;
+			}
 			return zone.remove(id);
 		}
 
@@ -322,6 +365,9 @@ public class RPWorld implements Iterable<IRPZone> {
 
 	/**
 	 * This methods make a player/object to change zone.
+	 * <p>
+	 * While zones are processed concurrently, the object changes the zone
+	 * when all zones have completed.
 	 *
 	 * @param newzoneid
 	 *            the new zone id
@@ -329,7 +375,19 @@ public class RPWorld implements Iterable<IRPZone> {
 	 *            the object we are going to change zone to.
 	 * @throws RPObjectInvalidException
 	 */
-	public void changeZone(IRPZone.ID newzoneid, RPObject object) {
+	public void changeZone(final IRPZone.ID newzoneid, final RPObject object) {
+		if (parallelPhase) {
+			// moving an object touches two zones, so it has to wait until
+			// the zones are not processed concurrently anymore
+			deferredChanges.add(new WorldChange(object) {
+				@Override
+				void apply(RPWorld world) {
+					world.changeZone(newzoneid, object);
+				}
+			});
+			return;
+		}
+
 		try {
 			String targetZoneid = newzoneid.getID();
 			if (targetZoneid.equals(object.get("zoneid"))) {
@@ -368,7 +426,80 @@ public class RPWorld implements Iterable<IRPZone> {
 	 */
 	public void nextTurn() {
 		for (IRPZone zone : zones.values()) {
-			zone.nextTurn();
+			nextTurn(zone);
+		}
+	}
+
+	/**
+	 * moves all zones to the next turn concurrently
+	 *
+	 * @param executor executor for the per zone tasks
+	 */
+	void nextTurn(TurnExecutor executor) {
+		List<Runnable> tasks = new ArrayList<Runnable>(zones.size());
+		for (final IRPZone zone : zones.values()) {
+			tasks.add(new Runnable() {
+				public void run() {
+					nextTurn(zone);
+				}
+			});
+		}
+		beginParallelPhase();
+		try {
+			executor.runAll(tasks);
+		} finally {
+			endParallelPhase();
+		}
+	}
+
+	/**
+	 * moves a zone to the next turn and reports the time it took
+	 *
+	 * @param zone zone
+	 */
+	private static void nextTurn(IRPZone zone) {
+		long start = System.nanoTime();
+		zone.nextTurn();
+		TurnStatistics.get().addZoneTime("world.nextTurn", zone.getID().getID(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Starts a phase in which zones are processed concurrently. Objects that
+	 * are added, removed or change the zone during this phase are applied by
+	 * endParallelPhase(). Zones cannot be added or removed.
+	 */
+	void beginParallelPhase() {
+		parallelPhase = true;
+	}
+
+	/**
+	 * Ends the phase in which zones are processed concurrently and applies
+	 * the changes that were requested during it, in the order they were
+	 * requested.
+	 */
+	void endParallelPhase() {
+		parallelPhase = false;
+
+		WorldChange change = deferredChanges.poll();
+		while (change != null) {
+			try {
+				change.apply(this);
+			} catch (RuntimeException e) {
+				logger.error("error applying deferred change of " + change.object, e);
+			}
+			change = deferredChanges.poll();
+		}
+	}
+
+	/**
+	 * rejects changes of the zones while zones are processed concurrently
+	 *
+	 * @param method name of the method
+	 * @throws IllegalStateException if zones are processed concurrently
+	 */
+	private void checkSequentialPhase(String method) {
+		if (parallelPhase) {
+			throw new IllegalStateException(method + " must not be called while zones are processed concurrently");
 		}
 	}
 
@@ -390,4 +521,24 @@ public class RPWorld implements Iterable<IRPZone> {
 		}
 		return (int) size;
 	}
+
+	/**
+	 * a change of the world that was requested while zones were processed
+	 * concurrently
+	 */
+	private abstract static class WorldChange {
+
+		final RPObject object;
+
+		WorldChange(RPObject object) {
+			this.object = object;
+		}
+
+		/**
+		 * applies the change
+		 *
+		 * @param world world
+		 */
+		abstract void apply(RPWorld world);
+	}
 }
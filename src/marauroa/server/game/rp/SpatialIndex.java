@@ -0,0 +1,187 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game.rp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import marauroa.common.game.RPObject;
+
+/**
+ * A uniform grid that indexes the objects of a zone by their position. It is
+ * used by MarauroaRPZone to build area of interest perceptions.
+ * <p>
+ * The position of an object is read from its <code>x</code> and
+ * <code>y</code> attributes. Objects that lack a position are kept in a
+ * separate set and are considered to be in range of every viewer.
+ * <p>
+ * This class is not thread safe, it is expected to be used only from the turn
+ * thread.
+ */
+class SpatialIndex {
+
+	/** name of the attribute holding the horizontal position */
+	static final String ATTR_X = "x";
+
+	/** name of the attribute holding the vertical position */
+	static final String ATTR_Y = "y";
+
+	/** size of each cell */
+	private final int cellSize;
+
+	/** objects per cell */
+	private final Map<Long, Set<RPObject>> cells;
+
+	/** the cell each positioned object is currently stored at */
+	private final Map<RPObject, Long> cellOfObject;
+
+	/** objects that don't have a position */
+	private final Set<RPObject> unpositioned;
+
+	/**
+	 * creates a new SpatialIndex
+	 *
+	 * @param cellSize size of each cell, it should be about the interest radius
+	 */
+	SpatialIndex(int cellSize) {
+		this.cellSize = Math.max(1, cellSize);
+		cells = new HashMap<Long, Set<RPObject>>();
+		cellOfObject = new IdentityHashMap<RPObject, Long>();
+		unpositioned = newIdentitySet();
+	}
+
+	private static Set<RPObject> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<RPObject, Boolean>());
+	}
+
+	/**
+	 * returns true if the object has a position
+	 *
+	 * @param object RPObject
+	 * @return true if it has a position
+	 */
+	static boolean hasPosition(RPObject object) {
+		return object.has(ATTR_X) && object.has(ATTR_Y);
+	}
+
+	private int cell(int coordinate) {
+		return Math.floorDiv(coordinate, cellSize);
+	}
+
+	private static long key(int cx, int cy) {
+		return (((long) cx) << 32) | (cy & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * adds an object to the index or moves it to its current cell
+	 *
+	 * @param object RPObject
+	 */
+	void update(RPObject object) {
+		if (!hasPosition(object)) {
+			remove(object);
+			unpositioned.add(object);
+			return;
+		}
+
+		unpositioned.remove(object);
+		Long newKey = Long.valueOf(key(cell(object.getInt(ATTR_X)), cell(object.getInt(ATTR_Y))));
+		Long oldKey = cellOfObject.get(object);
+		if (newKey.equals(oldKey)) {
+			return;
+		}
+
+		if (oldKey != null) {
+			removeFromCell(oldKey, object);
+		}
+
+		Set<RPObject> content = cells.get(newKey);
+		if (content == null) {
+			content = newIdentitySet();
+			cells.put(newKey, content);
+		}
+		content.add(object);
+		cellOfObject.put(object, newKey);
+	}
+
+	/**
+	 * removes an object from the index
+	 *
+	 * @param object RPObject
+	 */
+	void remove(RPObject object) {
+		unpositioned.remove(object);
+		Long oldKey = cellOfObject.remove(object);
+		if (oldKey != null) {
+			removeFromCell(oldKey, object);
+		}
+	}
+
+	private void removeFromCell(Long key, RPObject object) {
+		Set<RPObject> content = cells.get(key);
+		if (content != null) {
+			content.remove(object);
+			if (content.isEmpty()) {
+				cells.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Adds to the result all the objects that are within the square of the
+	 * given radius around the center. Objects without a position are always
+	 * added.
+	 *
+	 * @param x horizontal position of the center
+	 * @param y vertical position of the center
+	 * @param radius maximal distance on each axis
+	 * @param result list to add the objects to
+	 */
+	void query(int x, int y, int radius, List<RPObject> result) {
+		result.addAll(unpositioned);
+
+		int minX = cell(x - radius);
+		int maxX = cell(x + radius);
+		int minY = cell(y - radius);
+		int maxY = cell(y + radius);
+
+		for (int cx = minX; cx <= maxX; cx++) {
+			for (int cy = minY; cy <= maxY; cy++) {
+				Set<RPObject> content = cells.get(Long.valueOf(key(cx, cy)));
+				if (content == null) {
+					continue;
+				}
+
+				for (RPObject object : content) {
+					if ((Math.abs(object.getInt(ATTR_X) - x) <= radius)
+							&& (Math.abs(object.getInt(ATTR_Y) - y) <= radius)) {
+						result.add(object);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * returns all the objects known to this index
+	 *
+	 * @param result list to add the objects to
+	 */
+	void all(List<RPObject> result) {
+		result.addAll(unpositioned);
+		result.addAll(cellOfObject.keySet());
+	}
+}
@@ -0,0 +1,92 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game.rp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import marauroa.common.Log4J;
+
+/**
+ * Runs independent work of a turn concurrently, for example the work of each
+ * zone or the perception of each player. The tasks must not touch the same
+ * objects. The methods of this class return after all tasks have completed,
+ * so they act as a barrier in the turn.
+ * <p>
+ * This is only used when parallel processing is enabled with the
+ * <code>parallel_zone_threads</code> or <code>parallel_perception_threads</code>
+ * configuration settings.
+ */
+class TurnExecutor {
+
+	/** the logger instance. */
+	private static final marauroa.common.Logger logger = Log4J.getLogger(TurnExecutor.class);
+
+	/** the pool running the tasks */
+	private final ForkJoinPool pool;
+
+	/**
+	 * creates a new TurnExecutor
+	 *
+	 * @param threads number of worker threads
+	 */
+	TurnExecutor(int threads) {
+		pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Runs all tasks concurrently and waits for all of them to complete.
+	 * Exceptions thrown by a task are logged and do not affect the other
+	 * tasks.
+	 *
+	 * @param tasks the tasks to execute
+	 */
+	void runAll(Collection<? extends Runnable> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+
+		List<Callable<Void>> callables = new ArrayList<Callable<Void>>(tasks.size());
+		for (final Runnable task : tasks) {
+			callables.add(new Callable<Void>() {
+				public Void call() {
+					task.run();
+					return null;
+				}
+			});
+		}
+
+		List<Future<Void>> futures = pool.invokeAll(callables);
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				logger.warn("Interrupted while waiting for turn task", e);
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				logger.error("Error in turn task", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * stops the worker threads
+	 */
+	void shutdown() {
+		pool.shutdown();
+	}
+}
@@ -24,10 +24,13 @@ import marauroa.common.Logger;
 import marauroa.common.MarauroaUncaughtExceptionHandler;
 import marauroa.common.crypto.Hash;
 import marauroa.common.crypto.RSAKey;
+import marauroa.common.net.ZlibCodec;
+import marauroa.common.net.message.PerceptionDictionary;
 import marauroa.server.db.DatabaseConnectionException;
 import marauroa.server.db.command.DBCommandQueue;
 import marauroa.server.game.GameServerManager;
 import marauroa.server.game.Statistics;
+import marauroa.server.game.TurnStatistics;
 import marauroa.server.game.db.DatabaseFactory;
 import marauroa.server.game.rp.RPServerManager;
 import marauroa.server.net.INetworkServerManager;
@@ -314,6 +317,9 @@ public class marauroad extends Thread {
 
 		try {
 			Configuration.getConfiguration().get("x");
+			ZlibCodec.configure(Configuration.getConfiguration());
+			PerceptionDictionary.setEnabled(Boolean.parseBoolean(Configuration.getConfiguration().get("perception_dictionary", "true")));
+			TurnStatistics.get().configure(Configuration.getConfiguration());
 		} catch (IOException e) {
 			System.out.println("ERROR: Marauroa can't find configuration file.");
 			System.out.println("Run game configuration to get a valid \"server.ini\" file");
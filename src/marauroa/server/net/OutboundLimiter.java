@@ -0,0 +1,104 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.net;
+
+import marauroa.common.game.Perception;
+import marauroa.common.net.message.Message;
+import marauroa.common.net.message.MessageS2CPerception;
+
+/**
+ * Applies the limits to the data waiting to be sent to a slow client.
+ * <p>
+ * Clients above the hard limit are disconnected. Above the soft limit, DELTA
+ * perceptions are dropped until the client has caught up and a SYNC
+ * perception was sent to it. Each connection has its own limiter.
+ */
+public class OutboundLimiter {
+
+	/** what to do with a message */
+	public enum Decision {
+		/** send the message */
+		SEND,
+		/** drop the message */
+		DROP,
+		/** drop the message and request a SYNC perception for the client */
+		DROP_AND_REQUEST_SYNC,
+		/** drop the message and disconnect the client */
+		CLOSE
+	}
+
+	/** true if DELTA perceptions were dropped and the client needs a SYNC perception */
+	private boolean syncPending;
+
+	/** true if the SYNC perception has been requested for the client */
+	private boolean syncRequested;
+
+	/**
+	 * decides what to do with a message
+	 *
+	 * @param queued bytes waiting to be sent to the client
+	 * @param msg the message to send
+	 * @param softLimit queued bytes above which DELTA perceptions are dropped, 0 for no limit
+	 * @param hardLimit queued bytes above which the client is disconnected, 0 for no limit
+	 * @return decision
+	 */
+	public synchronized Decision check(long queued, Message msg, long softLimit, long hardLimit) {
+		if ((hardLimit > 0) && (queued > hardLimit)) {
+			return Decision.CLOSE;
+		}
+
+		if ((softLimit <= 0) || !(msg instanceof MessageS2CPerception)) {
+			return Decision.SEND;
+		}
+
+		MessageS2CPerception perception = (MessageS2CPerception) msg;
+		if (perception.getPerceptionType() == Perception.SYNC) {
+			syncPending = false;
+			syncRequested = false;
+			return Decision.SEND;
+		}
+
+		if (syncPending) {
+			// the client has caught up, the next perception will be a SYNC
+			if ((queued <= softLimit) && !syncRequested) {
+				syncRequested = true;
+				return Decision.DROP_AND_REQUEST_SYNC;
+			}
+			return Decision.DROP;
+		}
+
+		if (queued > softLimit) {
+			syncPending = true;
+			return Decision.DROP;
+		}
+
+		return Decision.SEND;
+	}
+
+	/**
+	 * returns true if DELTA perceptions are dropped until a SYNC perception was sent
+	 *
+	 * @return true if the client needs a SYNC perception
+	 */
+	public synchronized boolean isSyncPending() {
+		return syncPending;
+	}
+
+	/**
+	 * returns true if the SYNC perception has been requested for the client
+	 *
+	 * @return true if the SYNC perception has been requested
+	 */
+	public synchronized boolean isSyncRequested() {
+		return syncRequested;
+	}
+}
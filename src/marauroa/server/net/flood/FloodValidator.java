@@ -12,9 +12,9 @@
 package marauroa.server.net.flood;
 
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import marauroa.common.Log4J;
 import marauroa.common.net.Channel;
@@ -51,7 +51,7 @@ public class FloodValidator implements IDisconnectedListener, Iterable<FloodMeas
 	public FloodValidator(INetworkServerManager netMan, IFloodCheck check) {
 		this.netMan = netMan;
 		this.floodCheck = check;
-		connections = new HashMap<Channel, FloodMeasure>();
+		connections = new ConcurrentHashMap<Channel, FloodMeasure>();
 	}
 
 	/**
@@ -25,7 +25,7 @@ class DataEvent {
 	/** Associated socket channel */
 	public SocketChannel channel;
 
-	/** Data associated to the event */
+	/** Data associated to the event, null if the connection was closed */
 	public byte[] data;
 
 	/** Constructor
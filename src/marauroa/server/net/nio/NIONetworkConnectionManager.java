@@ -15,8 +15,11 @@ package marauroa.server.net.nio;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import marauroa.common.Configuration;
@@ -24,14 +27,16 @@ import marauroa.common.Log4J;
 import marauroa.common.Utility;
 import marauroa.common.net.Channel;
 import marauroa.common.net.ConnectionManager;
-import marauroa.common.net.Decoder;
 import marauroa.common.net.Encoder;
+import marauroa.common.net.FrameDecoder;
 import marauroa.common.net.InvalidVersionException;
 import marauroa.common.net.NetConst;
 import marauroa.common.net.message.Message;
 import marauroa.common.net.message.MessageS2CConnectNACK;
 import marauroa.common.net.message.MessageS2CInvalidMessage;
 import marauroa.server.game.Statistics;
+import marauroa.server.game.container.PlayerEntry;
+import marauroa.server.game.container.PlayerEntryContainer;
 import marauroa.server.net.INetworkServerManager;
 import marauroa.server.net.IServerManager;
 import marauroa.server.net.flood.FloodValidator;
@@ -54,7 +59,7 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 	private NioServer server;
 
 	/** While keepRunning is true, we keep receiving messages */
-	private boolean keepRunning;
+	private volatile boolean keepRunning;
 
 	/** isFinished is true when the thread has really exited. */
 	private boolean isFinished;
@@ -65,18 +70,36 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 	/** Checks if a connection is flooding the server */
 	private final FloodValidator floodValidator;
 
-	/** We queue here the data events. */
-	private final BlockingQueue<DataEvent> queue;
+	/**
+	 * We queue here the data events. There is one queue per decoding thread,
+	 * the first one is processed by this thread.
+	 */
+	private final List<BlockingQueue<DataEvent>> queues;
+
+	/** additional threads decoding the data events */
+	private final List<DecodeWorker> decodeWorkers;
 
 	/** encoder is in charge of getting a Message and creating a stream of bytes. */
 	private final Encoder encoder;
 
-	/** decoder takes a stream of bytes and create a message */
-	private final Decoder decoder;
+	/** the frame decoder of each connection, it takes a stream of bytes and create messages */
+	private final Map<SocketChannel, FrameDecoder> decoders;
 
 	/** the central server manager */
 	private final IServerManager serverManager;
 
+	/**
+	 * number of bytes waiting to be sent to a client above which DELTA
+	 * perceptions are dropped, 0 to never drop them
+	 */
+	private final int outboundSoftLimit;
+
+	/**
+	 * number of bytes waiting to be sent to a client above which it is
+	 * disconnected, 0 to never disconnect
+	 */
+	private final int outboundHardLimit;
+
 	/**
 	 * Constructor
 	 *
@@ -84,6 +107,29 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 	 *             if there any exception when starting the socket server.
 	 */
 	public NIONetworkConnectionManager(IServerManager serverManager) throws IOException {
+		this(serverManager, Configuration.getConfiguration());
+	}
+
+	private NIONetworkConnectionManager(IServerManager serverManager, Configuration conf) throws IOException {
+		this(serverManager, Integer.parseInt(conf.get("tcp_port")), conf.getInt("decode_threads", 1),
+				conf.getInt("nio_reactor_threads", 0), conf.getInt("outbound_soft_limit", 0),
+				conf.getInt("outbound_hard_limit", 0));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param serverManager the central server manager, which has to be an INetworkServerManager as well
+	 * @param port port to listen on
+	 * @param decodeThreads number of threads decoding received data
+	 * @param reactorThreads number of reactor threads of the NioServer, 0 for none
+	 * @param outboundSoftLimit queued bytes above which DELTA perceptions are dropped, 0 for no limit
+	 * @param outboundHardLimit queued bytes above which clients are disconnected, 0 for no limit
+	 * @throws IOException
+	 *             if there any exception when starting the socket server.
+	 */
+	NIONetworkConnectionManager(IServerManager serverManager, int port, int decodeThreads,
+			int reactorThreads, int outboundSoftLimit, int outboundHardLimit) throws IOException {
 		super("NetworkServerManager");
 
 		/* create a flood check on connections */
@@ -94,16 +140,28 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 		isFinished = false;
 
 		encoder = Encoder.get();
-		decoder = Decoder.get();
+		decoders = new ConcurrentHashMap<SocketChannel, FrameDecoder>();
 
 		stats = Statistics.getStatistics();
-		queue = new LinkedBlockingQueue<DataEvent>();
+
+		decodeThreads = Math.max(1, decodeThreads);
+		queues = new ArrayList<BlockingQueue<DataEvent>>(decodeThreads);
+		decodeWorkers = new ArrayList<DecodeWorker>(decodeThreads - 1);
+		for (int i = 0; i < decodeThreads; i++) {
+			BlockingQueue<DataEvent> queue = new LinkedBlockingQueue<DataEvent>();
+			queues.add(queue);
+			if (i > 0) {
+				DecodeWorker worker = new DecodeWorker("NetworkServerManager decoder " + i, queue);
+				decodeWorkers.add(worker);
+				worker.start();
+			}
+		}
 
 		logger.debug("NetworkServerManager started successfully");
 
-		Configuration conf = Configuration.getConfiguration();
-		int port = Integer.parseInt(conf.get("tcp_port"));
-		server = new NioServer(null, port, this);
+		this.outboundSoftLimit = outboundSoftLimit;
+		this.outboundHardLimit = outboundHardLimit;
+		server = new NioServer(null, port, this, reactorThreads);
 		server.start();
 
 		// Register network listener for get disconnection events.
@@ -132,6 +190,9 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 
 		server.finish();
 		interrupt();
+		for (DecodeWorker worker : decodeWorkers) {
+			worker.interrupt();
+		}
 	}
 
 	public boolean isFinished() {
@@ -207,7 +268,7 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 			byte[] dataCopy = new byte[count];
 			System.arraycopy(data, 0, dataCopy, 0, count);
 			try {
-				queue.put(new DataEvent(channel, dataCopy));
+				getQueue(channel).put(new DataEvent(channel, dataCopy));
 			} catch (InterruptedException e) {
 				/* This is never going to happen */
 				logger.error("Not expected",e);
@@ -233,12 +294,17 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 				        + " full [" + msg + "]");
 			}
 
+			SocketChannel socket = (SocketChannel) internalChannel;
+			if (!checkOutboundLimits(socket, msg)) {
+				return;
+			}
+
 			byte[] data = encoder.encode(msg);
 
 			stats.add("Bytes send", data.length);
 			stats.add("Message send", 1);
 
-			server.send((SocketChannel) internalChannel, data);
+			server.send(socket, data);
 		} catch (IOException e) {
 			// I am not interested in the exception. NioServer will detect this
 			// and close connection
@@ -247,6 +313,48 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 	}
 
 
+	/**
+	 * Applies the limits to the data waiting to be sent to a slow client.
+	 * Clients above the hard limit are disconnected. Above the soft limit,
+	 * DELTA perceptions are dropped until the client has caught up and a SYNC
+	 * perception was sent to it.
+	 *
+	 * @param socket the socket to the client
+	 * @param msg the message to send
+	 * @return true if the message should be sent, false if it is dropped
+	 */
+	private boolean checkOutboundLimits(SocketChannel socket, Message msg) {
+		NioConnection connection = server.getConnection(socket);
+		if (connection == null) {
+			return true;
+		}
+
+		long queued = connection.getQueuedBytes();
+		switch (connection.limiter.check(queued, msg, outboundSoftLimit, outboundHardLimit)) {
+			case CLOSE:
+				logger.warn("Disconnecting " + socket.socket().getRemoteSocketAddress() + " because "
+						+ queued + " bytes are waiting to be sent to it");
+				stats.add("Outbound slow clients disconnected", 1);
+				close(socket);
+				return false;
+
+			case DROP_AND_REQUEST_SYNC:
+				PlayerEntry entry = PlayerEntryContainer.getContainer().get(msg.getChannel());
+				if (entry != null) {
+					entry.requestSync();
+				}
+				stats.add("Outbound perceptions dropped", 1);
+				return false;
+
+			case DROP:
+				stats.add("Outbound perceptions dropped", 1);
+				return false;
+
+			default:
+				return true;
+		}
+	}
+
 	/**
 	 * This method disconnect a socket.
 	 *
@@ -261,37 +369,24 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 		}
 	}
 
+	/**
+	 * Gets the queue of the thread decoding the data of a channel. All data
+	 * of a channel is decoded by the same thread, so the messages of a
+	 * connection keep their order.
+	 *
+	 * @param channel the channel
+	 * @return queue
+	 */
+	private BlockingQueue<DataEvent> getQueue(SocketChannel channel) {
+		return queues.get((channel.hashCode() & Integer.MAX_VALUE) % queues.size());
+	}
+
 	@Override
 	public void run() {
 		try {
+			BlockingQueue<DataEvent> queue = queues.get(0);
 			while (keepRunning) {
-				DataEvent event = queue.take();
-
-				try {
-					List<Message> recvMessages = decoder.decode(event.channel, event.data);
-					if (recvMessages != null) {
-						for (Message msg : recvMessages) {
-							if (logger.isDebugEnabled()) {
-								logger.debug("recv message(type=" + msg.getType() + ") from "
-								        + msg.getClientID() + " full [" + msg + "]");
-							}
-							serverManager.onMessage(this, event.channel, msg);
-						}
-					}
-				} catch (InvalidVersionException e) {
-					logger.warn("Invalid version message: \n" + Utility.dumpByteArray(event.data), e);
-					logger.warn("sender was: " + event.channel.socket().getRemoteSocketAddress());
-					stats.add("Message invalid version", 1);
-					MessageS2CInvalidMessage invMsg = new MessageS2CInvalidMessage(null, "Invalid client version: Update client");
-					invMsg.setProtocolVersion(e.getProtocolVersion());
-					send(event.channel, invMsg, true);
-				} catch (IOException e) {
-					logger.warn("IOException while building message:\n" + Utility.dumpByteArray(event.data), e);
-					logger.warn("sender was: " + event.channel.socket().getRemoteSocketAddress());
-				} catch (RuntimeException e) {
-					logger.warn("RuntimeException while building message:\n" + Utility.dumpByteArray(event.data), e);
-					logger.warn("sender was: " + event.channel.socket().getRemoteSocketAddress());
-				}
+				decode(queue.take());
 			}
 		} catch (InterruptedException e) {
 			logger.warn(getName()+" interrupted. Finishing network layer.");
@@ -301,6 +396,52 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 		isFinished = true;
 	}
 
+	/**
+	 * decodes the received data and passes the completed messages to the
+	 * server manager
+	 *
+	 * @param event data event
+	 */
+	private void decode(DataEvent event) {
+		if (event.data == null) {
+			// the connection was closed, all its data has been processed
+			decoders.remove(event.channel);
+			return;
+		}
+
+		FrameDecoder decoder = decoders.get(event.channel);
+		if (decoder == null) {
+			decoder = new FrameDecoder();
+			decoders.put(event.channel, decoder);
+		}
+
+		try {
+			List<Message> recvMessages = decoder.decode(event.data, 0, event.data.length);
+			if (recvMessages != null) {
+				for (Message msg : recvMessages) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("recv message(type=" + msg.getType() + ") from "
+						        + msg.getClientID() + " full [" + msg + "]");
+					}
+					serverManager.onMessage(this, event.channel, msg);
+				}
+			}
+		} catch (InvalidVersionException e) {
+			logger.warn("Invalid version message: \n" + Utility.dumpByteArray(event.data), e);
+			logger.warn("sender was: " + event.channel.socket().getRemoteSocketAddress());
+			stats.add("Message invalid version", 1);
+			MessageS2CInvalidMessage invMsg = new MessageS2CInvalidMessage(null, "Invalid client version: Update client");
+			invMsg.setProtocolVersion(e.getProtocolVersion());
+			send(event.channel, invMsg, true);
+		} catch (IOException e) {
+			logger.warn("IOException while building message:\n" + Utility.dumpByteArray(event.data), e);
+			logger.warn("sender was: " + event.channel.socket().getRemoteSocketAddress());
+		} catch (RuntimeException e) {
+			logger.warn("RuntimeException while building message:\n" + Utility.dumpByteArray(event.data), e);
+			logger.warn("sender was: " + event.channel.socket().getRemoteSocketAddress());
+		}
+	}
+
 	/**
 	 * Removes stored parts of message for this channel at the decoder.
 	 *
@@ -309,8 +450,40 @@ public final class NIONetworkConnectionManager extends Thread implements IWorker
 	 */
 	public void onDisconnect(SocketChannel channel) {
 		logger.info("NET Disconnecting " + channel.socket().getRemoteSocketAddress());
-		decoder.clear(channel);
+		try {
+			// the decoder of the connection is dropped after its queued data
+			getQueue(channel).put(new DataEvent(channel, null));
+		} catch (InterruptedException e) {
+			/* This is never going to happen */
+			logger.error("Not expected",e);
+		}
 		serverManager.onDisconnect(this, channel);
 	}
 
+
+	/**
+	 * an additional thread decoding the data of the connections assigned to
+	 * it
+	 */
+	private final class DecodeWorker extends Thread {
+
+		private final BlockingQueue<DataEvent> queue;
+
+		DecodeWorker(String name, BlockingQueue<DataEvent> queue) {
+			super(name);
+			setDaemon(true);
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (keepRunning) {
+					decode(queue.take());
+				}
+			} catch (InterruptedException e) {
+				logger.debug(getName() + " interrupted.");
+			}
+		}
+	}
 }
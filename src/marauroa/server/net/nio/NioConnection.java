@@ -0,0 +1,177 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.net.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import marauroa.server.net.OutboundLimiter;
+
+/**
+ * The output side of a connection handled by NioServer.
+ * <p>
+ * Any thread may queue data with <code>offer</code>, without locking. The data
+ * is written by the reactor thread with gathering writes, so that all the
+ * messages queued for a connection since the last write leave in as few
+ * system calls as possible.
+ * <p>
+ * A connection is bound to the reactor that registered it; only the thread of
+ * that reactor writes to it.
+ */
+class NioConnection {
+
+	/** maximal number of buffers passed to a single gathering write */
+	private static final int MAX_GATHER = 64;
+
+	/** the socket of this connection */
+	final SocketChannel socket;
+
+	/** the reactor handling this connection */
+	final NioServer.Reactor reactor;
+
+	/** data queued by any thread */
+	private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/** data taken from the queue but not completely written yet, only used by the reactor thread */
+	private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+
+	/** reused array for the gathering writes */
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	/** true while this connection is waiting for the reactor thread to write */
+	private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+
+	/** number of bytes queued but not written yet */
+	private final AtomicLong queuedBytes = new AtomicLong();
+
+	/** true once closing this connection was requested */
+	private final AtomicBoolean closeRequested = new AtomicBoolean(false);
+
+	/** the limits of the data waiting to be written */
+	final OutboundLimiter limiter = new OutboundLimiter();
+
+	/**
+	 * creates a new NioConnection
+	 *
+	 * @param socket the socket of this connection
+	 * @param reactor the reactor handling this connection
+	 */
+	NioConnection(SocketChannel socket, NioServer.Reactor reactor) {
+		this.socket = socket;
+		this.reactor = reactor;
+	}
+
+	/**
+	 * Queues data to be sent.
+	 *
+	 * @param data data to send
+	 * @return true if the reactor has to be told about this
+	 *         connection, false if it already knows
+	 */
+	boolean offer(ByteBuffer data) {
+		queuedBytes.addAndGet(data.remaining());
+		queue.add(data);
+		return writeRequested.compareAndSet(false, true);
+	}
+
+	/**
+	 * Writes as much of the queued data as the socket accepts.
+	 *
+	 * @return true if all data was written, false if the socket buffer is full
+	 * @throws IOException in case of an input/output error
+	 */
+	boolean write() throws IOException {
+		while (true) {
+			ByteBuffer next = queue.poll();
+			while (next != null) {
+				writing.add(next);
+				next = queue.poll();
+			}
+
+			if (writing.isEmpty()) {
+				writeRequested.set(false);
+
+				// data may have been queued between the poll and the reset
+				if (queue.isEmpty() || !writeRequested.compareAndSet(false, true)) {
+					return true;
+				}
+				continue;
+			}
+
+			int count = 0;
+			Iterator<ByteBuffer> it = writing.iterator();
+			while (it.hasNext() && (count < MAX_GATHER)) {
+				gather[count] = it.next();
+				count++;
+			}
+
+			long written = socket.write(gather, 0, count);
+			queuedBytes.addAndGet(-written);
+
+			for (int i = 0; i < count; i++) {
+				gather[i] = null;
+			}
+
+			while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) {
+				writing.removeFirst();
+			}
+
+			if ((written == 0) && !writing.isEmpty()) {
+				// the socket's buffer is full
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * returns true if there is data waiting to be written
+	 *
+	 * @return true if there is data waiting to be written
+	 */
+	boolean hasPendingData() {
+		return !writing.isEmpty() || !queue.isEmpty();
+	}
+
+	/**
+	 * drops all data waiting to be written
+	 */
+	void clear() {
+		writing.clear();
+		queue.clear();
+		queuedBytes.set(0);
+	}
+
+	/**
+	 * gets the number of bytes waiting to be written
+	 *
+	 * @return number of bytes waiting to be written
+	 */
+	long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * marks this connection as closing
+	 *
+	 * @return true if this was the first request to close this connection
+	 */
+	boolean requestClose() {
+		return closeRequested.compareAndSet(false, true);
+	}
+}
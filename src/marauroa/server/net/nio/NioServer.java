@@ -16,29 +16,38 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import marauroa.common.Log4J;
+import marauroa.server.game.Statistics;
 
 /**
  * This class is the basic schema for a nio server. It works in a pattern of
  * master/slave.
+ * <p>
+ * By default a single thread accepts, reads and writes all connections. If a
+ * number of reactor threads is specified, this thread only accepts new
+ * connections and hands them round-robin to the reactors, each of which owns
+ * a selector and a read buffer for its connections.
  *
  * @author miguel
  *
  */
 class NioServer extends Thread {
-	private static final int BACKLOG_WARNING_SIZE = 10;
 
 	/** the logger instance. */
 	private static final marauroa.common.Logger logger = Log4J.getLogger(NioServer.class);
@@ -49,36 +58,64 @@ class NioServer extends Thread {
 	private final int port;
 
 	/** While keepRunning is true, we keep receiving messages */
-	private boolean keepRunning;
+	private volatile boolean keepRunning;
 
 	/** isFinished is true when the thread has really exited. */
-	private boolean isFinished;
+	private volatile boolean isFinished;
 
 	/** The channel on which we'll accept connections */
 	private ServerSocketChannel serverChannel;
 
-	/** The selector we'll be monitoring */
+	/** The selector we'll be monitoring for new connections */
 	private final Selector selector;
 
-	/** The buffer into which we'll read data when it's available */
-	private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
-
 	/**
 	 * This is the slave associated with this master. As it is a simple thread,
 	 * we only need one slave.
 	 */
 	private final IWorker worker;
 
-	/** A list of PendingChange instances */
-	private final List<ChangeRequest> pendingChanges = new LinkedList<ChangeRequest>();
+	/** Maps a SocketChannel to its connection */
+	private final Map<SocketChannel, NioConnection> connections = new ConcurrentHashMap<SocketChannel, NioConnection>();
+
+	/** the reactors handling the connections */
+	private final List<Reactor> reactors;
+
+	/** the reactor run by this thread in single threaded mode, null otherwise */
+	private final Reactor ownReactor;
 
-	private final List<ChangeRequest> pendingClosed;
+	/** the threads of the reactors in multi threaded mode */
+	private final List<Thread> reactorThreads;
 
-	/** Maps a SocketChannel to a list of ByteBuffer instances */
-	private final Map<SocketChannel, List<ByteBuffer>> pendingData = new HashMap<SocketChannel, List<ByteBuffer>>();
+	/** round robin counter to assign connections to reactors */
+	private int nextReactor;
 
+	/** when the queue statistics were published the last time */
+	private final AtomicLong lastStatistics = new AtomicLong();
 
+	/**
+	 * creates a new NioServer with a single thread
+	 *
+	 * @param hostAddress address to listen on, null for all addresses
+	 * @param port port to listen on
+	 * @param worker worker to process the events
+	 * @throws IOException in case of an input/output error
+	 */
 	public NioServer(InetAddress hostAddress, int port, IWorker worker) throws IOException {
+		this(hostAddress, port, worker, 0);
+	}
+
+	/**
+	 * creates a new NioServer
+	 *
+	 * @param hostAddress address to listen on, null for all addresses
+	 * @param port port to listen on
+	 * @param worker worker to process the events
+	 * @param reactorCount number of reactor threads, 0 to handle everything in
+	 *        this thread
+	 * @throws IOException in case of an input/output error
+	 */
+	public NioServer(InetAddress hostAddress, int port, IWorker worker, int reactorCount) throws IOException {
 		super("NioServer");
 
 		keepRunning = true;
@@ -90,7 +127,29 @@ class NioServer extends Thread {
 		this.worker = worker;
 		this.worker.setServer(this);
 
-		pendingClosed = new LinkedList<ChangeRequest>();
+		reactors = new ArrayList<Reactor>();
+		reactorThreads = new ArrayList<Thread>();
+		if (reactorCount <= 0) {
+			ownReactor = new Reactor(selector);
+			reactors.add(ownReactor);
+		} else {
+			ownReactor = null;
+			for (int i = 0; i < reactorCount; i++) {
+				Reactor reactor = new Reactor(SelectorProvider.provider().openSelector());
+				reactors.add(reactor);
+				Thread thread = new Thread(reactor, "NioServer reactor " + i);
+				thread.setDaemon(true);
+				reactorThreads.add(thread);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void start() {
+		for (Thread thread : reactorThreads) {
+			thread.start();
+		}
+		super.start();
 	}
 
 	/**
@@ -101,15 +160,68 @@ class NioServer extends Thread {
 	 *            the channel to close.
 	 */
 	public void close(SocketChannel channel) {
+		NioConnection connection = connections.get(channel);
+		if ((connection != null) && !connection.requestClose()) {
+			// already closing
+			return;
+		}
+
 		worker.onDisconnect(channel);
 
-		// We ask the server to close the channel
-		synchronized (this.pendingClosed) {
-			pendingClosed.add(new ChangeRequest(channel, ChangeRequest.CLOSE, 0));
+		// We ask the reactor of the connection to close the channel
+		Reactor reactor = reactors.get(0);
+		if (connection != null) {
+			reactor = connection.reactor;
 		}
+		reactor.requestClose(channel);
+	}
 
-		// Wake up to make the closure effective.
-		selector.wakeup();
+	/**
+	 * gets the connection of a socket
+	 *
+	 * @param socket the socketchannel
+	 * @return the connection or null if the socket is unknown
+	 */
+	NioConnection getConnection(SocketChannel socket) {
+		return connections.get(socket);
+	}
+
+	/**
+	 * gets the number of bytes waiting to be sent on a socket
+	 *
+	 * @param socket the socketchannel
+	 * @return number of bytes waiting to be sent
+	 */
+	public long getQueuedBytes(SocketChannel socket) {
+		NioConnection connection = connections.get(socket);
+		if (connection == null) {
+			return 0;
+		}
+		return connection.getQueuedBytes();
+	}
+
+	/**
+	 * publishes the size of the outbound queues to the statistics, at most
+	 * once per second
+	 */
+	private void publishStatistics() {
+		long now = System.currentTimeMillis();
+		long last = lastStatistics.get();
+		if ((now - last < 1000) || !lastStatistics.compareAndSet(last, now)) {
+			return;
+		}
+
+		long total = 0;
+		long max = 0;
+		for (NioConnection connection : connections.values()) {
+			long queued = connection.getQueuedBytes();
+			total += queued;
+			max = Math.max(max, queued);
+		}
+
+		Statistics stats = Statistics.getStatistics();
+		stats.set("Outbound queued bytes", (int) Math.min(total, Integer.MAX_VALUE));
+		stats.set("Outbound queued bytes max", (int) Math.min(max, Integer.MAX_VALUE));
 	}
 
 	/**
@@ -121,28 +233,17 @@ class NioServer extends Thread {
 	 *            a byte array of data to send
 	 */
 	public void send(SocketChannel socket, byte[] data) {
-		synchronized (this.pendingChanges) {
-			// Indicate we want the interest ops set changed
-			this.pendingChanges.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS,
-			        SelectionKey.OP_WRITE));
-
-			// And queue the data we want written
-			synchronized (this.pendingData) {
-				List<ByteBuffer> queue = this.pendingData.get(socket);
-				if (queue == null) {
-					queue = new ArrayList<ByteBuffer>();
-					this.pendingData.put(socket, queue);
-				}
-				queue.add(ByteBuffer.wrap(data));
-				if (queue.size() > BACKLOG_WARNING_SIZE) {
-					logger.debug(socket + ": " + queue.size());
-				}
-			}
+		NioConnection connection = connections.get(socket);
+		if (connection == null) {
+			logger.debug("Ignoring data for unknown connection " + socket);
+			return;
 		}
 
-		// Finally, wake up our selecting thread so it can make the required
-		// changes
-		this.selector.wakeup();
+		// Queue the data we want written. Only the first message since the
+		// last write needs to tell the reactor about the connection.
+		if (connection.offer(ByteBuffer.wrap(data))) {
+			connection.reactor.requestWrite(connection);
+		}
 	}
 
 	/**
@@ -152,13 +253,27 @@ class NioServer extends Thread {
 		keepRunning = false;
 
 		selector.wakeup();
+		for (Reactor reactor : reactors) {
+			reactor.selector.wakeup();
+		}
 
 		while (!(isFinished)) {
 			Thread.yield();
 		}
 
+		for (Thread thread : reactorThreads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
 		try {
 			selector.close();
+			for (Reactor reactor : reactors) {
+				reactor.selector.close();
+			}
 		} catch (IOException e) {
 			// We really don't care about the exception.
 		}
@@ -166,74 +281,24 @@ class NioServer extends Thread {
 
 	@Override
 	public void run() {
+		if (ownReactor != null) {
+			ownReactor.run();
+			isFinished = true;
+			return;
+		}
+
 		while (keepRunning) {
 			try {
-				// Process any pending changes
-				synchronized (this.pendingChanges) {
-					Iterator<?> changes = this.pendingChanges.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = (ChangeRequest) changes.next();
-						if (change.socket.isConnected()) {
-							if (change.type == ChangeRequest.CHANGEOPS) {
-								SelectionKey key = change.socket.keyFor(this.selector);
-								if ((key != null) && key.isValid()) {
-									key.interestOps(change.ops);
-								}
-							}
-						}
-					}
-					this.pendingChanges.clear();
-				}
-
-				synchronized (this.pendingClosed) {
-					Iterator<?> it = pendingClosed.iterator();
-					while (it.hasNext()) {
-						ChangeRequest change = (ChangeRequest) it.next();
-						if (change.socket.isConnected()) {
-							if (change.type == ChangeRequest.CLOSE) {
-								try {
-									// Force data to be sent if there is data waiting.
-									if (pendingData.containsKey(change.socket)) {
-										SelectionKey key = change.socket.keyFor(selector);
-										if ((key != null) && key.isValid()) {
-											write(key);
-										}
-									}
-
-									// Close the socket
-									change.socket.close();
-									} catch (Exception e) {
-										logger.info("Exception happened when closing socket", e);
-									}
-									break;
-							}
-						} else {
-							logger.info("Closing a not connected socket");
-						}
-					}
-					pendingClosed.clear();
-				}
-
-				// Wait for an event one of the registered channels
+				// Wait for new connections
 				this.selector.select();
 
-				// Iterate over the set of keys for which events are available
-				Iterator<?> selectedKeys = this.selector.selectedKeys().iterator();
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
 				while (selectedKeys.hasNext()) {
-					SelectionKey key = (SelectionKey) selectedKeys.next();
+					SelectionKey key = selectedKeys.next();
 					selectedKeys.remove();
 
-					if (!key.isValid()) {
-						continue;
-					}
-
-					// Check what event is available and deal with it
-					if (key.isAcceptable()) {
+					if (key.isValid() && key.isAcceptable()) {
 						this.accept(key);
-					} else if (key.isReadable()) {
-						this.read(key);
-					} else if (key.isWritable()) {
-						this.write(key);
 					}
 				}
 			} catch (IOException e) {
@@ -253,110 +318,250 @@ class NioServer extends Thread {
 
 		// Accept the connection and make it non-blocking
 		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null) {
+			return;
+		}
 		socketChannel.configureBlocking(false);
 
-		// Register the new SocketChannel with our Selector, indicating
-		// we'd like to be notified when there's data waiting to be read
-		socketChannel.register(this.selector, SelectionKey.OP_READ);
+		Reactor reactor = reactors.get(nextReactor);
+		nextReactor = (nextReactor + 1) % reactors.size();
+
+		NioConnection connection = new NioConnection(socketChannel, reactor);
+		connections.put(socketChannel, connection);
 
 		worker.onConnect(socketChannel);
+
+		// Register the new SocketChannel with the selector of the reactor,
+		// indicating we'd like to be notified when there's data waiting to
+		// be read
+		reactor.requestRegister(connection);
 	}
 
-	private void read(SelectionKey key) {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
+	private Selector initSelector() throws IOException {
+		// Create a new selector
+		Selector socketSelector = SelectorProvider.provider().openSelector();
 
-		// Clear out our read buffer so it's ready for new data
-		java8Compatibility(this.readBuffer).clear();
+		// Create a new non-blocking server socket channel
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
 
-		// Attempt to read off the channel
-		int numRead;
-		try {
-			numRead = socketChannel.read(this.readBuffer);
-		} catch (IOException e) {
-			// The remote forcibly closed the connection, cancel
-			// the selection key and close the channel.
-			logger.debug("Remote closed connnection", e);
-			key.cancel();
+		// Bind the server socket to the specified address and port
+		InetSocketAddress isa = new InetSocketAddress(this.hostAddress, this.port);
+		serverChannel.socket().bind(isa);
+		serverChannel.socket().setPerformancePreferences(0, 2, 1);
 
-			close(socketChannel);
+		// Register the server socket channel, indicating an interest in
+		// accepting new connections
+		serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
 
-			return;
+		return socketSelector;
+	}
+
+	private Buffer java8Compatibility(ByteBuffer buffer) {
+		return buffer;
+	}
+
+	/**
+	 * A reactor reads and writes the connections assigned to it. Only the
+	 * thread running the reactor touches its selector and its read buffer,
+	 * other threads hand their requests over through lock-free queues.
+	 */
+	class Reactor implements Runnable {
+
+		/** The selector we'll be monitoring */
+		final Selector selector;
+
+		/** The buffer into which we'll read data when it's available */
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+		/** connections waiting to be registered at the selector */
+		private final Queue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<NioConnection>();
+
+		/** connections with data that was queued since this reactor looked last */
+		private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<NioConnection>();
+
+		/** sockets waiting to be closed */
+		private final Queue<SocketChannel> pendingClosed = new ConcurrentLinkedQueue<SocketChannel>();
+
+		/** true if the selector has already been woken up for the queued requests */
+		private final AtomicBoolean wakeupRequested = new AtomicBoolean(false);
+
+		Reactor(Selector selector) {
+			this.selector = selector;
 		}
 
-		if (numRead == -1) {
-			// Remote entity shut the socket down cleanly. Do the
-			// same from our end and cancel the channel.
-			logger.debug("Remote closed connnection cleanly");
-			close((SocketChannel) key.channel());
+		void requestRegister(NioConnection connection) {
+			pendingRegistrations.add(connection);
+			wakeup();
+		}
 
-			key.cancel();
-			return;
+		void requestWrite(NioConnection connection) {
+			pendingWrites.add(connection);
+			wakeup();
 		}
 
-		// Hand the data off to our worker thread
-		this.worker.onData(this, socketChannel, this.readBuffer.array(), numRead);
-	}
+		void requestClose(SocketChannel channel) {
+			pendingClosed.add(channel);
+			wakeup();
+		}
 
-	private void write(SelectionKey key) {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
+		private void wakeup() {
+			if (wakeupRequested.compareAndSet(false, true)) {
+				selector.wakeup();
+			}
+		}
 
-		synchronized (this.pendingData) {
-			List<ByteBuffer> queue = this.pendingData.get(socketChannel);
+		public void run() {
+			while (keepRunning) {
+				try {
+					wakeupRequested.set(false);
+					processRegistrations();
+					processWrites();
+					processClosed();
+					publishStatistics();
+
+					// Wait for an event one of the registered channels
+					selector.select(1000);
+
+					// Iterate over the set of keys for which events are available
+					Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+					while (selectedKeys.hasNext()) {
+						SelectionKey key = selectedKeys.next();
+						selectedKeys.remove();
+
+						if (!key.isValid()) {
+							continue;
+						}
 
-			try {
-				// Write until there's not more data ...
-				while (!queue.isEmpty()) {
-					ByteBuffer buf = queue.get(0);
-					socketChannel.write(buf);
-
-					if (buf.remaining() > 0) {
-						// ... or the socket's buffer fills up
-						break;
+						// Check what event is available and deal with it
+						if (key.isAcceptable()) {
+							accept(key);
+							continue;
+						}
+						if (key.isReadable()) {
+							read(key);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(key, (NioConnection) key.attachment());
+						}
 					}
-					queue.remove(0);
+				} catch (IOException e) {
+					logger.error("Error on NIOServer", e);
+				} catch (RuntimeException e) {
+					logger.error("Error on NIOServer", e);
 				}
+			}
+		}
 
-				if (queue.isEmpty()) {
-					// We wrote away all data, so we're no longer interested
-					// in writing on this socket. Switch back to waiting for
-					// data.
-					key.interestOps(SelectionKey.OP_READ);
+		private void processRegistrations() {
+			NioConnection connection = pendingRegistrations.poll();
+			while (connection != null) {
+				try {
+					SelectionKey key = connection.socket.register(selector, SelectionKey.OP_READ, connection);
+
+					// data that was sent before the registration
+					if (connection.hasPendingData()) {
+						write(key, connection);
+					}
+				} catch (ClosedChannelException e) {
+					logger.debug("Connection closed before it was registered", e);
+				}
+				connection = pendingRegistrations.poll();
+			}
+		}
+
+		private void processWrites() {
+			NioConnection connection = pendingWrites.poll();
+			while (connection != null) {
+				SelectionKey key = connection.socket.keyFor(selector);
+				if ((key != null) && key.isValid()) {
+					write(key, connection);
+				}
+				connection = pendingWrites.poll();
+			}
+		}
+
+		private void processClosed() {
+			SocketChannel socket = pendingClosed.poll();
+			while (socket != null) {
+				NioConnection connection = connections.remove(socket);
+				if (socket.isConnected()) {
+					try {
+						// Force data to be sent if there is data waiting.
+						if ((connection != null) && connection.hasPendingData()) {
+							SelectionKey key = socket.keyFor(selector);
+							if ((key != null) && key.isValid()) {
+								write(key, connection);
+							}
+						}
+
+						// Close the socket
+						socket.close();
+					} catch (Exception e) {
+						logger.info("Exception happened when closing socket", e);
+					}
+				} else {
+					logger.info("Closing a not connected socket");
 				}
+				socket = pendingClosed.poll();
+			}
+		}
+
+		private void read(SelectionKey key) {
+			SocketChannel socketChannel = (SocketChannel) key.channel();
+
+			// Clear out our read buffer so it's ready for new data
+			java8Compatibility(readBuffer).clear();
+
+			// Attempt to read off the channel
+			int numRead;
+			try {
+				numRead = socketChannel.read(readBuffer);
 			} catch (IOException e) {
 				// The remote forcibly closed the connection, cancel
 				// the selection key and close the channel.
 				logger.debug("Remote closed connnection", e);
-				queue.clear();
 				key.cancel();
 
 				close(socketChannel);
 
 				return;
 			}
-		}
-	}
-
-	private Selector initSelector() throws IOException {
-		// Create a new selector
-		Selector socketSelector = SelectorProvider.provider().openSelector();
 
-		// Create a new non-blocking server socket channel
-		this.serverChannel = ServerSocketChannel.open();
-		serverChannel.configureBlocking(false);
+			if (numRead == -1) {
+				// Remote entity shut the socket down cleanly. Do the
+				// same from our end and cancel the channel.
+				logger.debug("Remote closed connnection cleanly");
+				close((SocketChannel) key.channel());
 
-		// Bind the server socket to the specified address and port
-		InetSocketAddress isa = new InetSocketAddress(this.hostAddress, this.port);
-		serverChannel.socket().bind(isa);
-		serverChannel.socket().setPerformancePreferences(0, 2, 1);
+				key.cancel();
+				return;
+			}
 
-		// Register the server socket channel, indicating an interest in
-		// accepting new connections
-		serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
+			// Hand the data off to our worker thread
+			worker.onData(NioServer.this, socketChannel, readBuffer.array(), numRead);
+		}
 
-		return socketSelector;
-	}
+		private void write(SelectionKey key, NioConnection connection) {
+			try {
+				if (connection.write()) {
+					// We wrote away all data, so we're no longer interested
+					// in writing on this socket.
+					key.interestOps(SelectionKey.OP_READ);
+				} else {
+					// ... the socket's buffer filled up, continue when there is
+					// room again
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				// The remote forcibly closed the connection, cancel
+				// the selection key and close the channel.
+				logger.debug("Remote closed connnection", e);
+				connection.clear();
+				key.cancel();
 
-	private Buffer java8Compatibility(ByteBuffer buffer) {
-		return buffer;
+				close(connection.socket);
+			}
+		}
 	}
 }
@@ -0,0 +1,35 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.net.web;
+
+import java.io.IOException;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import marauroa.server.game.TurnStatistics;
+
+/**
+ * a servlet that shows the turn statistics as text. It is only available
+ * if http_turn_statistics_path is set in server.ini.
+ */
+public class WebServletForTurnStatistics extends HttpServlet {
+	private static final long serialVersionUID = 4203711468221513960L;
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setContentType("text/plain; charset=UTF-8");
+		response.setHeader("Cache-Control", "no-store, must-revalidate");
+		response.getWriter().write(TurnStatistics.get().getReport());
+	}
+
+}
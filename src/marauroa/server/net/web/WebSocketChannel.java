@@ -14,8 +14,12 @@ package marauroa.server.net.web;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import jakarta.websocket.CloseReason;
 import jakarta.websocket.CloseReason.CloseCodes;
@@ -24,29 +28,90 @@ import jakarta.websocket.OnClose;
 import jakarta.websocket.OnError;
 import jakarta.websocket.OnMessage;
 import jakarta.websocket.OnOpen;
-import jakarta.websocket.RemoteEndpoint.Basic;
+import jakarta.websocket.RemoteEndpoint.Async;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
 import jakarta.websocket.Session;
 import jakarta.websocket.server.ServerEndpoint;
 import marauroa.common.Configuration;
 import marauroa.common.Log4J;
 import marauroa.common.Logger;
+import marauroa.server.game.Statistics;
 import marauroa.server.game.rp.DebugInterface;
+import marauroa.server.net.OutboundLimiter;
 
 /**
- * a websocket connection to a client
+ * a websocket connection to a client.
+ * <p>
+ * Messages are sent asynchronously, one at a time, from a queue. So the turn
+ * thread, which sends the perceptions, is never blocked by a slow client.
  *
  * @author hendrik
  */
-@ServerEndpoint(value = "/wsinternal")
+@ServerEndpoint(value = "/wsinternal", subprotocols = { WebSocketChannel.BINARY_SUBPROTOCOL })
 public class WebSocketChannel {
 	private static Logger logger = Log4J.getLogger(WebSocketChannel.class);
 
+	/**
+	 * subprotocol for clients that accept perceptions in the binary format
+	 * of the Encoder. Without it, all messages are sent as json.
+	 */
+	public static final String BINARY_SUBPROTOCOL = "marauroa-binary";
+
+	/** a message that is not a perception */
+	static final byte MESSAGE = 0;
+
+	/** a DELTA perception */
+	static final byte DELTA_PERCEPTION = 1;
+
+	/** a SYNC perception, it makes all perceptions before it obsolete */
+	static final byte SYNC_PERCEPTION = 2;
+
 	private static WebSocketConnectionManager webSocketServerManager = WebSocketConnectionManager.get();
 	private Session socketSession;
 
 	private String username;
 	private String useragent;
 	private InetSocketAddress address;
+	private boolean binary;
+
+	/** messages waiting to be sent, guarded by itself */
+	private final ArrayDeque<Outbound> queue = new ArrayDeque<Outbound>();
+
+	/** the message that is being sent, guarded by queue */
+	private Outbound sending;
+
+	/** number of bytes in the queue, guarded by queue */
+	private long queuedBytes;
+
+	/** average time in nanoseconds from queueing a message until it was sent */
+	private volatile long averageLatency;
+
+	/** the limits of the messages waiting to be sent */
+	private final OutboundLimiter limiter = new OutboundLimiter();
+
+	private final SendHandler sendHandler = new SendHandler() {
+		@Override
+		public void onResult(SendResult result) {
+			onSent(result);
+		}
+	};
+
+	/**
+	 * creates a new WebSocketChannel, the session is set on open
+	 */
+	public WebSocketChannel() {
+		// default constructor
+	}
+
+	/**
+	 * creates a new WebSocketChannel for an open session
+	 *
+	 * @param session websocket session
+	 */
+	WebSocketChannel(Session session) {
+		this.socketSession = session;
+	}
 
 	@OnOpen
 	public void onOpen(Session session, EndpointConfig config) {
@@ -74,6 +139,7 @@ public class WebSocketChannel {
 			close();
 			return;
 		}
+		binary = BINARY_SUBPROTOCOL.equals(session.getNegotiatedSubprotocol());
 		username = params.get("marauroa_authenticated_usernam").get(0);
 		if (username == null) {
 			logger.warn("No username in request by" + address);
@@ -139,24 +205,175 @@ public class WebSocketChannel {
 		return username;
 	}
 
+	/**
+	 * did the client negotiate the binary subprotocol?
+	 *
+	 * @return true, if perceptions are sent in binary format
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
 	/**
 	 * sends a message to the client
 	 *
 	 * @param json json string to send
 	 */
-	public synchronized void sendMessage(String json) {
+	public void sendMessage(String json) {
+		send(json, null, MESSAGE);
+	}
+
+	/**
+	 * sends a binary message to the client
+	 *
+	 * @param data encoded message
+	 */
+	public void sendBinary(byte[] data) {
+		send(null, data, MESSAGE);
+	}
+
+	/**
+	 * queues a message and starts sending it, if the connection is idle. A
+	 * SYNC perception replaces the perceptions that are still waiting.
+	 *
+	 * @param json json string to send, or null
+	 * @param data encoded message to send, if json is null
+	 * @param kind MESSAGE, DELTA_PERCEPTION or SYNC_PERCEPTION
+	 */
+	void send(String json, byte[] data, byte kind) {
+		Outbound outbound = new Outbound(json, data, kind);
+		synchronized (queue) {
+			if (kind == SYNC_PERCEPTION) {
+				int dropped = 0;
+				for (Iterator<Outbound> it = queue.iterator(); it.hasNext();) {
+					Outbound waiting = it.next();
+					if (waiting.kind != MESSAGE) {
+						it.remove();
+						queuedBytes -= waiting.size;
+						dropped++;
+					}
+				}
+				if (dropped > 0) {
+					Statistics.getStatistics().add("Websocket perceptions coalesced", dropped);
+				}
+			}
+			queue.add(outbound);
+			queuedBytes += outbound.size;
+		}
+		sendNext();
+	}
+
+	/**
+	 * starts sending the next message in the queue, unless a message is
+	 * being sent
+	 */
+	private void sendNext() {
+		Outbound next;
+		synchronized (queue) {
+			if (sending != null) {
+				return;
+			}
+			next = queue.poll();
+			if (next == null) {
+				return;
+			}
+			queuedBytes -= next.size;
+			sending = next;
+		}
+
 		try {
-			Basic remote = socketSession.getBasicRemote();
-			if (remote != null) {
-				remote.sendText(json);
+			Async remote = socketSession.getAsyncRemote();
+			if (next.json != null) {
+				remote.sendText(next.json, sendHandler);
+			} else {
+				remote.sendBinary(ByteBuffer.wrap(next.data), sendHandler);
 			}
-		} catch (IOException e) {
-			logger.error(e, e);
 		} catch (IllegalStateException e) {
+			// the session has been closed
 			logger.warn(e);
+			clearQueue();
+		}
+	}
+
+	/**
+	 * a message has been sent, or sending it failed
+	 *
+	 * @param result result
+	 */
+	void onSent(SendResult result) {
+		Outbound sent;
+		synchronized (queue) {
+			sent = sending;
+			sending = null;
+		}
+		if (!result.isOK()) {
+			logger.debug("Sending to " + address + " failed", result.getException());
+			clearQueue();
+			return;
+		}
+
+		if (sent != null) {
+			long latency = System.nanoTime() - sent.queued;
+			averageLatency = averageLatency - averageLatency / 16 + latency / 16;
+			Statistics.getStatistics().add("Websocket message send", 1);
+			webSocketServerManager.recordSendLatency(latency);
+		}
+		sendNext();
+	}
+
+	/**
+	 * drops all messages, because the connection is gone
+	 */
+	private void clearQueue() {
+		synchronized (queue) {
+			queue.clear();
+			queuedBytes = 0;
+			sending = null;
+		}
+	}
+
+	/**
+	 * gets the number of messages waiting to be sent, not counting the one
+	 * that is being sent
+	 *
+	 * @return number of messages
+	 */
+	public int getQueuedMessages() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * gets the size of the messages waiting to be sent
+	 *
+	 * @return number of bytes (characters for json messages)
+	 */
+	public long getQueuedBytes() {
+		synchronized (queue) {
+			return queuedBytes;
 		}
 	}
 
+	/**
+	 * gets the average time it took recently from queueing a message until
+	 * it was sent completely
+	 *
+	 * @return latency in milliseconds
+	 */
+	public long getSendLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(averageLatency);
+	}
+
+	/**
+	 * gets the limits of the messages waiting to be sent
+	 *
+	 * @return limiter
+	 */
+	OutboundLimiter getOutboundLimiter() {
+		return limiter;
+	}
+
 	/**
 	 * closes the websocket channel
 	 */
@@ -168,4 +385,26 @@ public class WebSocketChannel {
 		}
 	}
 
+	/**
+	 * a message waiting to be sent
+	 */
+	private static class Outbound {
+		final String json;
+		final byte[] data;
+		final byte kind;
+		final int size;
+		final long queued = System.nanoTime();
+
+		Outbound(String json, byte[] data, byte kind) {
+			this.json = json;
+			this.data = data;
+			this.kind = kind;
+			if (json != null) {
+				size = json.length();
+			} else {
+				size = data.length;
+			}
+		}
+	}
+
 }
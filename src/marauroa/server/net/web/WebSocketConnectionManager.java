@@ -17,20 +17,30 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONValue;
 
+import marauroa.common.Configuration;
 import marauroa.common.Log4J;
 import marauroa.common.Logger;
+import marauroa.common.game.Perception;
 import marauroa.common.net.Channel;
 import marauroa.common.net.ConnectionManager;
+import marauroa.common.net.Encoder;
 import marauroa.common.net.MessageFactory;
 import marauroa.common.net.message.Message;
+import marauroa.common.net.message.Message.MessageType;
 import marauroa.common.net.message.MessageC2SLoginRequestKey;
+import marauroa.common.net.message.MessageS2CPerception;
+import marauroa.common.net.message.MessageS2CServerInfo;
 import marauroa.server.marauroad;
 import marauroa.server.db.command.DBCommand;
 import marauroa.server.db.command.DBCommandPriority;
 import marauroa.server.db.command.DBCommandQueue;
+import marauroa.server.game.Histogram;
+import marauroa.server.game.Statistics;
 import marauroa.server.game.container.ClientState;
 import marauroa.server.game.container.PlayerEntry;
 import marauroa.server.game.container.PlayerEntryContainer;
@@ -52,6 +62,24 @@ public class WebSocketConnectionManager implements ConnectionManager {
 	private final Set<WebSocketChannel> channels = Collections.synchronizedSet(new HashSet<WebSocketChannel>());
 	private static WebSocketConnectionManager instance;
 
+	/**
+	 * size of the messages waiting to be sent to a client above which DELTA
+	 * perceptions are dropped, 0 to never drop them
+	 */
+	private int outboundSoftLimit = 256 * 1024;
+
+	/**
+	 * size of the messages waiting to be sent to a client above which it is
+	 * disconnected, 0 to never disconnect
+	 */
+	private int outboundHardLimit = 4 * 1024 * 1024;
+
+	/** time from queueing a message until it was sent, since the statistics were published */
+	private final Histogram sendLatency = new Histogram();
+
+	/** when the send latency was published the last time */
+	private final AtomicLong lastStatistics = new AtomicLong();
+
 	synchronized static WebSocketConnectionManager get() {
 		if (instance == null) {
 			instance = new WebSocketConnectionManager((IServerManager)  marauroad.getMarauroa().getNetMan());
@@ -66,6 +94,26 @@ public class WebSocketConnectionManager implements ConnectionManager {
 	 */
 	WebSocketConnectionManager(IServerManager netMan) {
 		this.serverManager = netMan;
+		try {
+			Configuration conf = Configuration.getConfiguration();
+			outboundSoftLimit = conf.getInt("websocket_outbound_soft_limit", outboundSoftLimit);
+			outboundHardLimit = conf.getInt("websocket_outbound_hard_limit", outboundHardLimit);
+		} catch (IOException e) {
+			logger.error(e, e);
+		}
+	}
+
+	/**
+	 * creates a new WebSocketServerManager with the given limits
+	 *
+	 * @param netMan classic network server manager.
+	 * @param outboundSoftLimit queued bytes above which DELTA perceptions are dropped, 0 for no limit
+	 * @param outboundHardLimit queued bytes above which clients are disconnected, 0 for no limit
+	 */
+	WebSocketConnectionManager(IServerManager netMan, int outboundSoftLimit, int outboundHardLimit) {
+		this.serverManager = netMan;
+		this.outboundSoftLimit = outboundSoftLimit;
+		this.outboundHardLimit = outboundHardLimit;
 	}
 
 	/**
@@ -80,8 +128,16 @@ public class WebSocketConnectionManager implements ConnectionManager {
 		if (webSocketChannel.getUsername() != null) {
 			entry.state = ClientState.LOGIN_COMPLETE;
 			entry.username = webSocketChannel.getUsername();
+			PlayerEntryContainer.getContainer().reindex(entry);
 			entry.disableTimeout();
 
+			// binary clients need the rpclasses and the perception dictionary
+			if (webSocketChannel.isBinary()) {
+				Message msg = new MessageS2CServerInfo(channel, new String[0]);
+				msg.setClientID(entry.clientid);
+				send(webSocketChannel, msg, true);
+			}
+
 			// greet the client with a character list (which allows the client to learn its clientid)
 			DBCommand command = new LoadAllActiveCharactersCommand(entry.username,
 					new SendCharacterListHandler((INetworkServerManager) serverManager, 0),
@@ -141,13 +197,109 @@ public class WebSocketConnectionManager implements ConnectionManager {
 		if (!isPerceptionRequired && msg.isSkippable()) {
 			return;
 		}
+
+		WebSocketChannel webSocketChannel = (WebSocketChannel) internalChannel;
+		if (!checkOutboundLimits(webSocketChannel, msg)) {
+			return;
+		}
+
+		byte kind = WebSocketChannel.MESSAGE;
+		if (msg instanceof MessageS2CPerception) {
+			if (((MessageS2CPerception) msg).getPerceptionType() == Perception.SYNC) {
+				kind = WebSocketChannel.SYNC_PERCEPTION;
+			} else {
+				kind = WebSocketChannel.DELTA_PERCEPTION;
+			}
+		}
+
+		// perceptions are most of the traffic, binary clients get them in the
+		// format of the tcp clients, sharing the cached compressed part
+		if (webSocketChannel.isBinary() && (msg.getType() == MessageType.S2C_PERCEPTION)) {
+			try {
+				webSocketChannel.send(null, Encoder.get().encode(msg), kind);
+			} catch (IOException e) {
+				logger.error("Error encoding " + msg, e);
+			}
+			return;
+		}
+
+		// only binary clients need the rpclasses and the perception dictionary
+		if (msg instanceof MessageS2CServerInfo) {
+			((MessageS2CServerInfo) msg).setBinaryPerceptions(webSocketChannel.isBinary());
+		}
+
 		StringBuilder out = new StringBuilder();
 		out.append("{");
 		msg.writeToJson(out);
 		out.append("}");
 		if (out.length() > 2) {
-			((WebSocketChannel) internalChannel).sendMessage(out.toString());
+			webSocketChannel.send(out.toString(), null, kind);
+		}
+	}
+
+	/**
+	 * Applies the limits to the messages waiting to be sent to a slow client.
+	 * Clients above the hard limit are disconnected. Above the soft limit,
+	 * DELTA perceptions are dropped until the client has caught up and a SYNC
+	 * perception was sent to it.
+	 *
+	 * @param webSocketChannel the channel to the client
+	 * @param msg the message to send
+	 * @return true if the message should be sent, false if it is dropped
+	 */
+	private boolean checkOutboundLimits(WebSocketChannel webSocketChannel, Message msg) {
+		long queued = webSocketChannel.getQueuedBytes();
+		switch (webSocketChannel.getOutboundLimiter().check(queued, msg, outboundSoftLimit, outboundHardLimit)) {
+			case CLOSE:
+				logger.warn("Disconnecting " + webSocketChannel.getAddress() + " because "
+						+ webSocketChannel.getQueuedMessages() + " messages of " + queued
+						+ " bytes are waiting to be sent to it, send latency "
+						+ webSocketChannel.getSendLatency() + " ms");
+				Statistics.getStatistics().add("Websocket slow clients disconnected", 1);
+				close(webSocketChannel);
+				return false;
+
+			case DROP_AND_REQUEST_SYNC:
+				PlayerEntry entry = PlayerEntryContainer.getContainer().get(msg.getChannel());
+				if (entry != null) {
+					entry.requestSync();
+				}
+				Statistics.getStatistics().add("Websocket perceptions dropped", 1);
+				return false;
+
+			case DROP:
+				if (logger.isDebugEnabled()) {
+					logger.debug("Dropping perception for " + webSocketChannel.getAddress() + ", "
+							+ webSocketChannel.getQueuedMessages() + " messages are waiting, send latency "
+							+ webSocketChannel.getSendLatency() + " ms");
+				}
+				Statistics.getStatistics().add("Websocket perceptions dropped", 1);
+				return false;
+
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * records the time from queueing a message until it was sent, and
+	 * publishes the average and the 99th percentile to the statistics at most
+	 * once per second
+	 *
+	 * @param nanos latency in nanoseconds
+	 */
+	void recordSendLatency(long nanos) {
+		sendLatency.record(nanos);
+
+		long now = System.currentTimeMillis();
+		long last = lastStatistics.get();
+		if ((now - last < 1000) || !lastStatistics.compareAndSet(last, now)) {
+			return;
 		}
+		Statistics stats = Statistics.getStatistics();
+		stats.set("Websocket send latency ms", (int) TimeUnit.NANOSECONDS.toMillis(sendLatency.getMean()));
+		stats.set("Websocket send latency ms p99", (int) TimeUnit.NANOSECONDS.toMillis(sendLatency.getValueAtPercentile(99)));
+		sendLatency.reset();
 	}
 
 	public void close(Object internalChannel) {
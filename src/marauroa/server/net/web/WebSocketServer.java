@@ -83,6 +83,12 @@ public class WebSocketServer {
 		tomcat.addServlet("", "websocket", new WebSocketServlet());
 		context.addServletMappingDecoded("/ws/*", "websocket");
 
+		String turnStatisticsPath = conf.get("http_turn_statistics_path");
+		if (turnStatisticsPath != null) {
+			tomcat.addServlet("", "turnstatistics", new WebServletForTurnStatistics());
+			context.addServletMappingDecoded(turnStatisticsPath, "turnstatistics");
+		}
+
 		RPServerManager rpServerManager = marauroad.getMarauroa().getRPServerManager();
 		tomcat.addServlet("", "static", new WebServletForStaticContent(rpServerManager));
 		context.addServletMappingDecoded("/*", "static");
@@ -0,0 +1,166 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import marauroa.common.game.Definition.Type;
+
+/**
+ * Tests the index of the AttributeStore
+ */
+public class AttributeStoreTest {
+
+	private static AttributeStore createStore(int size) {
+		AttributeStore store = new AttributeStore();
+		for (int i = 0; i < size; i++) {
+			store.putInteger("a" + i, (short) (i + 1), i, false);
+		}
+		return store;
+	}
+
+	/**
+	 * Tests finding entries by code and by name
+	 */
+	@Test
+	public void testIndexOf() {
+		AttributeStore store = createStore(100);
+		store.put("undefined", (short) -1, null, "x", false);
+
+		for (int i = 0; i < 100; i++) {
+			int index = store.indexOf("a" + i, (short) (i + 1));
+			assertEquals(i, store.getNumber(index));
+		}
+		assertEquals("x", store.get("undefined", (short) -1));
+		assertEquals(-1, store.indexOf("a1", (short) 200));
+		assertEquals(-1, store.indexOf("other", (short) -1));
+
+		// another RPClass may use the same code for another attribute
+		assertEquals(-1, store.indexOf("other", (short) 1));
+	}
+
+	/**
+	 * Tests that an attribute stored before it was defined is found by its
+	 * code and then indexed by it
+	 */
+	@Test
+	public void testDefinedLater() {
+		AttributeStore store = new AttributeStore();
+		store.put("hp", (short) -1, null, "10", false);
+		assertEquals("10", store.get("hp", (short) 5));
+
+		store.put("hp", (short) 5, Type.INT, "20", false);
+		assertEquals(1, store.size());
+		assertEquals(AttributeStore.INTEGER, store.getKind(store.indexOf("hp", (short) 5)));
+		assertEquals("20", store.get("hp", (short) 5));
+	}
+
+	/**
+	 * Tests that the index follows removed and moved entries
+	 */
+	@Test
+	public void testRemove() {
+		AttributeStore store = createStore(10);
+		store.put("undefined", (short) -1, null, "x", false);
+
+		store.remove("a3", (short) 4, false);
+		assertFalse(store.contains("a3", (short) 4));
+		assertEquals("9", store.get("a9", (short) 10));
+		assertEquals("x", store.get("undefined", (short) -1));
+
+		store.remove("a5", (short) 6, true);
+		store.remove("undefined", (short) -1, true);
+		assertTrue(store.isDeleted(store.indexOf("a5", (short) 6)));
+		store.resetDelta();
+		assertEquals(-1, store.indexOf("a5", (short) 6));
+		assertEquals(-1, store.indexOf("undefined", (short) -1));
+		assertEquals("9", store.get("a9", (short) 10));
+		assertEquals(8, store.size());
+
+		AttributeStore copy = new AttributeStore(store);
+		copy.remove("a9", (short) 10, false);
+		assertEquals("9", store.get("a9", (short) 10));
+		assertFalse(copy.contains("a9", (short) 10));
+	}
+
+	/**
+	 * Tests entries whose definitions share a code, the later one is indexed
+	 * by its name
+	 */
+	@Test
+	public void testSharedCode() {
+		AttributeStore store = new AttributeStore();
+		store.putInteger("first", (short) 1, 1, false);
+		store.putInteger("b", (short) 6, 2, false);
+		store.putInteger("late", (short) 6, 3, false);
+		store.putInteger("b", (short) 6, 4, false);
+		assertEquals(3, store.entries());
+		assertEquals("4", store.get("b", (short) 6));
+		assertEquals("3", store.get("late", (short) 6));
+
+		// the entries are moved and indexed again
+		store.remove("first", (short) 1, false);
+		assertEquals("4", store.get("b", (short) 6));
+		assertEquals("3", store.get("late", (short) 6));
+
+		store.remove("b", (short) 6, false);
+		assertFalse(store.contains("b", (short) 6));
+		assertEquals("3", store.get("late", (short) 6));
+		store.putInteger("b", (short) 6, 5, false);
+		store.remove("late", (short) 6, false);
+		assertEquals(1, store.entries());
+		assertEquals("5", store.get("b", (short) 6));
+		assertFalse(store.contains("late", (short) 6));
+	}
+
+	/**
+	 * Tests that looking up an attribute takes about the same time regardless
+	 * of the number of attributes
+	 */
+	@Test
+	public void testConstantTimeAccess() {
+		AttributeStore small = createStore(8);
+		AttributeStore large = createStore(1024);
+
+		long smallTime = Long.MAX_VALUE;
+		long largeTime = Long.MAX_VALUE;
+		for (int round = 0; round < 20; round++) {
+			smallTime = Math.min(smallTime, timeLookups(small, 8));
+			largeTime = Math.min(largeTime, timeLookups(large, 1024));
+		}
+
+		// a linear scan would be about 100 times slower
+		assertTrue("8 attributes: " + smallTime + " ns, 1024 attributes: " + largeTime + " ns",
+				largeTime < smallTime * 10);
+	}
+
+	private static long timeLookups(AttributeStore store, int size) {
+		String[] names = new String[size];
+		for (int i = 0; i < size; i++) {
+			names[i] = "a" + i;
+		}
+
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int n = 0; n < 20000; n++) {
+			int i = n % size;
+			sum += store.indexOf(names[i], (short) (i + 1));
+		}
+		long time = System.nanoTime() - start;
+		assertTrue(sum >= 0);
+		return time;
+	}
+}
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -312,4 +313,109 @@ public class AttributesTest {
 		test.put("key", "va\\lu]e]");
 		assertThat(test.toString(), equalTo("Attributes of Class(): [key=va\\\\lu\\]e\\]]"));
 	}
+
+	/**
+	 * Tests that values of typed attributes read back as they were written
+	 */
+	@Test
+	public void testTypedValues() {
+		RPClass clazz = new RPClass("AttributeTest::C");
+		clazz.add(DefinitionClass.ATTRIBUTE, "a", Type.INT, Definition.STANDARD);
+		clazz.add(DefinitionClass.ATTRIBUTE, "b", Type.LONG, Definition.STANDARD);
+		clazz.add(DefinitionClass.ATTRIBUTE, "c", Type.FLOAT, Definition.STANDARD);
+		clazz.add(DefinitionClass.ATTRIBUTE, "d", Type.FLAG, Definition.STANDARD);
+
+		Attributes attr = new Attributes(clazz);
+		attr.put("a", 5);
+		attr.add("a", 3);
+		attr.put("b", 5000000000L);
+		attr.put("c", "0.1");
+		attr.put("d", "");
+
+		assertEquals(8, attr.getInt("a"));
+		assertEquals("8", attr.get("a"));
+		assertEquals(5000000000L, attr.getLong("b"));
+		assertEquals("0.1", attr.get("c"));
+		assertEquals("", attr.get("d"));
+
+		attr.put("a", "007");
+		assertEquals("007", attr.get("a"));
+		assertEquals(7, attr.getInt("a"));
+
+		Attributes other = new Attributes(RPClass.getBaseRPObjectDefault());
+		other.put("a", "007");
+		other.put("b", "5000000000");
+		other.put("c", "0.1");
+		other.put("d", "");
+		assertEquals(attr, other);
+		assertEquals(attr.hashCode(), other.hashCode());
+	}
+
+	/**
+	 * Tests the Delta^2 information of attributes
+	 */
+	@Test
+	public void testAddedAndDeleted() {
+		Attributes attr = new Attributes(RPClass.getBaseRPObjectDefault());
+		attr.put("a", 1);
+		attr.put("b", 2);
+		attr.resetAddedAndDeletedAttributes();
+
+		attr.put("a", 3);
+		attr.remove("b");
+		attr.remove("c");
+		assertThat(attr.getAddedAttributeNames(), equalTo(Arrays.asList("a")));
+		assertThat(attr.getDeletedAttributeNames(), equalTo(Arrays.asList("b", "c")));
+		assertEquals(1, attr.size());
+
+		attr.resetAddedAndDeletedAttributes();
+		assertTrue(attr.getAddedAttributeNames().isEmpty());
+		assertTrue(attr.getDeletedAttributeNames().isEmpty());
+		assertEquals(3, attr.getInt("a"));
+		assertFalse(attr.has("b"));
+	}
+
+	/**
+	 * Tests attributes whose definitions share a code, because an attribute
+	 * was added to the parent RPClass after the child was created
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	@Test
+	public void testSharedCode() throws IOException {
+		RPClass parent = new RPClass("AttributeTest::parent");
+		parent.add(DefinitionClass.ATTRIBUTE, "a", Type.INT, Definition.STANDARD);
+		RPClass child = new RPClass("AttributeTest::child");
+		child.isA(parent);
+		child.add(DefinitionClass.ATTRIBUTE, "b", Type.INT, Definition.STANDARD);
+		parent.add(DefinitionClass.ATTRIBUTE, "late", Type.INT, Definition.STANDARD);
+		assertEquals(child.getDefinition(DefinitionClass.ATTRIBUTE, "b").getCode(),
+				child.getDefinition(DefinitionClass.ATTRIBUTE, "late").getCode());
+
+		Attributes attr = new Attributes(child);
+		attr.put("b", 1);
+		attr.put("late", 2);
+		assertEquals(1, attr.getInt("b"));
+		assertEquals(2, attr.getInt("late"));
+
+		attr.put("b", 3);
+		assertEquals(2, attr.size());
+		assertEquals(3, attr.getInt("b"));
+		assertEquals(2, attr.getInt("late"));
+
+		attr.remove("late");
+		attr.put("late", 4);
+		assertEquals(2, attr.size());
+		assertEquals(3, attr.getInt("b"));
+		assertEquals(4, attr.getInt("late"));
+
+		// the codes are ambiguous, so the names are serialized
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		attr.writeObject(new OutputSerializer(out), DetailLevel.FULL);
+		InputSerializer is = new InputSerializer(new ByteArrayInputStream(out.toByteArray()));
+		Attributes result = (Attributes) is.readObject(new Attributes(null));
+		assertEquals(attr, result);
+		assertEquals(3, result.getInt("b"));
+		assertEquals(4, result.getInt("late"));
+	}
 }
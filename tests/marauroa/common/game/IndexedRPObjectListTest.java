@@ -0,0 +1,133 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+/**
+ * Tests the indexed list of the objects of a slot
+ */
+public class IndexedRPObjectListTest {
+
+	private static RPObject createObject(int id) {
+		RPObject object = new RPObject();
+		object.put("id", id);
+		return object;
+	}
+
+	/**
+	 * objects are found by id and iterated in insertion order, also after
+	 * removals from a large list
+	 */
+	@Test
+	public void testLookupAndOrder() {
+		IndexedRPObjectList list = new IndexedRPObjectList();
+		for (int i = 0; i < 2000; i++) {
+			list.add(createObject(i * 7));
+		}
+		assertEquals(2000, list.size());
+		assertEquals(0, list.getFirst().getInt("id"));
+
+		for (int i = 0; i < 2000; i = i + 3) {
+			assertEquals(i * 7, list.removeByID(i * 7).getInt("id"));
+		}
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(i % 3 != 0, list.hasID(i * 7));
+			assertFalse(list.hasID(i * 7 + 1));
+		}
+
+		int expected = 1;
+		for (RPObject object : list) {
+			assertEquals(expected * 7, object.getInt("id"));
+			expected++;
+			if (expected % 3 == 0) {
+				expected++;
+			}
+		}
+		assertEquals(1333, list.size());
+
+		list.clear();
+		assertTrue(list.isEmpty());
+		assertNull(list.get(7));
+	}
+
+	/**
+	 * removing by iterator and by an equal object
+	 */
+	@Test
+	public void testRemove() {
+		IndexedRPObjectList list = new IndexedRPObjectList();
+		list.add(createObject(1));
+		list.add(createObject(2));
+		list.add(createObject(3));
+
+		assertFalse(list.remove(createObject(4)));
+		assertTrue(list.remove(createObject(2)));
+
+		Iterator<RPObject> itr = list.iterator();
+		assertEquals(1, itr.next().getInt("id"));
+		itr.remove();
+		assertEquals(3, itr.next().getInt("id"));
+		assertFalse(itr.hasNext());
+
+		assertEquals(1, list.size());
+		assertSame(list.getFirst(), list.get(3));
+	}
+
+	/**
+	 * the second object with the same id is found after the first one was removed
+	 */
+	@Test
+	public void testDuplicatedIds() {
+		IndexedRPObjectList list = new IndexedRPObjectList();
+		RPObject first = createObject(5);
+		RPObject second = createObject(5);
+		second.put("name", "second");
+		list.addTrusted(first);
+		list.addTrusted(second);
+
+		assertSame(first, list.get(5));
+		assertTrue(list.remove(second));
+		assertSame(first, list.get(5));
+
+		list.addTrusted(second);
+		assertSame(first, list.removeByID(5));
+		assertSame(second, list.get(5));
+	}
+
+	/**
+	 * the slot index follows id changes of contained objects
+	 */
+	@Test
+	public void testIdChange() {
+		RPObject owner = new RPObject();
+		owner.addSlot("bag");
+		RPSlot bag = owner.getSlot("bag");
+		RPObject item = new RPObject();
+		bag.add(item);
+		int id = item.getInt("id");
+
+		item.put("id", 100);
+		assertFalse(bag.has(new RPObject.ID(id, "")));
+		assertSame(item, bag.get(new RPObject.ID(100, "")));
+		assertSame(item, bag.remove(new RPObject.ID(100, "")));
+		assertTrue(bag.isEmpty());
+	}
+}
@@ -250,4 +250,42 @@ public class RPClassTest {
 				b,
 				b);
 	}
+
+    /**
+     * Bakes a subclass and checks that definitions are found by code and
+     * that its objects are serialized as before.
+     *
+     * @throws IOException in case of an unexpected error
+     */
+    @Test
+    public void testBakedDefinitionTable() throws IOException {
+        RPClass parent = new RPClass("RPClassTest::O");
+        parent.add(DefinitionClass.ATTRIBUTE, "a", Type.INT, Definition.STANDARD);
+        parent.add(DefinitionClass.ATTRIBUTE, "b", Type.STRING, Definition.HIDDEN);
+
+        RPClass child = new RPClass("RPClassTest::P");
+        child.isA(parent);
+        child.add(DefinitionClass.ATTRIBUTE, "c", Type.SHORT, Definition.PRIVATE);
+        child.add(DefinitionClass.RPEVENT, "e", Definition.STANDARD);
+        child.bake();
+
+        short code = child.getCode(DefinitionClass.ATTRIBUTE, "a");
+        assertEquals("a", child.getName(DefinitionClass.ATTRIBUTE, code));
+        code = child.getCode(DefinitionClass.RPEVENT, "e");
+        assertEquals("e", child.getName(DefinitionClass.RPEVENT, code));
+
+        Attributes attr = new Attributes(child);
+        attr.put("a", 1);
+        attr.put("b", "hidden");
+        attr.put("c", 2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        attr.writeObject(new OutputSerializer(out), DetailLevel.PRIVATE);
+        Attributes result = new Attributes(null);
+        result.readObject(new InputSerializer(new ByteArrayInputStream(out.toByteArray())));
+
+        assertEquals(1, result.getInt("a"));
+        assertFalse(result.has("b"));
+        assertEquals(2, result.getInt("c"));
+    }
 }
@@ -907,4 +907,53 @@ public class RPObjectDelta2Test {
 		client.applyDifferences(added2, deleted2);
 		assertEquals(newObject, client);
 	}
+
+	/**
+	 * Tests that only changed branches of the object tree report differences
+	 * and that changes deep in slots and links are found after a reset.
+	 */
+	@Test
+	public void testDirtyBranches() {
+		zone.assignRPObjectID(obj);
+		RPObject target = new RPObject();
+		target.put("id", 1);
+		target.put("hp", 10);
+		obj.addLink("target", target);
+		obj.resetAddedAndDeleted();
+
+		RPObject added = new RPObject();
+		RPObject deleted = new RPObject();
+		obj.getDifferences(added, deleted);
+		assertTrue(added.isEmpty());
+		assertTrue(deleted.isEmpty());
+
+		RPObject pocket = obj.getSlot("lhand").getFirst();
+		RPObject coin = pocket.getSlot("container").getFirst();
+		coin.put("value", 200);
+
+		obj.getDifferences(added, deleted);
+		assertTrue(deleted.isEmpty());
+		assertFalse(added.hasSlot("rhand"));
+		RPObject addedPocket = added.getSlot("lhand").getFirst();
+		assertFalse(addedPocket.has("size"));
+		assertEquals(200, addedPocket.getSlot("container").getFirst().getInt("value"));
+
+		obj.resetAddedAndDeleted();
+		target.put("hp", 5);
+		coin.remove("euro");
+
+		added = new RPObject();
+		deleted = new RPObject();
+		obj.getDifferences(added, deleted);
+		assertFalse(added.hasSlot("lhand"));
+		assertEquals(5, added.getLinkedObject("target").getInt("hp"));
+		assertTrue(deleted.getSlot("lhand").getFirst().getSlot("container").getFirst().has("euro"));
+
+		obj.resetAddedAndDeleted();
+		added = new RPObject();
+		deleted = new RPObject();
+		obj.getDifferences(added, deleted);
+		assertTrue(added.isEmpty());
+		assertTrue(deleted.isEmpty());
+	}
 }
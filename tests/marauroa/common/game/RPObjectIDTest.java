@@ -23,7 +23,9 @@ public class RPObjectIDTest {
 	public void testHashCode() {
 		RPObject.ID id3  = new RPObject.ID(13 , new String("testzone"));
 		assertEquals(id3.getObjectID(),13);
-		assertEquals(id3.hashCode(),13);
+		assertEquals(new RPObject.ID(13, "testzone").hashCode(), id3.hashCode());
+		assertFalse(new RPObject.ID(13, "otherzone").hashCode() == id3.hashCode());
+		assertFalse(new RPObject.ID(14, "testzone").hashCode() == id3.hashCode());
 
 	}
 
@@ -64,6 +66,17 @@ public class RPObjectIDTest {
 		assertEquals(initID2, withoutZone.getID());
 	}
 
+	@Test
+	public void testCachedID() {
+		RPObject object = new RPObject(new RPObject.ID(4, "testzone"));
+		assertTrue(object.getID() == object.getID());
+
+		object.put("id", 5);
+		assertEquals(new RPObject.ID(5, "testzone"), object.getID());
+		object.remove("zoneid");
+		assertEquals(new RPObject.ID(5, (String) null), object.getID());
+	}
+
 	@Test
 	public void testIDRPAction() {
 		RPAction action = new RPAction();
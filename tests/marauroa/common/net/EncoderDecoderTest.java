@@ -11,13 +11,18 @@
  ***************************************************************************/
 package marauroa.common.net;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -168,4 +173,113 @@ public class EncoderDecoderTest {
 
 		assertEquals(2, decodedMsgs.size());
 	}
+
+	/**
+	 * Test that a frame decoder builds messages from data that is split at
+	 * any position, including inside the size prefix.
+	 *
+	 * @throws IOException
+	 * @throws InvalidVersionException
+	 */
+	@Test
+	public void testFrameDecoderSplitAnywhere() throws IOException, InvalidVersionException {
+		Encoder enc = Encoder.get();
+
+		RPAction action = new RPAction();
+		action.put("one", 1);
+		byte[] result1 = enc.encode(new MessageC2SAction(null, action));
+		action = new RPAction();
+		action.put("two", "2");
+		byte[] result2 = enc.encode(new MessageC2SAction(null, action));
+
+		byte[] result = new byte[result1.length + result2.length];
+		System.arraycopy(result1, 0, result, 0, result1.length);
+		System.arraycopy(result2, 0, result, result1.length, result2.length);
+
+		for (int split = 1; split < result.length; split++) {
+			FrameDecoder dec = new FrameDecoder();
+			List<Message> first = dec.decode(result, 0, split);
+			List<Message> second = dec.decode(result, split, result.length - split);
+
+			int count = 0;
+			if (first != null) {
+				count += first.size();
+			}
+			if (second != null) {
+				count += second.size();
+			}
+			assertEquals(2, count);
+		}
+	}
+
+	/**
+	 * Test that the buffer serializers use the same bytes as the stream ones.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testBufferSerializers() throws IOException {
+		ByteArrayOutputStream array = new ByteArrayOutputStream();
+		OutputSerializer stream = new OutputSerializer(array);
+		BufferOutputSerializer buffer = new BufferOutputSerializer(8);
+
+		for (OutputSerializer out : new OutputSerializer[] { stream, buffer }) {
+			out.write((byte) -3);
+			out.write((short) -1234);
+			out.write(Integer.MIN_VALUE + 17);
+			out.write(0x0123456789ABCDEFL);
+			out.write(-1L);
+			out.write(3.25f);
+			out.write("plain");
+			out.write255LongString("gr\u00fc\u00dfe \u20ac \ud83d\ude00");
+			out.write65536LongString("");
+			out.write(new byte[] { 1, 2, 3 });
+		}
+
+		assertArrayEquals(array.toByteArray(), buffer.toByteArray());
+
+		BufferInputSerializer in = new BufferInputSerializer(buffer.toByteArray());
+		assertEquals(-3, in.readByte());
+		assertEquals(-1234, in.readShort());
+		assertEquals(Integer.MIN_VALUE + 17, in.readInt());
+		assertEquals(0x0123456789ABCDEFL, in.readLong());
+		assertEquals(-1L, in.readLong());
+		assertEquals(3.25f, in.readFloat(), 0f);
+		assertEquals("plain", in.readString());
+		assertEquals("gr\u00fc\u00dfe \u20ac \ud83d\ude00", in.read255LongString());
+		assertEquals("", in.read65536LongString());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, in.readByteArray());
+		assertEquals(0, in.remaining());
+	}
+
+	/**
+	 * Test that the zlib codec reads and writes the stream format.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testZlibCodec() throws IOException {
+		byte[] data = new byte[20000];
+		new Random(1).nextBytes(data);
+		for (int i = 0; i < data.length; i += 3) {
+			data[i] = 7;
+		}
+
+		ByteArrayOutputStream array = new ByteArrayOutputStream();
+		DeflaterOutputStream out = new DeflaterOutputStream(array);
+		out.write(data);
+		out.close();
+		assertArrayEquals(data, ZlibCodec.DATABASE.decompress(array.toByteArray()));
+
+		byte[] compressed = ZlibCodec.NETWORK.compress(data, 0, data.length);
+		InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed));
+		BufferInputSerializer read = BufferInputSerializer.readFully(in);
+		assertEquals(data.length, read.remaining());
+		for (int i = 0; i < data.length; i++) {
+			assertEquals(data[i], read.readByte());
+		}
+
+		// the same thread compresses again with the same result
+		assertArrayEquals(compressed, ZlibCodec.NETWORK.compress(data, 0, data.length));
+	}
 }
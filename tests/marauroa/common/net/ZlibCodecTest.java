@@ -0,0 +1,120 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Deflater;
+
+import marauroa.common.Configuration;
+import marauroa.common.Log4J;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the compression with per thread deflaters and inflaters
+ */
+public class ZlibCodecTest {
+
+	private static final int THREADS = 8;
+
+	/**
+	 * Setup for class. It initialize the logger instance
+	 */
+	@BeforeClass
+	public static void initialize() {
+		Log4J.init("marauroa/server/log4j.properties");
+	}
+
+	private static void roundTrip() throws IOException {
+		byte[] data = "some data, some data, some more data".getBytes("UTF-8");
+		byte[] compressed = ZlibCodec.NETWORK.compress(data, 0, data.length);
+		assertArrayEquals(data, ZlibCodec.NETWORK.decompress(compressed));
+	}
+
+	/**
+	 * the deflaters and inflaters of finished threads are ended when the
+	 * next thread starts using the codec
+	 *
+	 * @throws Exception in case of an unexpected error
+	 */
+	@Test
+	public void testFinishedThreads() throws Exception {
+		final CountDownLatch used = new CountDownLatch(THREADS);
+		final CountDownLatch finish = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						roundTrip();
+						used.countDown();
+						finish.await();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		used.await();
+		int before = ZlibCodec.getStreamCount();
+		assertTrue(before >= 2 * THREADS);
+		finish.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Thread next = new Thread(new Runnable() {
+			public void run() {
+				try {
+					roundTrip();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		next.start();
+		next.join();
+		assertTrue(before + " streams before, " + ZlibCodec.getStreamCount() + " after",
+				ZlibCodec.getStreamCount() <= before - 2 * THREADS + 2);
+	}
+
+	/**
+	 * an invalid compression level in the configuration falls back to the
+	 * default
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	@Test
+	public void testInvalidLevel() throws IOException {
+		Configuration conf = Configuration.getConfiguration();
+		conf.set("network_compression_level", "12");
+		conf.set("database_compression_level", "3");
+		try {
+			ZlibCodec.configure(conf);
+			assertEquals(Deflater.DEFAULT_COMPRESSION, ZlibCodec.NETWORK.getLevel());
+			assertEquals(3, ZlibCodec.DATABASE.getLevel());
+		} finally {
+			conf.set("network_compression_level", "-1");
+			conf.set("database_compression_level", "-1");
+			ZlibCodec.configure(conf);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.common.net.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import marauroa.common.game.Definition.Type;
+import marauroa.common.game.IRPZone;
+import marauroa.common.game.Perception;
+import marauroa.common.game.RPClass;
+import marauroa.common.game.RPObject;
+import marauroa.common.net.BufferInputSerializer;
+import marauroa.common.net.NetConst;
+import marauroa.common.net.ZlibCodec;
+
+import org.junit.Test;
+
+/**
+ * Tests the caches for the shared part of perceptions
+ */
+public class CachedCompressedPerceptionTest {
+
+	private static MessageS2CPerception createMessage(String zone, int protocolVersion) {
+		Perception perception = new Perception(Perception.SYNC, new IRPZone.ID(zone));
+		RPObject object = new RPObject();
+		object.put("id", 1);
+		object.put("zoneid", zone);
+		object.put("hp", 100);
+		perception.added(object);
+
+		MessageS2CPerception message = new MessageS2CPerception(null, perception);
+		message.setProtocolVersion(protocolVersion);
+		return message;
+	}
+
+	/**
+	 * the static part is computed once per zone, type and protocol version
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	@Test
+	public void testComputeOnce() throws IOException {
+		MessageS2CPerception.CachedCompressedPerception cache = MessageS2CPerception.CachedCompressedPerception.get();
+		cache.clear();
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+
+		byte[] first = cache.get(createMessage("cachetest", NetConst.NETWORK_PROTOCOL_VERSION));
+		byte[] second = cache.get(createMessage("cachetest", NetConst.NETWORK_PROTOCOL_VERSION));
+		assertSame(first, second);
+		assertEquals(hits + 1, cache.getHits());
+		assertEquals(misses + 1, cache.getMisses());
+
+		cache.get(createMessage("cachetest", NetConst.NETWORK_PROTOCOL_VERSION - 1));
+		cache.get(createMessage("othertest", NetConst.NETWORK_PROTOCOL_VERSION));
+		assertEquals(misses + 3, cache.getMisses());
+
+		cache.clear();
+		cache.get(createMessage("cachetest", NetConst.NETWORK_PROTOCOL_VERSION));
+		assertEquals(misses + 4, cache.getMisses());
+		assertEquals(hits + 1, cache.getHits());
+	}
+
+	/**
+	 * the json of the object lists is shared, the private part is written
+	 * for each player
+	 */
+	@Test
+	public void testJsonSplicesPrivatePart() {
+		MessageS2CPerception.clearPrecomputedPerception();
+		long misses = MessageS2CPerception.getPrecomputedPerceptionMisses();
+
+		MessageS2CPerception first = createMessage("jsontest", NetConst.NETWORK_PROTOCOL_VERSION);
+		RPObject added = new RPObject();
+		added.put("xp", 10);
+		first.setMyRPObject(added, null);
+		MessageS2CPerception second = createMessage("jsontest", NetConst.NETWORK_PROTOCOL_VERSION);
+
+		StringBuilder firstJson = new StringBuilder();
+		first.writeToJson(firstJson);
+		StringBuilder secondJson = new StringBuilder();
+		second.writeToJson(secondJson);
+
+		assertEquals(misses + 1, MessageS2CPerception.getPrecomputedPerceptionMisses());
+		assertTrue(firstJson.indexOf("\"aO\"") > 0);
+		assertTrue(firstJson.indexOf("\"aM\"") > 0);
+		assertTrue(secondJson.indexOf("\"aO\"") > 0);
+		assertEquals(-1, secondJson.indexOf("\"aM\""));
+
+		StringBuilder uncached = new StringBuilder();
+		first.writeSharedPartToJson(uncached);
+		assertTrue(firstJson.indexOf(uncached.toString()) > 0);
+	}
+
+	private static MessageS2CPerception createClassMessage(String zone, int protocolVersion) {
+		Perception perception = new Perception(Perception.SYNC, new IRPZone.ID(zone));
+		for (int i = 1; i <= 3; i++) {
+			RPObject object = new RPObject();
+			object.setRPClass("dictionary_test");
+			object.put("id", i);
+			object.put("zoneid", zone);
+			object.put("name", "npc" + i);
+			object.put("x", 10 * i);
+			object.put("y", 20 * i);
+			object.put("hp", 100);
+			object.put("level", 3);
+			perception.added(object);
+		}
+
+		MessageS2CPerception message = new MessageS2CPerception(null, perception);
+		message.setProtocolVersion(protocolVersion);
+		return message;
+	}
+
+	/**
+	 * newer clients get the static part compressed against the dictionary
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	@Test
+	public void testDictionary() throws IOException {
+		if (!RPClass.hasRPClass("dictionary_test")) {
+			RPClass rpClass = new RPClass("dictionary_test");
+			rpClass.addAttribute("name", Type.STRING);
+			rpClass.addAttribute("x", Type.INT);
+			rpClass.addAttribute("y", Type.INT);
+			rpClass.addAttribute("hp", Type.INT);
+			rpClass.addAttribute("level", Type.SHORT);
+		}
+		PerceptionDictionary.clear();
+		assertNotNull(PerceptionDictionary.get(NetConst.FIRST_VERSION_WITH_PERCEPTION_DICTIONARY));
+
+		byte[] compressed = createClassMessage("dictionarytest", NetConst.FIRST_VERSION_WITH_PERCEPTION_DICTIONARY).compressStaticPartPerception();
+		byte[] plain = createClassMessage("dictionarytest", NetConst.FIRST_VERSION_WITH_PERCEPTION_DICTIONARY - 1).compressStaticPartPerception();
+
+		// FDICT flag of the zlib header
+		assertTrue((compressed[1] & 0x20) != 0);
+		assertFalse((plain[1] & 0x20) != 0);
+		assertTrue("with dictionary: " + compressed.length + " bytes, without: " + plain.length + " bytes",
+				compressed.length < plain.length);
+
+		BufferInputSerializer in = new BufferInputSerializer(ZlibCodec.NETWORK.decompress(compressed));
+		assertEquals(Perception.SYNC, in.readByte());
+		assertEquals("dictionarytest", in.readString());
+	}
+}
@@ -0,0 +1,100 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.db.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.sql.Timestamp;
+
+import marauroa.common.Log4J;
+import marauroa.common.game.RPObject;
+import marauroa.server.db.DBTransaction;
+import marauroa.server.game.dbcommand.StoreCharacterCommand;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests coalescing the commands in the DBCommandQueue
+ */
+public class DBCommandQueueTest {
+
+	/**
+	 * a command which does not replace others
+	 */
+	private static class OtherCommand extends AbstractDBCommand {
+
+		@Override
+		public void execute(DBTransaction transaction) {
+			// not used
+		}
+	}
+
+	/**
+	 * Setup for class. It initialize the logger instance
+	 */
+	@BeforeClass
+	public static void initialize() {
+		Log4J.init("marauroa/server/log4j.properties");
+	}
+
+	private static StoreCharacterCommand createStoreCommand(String character, int x) {
+		RPObject object = new RPObject();
+		object.put("name", character);
+		object.put("x", x);
+		return new StoreCharacterCommand("user", character, object);
+	}
+
+	/**
+	 * a second save of the same character replaces the pending one, it is
+	 * executed at the position and with the enqueue time of the first one
+	 *
+	 * @throws Exception in case of an unexpected error
+	 */
+	@Test
+	public void testCoalescing() throws Exception {
+		DBCommandQueue queue = new DBCommandQueue(false);
+
+		StoreCharacterCommand first = createStoreCommand("hero", 1);
+		OtherCommand other = new OtherCommand();
+		StoreCharacterCommand second = createStoreCommand("hero", 2);
+		StoreCharacterCommand villain = createStoreCommand("villain", 1);
+
+		// commands of the same priority are ordered by their enqueue time
+		queue.enqueue(first, DBCommandPriority.LOW);
+		Timestamp enqueueTime = first.getEnqueueTime();
+		Thread.sleep(5);
+		queue.enqueue(other, DBCommandPriority.LOW);
+		Thread.sleep(5);
+		queue.enqueue(second, DBCommandPriority.LOW);
+		Thread.sleep(5);
+		queue.enqueue(villain, DBCommandPriority.LOW);
+		Thread.sleep(5);
+
+		DBCommandMetaData metaData = queue.getNextCommand();
+		assertSame(second, metaData.getCommand());
+		assertEquals(enqueueTime, second.getEnqueueTime());
+
+		// once taken from the queue, a pending save is not replaced anymore
+		Thread.sleep(5);
+		StoreCharacterCommand third = createStoreCommand("hero", 3);
+		queue.enqueue(third, DBCommandPriority.LOW);
+		assertSame(second, metaData.getCommand());
+
+		assertSame(other, queue.getNextCommand().getCommand());
+		assertSame(villain, queue.getNextCommand().getCommand());
+		assertSame(third, queue.getNextCommand().getCommand());
+		assertNull(queue.getNextCommand());
+	}
+}
@@ -0,0 +1,105 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import marauroa.common.game.RPAction;
+import marauroa.common.game.RPObject;
+
+import org.junit.Test;
+
+/**
+ * Tests the histograms of the turn statistics
+ */
+public class HistogramTest {
+
+	/**
+	 * buckets cover all values in order and are at most about 3% wide
+	 */
+	@Test
+	public void testBuckets() {
+		long previous = -1;
+		for (long value = 0; value < (1L << 40); value = value + 1 + value / 7) {
+			int index = Histogram.index(value);
+			long highest = Histogram.highestValue(index);
+			assertTrue(value <= highest);
+			assertTrue(highest - value <= value / 32 + 1);
+			if (index > 0) {
+				assertTrue(Histogram.highestValue(index - 1) < value);
+			}
+			assertTrue(highest >= previous);
+			previous = highest;
+		}
+	}
+
+	/**
+	 * percentiles, mean and maximum
+	 */
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500, histogram.getMean());
+		assertEquals(1000000, histogram.getMax());
+		assertNear(500000, histogram.getValueAtPercentile(50));
+		assertNear(990000, histogram.getValueAtPercentile(99));
+		assertEquals(1000000, histogram.getValueAtPercentile(100));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+	}
+
+	private static void assertNear(long expected, long actual) {
+		assertTrue(actual + " is not near " + expected, Math.abs(expected - actual) <= expected / 30);
+	}
+
+	/**
+	 * slow turns are captured with their zones and actions
+	 */
+	@Test
+	public void testSlowTurn() {
+		TurnStatistics statistics = new TurnStatistics();
+		statistics.setSlowTurnThreshold(100);
+		assertTrue(statistics.isCapturing());
+
+		RPObject object = new RPObject();
+		object.put("name", "bob");
+		RPAction action = new RPAction();
+		action.put("type", "move");
+		statistics.addActionTime(object, action, 150000000L);
+		statistics.addZoneTime("visit", "int_zone", 160000000L);
+		statistics.addZoneTime("world.nextTurn", "int_zone", 5000000L);
+
+		long[] durations = new long[TurnStatistics.PHASES.length];
+		durations[2] = 170000000L;
+		durations[durations.length - 1] = 180000000L;
+		statistics.recordTurn(1, durations);
+		durations[durations.length - 1] = 1000000L;
+		statistics.recordTurn(2, durations);
+
+		assertEquals(1, statistics.getSlowTurns().size());
+		String turn = statistics.getSlowTurns().get(0);
+		assertTrue(turn, turn.startsWith("turn 1 took 180.000 ms: lock=0.000 nextTurn=0.000 visit=170.000"));
+		assertTrue(turn, turn.contains("zones: visit int_zone=160.000 world.nextTurn int_zone=5.000; players: bob=150.000; actions: move=150.000"));
+		assertEquals(1, statistics.getZoneHistogram("visit", "int_zone").getCount());
+		assertEquals(1, statistics.getZoneHistogram("world.nextTurn", "int_zone").getCount());
+		assertEquals(2, statistics.getPhaseHistogram("turn").getCount());
+		assertTrue(statistics.getReport().contains("zone visit int_zone"));
+		assertTrue(statistics.getReport().contains("zone world.nextTurn int_zone"));
+	}
+}
@@ -17,6 +17,12 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+
+import marauroa.common.game.RPObject;
+import marauroa.common.net.Channel;
+
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -50,6 +56,7 @@ public class PlayerEntryContainerTest {
 		PlayerEntry entry = cont.add(null);
 
 		entry.username = "test0";
+		cont.reindex(entry);
 
 		assertTrue(cont.has(entry.clientid));
 		assertFalse(cont.has(entry.clientid + 1));
@@ -66,6 +73,7 @@ public class PlayerEntryContainerTest {
 	public void testGet() {
 		PlayerEntry entry = cont.add(null);
 		entry.username = "test1";
+		cont.reindex(entry);
 
 		assertEquals(entry, cont.get(entry.clientid));
 		assertEquals(entry, cont.get(entry.username));
@@ -88,4 +96,152 @@ public class PlayerEntryContainerTest {
 		removed = cont.remove(entry.clientid);
 		assertNull(removed);
 	}
+
+	/**
+	 * Test the lookups by channel, character and object, also after the
+	 * fields of an entry have been changed.
+	 */
+	@Test
+	public void testIndexes() {
+		Channel channel = new Channel(null, new InetSocketAddress("localhost", 1234), null);
+		PlayerEntry entry = cont.add(channel);
+		entry.username = "test3";
+		entry.character = "char3";
+		RPObject object = new RPObject();
+		object.put("id", 3);
+		object.put("zoneid", "zone");
+		entry.setObject(object);
+
+		assertEquals(entry, cont.get(channel));
+		assertEquals(entry, cont.get("TEST3"));
+		assertEquals(entry, cont.get(object));
+
+		// the object moved to another zone
+		object.put("zoneid", "another zone");
+		assertEquals(entry, cont.get(object));
+		assertNull(cont.get(new RPObject()));
+
+		// a second login with the same character
+		PlayerEntry second = cont.add(null);
+		second.character = "Char3";
+		cont.reindex(second);
+		assertEquals(entry, cont.getOldEntry(second));
+
+		entry.username = "renamed";
+		cont.reindex(entry);
+		assertNull(cont.get("test3"));
+		assertEquals(entry, cont.get("renamed"));
+
+		cont.remove(entry.clientid);
+		cont.remove(second.clientid);
+		assertNull(cont.get(channel));
+		assertNull(cont.get(object));
+		assertNull(cont.getOldEntry(second));
+		for (PlayerEntry e : cont) {
+			assertTrue(e != entry);
+		}
+	}
+
+	/**
+	 * Test that no keys are left in the indexes after an entry, whose object
+	 * changed zone and whose username was changed, is removed.
+	 */
+	@Test
+	public void testIndexesAreEmptyAfterRemove() {
+		PlayerEntryContainer container = new PlayerEntryContainer();
+		Channel channel = new Channel(null, new InetSocketAddress("localhost", 1235), null);
+		PlayerEntry entry = container.add(channel);
+		entry.username = "test4";
+		entry.character = "char4";
+		RPObject object = new RPObject();
+		object.put("id", 4);
+		object.put("zoneid", "zone");
+		entry.setObject(object);
+		assertEquals(entry, container.get(object));
+		assertEquals(entry, container.get("test4"));
+		assertNull(container.getOldEntry(entry));
+
+		// change zone, which assigns a new id
+		object.put("id", 5);
+		object.put("zoneid", "another zone");
+		assertEquals(entry, container.get(object));
+
+		entry.username = "renamed4";
+		container.reindex(entry);
+		assertEquals(entry, container.get("renamed4"));
+		assertNull(container.get(new Channel(null, new InetSocketAddress("localhost", 1236), null)));
+
+		container.remove(entry.clientid);
+		assertTrue(container.channelIndex.isEmpty());
+		assertTrue(container.usernameIndex.isEmpty());
+		assertTrue(container.characterIndex.isEmpty());
+		assertTrue(container.objectIndex.isEmpty());
+	}
+
+	/**
+	 * Test the lookups of entries which share a username or a character
+	 */
+	@Test
+	public void testSharedKeys() {
+		PlayerEntryContainer container = new PlayerEntryContainer();
+		PlayerEntry first = container.add(null);
+		first.username = "account";
+		first.character = "hero";
+		container.reindex(first);
+		PlayerEntry second = container.add(null);
+		second.username = "Account";
+		second.character = "villain";
+		container.reindex(second);
+		PlayerEntry third = container.add(null);
+		third.username = "other";
+		third.character = "Hero";
+		container.reindex(third);
+
+		assertEquals(first, container.get("account"));
+		assertEquals(third, container.getOldEntry(first));
+		assertEquals(first, container.getOldEntry(third));
+		assertNull(container.getOldEntry(second));
+
+		container.remove(first.clientid);
+		assertEquals(second, container.get("ACCOUNT"));
+		assertNull(container.getOldEntry(third));
+
+		// a name changed without reindex is not found
+		third.username = "unknown";
+		assertNull(container.get("unknown"));
+		assertNull(container.get("other"));
+		container.reindex(third);
+		assertEquals(third, container.get("unknown"));
+	}
+
+	/**
+	 * Test that an object assigned to the field of an entry is found
+	 */
+	@Test
+	public void testObjectAssignedDirectly() {
+		PlayerEntryContainer container = new PlayerEntryContainer();
+		PlayerEntry entry = container.add(null);
+		RPObject object = new RPObject();
+		entry.object = object;
+
+		assertEquals(entry, container.get(object));
+		assertEquals(entry, container.objectIndex.get(object));
+		assertNull(container.get(new RPObject()));
+	}
+
+	/**
+	 * Test that removing with the iterator only skips the entry in the
+	 * iteration, like in earlier versions, which iterated over a copy.
+	 */
+	@Test
+	public void testIteratorRemove() {
+		PlayerEntryContainer container = new PlayerEntryContainer();
+		PlayerEntry entry = container.add(null);
+
+		Iterator<PlayerEntry> itr = container.iterator();
+		assertEquals(entry, itr.next());
+		itr.remove();
+		assertFalse(itr.hasNext());
+		assertTrue(container.has(entry.clientid));
+	}
 }
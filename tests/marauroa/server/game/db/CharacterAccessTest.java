@@ -20,6 +20,7 @@ import static org.junit.Assert.fail;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -249,4 +250,46 @@ public class CharacterAccessTest {
 		}
 	}
 
+
+	/**
+	 * Test that storing a snapshot calls the RPObject variant of
+	 * storeCharacter, if a subclass overrides only that one.
+	 *
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	@Test
+	public void storeSnapshotWithOverriddenObjectVariant() throws SQLException, IOException {
+		String username = "testUserCA";
+		String character = "testCharacterCA";
+		final List<RPObject> stored = new ArrayList<RPObject>();
+		CharacterDAO gameDAO = new CharacterDAO() {
+			@Override
+			public void storeCharacter(DBTransaction transaction, String username, String character,
+					RPObject player, Timestamp timestamp) throws SQLException, IOException {
+				stored.add(player);
+				super.storeCharacter(transaction, username, character, player, timestamp);
+			}
+		};
+
+		RPObject player = new RPObject();
+		player.put("a", 1);
+
+		DBTransaction transaction = transactionPool.beginWork();
+		try {
+			accountDAO.addPlayer(transaction, username, Hash.hash("testPassword"), "email@email.com", new Timestamp(new Date().getTime()));
+			characterDAO.addCharacter(transaction, username, character, player, new Timestamp(new Date().getTime()));
+
+			player.put("a", 2);
+			gameDAO.storeCharacter(transaction, username, character, RPObjectSnapshot.of(player), new Timestamp(new Date().getTime()));
+			assertEquals(1, stored.size());
+			assertEquals(2, stored.get(0).getInt("a"));
+			assertEquals(2, characterDAO.loadCharacter(transaction, username, character).getInt("a"));
+
+			characterDAO.storeCharacter(transaction, username, character, RPObjectSnapshot.of(player), new Timestamp(new Date().getTime()));
+			assertEquals(1, stored.size());
+		} finally {
+			transactionPool.rollback(transaction);
+		}
+	}
 }
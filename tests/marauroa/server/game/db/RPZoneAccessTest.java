@@ -156,4 +156,31 @@ public class RPZoneAccessTest {
 			transactionPool.rollback(transaction);
 		}
 	}
+
+	/**
+	 * Tests that a snapshot taken before the zone is modified is stored
+	 * and loaded unchanged.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void storeSnapshot() throws Exception {
+		DBTransaction transaction = transactionPool.beginWork();
+
+		try {
+			RPObject.ID id = new RPObject.ID(1, "test");
+			RPObject expected = (RPObject) zone.get(id).clone();
+			RPObjectSnapshot snapshot = RPObjectSnapshot.ofStorable(zone);
+			assertEquals(1, snapshot.getCount());
+
+			zone.get(id).put("b", 2);
+			rpzoneDAO.storeRPZone(transaction, zone, snapshot);
+
+			MarauroaRPZone newzone = new MarauroaRPZone("test");
+			rpzoneDAO.loadRPZone(transaction, newzone);
+			assertEquals(expected, newzone.get(id));
+		} finally {
+			transactionPool.rollback(transaction);
+		}
+	}
 }
@@ -0,0 +1,154 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game.rp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import marauroa.common.game.Perception;
+import marauroa.common.game.RPObject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the area of interest perceptions of MarauroaRPZone
+ */
+public class MarauroaRPZoneTest {
+
+	private MarauroaRPZone zone;
+
+	private RPObject player;
+
+	private RPObject near;
+
+	private RPObject far;
+
+	/**
+	 * creates a zone with a player, an object near it and an object far away
+	 */
+	@Before
+	public void setUp() {
+		zone = new MarauroaRPZone("test") {
+
+			@Override
+			public void onInit() throws Exception {
+				// do nothing, but method is required by interface
+			}
+
+			@Override
+			public void onFinish() throws Exception {
+				// do nothing, but method is required by interface
+			}
+		};
+		zone.setInterestRadius(10);
+
+		player = createObject(0, 0);
+		near = createObject(5, -5);
+		far = createObject(100, 100);
+	}
+
+	private RPObject createObject(int x, int y) {
+		RPObject object = new RPObject();
+		object.put("x", x);
+		object.put("y", y);
+		zone.assignRPObjectID(object);
+		zone.add(object);
+		return object;
+	}
+
+	private static boolean contains(List<RPObject> list, RPObject object) {
+		for (RPObject entry : list) {
+			if (entry.getInt("id") == object.getInt("id")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * a sync perception contains only the objects in range
+	 */
+	@Test
+	public void testSyncContainsOnlyObjectsInRange() {
+		Perception perception = zone.getPerception(player, Perception.SYNC);
+		assertFalse(perception.isShared());
+		assertTrue(contains(perception.addedList, player));
+		assertTrue(contains(perception.addedList, near));
+		assertFalse(contains(perception.addedList, far));
+	}
+
+	/**
+	 * objects moving into range are added and objects moving out of range are
+	 * deleted
+	 */
+	@Test
+	public void testEnterAndLeave() {
+		zone.getPerception(player, Perception.SYNC);
+		zone.nextTurn();
+
+		far.put("x", 8);
+		far.put("y", 8);
+		zone.modify(far);
+		near.put("x", 50);
+		zone.modify(near);
+
+		Perception perception = zone.getPerception(player, Perception.DELTA);
+		assertTrue(contains(perception.addedList, far));
+		assertFalse(contains(perception.modifiedAddedList, far));
+		assertTrue(contains(perception.deletedList, near));
+		assertFalse(contains(perception.modifiedAddedList, near));
+		zone.nextTurn();
+
+		perception = zone.getPerception(player, Perception.DELTA);
+		assertEquals(0, perception.size());
+	}
+
+	/**
+	 * changes of objects in range are sent as modifications, changes of
+	 * objects out of range are not sent at all
+	 */
+	@Test
+	public void testModificationsInRange() {
+		zone.getPerception(player, Perception.SYNC);
+		zone.nextTurn();
+
+		near.put("hp", 5);
+		zone.modify(near);
+		far.put("hp", 5);
+		zone.modify(far);
+
+		Perception perception = zone.getPerception(player, Perception.DELTA);
+		assertTrue(perception.addedList.isEmpty());
+		assertTrue(contains(perception.modifiedAddedList, near));
+		assertFalse(contains(perception.modifiedAddedList, far));
+	}
+
+	/**
+	 * removing an object from the zone is only sent to players that knew it
+	 */
+	@Test
+	public void testRemove() {
+		zone.getPerception(player, Perception.SYNC);
+		zone.nextTurn();
+
+		zone.remove(near.getID());
+		zone.remove(far.getID());
+
+		Perception perception = zone.getPerception(player, Perception.DELTA);
+		assertTrue(contains(perception.deletedList, near));
+		assertFalse(contains(perception.deletedList, far));
+	}
+}
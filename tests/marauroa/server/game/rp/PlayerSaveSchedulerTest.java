@@ -0,0 +1,92 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game.rp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import marauroa.common.game.RPObject;
+import marauroa.server.game.container.ClientState;
+import marauroa.server.game.container.PlayerEntry;
+
+import org.junit.Test;
+
+/**
+ * Tests spreading the periodic saves of players across turns
+ */
+public class PlayerSaveSchedulerTest {
+
+	private static List<PlayerEntry> createPlayers(int count) {
+		List<PlayerEntry> players = new ArrayList<PlayerEntry>();
+		for (int i = 0; i < count; i++) {
+			PlayerEntry entry = new PlayerEntry(null);
+			entry.state = ClientState.GAME_BEGIN;
+			entry.username = "user" + i;
+			entry.character = "character" + i;
+			entry.object = new RPObject();
+			entry.object.put("id", i);
+			entry.object.resetAddedAndDeleted();
+			players.add(entry);
+		}
+		return players;
+	}
+
+	/**
+	 * Tests the automatic budget
+	 */
+	@Test
+	public void testBudget() {
+		PlayerSaveScheduler scheduler = new PlayerSaveScheduler();
+		assertEquals(1, scheduler.getBudget(0));
+		assertEquals(1, scheduler.getBudget(1000));
+		assertEquals(2, scheduler.getBudget(1001));
+		assertEquals(10, scheduler.getBudget(10000));
+	}
+
+	/**
+	 * Tests that players who log in together are saved in different turns,
+	 * the changed ones first
+	 */
+	@Test
+	public void testSpreadSaves() {
+		List<PlayerEntry> players = createPlayers(3);
+		PlayerSaveScheduler scheduler = new PlayerSaveScheduler();
+
+		for (int i = 0; i < 1999; i++) {
+			for (PlayerEntry entry : players) {
+				entry.getPerceptionTimestamp();
+			}
+			scheduler.nextTurn(players);
+		}
+		for (PlayerEntry entry : players) {
+			assertEquals(1999, entry.getPerceptionsSinceSave());
+		}
+
+		players.get(2).object.put("hp", 10);
+		for (PlayerEntry entry : players) {
+			entry.getPerceptionTimestamp();
+		}
+		scheduler.nextTurn(players);
+		assertEquals(2000, players.get(0).getPerceptionsSinceSave());
+		assertEquals(2000, players.get(1).getPerceptionsSinceSave());
+		assertEquals(0, players.get(2).getPerceptionsSinceSave());
+
+		for (PlayerEntry entry : players) {
+			entry.getPerceptionTimestamp();
+		}
+		scheduler.nextTurn(players);
+		assertEquals(0, players.get(0).getPerceptionsSinceSave());
+		assertEquals(2001, players.get(1).getPerceptionsSinceSave());
+	}
+}
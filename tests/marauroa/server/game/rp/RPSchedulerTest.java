@@ -0,0 +1,177 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game.rp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import marauroa.common.game.RPAction;
+import marauroa.common.game.RPObject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the scheduling of actions by turns
+ */
+public class RPSchedulerTest {
+
+	private RPScheduler scheduler;
+
+	private List<RPAction> executed;
+
+	private IRPRuleProcessor ruleProcessor;
+
+	/**
+	 * creates a scheduler and a rule processor that records the executed
+	 * actions and rejects actions of type "reject"
+	 */
+	@Before
+	public void setUp() {
+		scheduler = new RPScheduler();
+		executed = new ArrayList<RPAction>();
+		ruleProcessor = new RPRuleProcessorImpl() {
+			@Override
+			public boolean onActionAdd(RPObject caster, RPAction action, List<RPAction> actionList) {
+				return !"reject".equals(action.get("type"));
+			}
+
+			@Override
+			public void execute(RPObject caster, RPAction action) {
+				synchronized (executed) {
+					executed.add(action);
+				}
+			}
+		};
+	}
+
+	private static RPAction createAction(String type) {
+		RPAction action = new RPAction();
+		action.put("type", type);
+		return action;
+	}
+
+	/**
+	 * actions are executed in the turn after they were added
+	 */
+	@Test
+	public void testTurns() {
+		RPObject object = new RPObject();
+		scheduler.addRPAction(object, createAction("first"), ruleProcessor);
+		scheduler.addRPAction(object, createAction("reject"), ruleProcessor);
+
+		scheduler.visit(ruleProcessor);
+		assertEquals(0, executed.size());
+
+		scheduler.nextTurn();
+		scheduler.addRPAction(object, createAction("second"), ruleProcessor);
+		scheduler.visit(ruleProcessor);
+		assertEquals(1, executed.size());
+		assertEquals("first", executed.get(0).get("type"));
+
+		scheduler.nextTurn();
+		scheduler.visit(ruleProcessor);
+		assertEquals(2, executed.size());
+		assertEquals("second", executed.get(1).get("type"));
+
+		scheduler.nextTurn();
+		scheduler.visit(ruleProcessor);
+		assertEquals(2, executed.size());
+	}
+
+	/**
+	 * cleared actions are not executed
+	 */
+	@Test
+	public void testClear() {
+		RPObject object = new RPObject();
+		RPObject other = new RPObject();
+		scheduler.addRPAction(object, createAction("first"), ruleProcessor);
+		scheduler.addRPAction(other, createAction("other"), ruleProcessor);
+		scheduler.clearRPActions(object);
+
+		scheduler.nextTurn();
+		scheduler.visit(ruleProcessor);
+		assertEquals(1, executed.size());
+		assertEquals("other", executed.get(0).get("type"));
+	}
+
+	/**
+	 * actions of several threads are all executed
+	 *
+	 * @throws InterruptedException in case the test is interrupted
+	 */
+	@Test
+	public void testProducers() throws InterruptedException {
+		final RPObject object = new RPObject();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						scheduler.addRPAction(object, createAction("move"), ruleProcessor);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		scheduler.nextTurn();
+		scheduler.visit(ruleProcessor);
+		assertEquals(400, executed.size());
+	}
+
+	/**
+	 * threads which add actions once and end do not leave queues behind,
+	 * the actions of each thread keep their order
+	 *
+	 * @throws InterruptedException in case the test is interrupted
+	 */
+	@Test
+	public void testShortLivedProducers() throws InterruptedException {
+		final RPObject object = new RPObject();
+		int queues = scheduler.getQueueCount();
+		for (int i = 0; i < 200; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					scheduler.addRPAction(object, createAction("first"), ruleProcessor);
+					scheduler.addRPAction(object, createAction("second"), ruleProcessor);
+				}
+			};
+			thread.start();
+			thread.join();
+		}
+		assertEquals(queues, scheduler.getQueueCount());
+
+		scheduler.nextTurn();
+		scheduler.visit(ruleProcessor);
+		assertEquals(400, executed.size());
+		int first = 0;
+		for (RPAction action : executed) {
+			if ("first".equals(action.get("type"))) {
+				first++;
+			} else {
+				assertTrue(first > 0);
+				first--;
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game.rp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import marauroa.common.game.RPObject;
+import marauroa.common.net.BufferOutputSerializer;
+import marauroa.common.net.Channel;
+import marauroa.common.net.message.Message;
+import marauroa.common.net.message.MessageS2CPerception;
+import marauroa.server.game.container.ClientState;
+import marauroa.server.game.container.PlayerEntry;
+import marauroa.server.game.container.PlayerEntryContainer;
+import marauroa.server.net.IDisconnectedListener;
+import marauroa.server.net.INetworkServerManager;
+import marauroa.server.net.validator.ConnectionValidator;
+
+import org.junit.Test;
+
+/**
+ * Tests building the perceptions of the players
+ */
+public class RPServerManagerTest {
+
+	private static final int PLAYERS = 12;
+
+	/** size of the message header: protocol version, type, client id and timestamp */
+	private static final int HEADER_SIZE = 10;
+
+	/**
+	 * a network manager which keeps the sent messages
+	 */
+	private static class RecordingNetworkServerManager implements INetworkServerManager {
+
+		final List<Message> messages = new ArrayList<Message>();
+
+		public void registerDisconnectedListener(IDisconnectedListener listener) {
+			// not used
+		}
+
+		public ConnectionValidator getValidator() {
+			return null;
+		}
+
+		public Message getMessage() {
+			return null;
+		}
+
+		public void sendMessage(Message msg) {
+			synchronized (messages) {
+				messages.add(msg);
+			}
+		}
+
+		public void disconnectClient(Channel channel) {
+			// not used
+		}
+
+		public void start() {
+			// not used
+		}
+
+		public void finish() {
+			// not used
+		}
+
+		public Object getChannel(Object internalChannel) {
+			return null;
+		}
+	}
+
+	/**
+	 * perceptions built by several threads are the same as the ones built by
+	 * the turn thread
+	 *
+	 * @throws Exception in case of an unexpected error
+	 */
+	@Test
+	public void testParallelPerceptions() throws Exception {
+		Map<String, byte[]> sequential = buildPerceptions(0);
+		Map<String, byte[]> parallel = buildPerceptions(4);
+
+		// a SYNC and a DELTA perception for each player
+		assertEquals(2 * PLAYERS, sequential.size());
+		assertEquals(sequential.keySet(), parallel.keySet());
+		for (Map.Entry<String, byte[]> entry : sequential.entrySet()) {
+			assertArrayEquals(entry.getKey(), entry.getValue(), parallel.get(entry.getKey()));
+		}
+	}
+
+	/**
+	 * builds two turns of perceptions for players in two zones
+	 *
+	 * @param threads number of perception threads
+	 * @return serialized perceptions without header by turn and player
+	 * @throws Exception in case of an unexpected error
+	 */
+	private Map<String, byte[]> buildPerceptions(int threads) throws Exception {
+		RPWorld.set(null);
+		RecordingNetworkServerManager netMan = new RecordingNetworkServerManager();
+		RPServerManager manager = new RPServerManager(netMan);
+		manager.setPerceptionThreads(threads);
+
+		RPWorld world = RPWorld.get();
+		world.addRPZone(createZone("perception0"));
+		world.addRPZone(createZone("perception1"));
+
+		PlayerEntryContainer container = PlayerEntryContainer.getContainer();
+		Map<Integer, Integer> players = new HashMap<Integer, Integer>();
+		List<PlayerEntry> entries = new ArrayList<PlayerEntry>();
+		try {
+			for (int i = 0; i < PLAYERS; i++) {
+				RPObject object = new RPObject();
+				object.put("zoneid", "perception" + (i % 2));
+				object.put("name", "player" + i);
+				object.put("x", i);
+				world.add(object);
+
+				PlayerEntry entry = container.add(null);
+				entry.state = ClientState.GAME_BEGIN;
+				entry.setObject(object);
+				entry.requestSync();
+				entries.add(entry);
+				players.put(Integer.valueOf(entry.clientid), Integer.valueOf(i));
+			}
+
+			Map<String, byte[]> res = new HashMap<String, byte[]>();
+			manager.buildPerceptions();
+			record(netMan, players, "sync", res);
+			world.nextTurn();
+
+			for (int i = 0; i < PLAYERS; i++) {
+				RPObject object = entries.get(i).object;
+				object.put("hp", 10 * i);
+				if (i % 3 == 0) {
+					object.remove("x");
+				}
+				world.modify(object);
+			}
+			manager.buildPerceptions();
+			record(netMan, players, "delta", res);
+			world.nextTurn();
+			return res;
+		} finally {
+			for (PlayerEntry entry : entries) {
+				container.remove(entry.clientid);
+			}
+			manager.setPerceptionThreads(0);
+			RPWorld.set(null);
+		}
+	}
+
+	private static MarauroaRPZone createZone(String name) {
+		return new MarauroaRPZone(name) {
+
+			@Override
+			public void onInit() throws Exception {
+				// do nothing, but method is required by interface
+			}
+
+			@Override
+			public void onFinish() throws Exception {
+				// do nothing, but method is required by interface
+			}
+		};
+	}
+
+	private static void record(RecordingNetworkServerManager netMan, Map<Integer, Integer> players,
+			String turn, Map<String, byte[]> res) throws IOException {
+		assertEquals(PLAYERS, netMan.messages.size());
+		for (Message message : netMan.messages) {
+			MessageS2CPerception perception = (MessageS2CPerception) message;
+			BufferOutputSerializer serializer = BufferOutputSerializer.acquire();
+			try {
+				perception.writeObject(serializer);
+				byte[] data = Arrays.copyOfRange(serializer.array(), HEADER_SIZE, serializer.size());
+				res.put(turn + " " + players.get(Integer.valueOf(perception.getClientID())), data);
+			} finally {
+				serializer.release();
+			}
+		}
+		netMan.messages.clear();
+	}
+}
@@ -0,0 +1,222 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.game.rp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import marauroa.common.game.IRPZone;
+import marauroa.common.game.RPAction;
+import marauroa.common.game.RPObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the changes of the world while zones are processed concurrently
+ */
+public class RPWorldTest {
+
+	private static final int ZONES = 4;
+
+	private RPWorld world;
+
+	private TurnExecutor executor;
+
+	/** errors and unexpected states seen by the zone threads */
+	private List<String> errors;
+
+	/**
+	 * creates a world with some zones and an executor for them
+	 */
+	@Before
+	public void setUp() {
+		world = new RPWorld();
+		world.initialize();
+		for (int i = 0; i < ZONES; i++) {
+			world.addRPZone(createZone("zone" + i));
+		}
+		executor = new TurnExecutor(ZONES);
+		errors = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	/**
+	 * stops the executor
+	 */
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	private MarauroaRPZone createZone(String name) {
+		return new MarauroaRPZone(name) {
+
+			@Override
+			public void onInit() throws Exception {
+				// do nothing, but method is required by interface
+			}
+
+			@Override
+			public void onFinish() throws Exception {
+				// do nothing, but method is required by interface
+			}
+		};
+	}
+
+	private RPObject createObject(String zone) {
+		RPObject object = new RPObject();
+		object.put("zoneid", zone);
+		world.add(object);
+		return object;
+	}
+
+	private static RPAction createAction(String type) {
+		RPAction action = new RPAction();
+		action.put("type", type);
+		return action;
+	}
+
+	private long count(String zone) {
+		return world.getRPZone(new IRPZone.ID(zone)).size();
+	}
+
+	/**
+	 * actions of objects in several zones are executed by the TurnExecutor,
+	 * objects that are added, removed or change the zone are applied after
+	 * all zones have completed
+	 */
+	@Test
+	public void testDeferredChanges() {
+		IRPRuleProcessor ruleProcessor = new RPRuleProcessorImpl() {
+			@Override
+			public boolean onActionAdd(RPObject caster, RPAction action, List<RPAction> actionList) {
+				return true;
+			}
+
+			@Override
+			public void execute(RPObject caster, RPAction action) {
+				String zone = caster.get("zoneid");
+				long size = count(zone);
+				String type = action.get("type");
+				if ("move".equals(type)) {
+					world.changeZone("zone0", caster);
+				} else if ("spawn".equals(type)) {
+					RPObject object = new RPObject();
+					object.put("zoneid", zone);
+					world.add(object);
+				} else if ("remove".equals(type)) {
+					if (world.remove(caster.getID()) != caster) {
+						errors.add("remove did not return " + caster);
+					}
+				}
+
+				if (count(zone) != size) {
+					errors.add(type + " changed " + zone + " while zones are processed");
+				}
+				try {
+					world.addRPZone(createZone("other"));
+					errors.add("added a zone while zones are processed");
+				} catch (IllegalStateException e) {
+					// expected
+				}
+			}
+		};
+
+		RPScheduler scheduler = new RPScheduler();
+		for (int i = 1; i < ZONES; i++) {
+			String zone = "zone" + i;
+			scheduler.addRPAction(createObject(zone), createAction("move"), ruleProcessor);
+			scheduler.addRPAction(createObject(zone), createAction("spawn"), ruleProcessor);
+			scheduler.addRPAction(createObject(zone), createAction("remove"), ruleProcessor);
+		}
+		assertEquals(0, count("zone0"));
+
+		scheduler.nextTurn();
+		world.beginParallelPhase();
+		try {
+			scheduler.visit(ruleProcessor, executor);
+		} finally {
+			world.endParallelPhase();
+		}
+
+		assertEquals(errors.toString(), 0, errors.size());
+		assertEquals(ZONES - 1, count("zone0"));
+		for (int i = 1; i < ZONES; i++) {
+			// the spawning object and the spawned one
+			assertEquals(2, count("zone" + i));
+		}
+		for (RPObject object : world.getRPZone(new IRPZone.ID("zone0"))) {
+			assertTrue(object.has("id"));
+			assertEquals("zone0", object.get("zoneid"));
+		}
+
+		world.addRPZone(createZone("other"));
+		assertNotNull(world.getRPZone(new IRPZone.ID("other")));
+	}
+
+	/**
+	 * zones which move objects in nextTurn do not touch other zones while
+	 * they are processed concurrently
+	 */
+	@Test
+	public void testNextTurn() {
+		world = new RPWorld();
+		world.initialize();
+		for (int i = 0; i < ZONES; i++) {
+			final String name = "zone" + i;
+			world.addRPZone(new MarauroaRPZone(name) {
+
+				@Override
+				public void onInit() throws Exception {
+					// do nothing, but method is required by interface
+				}
+
+				@Override
+				public void onFinish() throws Exception {
+					// do nothing, but method is required by interface
+				}
+
+				@Override
+				public void nextTurn() {
+					super.nextTurn();
+					List<RPObject> objects = new ArrayList<RPObject>();
+					for (RPObject object : this) {
+						objects.add(object);
+					}
+					for (RPObject object : objects) {
+						world.changeZone("zone0", object);
+					}
+					if (size() != objects.size()) {
+						errors.add(name + " changed while zones are processed");
+					}
+				}
+			});
+		}
+		for (int i = 1; i < ZONES; i++) {
+			createObject("zone" + i);
+		}
+
+		world.nextTurn(executor);
+
+		assertEquals(errors.toString(), 0, errors.size());
+		assertEquals(ZONES - 1, count("zone0"));
+		for (int i = 1; i < ZONES; i++) {
+			assertEquals(0, count("zone" + i));
+		}
+	}
+}
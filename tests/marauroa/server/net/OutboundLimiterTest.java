@@ -0,0 +1,100 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import marauroa.common.game.IRPZone;
+import marauroa.common.game.Perception;
+import marauroa.common.net.message.Message;
+import marauroa.common.net.message.MessageS2CPerception;
+import marauroa.common.net.message.MessageS2CServerInfo;
+import marauroa.server.net.OutboundLimiter.Decision;
+
+import org.junit.Test;
+
+/**
+ * Tests the limits of the data waiting to be sent to a slow client
+ */
+public class OutboundLimiterTest {
+
+	private static final long SOFT = 1000;
+
+	private static final long HARD = 5000;
+
+	private static Message createPerception(byte type) {
+		return new MessageS2CPerception(null, new Perception(type, new IRPZone.ID("zone")));
+	}
+
+	/**
+	 * messages are sent below the soft limit
+	 */
+	@Test
+	public void testBelowLimits() {
+		OutboundLimiter limiter = new OutboundLimiter();
+		assertEquals(Decision.SEND, limiter.check(SOFT, createPerception(Perception.DELTA), SOFT, HARD));
+		assertEquals(Decision.SEND, limiter.check(SOFT, createPerception(Perception.SYNC), SOFT, HARD));
+		assertFalse(limiter.isSyncPending());
+	}
+
+	/**
+	 * DELTA perceptions are dropped above the soft limit, until the client
+	 * caught up and got a SYNC perception
+	 */
+	@Test
+	public void testSoftLimit() {
+		OutboundLimiter limiter = new OutboundLimiter();
+		Message delta = createPerception(Perception.DELTA);
+
+		assertEquals(Decision.DROP, limiter.check(SOFT + 1, delta, SOFT, HARD));
+		assertTrue(limiter.isSyncPending());
+		assertFalse(limiter.isSyncRequested());
+
+		// other messages are still sent
+		assertEquals(Decision.SEND, limiter.check(SOFT + 1, new MessageS2CServerInfo(), SOFT, HARD));
+
+		// once the client caught up, a single SYNC perception is requested
+		assertEquals(Decision.DROP, limiter.check(SOFT + 1, delta, SOFT, HARD));
+		assertEquals(Decision.DROP_AND_REQUEST_SYNC, limiter.check(0, delta, SOFT, HARD));
+		assertTrue(limiter.isSyncRequested());
+		assertEquals(Decision.DROP, limiter.check(0, delta, SOFT, HARD));
+		assertEquals(Decision.DROP, limiter.check(0, delta, SOFT, HARD));
+
+		assertEquals(Decision.SEND, limiter.check(0, createPerception(Perception.SYNC), SOFT, HARD));
+		assertFalse(limiter.isSyncPending());
+		assertFalse(limiter.isSyncRequested());
+		assertEquals(Decision.SEND, limiter.check(0, delta, SOFT, HARD));
+	}
+
+	/**
+	 * clients above the hard limit are disconnected, whatever the message is
+	 */
+	@Test
+	public void testHardLimit() {
+		OutboundLimiter limiter = new OutboundLimiter();
+		assertEquals(Decision.CLOSE, limiter.check(HARD + 1, createPerception(Perception.SYNC), SOFT, HARD));
+		assertEquals(Decision.CLOSE, limiter.check(HARD + 1, new MessageS2CServerInfo(), SOFT, HARD));
+	}
+
+	/**
+	 * a limit of 0 disables it
+	 */
+	@Test
+	public void testNoLimits() {
+		OutboundLimiter limiter = new OutboundLimiter();
+		assertEquals(Decision.SEND, limiter.check(Long.MAX_VALUE, createPerception(Perception.DELTA), 0, 0));
+		assertEquals(Decision.CLOSE, limiter.check(HARD + 1, createPerception(Perception.DELTA), 0, HARD));
+		assertEquals(Decision.DROP, limiter.check(SOFT + 1, createPerception(Perception.DELTA), SOFT, 0));
+	}
+}
@@ -0,0 +1,280 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.net.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import marauroa.common.Log4J;
+import marauroa.common.net.Channel;
+import marauroa.common.net.ConnectionManager;
+import marauroa.common.net.Encoder;
+import marauroa.common.net.message.Message;
+import marauroa.common.net.message.MessageC2SKeepAlive;
+import marauroa.common.net.message.MessageS2CServerInfo;
+import marauroa.server.net.IDisconnectedListener;
+import marauroa.server.net.INetworkServerManager;
+import marauroa.server.net.IServerManager;
+import marauroa.server.net.validator.ConnectionValidator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests receiving and sending messages through the NIONetworkConnectionManager
+ */
+public class NIONetworkConnectionManagerTest {
+
+	private static final int CONNECTIONS = 12;
+
+	private static final int MESSAGES = 20;
+
+	/**
+	 * a server manager which keeps the received messages and the threads that
+	 * decoded them
+	 */
+	static class RecordingServerManager implements IServerManager, INetworkServerManager {
+
+		final Map<Object, Channel> channels = new ConcurrentHashMap<Object, Channel>();
+
+		final Map<Object, List<Message>> messages = new HashMap<Object, List<Message>>();
+
+		final Map<Object, Set<String>> threads = new HashMap<Object, Set<String>>();
+
+		final Set<Object> disconnected = new HashSet<Object>();
+
+		public void addServer(ConnectionManager server) {
+			// not used
+		}
+
+		public Channel onConnect(ConnectionManager server, InetSocketAddress address, Object internalChannel) {
+			Channel channel = new Channel(server, address, internalChannel);
+			channels.put(internalChannel, channel);
+			return channel;
+		}
+
+		public synchronized void onMessage(ConnectionManager server, Object internalChannel, Message message) {
+			List<Message> list = messages.get(internalChannel);
+			if (list == null) {
+				list = new ArrayList<Message>();
+				messages.put(internalChannel, list);
+				threads.put(internalChannel, new HashSet<String>());
+			}
+			list.add(message);
+			threads.get(internalChannel).add(Thread.currentThread().getName());
+			notifyAll();
+		}
+
+		public synchronized void onDisconnect(ConnectionManager server, Object internalChannel) {
+			disconnected.add(internalChannel);
+		}
+
+		public void registerDisconnectedListener(IDisconnectedListener listener) {
+			// not used
+		}
+
+		public ConnectionValidator getValidator() {
+			return null;
+		}
+
+		public Message getMessage() {
+			return null;
+		}
+
+		public void sendMessage(Message msg) {
+			// not used
+		}
+
+		public void disconnectClient(Channel channel) {
+			// not used
+		}
+
+		public void start() {
+			// not used
+		}
+
+		public void finish() {
+			// not used
+		}
+
+		public Object getChannel(Object internalChannel) {
+			return channels.get(internalChannel);
+		}
+
+		synchronized int countMessages() {
+			int res = 0;
+			for (List<Message> list : messages.values()) {
+				res += list.size();
+			}
+			return res;
+		}
+
+		synchronized void waitForMessages(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + 10000;
+			while ((countMessages() < count) && (System.currentTimeMillis() < end)) {
+				wait(100);
+			}
+		}
+	}
+
+	/**
+	 * Setup for class. It initialize the logger instance
+	 */
+	@BeforeClass
+	public static void initialize() {
+		Log4J.init("marauroa/server/log4j.properties");
+	}
+
+	/**
+	 * gets a port that is not in use
+	 *
+	 * @return port
+	 * @throws IOException in case of an input/output error
+	 */
+	static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * the messages of each connection are decoded in order by a single one of
+	 * several decode threads
+	 *
+	 * @throws Exception in case of an unexpected error
+	 */
+	@Test
+	public void testDecodeThreads() throws Exception {
+		RecordingServerManager serverManager = new RecordingServerManager();
+		int port = getFreePort();
+		NIONetworkConnectionManager manager = new NIONetworkConnectionManager(serverManager, port, 3, 0, 0, 0);
+		manager.start();
+
+		List<Socket> clients = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < CONNECTIONS; i++) {
+				clients.add(new Socket("localhost", port));
+			}
+
+			// each client sends its messages in a few chunks, which do not end
+			// at message boundaries
+			List<byte[]> data = new ArrayList<byte[]>();
+			for (int i = 0; i < CONNECTIONS; i++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				for (int j = 0; j < MESSAGES; j++) {
+					MessageC2SKeepAlive msg = new MessageC2SKeepAlive();
+					msg.setClientID(j);
+					out.write(Encoder.get().encode(msg));
+				}
+				data.add(out.toByteArray());
+			}
+			for (int chunk = 0; chunk < 3; chunk++) {
+				for (int i = 0; i < CONNECTIONS; i++) {
+					byte[] bytes = data.get(i);
+					int start = bytes.length * chunk / 3;
+					int end = bytes.length * (chunk + 1) / 3;
+					clients.get(i).getOutputStream().write(bytes, start, end - start);
+					clients.get(i).getOutputStream().flush();
+				}
+				Thread.sleep(20);
+			}
+
+			serverManager.waitForMessages(CONNECTIONS * MESSAGES);
+			assertEquals(CONNECTIONS * MESSAGES, serverManager.countMessages());
+
+			Set<String> allThreads = new HashSet<String>();
+			synchronized (serverManager) {
+				assertEquals(CONNECTIONS, serverManager.messages.size());
+				for (Map.Entry<Object, List<Message>> entry : serverManager.messages.entrySet()) {
+					List<Message> list = entry.getValue();
+					for (int j = 0; j < MESSAGES; j++) {
+						assertEquals(j, list.get(j).getClientID());
+					}
+					Set<String> threads = serverManager.threads.get(entry.getKey());
+					assertEquals(threads.toString(), 1, threads.size());
+					allThreads.addAll(threads);
+				}
+			}
+			assertTrue(allThreads.toString(), allThreads.size() > 1);
+		} finally {
+			for (Socket client : clients) {
+				client.close();
+			}
+			manager.finish();
+		}
+	}
+
+	/**
+	 * a client which does not read is disconnected once more data than the
+	 * hard limit waits to be sent to it
+	 *
+	 * @throws Exception in case of an unexpected error
+	 */
+	@Test
+	public void testHardLimit() throws Exception {
+		RecordingServerManager serverManager = new RecordingServerManager();
+		int port = getFreePort();
+		NIONetworkConnectionManager manager = new NIONetworkConnectionManager(serverManager, port, 1, 0, 0, 64 * 1024);
+		manager.start();
+
+		Socket client = new Socket("localhost", port);
+		try {
+			long end = System.currentTimeMillis() + 10000;
+			while (serverManager.channels.isEmpty() && (System.currentTimeMillis() < end)) {
+				Thread.sleep(10);
+			}
+			Object internalChannel = serverManager.channels.keySet().iterator().next();
+
+			// the message is compressed, so random text is used to keep it large
+			Random random = new Random(1);
+			char[] text = new char[16 * 1024];
+			for (int i = 0; i < text.length; i++) {
+				text[i] = (char) ('a' + random.nextInt(26));
+			}
+			MessageS2CServerInfo msg = new MessageS2CServerInfo(null, new String[] { new String(text) });
+
+			// the socket buffers fill up first, then the queue of the connection
+			int sent = 0;
+			while (!isDisconnected(serverManager, internalChannel) && (sent < 100000)) {
+				manager.send(internalChannel, msg, true);
+				sent++;
+			}
+			assertTrue(isDisconnected(serverManager, internalChannel));
+		} finally {
+			client.close();
+			manager.finish();
+		}
+	}
+
+	private static boolean isDisconnected(RecordingServerManager serverManager, Object internalChannel) {
+		synchronized (serverManager) {
+			return serverManager.disconnected.contains(internalChannel);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.net.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests writing the queued data of a connection with gathering writes
+ */
+public class NioConnectionTest {
+
+	private ServerSocketChannel serverChannel;
+
+	/** the side of the connection written by NioConnection */
+	private SocketChannel server;
+
+	/** the side of the connection reading the data */
+	private SocketChannel client;
+
+	private NioConnection connection;
+
+	/**
+	 * creates a connected pair of sockets on localhost
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	@Before
+	public void setUp() throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		client = SocketChannel.open(serverChannel.socket().getLocalSocketAddress());
+		server = serverChannel.accept();
+		server.configureBlocking(false);
+		connection = new NioConnection(server, null);
+	}
+
+	/**
+	 * closes the sockets
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	@After
+	public void tearDown() throws IOException {
+		client.close();
+		server.close();
+		serverChannel.close();
+	}
+
+	/**
+	 * more messages than fit into a single gathering write arrive completely
+	 * and in order
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	@Test
+	public void testGatheringWrite() throws IOException {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < 150; i++) {
+			byte[] data = createData(i, 1 + i % 20);
+			expected.write(data);
+
+			// only the first message has to tell the reactor
+			assertEquals(i == 0, connection.offer(ByteBuffer.wrap(data)));
+		}
+		assertEquals(expected.size(), connection.getQueuedBytes());
+		assertTrue(connection.hasPendingData());
+
+		assertTrue(connection.write());
+		assertEquals(0, connection.getQueuedBytes());
+		assertFalse(connection.hasPendingData());
+		assertArrayEquals(expected.toByteArray(), read(expected.size()));
+
+		// the reactor has to be told about the next message again
+		assertTrue(connection.offer(ByteBuffer.wrap(createData(0, 5))));
+		assertFalse(connection.offer(ByteBuffer.wrap(createData(1, 5))));
+	}
+
+	/**
+	 * data that does not fit into the socket buffer stays queued until the
+	 * client reads
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	@Test
+	public void testFullSocketBuffer() throws IOException {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < 256; i++) {
+			byte[] data = createData(i, 16 * 1024);
+			expected.write(data);
+			connection.offer(ByteBuffer.wrap(data));
+		}
+
+		assertFalse(connection.write());
+		long queued = connection.getQueuedBytes();
+		assertTrue(queued > 0);
+		assertTrue(queued < expected.size());
+		assertTrue(connection.hasPendingData());
+
+		// read and write alternately until everything was written
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		boolean done = false;
+		while (!done) {
+			buffer.clear();
+			client.read(buffer);
+			received.write(buffer.array(), 0, buffer.position());
+			done = connection.write();
+		}
+		assertEquals(0, connection.getQueuedBytes());
+		received.write(read(expected.size() - received.size()));
+		assertArrayEquals(expected.toByteArray(), received.toByteArray());
+	}
+
+	/**
+	 * dropping the queued data resets the queued bytes
+	 */
+	@Test
+	public void testClear() {
+		connection.offer(ByteBuffer.wrap(createData(0, 100)));
+		connection.clear();
+		assertEquals(0, connection.getQueuedBytes());
+		assertFalse(connection.hasPendingData());
+	}
+
+	private byte[] read(int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (client.read(buffer) < 0) {
+				break;
+			}
+		}
+		return buffer.array();
+	}
+
+	private static byte[] createData(int message, int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) (message + i);
+		}
+		return data;
+	}
+}
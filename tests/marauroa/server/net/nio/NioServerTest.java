@@ -0,0 +1,165 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.net.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import marauroa.common.Log4J;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests accepting, reading and writing connections with several reactors
+ */
+public class NioServerTest {
+
+	private static final int CONNECTIONS = 6;
+
+	private static final int REACTORS = 2;
+
+	/**
+	 * a worker which echos the received data and keeps the threads that read
+	 * it
+	 */
+	static class EchoWorker implements IWorker {
+
+		final Map<SocketChannel, Set<String>> threads = new HashMap<SocketChannel, Set<String>>();
+
+		int connected;
+
+		int disconnected;
+
+		public void setServer(NioServer server) {
+			// not used
+		}
+
+		public synchronized void onConnect(SocketChannel channel) {
+			connected++;
+		}
+
+		public void onData(NioServer server, SocketChannel channel, byte[] data, int count) {
+			synchronized (this) {
+				Set<String> set = threads.get(channel);
+				if (set == null) {
+					set = new HashSet<String>();
+					threads.put(channel, set);
+				}
+				set.add(Thread.currentThread().getName());
+			}
+			server.send(channel, Arrays.copyOf(data, count));
+		}
+
+		public synchronized void onDisconnect(SocketChannel channel) {
+			disconnected++;
+			notifyAll();
+		}
+
+		synchronized void waitForDisconnects(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + 10000;
+			while ((disconnected < count) && (System.currentTimeMillis() < end)) {
+				wait(100);
+			}
+		}
+	}
+
+	/**
+	 * Setup for class. It initialize the logger instance
+	 */
+	@BeforeClass
+	public static void initialize() {
+		Log4J.init("marauroa/server/log4j.properties");
+	}
+
+	/**
+	 * connections are handed round-robin to the reactors, each of which reads
+	 * and writes its connections
+	 *
+	 * @throws Exception in case of an unexpected error
+	 */
+	@Test
+	public void testReactors() throws Exception {
+		EchoWorker worker = new EchoWorker();
+		int port = NIONetworkConnectionManagerTest.getFreePort();
+		NioServer server = new NioServer(null, port, worker, REACTORS);
+		server.start();
+
+		List<Socket> clients = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < CONNECTIONS; i++) {
+				Socket client = new Socket("localhost", port);
+				client.setSoTimeout(10000);
+				clients.add(client);
+			}
+
+			for (int round = 0; round < 3; round++) {
+				for (int i = 0; i < CONNECTIONS; i++) {
+					clients.get(i).getOutputStream().write(createData(i, round));
+				}
+				for (int i = 0; i < CONNECTIONS; i++) {
+					byte[] expected = createData(i, round);
+					byte[] echo = new byte[expected.length];
+					new DataInputStream(clients.get(i).getInputStream()).readFully(echo);
+					assertArrayEquals(expected, echo);
+				}
+			}
+
+			Set<String> allThreads = new HashSet<String>();
+			synchronized (worker) {
+				assertEquals(CONNECTIONS, worker.connected);
+				assertEquals(CONNECTIONS, worker.threads.size());
+				for (Set<String> threads : worker.threads.values()) {
+					assertEquals(threads.toString(), 1, threads.size());
+					allThreads.addAll(threads);
+				}
+			}
+			Set<String> expected = new HashSet<String>();
+			for (int i = 0; i < REACTORS; i++) {
+				expected.add("NioServer reactor " + i);
+			}
+			assertEquals(expected, allThreads);
+
+			for (Socket client : clients) {
+				client.close();
+			}
+			worker.waitForDisconnects(CONNECTIONS);
+			synchronized (worker) {
+				assertEquals(CONNECTIONS, worker.disconnected);
+			}
+		} finally {
+			for (Socket client : clients) {
+				client.close();
+			}
+			server.finish();
+		}
+	}
+
+	private static byte[] createData(int connection, int round) {
+		byte[] data = new byte[10 + round];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (connection * 16 + i);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,274 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.net.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import marauroa.common.Log4J;
+import marauroa.common.game.Definition.Type;
+import marauroa.common.game.IRPZone;
+import marauroa.common.game.Perception;
+import marauroa.common.game.RPClass;
+import marauroa.common.game.RPEvent;
+import marauroa.common.game.RPObject;
+import marauroa.common.game.RPSlot;
+import marauroa.common.net.Encoder;
+import marauroa.common.net.message.Message;
+import marauroa.common.net.message.MessageS2CPerception;
+import marauroa.common.net.message.MessageS2CServerInfo;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that the javascript client decodes the binary perceptions of the
+ * "marauroa-binary" websocket subprotocol to the same structure as the json
+ * perceptions. The test needs node and is skipped without it.
+ */
+public class BinaryPerceptionTest {
+
+	/** decodes the binary messages given as files with the rpclasses of a server info message */
+	private static final String SCRIPT = "var fs = require('fs');\n"
+			+ "var vm = require('vm');\n"
+			+ "global.window = global;\n"
+			+ "vm.runInThisContext(fs.readFileSync(process.argv[2] + '/inflate.js', 'utf8'));\n"
+			+ "vm.runInThisContext(fs.readFileSync(process.argv[2] + '/deserializer.js', 'utf8'));\n"
+			+ "var info = JSON.parse(fs.readFileSync(process.argv[3], 'utf8'));\n"
+			+ "marauroa.Deserializer.setRPClasses(info['rpclasses']);\n"
+			+ "if (info['dictionary']) {\n"
+			+ "	marauroa.Deserializer.setDictionary(info['dictionary']);\n"
+			+ "}\n"
+			+ "var res = [];\n"
+			+ "for (var i = 4; i < process.argv.length; i++) {\n"
+			+ "	var data = fs.readFileSync(process.argv[i]);\n"
+			+ "	res.push(marauroa.Deserializer.decodeMessage(\n"
+			+ "		data.buffer.slice(data.byteOffset, data.byteOffset + data.length)));\n"
+			+ "}\n"
+			+ "console.log(JSON.stringify(res));\n";
+
+	private static final File JS_DIR = new File("src/js");
+
+	/**
+	 * Setup for class. It initialize the logger instance and the RPClasses
+	 */
+	@BeforeClass
+	public static void initialize() {
+		Log4J.init("marauroa/server/log4j.properties");
+
+		RPClass rpClass = new RPClass("binary_test");
+		rpClass.addAttribute("name", Type.STRING);
+		rpClass.addAttribute("text", Type.LONG_STRING);
+		rpClass.addAttribute("x", Type.INT);
+		rpClass.addAttribute("hp", Type.SHORT);
+		rpClass.addAttribute("level", Type.BYTE);
+		rpClass.addAttribute("speed", Type.FLOAT);
+		rpClass.addAttribute("visible", Type.FLAG);
+		rpClass.addRPSlot("bag", 4);
+		rpClass.addRPEvent("binary_test_say", (byte) 0);
+
+		RPClass item = new RPClass("binary_test_item");
+		item.addAttribute("amount", Type.INT);
+
+		RPClass event = new RPClass("binary_test_say");
+		event.addAttribute("text", Type.STRING);
+	}
+
+	private static RPObject createObject() {
+		RPObject object = new RPObject();
+		object.setRPClass("binary_test");
+		object.setID(new RPObject.ID(7, "binary"));
+		object.put("name", "bob \u00e4");
+		object.put("text", "some longer text");
+		object.put("x", -123456);
+		object.put("hp", 300);
+		object.put("level", -5);
+		object.put("speed", 0.1);
+		object.put("visible", "");
+
+		RPObject content = new RPObject();
+		content.setRPClass("binary_test_item");
+		content.put("amount", 42);
+		object.addSlot("bag");
+		RPSlot bag = object.getSlot("bag");
+		bag.add(content);
+
+		RPEvent say = new RPEvent("binary_test_say");
+		say.put("text", "hello");
+		object.addEvent(say);
+		return object;
+	}
+
+	/**
+	 * binary SYNC and DELTA perceptions are decoded to the json ones
+	 *
+	 * @throws Exception in case of an unexpected error
+	 */
+	@Test
+	public void testPerceptions() throws Exception {
+		Assume.assumeTrue(JS_DIR.isDirectory() && isNodeAvailable());
+
+		IRPZone.ID zone = new IRPZone.ID("binary");
+		Perception sync = new Perception(Perception.SYNC, zone);
+		sync.added(createObject());
+		MessageS2CPerception syncMessage = new MessageS2CPerception(null, sync);
+		syncMessage.setMyRPObject(createObject(), null);
+		syncMessage.setClientID(3);
+
+		RPObject object = createObject();
+		object.resetAddedAndDeleted();
+		object.clearEvents();
+		object.put("x", 5);
+		object.put("speed", 1.5);
+		object.remove("hp");
+		object.getSlot("bag").getFirst().put("amount", 43);
+		RPEvent say = new RPEvent("binary_test_say");
+		say.put("text", "again");
+		object.addEvent(say);
+
+		Perception delta = new Perception(Perception.DELTA, zone);
+		delta.modified(object);
+		MessageS2CPerception deltaMessage = new MessageS2CPerception(null, delta);
+		deltaMessage.setClientID(3);
+
+		List<Message> messages = new ArrayList<Message>();
+		messages.add(syncMessage);
+		messages.add(deltaMessage);
+
+		StringBuilder expected = new StringBuilder("[");
+		for (Message message : messages) {
+			if (expected.length() > 1) {
+				expected.append(",");
+			}
+			expected.append("{");
+			message.writeToJson(expected);
+			expected.append("}");
+		}
+		expected.append("]");
+
+		String decoded = decode(messages);
+		JSONParser parser = new JSONParser();
+		JSONArray expectedJson = (JSONArray) parser.parse(expected.toString());
+		JSONArray decodedJson = (JSONArray) parser.parse(decoded);
+		assertEquals(expected + "\n" + decoded, expectedJson, decodedJson);
+	}
+
+	/**
+	 * only clients that get binary perceptions get the rpclasses and the
+	 * perception dictionary in the json server info message
+	 */
+	@Test
+	public void testServerInfo() {
+		MessageS2CServerInfo msg = new MessageS2CServerInfo(null, new String[] { "server" });
+		StringBuilder out = new StringBuilder();
+		msg.writeToJson(out);
+		assertFalse(out.toString(), out.toString().contains("rpclasses"));
+		assertFalse(out.toString(), out.toString().contains("dictionary"));
+
+		msg.setBinaryPerceptions(true);
+		out = new StringBuilder();
+		msg.writeToJson(out);
+		assertTrue(out.toString(), out.toString().contains("\"rpclasses\":{"));
+	}
+
+	private static boolean isNodeAvailable() {
+		try {
+			Process process = new ProcessBuilder("node", "--version").redirectErrorStream(true).start();
+			read(process.getInputStream());
+			return process.waitFor() == 0;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * decodes messages with the javascript client
+	 *
+	 * @param messages messages to encode in binary form
+	 * @return json array of the decoded messages
+	 * @throws Exception in case of an unexpected error
+	 */
+	private static String decode(List<Message> messages) throws Exception {
+		List<File> files = new ArrayList<File>();
+		try {
+			File script = createTempFile(".js", SCRIPT.getBytes(StandardCharsets.UTF_8));
+			files.add(script);
+
+			MessageS2CServerInfo serverInfo = new MessageS2CServerInfo(null, new String[0]);
+			serverInfo.setBinaryPerceptions(true);
+			StringBuilder out = new StringBuilder("{");
+			serverInfo.writeToJson(out);
+			out.append("}");
+			File info = createTempFile(".json", out.toString().getBytes(StandardCharsets.UTF_8));
+			files.add(info);
+
+			List<String> command = new ArrayList<String>();
+			command.add("node");
+			command.add(script.getAbsolutePath());
+			command.add(JS_DIR.getAbsolutePath());
+			command.add(info.getAbsolutePath());
+			for (Message message : messages) {
+				File file = createTempFile(".bin", Encoder.get().encode(message));
+				files.add(file);
+				command.add(file.getAbsolutePath());
+			}
+
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+			String output = read(process.getInputStream());
+			assertEquals(output, 0, process.waitFor());
+			return output;
+		} finally {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	private static File createTempFile(String suffix, byte[] data) throws IOException {
+		File file = File.createTempFile("binary_perception", suffix);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count = in.read(buffer);
+		while (count >= 0) {
+			out.write(buffer, 0, count);
+			count = in.read(buffer);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,230 @@
+/***************************************************************************
+ *                   (C) Copyright 2003-2026 - Marauroa                    *
+ ***************************************************************************
+ ***************************************************************************
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ ***************************************************************************/
+package marauroa.server.net.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jakarta.websocket.RemoteEndpoint.Async;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import marauroa.common.Log4J;
+import marauroa.common.game.IRPZone;
+import marauroa.common.game.Perception;
+import marauroa.common.net.message.Message;
+import marauroa.common.net.message.MessageS2CPerception;
+import marauroa.common.net.message.MessageS2CServerInfo;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the queue of messages waiting to be sent to a web client
+ */
+public class WebSocketChannelTest {
+
+	/**
+	 * a websocket session which keeps the sent messages and completes
+	 * sending them only when asked to
+	 */
+	static class RecordingSession implements InvocationHandler {
+
+		/** messages that have been handed to the session */
+		final List<String> sent = new ArrayList<String>();
+
+		/** handlers of the messages which are being sent */
+		final List<SendHandler> inFlight = new ArrayList<SendHandler>();
+
+		boolean closed;
+
+		final Async async = (Async) Proxy.newProxyInstance(Async.class.getClassLoader(),
+				new Class<?>[] { Async.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("sendText") && (args.length == 2)) {
+							sent.add((String) args[0]);
+							inFlight.add((SendHandler) args[1]);
+						}
+						return null;
+					}
+				});
+
+		final Session session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(),
+				new Class<?>[] { Session.class }, this);
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("getAsyncRemote")) {
+				return async;
+			} else if (method.getName().equals("close")) {
+				closed = true;
+			} else if (method.getName().equals("isOpen")) {
+				return Boolean.valueOf(!closed);
+			} else if (method.getName().equals("hashCode")) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			} else if (method.getName().equals("equals")) {
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			return null;
+		}
+
+		/**
+		 * completes sending the messages, including the ones which are
+		 * started by completing others
+		 */
+		void completeAll() {
+			while (!inFlight.isEmpty()) {
+				inFlight.remove(0).onResult(new SendResult());
+			}
+		}
+	}
+
+	private RecordingSession session;
+
+	private WebSocketChannel channel;
+
+	/**
+	 * Setup for class. It initialize the logger instance
+	 */
+	@BeforeClass
+	public static void initialize() {
+		Log4J.init("marauroa/server/log4j.properties");
+	}
+
+	/**
+	 * creates a channel on a recording session
+	 */
+	@Before
+	public void setUp() {
+		session = new RecordingSession();
+		channel = new WebSocketChannel(session.session);
+	}
+
+	private static Message createPerception(byte type) {
+		return new MessageS2CPerception(null, new Perception(type, new IRPZone.ID("zone")));
+	}
+
+	/**
+	 * only one message is sent at a time, the others follow in order
+	 */
+	@Test
+	public void testSingleInFlight() {
+		channel.send("m1", null, WebSocketChannel.MESSAGE);
+		channel.send("m2", null, WebSocketChannel.DELTA_PERCEPTION);
+		channel.send("m3", null, WebSocketChannel.MESSAGE);
+		assertEquals(Arrays.asList("m1"), session.sent);
+		assertEquals(2, channel.getQueuedMessages());
+		assertEquals(4, channel.getQueuedBytes());
+
+		session.inFlight.remove(0).onResult(new SendResult());
+		assertEquals(Arrays.asList("m1", "m2"), session.sent);
+		assertEquals(1, session.inFlight.size());
+
+		session.completeAll();
+		assertEquals(Arrays.asList("m1", "m2", "m3"), session.sent);
+		assertEquals(0, channel.getQueuedMessages());
+		assertEquals(0, channel.getQueuedBytes());
+	}
+
+	/**
+	 * a SYNC perception replaces the perceptions that are still waiting, but
+	 * not the other messages
+	 */
+	@Test
+	public void testSyncCoalescing() {
+		channel.send("m1", null, WebSocketChannel.MESSAGE);
+		channel.send("d1", null, WebSocketChannel.DELTA_PERCEPTION);
+		channel.send("m2", null, WebSocketChannel.MESSAGE);
+		channel.send("d2", null, WebSocketChannel.DELTA_PERCEPTION);
+		channel.send("s1", null, WebSocketChannel.SYNC_PERCEPTION);
+		assertEquals(2, channel.getQueuedMessages());
+		assertEquals(4, channel.getQueuedBytes());
+
+		session.completeAll();
+		assertEquals(Arrays.asList("m1", "m2", "s1"), session.sent);
+	}
+
+	/**
+	 * a failed send drops the waiting messages
+	 */
+	@Test
+	public void testFailedSend() {
+		channel.send("m1", null, WebSocketChannel.MESSAGE);
+		channel.send("m2", null, WebSocketChannel.MESSAGE);
+		session.inFlight.remove(0).onResult(new SendResult(new Exception("test")));
+		assertEquals(0, channel.getQueuedMessages());
+		assertEquals(Arrays.asList("m1"), session.sent);
+	}
+
+	/**
+	 * above the soft limit DELTA perceptions are dropped until the client
+	 * caught up and a SYNC perception was sent
+	 */
+	@Test
+	public void testSoftLimit() {
+		WebSocketConnectionManager manager = new WebSocketConnectionManager(null, 100, 0);
+		Message delta = createPerception(Perception.DELTA);
+		for (int i = 0; (i < 10) && (channel.getQueuedBytes() <= 100); i++) {
+			manager.send(channel, delta, true);
+		}
+		assertTrue(channel.getQueuedBytes() > 100);
+		assertFalse(channel.getOutboundLimiter().isSyncPending());
+
+		int queued = channel.getQueuedMessages();
+		manager.send(channel, delta, true);
+		assertEquals(queued, channel.getQueuedMessages());
+		assertTrue(channel.getOutboundLimiter().isSyncPending());
+
+		// other messages are still sent
+		manager.send(channel, new MessageS2CServerInfo(null, new String[0]), true);
+		assertEquals(queued + 1, channel.getQueuedMessages());
+
+		// the client caught up, but needs a SYNC perception first
+		session.completeAll();
+		int sent = session.sent.size();
+		manager.send(channel, delta, true);
+		assertEquals(sent, session.sent.size());
+		assertTrue(channel.getOutboundLimiter().isSyncRequested());
+
+		manager.send(channel, createPerception(Perception.SYNC), true);
+		assertEquals(sent + 1, session.sent.size());
+		assertFalse(channel.getOutboundLimiter().isSyncPending());
+		session.completeAll();
+		manager.send(channel, delta, true);
+		assertEquals(sent + 2, session.sent.size());
+		assertFalse(session.closed);
+	}
+
+	/**
+	 * a client with more than the hard limit waiting is disconnected
+	 */
+	@Test
+	public void testHardLimit() {
+		WebSocketConnectionManager manager = new WebSocketConnectionManager(null, 0, 1000);
+		char[] text = new char[200];
+		Arrays.fill(text, 'x');
+		Message msg = new MessageS2CServerInfo(null, new String[] { new String(text) });
+		for (int i = 0; (i < 20) && !session.closed; i++) {
+			manager.send(channel, msg, true);
+		}
+		assertTrue(session.closed);
+		assertTrue(channel.getQueuedBytes() > 1000);
+	}
+}